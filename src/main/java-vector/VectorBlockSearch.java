@@ -0,0 +1,58 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Searches a block of a {@link LongBlockDictionary} with the Vector API.
+ * The key is compared with a whole vector of keys at once, and the lanes
+ * holding a lesser key are counted - as the keys are sorted and padded with
+ * {@link Long#MAX_VALUE}, the total is the position of the key. Every
+ * search takes the same steps whatever the key, with no branches on the
+ * keys at all.
+ * Kept apart from the rest of the source, as it needs the incubator module
+ * to compile and to run:
+ * {@code javac --add-modules jdk.incubator.vector} with the main classes on
+ * the class path, and {@code java --add-modules jdk.incubator.vector}.
+ * {@link LongBlockDictionary} loads it by name, and falls back to its
+ * scalar search if it is missing.
+ *
+ * @author Samuel Marsh
+ */
+final class VectorBlockSearch implements LongBlockDictionary.Search {
+
+    /**
+     * The widest vector of longs the hardware supports.
+     */
+    private static final VectorSpecies<Long> SPECIES =
+            LongVector.SPECIES_PREFERRED;
+
+    /**
+     * Creates the search.
+     *
+     * @throws UnsupportedOperationException if a vector holds only one long,
+     * so that the scalar search would be faster
+     */
+    VectorBlockSearch() throws UnsupportedOperationException {
+        if (SPECIES.length() < 2
+                || LongBlockDictionary.CAPACITY % SPECIES.length() != 0)
+            throw new UnsupportedOperationException("vectors are too short");
+    }
+
+    @Override
+    public int search(long[] keys, long key) {
+        int position = 0;
+        for (int i = 0; i < LongBlockDictionary.CAPACITY;
+             i += SPECIES.length()) {
+            position += LongVector.fromArray(SPECIES, keys, i)
+                    .compare(VectorOperators.LT, key)
+                    .trueCount();
+        }
+        return position;
+    }
+
+    @Override
+    public int steps() {
+        return LongBlockDictionary.CAPACITY / SPECIES.length();
+    }
+
+}
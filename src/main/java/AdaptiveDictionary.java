@@ -0,0 +1,624 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A dictionary that holds a small number of elements in a sorted array,
+ * searched by binary search, and only builds a {@link RedBlackTree} once it
+ * grows past a threshold. It goes back to an array once it shrinks below a
+ * lower threshold, so that a size hovering around either threshold does not
+ * convert back and forth on every operation.
+ * A small dictionary therefore costs one object and one array, rather than
+ * a tree, its sentinel node, a log and a node per element. This suits
+ * programs holding very many tiny dictionaries.
+ * The log covers both forms: in array form the dictionary logs each
+ * operation itself, counting the comparisons of its binary search, and its
+ * log is only allocated once the first line is written. Building or
+ * dismantling the tree is not logged.
+ * Iterators are fail-fast across both forms. Removing an element through
+ * an iterator never converts the dictionary back to an array; that waits
+ * for the next call to {@link #delete(Comparable)}.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class AdaptiveDictionary<E extends Comparable<E>>
+        implements Dictionary<E> {
+
+    /**
+     * The default size above which a tree is built.
+     */
+    public static final int DEFAULT_PROMOTE = 32;
+
+    /**
+     * The default size below which the tree is replaced by an array.
+     */
+    public static final int DEFAULT_DEMOTE = 16;
+
+    /**
+     * The log message format, matching {@link RedBlackTree}.
+     */
+    private static final String LOG_MSG =
+            "Operation %s completed using %d comparison(s).%n";
+
+    /**
+     * Shared by every empty dictionary in array form.
+     */
+    private static final Object[] EMPTY = {};
+
+    /**
+     * The size above which a tree is built.
+     */
+    private final int promote;
+
+    /**
+     * The size below which the tree is replaced by an array.
+     */
+    private final int demote;
+
+    /**
+     * The elements in ascending order, in the first {@link #size} places,
+     * while in array form. Unused while in tree form.
+     */
+    private Object[] items;
+
+    /**
+     * The tree holding the elements, or null while in array form.
+     */
+    private RedBlackTree<E> tree;
+
+    /**
+     * The number of elements in the dictionary.
+     */
+    private int size;
+
+    /**
+     * The number of modifications made to the dictionary, to make the
+     * iterators fail-fast.
+     */
+    private int operations;
+
+    /**
+     * The operations made in array form, and those the tree had logged when
+     * it was replaced or its log was last retrieved. Null until the first
+     * line is written.
+     */
+    private StringBuilder log;
+
+    /**
+     * Whether operations are appended to the log.
+     */
+    private boolean logging;
+
+    /**
+     * The number of comparisons made by the current operation in array form.
+     */
+    private int comparisons;
+
+    /**
+     * Creates a new, empty dictionary that builds a tree above
+     * {@value #DEFAULT_PROMOTE} elements and goes back to an array below
+     * {@value #DEFAULT_DEMOTE}.
+     */
+    public AdaptiveDictionary() {
+        this(DEFAULT_PROMOTE, DEFAULT_DEMOTE);
+    }
+
+    /**
+     * Creates a new, empty dictionary with the given thresholds.
+     *
+     * @param promote the size above which a tree is built
+     * @param demote the size below which the tree is replaced by an array
+     * @throws IllegalArgumentException unless 0 &lt;= demote &lt; promote
+     */
+    public AdaptiveDictionary(int promote, int demote)
+            throws IllegalArgumentException {
+        if (demote < 0 || demote >= promote)
+            throw new IllegalArgumentException(
+                    "thresholds must satisfy 0 <= demote < promote"
+            );
+        this.promote = promote;
+        this.demote = demote;
+        items = EMPTY;
+        logging = true;
+    }
+
+    /**
+     * Checks whether the elements are currently held in a tree.
+     *
+     * @return true if the dictionary is in tree form, false if in array form
+     */
+    public boolean isTree() {
+        return tree != null;
+    }
+
+    /**
+     * Gives the number of elements in the dictionary. Runs in constant time.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        if (tree != null) return tree.isEmpty();
+        comparisons = 0;
+        log("isEmpty()", null);
+        return size == 0;
+    }
+
+    /**
+     * Checks if the dictionary contains the item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        if (tree != null) return tree.contains(item);
+        comparisons = 0;
+        boolean found = item != null && search(item) >= 0;
+        log("contains(%s)", item);
+        return found;
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        if (tree != null) return tree.hasPredecessor(item);
+        comparisons = 0;
+        boolean has = item != null && size > 0 && compare(item, at(0)) > 0;
+        log("hasPredecessor(%s)", item);
+        return has;
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        if (tree != null) return tree.hasSuccessor(item);
+        comparisons = 0;
+        boolean has = item != null && size > 0
+                && compare(item, at(size - 1)) < 0;
+        log("hasSuccessor(%s)", item);
+        return has;
+    }
+
+    /**
+     * Finds the greatest element less than the item.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        if (tree != null) return tree.predecessor(item);
+        if (!hasPredecessor(item))
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        comparisons = 0;
+        int i = search(item);
+        log("predecessor(%s)", item);
+        return at(i >= 0 ? i - 1 : -i - 2);
+    }
+
+    /**
+     * Finds the least element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        if (tree != null) return tree.successor(item);
+        if (!hasSuccessor(item))
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        comparisons = 0;
+        int i = search(item);
+        log("successor(%s)", item);
+        return at(i >= 0 ? i + 1 : -i - 1);
+    }
+
+    /**
+     * Finds the least element in the dictionary.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        if (tree != null) return tree.min();
+        comparisons = 0;
+        log("min()", null);
+        if (size == 0) throw new NoSuchElementException("dictionary is empty");
+        return at(0);
+    }
+
+    /**
+     * Finds the greatest element in the dictionary.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        if (tree != null) return tree.max();
+        comparisons = 0;
+        log("max()", null);
+        if (size == 0) throw new NoSuchElementException("dictionary is empty");
+        return at(size - 1);
+    }
+
+    /**
+     * Adds the item to the dictionary, building a tree if the dictionary
+     * grows past the promotion threshold.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        if (tree != null) {
+            if (!tree.add(item)) return false;
+        } else {
+            comparisons = 0;
+            int i = item == null ? 0 : search(item);
+            log("add(%s)", item);
+            if (item == null || i >= 0) return false;
+            i = -i - 1;
+            if (size == items.length)
+                items = Arrays.copyOf(items, Math.max(4, size * 2));
+            System.arraycopy(items, i, items, i + 1, size - i);
+            items[i] = item;
+        }
+        ++size;
+        ++operations;
+        if (tree == null && size > promote) promote();
+        return true;
+    }
+
+    /**
+     * Deletes the item from the dictionary, going back to an array if the
+     * dictionary shrinks below the demotion threshold.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        if (tree != null) {
+            if (!tree.delete(item)) return false;
+            --size;
+        } else {
+            comparisons = 0;
+            int i = item == null ? -1 : search(item);
+            log("delete(%s)", item);
+            if (i < 0) return false;
+            removeAt(i);
+        }
+        ++operations;
+        if (tree != null && size < demote) demote();
+        return true;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements in ascending order.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        if (tree != null) return new AdaptiveIterator(tree.iterator());
+        comparisons = 0;
+        log("iterator()", null);
+        return new AdaptiveIterator(0);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        if (tree != null) return new AdaptiveIterator(tree.iterator(start));
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        comparisons = 0;
+        int i = search(start);
+        log("iterator(%s)", start);
+        return new AdaptiveIterator(i >= 0 ? i : -i - 1);
+    }
+
+    /**
+     * Sets whether operations are appended to the log string, as
+     * {@link RedBlackTree#setLogging(boolean)} does, in either form. Logging
+     * is on by default.
+     *
+     * @param enabled whether to log operations
+     */
+    public void setLogging(boolean enabled) {
+        logging = enabled;
+        if (tree != null) tree.setLogging(enabled);
+    }
+
+    /**
+     * Provides a string listing all operations made on the dictionary since
+     * the log string was last retrieved, in either form, and clears it for
+     * next time.
+     *
+     * @return the log string
+     */
+    @Override
+    public String getLogString() {
+        drain();
+        if (log == null) return "";
+        String logString = log.toString();
+        log.setLength(0);
+        return logString;
+    }
+
+    /**
+     * Provides the structure of the tree in tree form, or the elements in
+     * array form.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        if (tree != null) return tree.toString();
+        comparisons = 0;
+        log("toString()", null);
+        return Arrays.toString(Arrays.copyOf(items, size));
+    }
+
+    /**
+     * Moves the elements from the array into a new tree.
+     */
+    private void promote() {
+        tree = new RedBlackTree<E>();
+        tree.setLogging(false);
+        for (int i = 0; i < size; ++i) tree.add(at(i));
+        tree.setLogging(logging);
+        items = EMPTY;
+    }
+
+    /**
+     * Moves the elements from the tree into a new array, with room for the
+     * dictionary to grow back to the promotion threshold.
+     */
+    private void demote() {
+        items = new Object[Math.max(size, Math.min(promote, size * 2))];
+        int i = 0;
+        tree.setLogging(false);
+        for (E item : (Iterable<E>) tree::iterator) items[i++] = item;
+        drain();
+        tree = null;
+    }
+
+    /**
+     * Moves the lines logged by the tree, if any, to the end of the log.
+     */
+    private void drain() {
+        if (tree == null) return;
+        String lines = tree.getLogString();
+        if (lines.isEmpty()) return;
+        if (log == null) log = new StringBuilder();
+        log.append(lines);
+    }
+
+    /**
+     * Adds a line to the log describing an operation just completed in
+     * array form, only formatting the description if logging is on.
+     *
+     * @param format the description of the operation, as a format string
+     * @param argument the argument of the operation, if any
+     */
+    private void log(String format, Object argument) {
+        if (!logging) return;
+        if (log == null) log = new StringBuilder();
+        log.append(String.format(LOG_MSG, String.format(format, argument),
+                comparisons));
+    }
+
+    /**
+     * Binary searches the array for an element, counting the comparisons.
+     *
+     * @param item the element to search for
+     * @return its index if present, otherwise (-(insertion point) - 1)
+     */
+    private int search(E item) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(item, at(mid));
+            if (cmp > 0) lo = mid + 1;
+            else if (cmp < 0) hi = mid - 1;
+            else return mid;
+        }
+        return -lo - 1;
+    }
+
+    /**
+     * Compares two elements, counting the comparison.
+     *
+     * @param k1 the first element
+     * @param k2 the second element
+     * @return the result of k1.compareTo(k2)
+     */
+    private int compare(E k1, E k2) {
+        ++comparisons;
+        return k1.compareTo(k2);
+    }
+
+    /**
+     * Gives the element at an index of the array.
+     *
+     * @param i the index
+     * @return the element at that index
+     */
+    @SuppressWarnings("unchecked")
+    private E at(int i) {
+        return (E) items[i];
+    }
+
+    /**
+     * Removes the element at an index of the array.
+     *
+     * @param i the index
+     */
+    private void removeAt(int i) {
+        System.arraycopy(items, i + 1, items, i, size - i - 1);
+        items[--size] = null;
+    }
+
+    /**
+     * An iterator over either form of the dictionary. It fails if the
+     * dictionary is modified other than through the iterator, including by
+     * changing form.
+     */
+    private class AdaptiveIterator implements Iterator<E> {
+
+        /**
+         * The iterator over the tree, or null if iterating over the array.
+         */
+        private final Iterator<E> iterator;
+
+        /**
+         * The index of the next element of the array.
+         */
+        private int next;
+
+        /**
+         * Whether an element has been returned that has not been removed.
+         */
+        private boolean removable;
+
+        /**
+         * The number of modifications expected to have been made.
+         */
+        private int ops;
+
+        /**
+         * Creates an iterator over the tree.
+         *
+         * @param iterator the iterator over the tree
+         */
+        private AdaptiveIterator(Iterator<E> iterator) {
+            this.iterator = iterator;
+            ops = operations;
+        }
+
+        /**
+         * Creates an iterator over the array.
+         *
+         * @param next the index of the first element to return
+         */
+        private AdaptiveIterator(int next) {
+            this.iterator = null;
+            this.next = next;
+            ops = operations;
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         *
+         * @return true if and only if the iterator has more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            check();
+            return iterator != null ? iterator.hasNext() : next < size;
+        }
+
+        /**
+         * Provides the next element.
+         *
+         * @return the next element in the dictionary
+         * @throws NoSuchElementException if there are no more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            removable = true;
+            return iterator != null ? iterator.next() : at(next++);
+        }
+
+        /**
+         * Deletes the element most recently returned.
+         *
+         * @throws IllegalStateException if next() has not been called, or
+         * remove() has already been called since
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            check();
+            if (!removable)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() " +
+                                "method has already been called after the " +
+                                "last call to the next() method"
+                );
+            removable = false;
+            if (iterator != null) {
+                iterator.remove();
+                --size;
+            } else {
+                removeAt(--next);
+            }
+            ops = ++operations;
+        }
+
+        /**
+         * Fails if the dictionary has been modified other than through this
+         * iterator.
+         *
+         * @throws ConcurrentModificationException if it has
+         */
+        private void check() throws ConcurrentModificationException {
+            if (ops != operations)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified"
+                );
+        }
+
+    }
+
+}
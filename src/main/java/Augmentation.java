@@ -0,0 +1,161 @@
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * An augmentation describes a summary value (an <i>aggregate</i>) that a
+ * {@link RedBlackTree} maintains for every subtree, so that the aggregate of
+ * any range of elements can be found in logarithmic time using
+ * {@link RedBlackTree#aggregate(Comparable, Comparable)}.
+ * The aggregates must form a monoid: {@link #combine(Object, Object)} must
+ * be associative, and {@link #identity()} must leave any aggregate unchanged
+ * when combined with it on either side. The combine operation need not be
+ * commutative - aggregates are always combined in ascending order of the
+ * elements they summarise.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements being summarised
+ * @param <A> the type of the aggregate
+ */
+public interface Augmentation<E, A> {
+
+    /**
+     * Gives the aggregate of no elements.
+     *
+     * @return the identity aggregate
+     */
+    A identity();
+
+    /**
+     * Gives the aggregate of a single element.
+     *
+     * @param element the element to summarise
+     * @return the aggregate of just that element
+     */
+    A lift(E element);
+
+    /**
+     * Combines the aggregates of two adjacent runs of elements.
+     *
+     * @param left the aggregate of the lesser run of elements
+     * @param right the aggregate of the greater run of elements
+     * @return the aggregate of both runs together
+     */
+    A combine(A left, A right);
+
+    /**
+     * An augmentation that counts the elements in each subtree.
+     *
+     * @param <E> the type of elements being counted
+     * @return an augmentation whose aggregate is the number of elements
+     */
+    static <E> Augmentation<E, Integer> count() {
+        return new Augmentation<E, Integer>() {
+            @Override
+            public Integer identity() {
+                return 0;
+            }
+
+            @Override
+            public Integer lift(E element) {
+                return 1;
+            }
+
+            @Override
+            public Integer combine(Integer left, Integer right) {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * An augmentation that sums a weight given to each element.
+     *
+     * @param weight gives the weight of an element
+     * @param <E> the type of elements being summed
+     * @return an augmentation whose aggregate is the total weight of the
+     * elements
+     */
+    static <E> Augmentation<E, Long> sum(ToLongFunction<? super E> weight) {
+        return new Augmentation<E, Long>() {
+            @Override
+            public Long identity() {
+                return 0L;
+            }
+
+            @Override
+            public Long lift(E element) {
+                return weight.applyAsLong(element);
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * An augmentation that keeps a digest of the elements in each subtree,
+     * hashing each element with {@link Object#hashCode()}. The digest of a
+     * range depends only on the elements in it, not on the shape of the
+     * tree, so it can be used to compare dictionaries and find how they
+     * differ using {@link RedBlackTree#diff(RedBlackTree,
+     * java.util.function.Consumer, java.util.function.Consumer)}.
+     *
+     * @param <E> the type of elements being digested
+     * @return an augmentation whose aggregate is a 64-bit digest of the
+     * elements
+     */
+    static <E> Augmentation<E, Long> digest() {
+        return new ContentDigest<E>(Object::hashCode);
+    }
+
+    /**
+     * An augmentation that keeps a digest of the elements in each subtree,
+     * as {@link #digest()} does, but using a given hash of each element -
+     * which should be 64 bits wide for large dictionaries. Dictionaries can
+     * only be compared if they hash their elements the same way.
+     *
+     * @param hash gives the hash of an element
+     * @param <E> the type of elements being digested
+     * @return an augmentation whose aggregate is a 64-bit digest of the
+     * elements
+     */
+    static <E> Augmentation<E, Long> digest(ToLongFunction<? super E> hash) {
+        return new ContentDigest<E>(hash);
+    }
+
+    /**
+     * An augmentation that tracks the greatest value of some attribute of
+     * the elements, such as the end point of an interval.
+     *
+     * @param attribute gives the attribute of an element
+     * @param <E> the type of elements being summarised
+     * @param <T> the type of the attribute
+     * @return an augmentation whose aggregate is the greatest attribute
+     * value, or null if there are no elements
+     */
+    static <E, T extends Comparable<? super T>> Augmentation<E, T> max(
+            Function<? super E, ? extends T> attribute) {
+        return new Augmentation<E, T>() {
+            @Override
+            public T identity() {
+                return null;
+            }
+
+            @Override
+            public T lift(E element) {
+                return attribute.apply(element);
+            }
+
+            @Override
+            public T combine(T left, T right) {
+                if (left == null) return right;
+                if (right == null) return left;
+                return left.compareTo(right) >= 0 ? left : right;
+            }
+        };
+    }
+
+}
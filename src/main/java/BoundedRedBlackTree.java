@@ -0,0 +1,146 @@
+import java.util.function.Consumer;
+
+/**
+ * A red-black tree holding at most a fixed number of elements. Once the
+ * tree is full, adding a new element evicts the current least (or greatest)
+ * element, so that the tree keeps the greatest (or least) elements seen so
+ * far - for example, the top k scores over a stream.
+ * An element that would be evicted straight away is rejected after a single
+ * comparison with the cached extreme element, without searching the tree,
+ * and an accepted element is added in a single descent, with the evicted
+ * element unlinked directly, without a search. Each add is logged as a
+ * single operation, counting the comparison with the extreme element.
+ * Both evicted and rejected elements are passed to an optional callback.
+ * Within a {@link #transaction(Consumer) transaction},
+ * the callback is only called once the transaction commits, and not at all
+ * if it is rolled back.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class BoundedRedBlackTree<E extends Comparable<E>>
+        extends RedBlackTree<E> {
+
+    /**
+     * The extreme element that is evicted when the tree is full.
+     */
+    public enum Eviction {
+
+        /**
+         * Evict the least element, keeping the greatest elements.
+         */
+        MIN,
+
+        /**
+         * Evict the greatest element, keeping the least elements.
+         */
+        MAX
+
+    }
+
+    /**
+     * The greatest number of elements the tree may hold.
+     */
+    private final int capacity;
+
+    /**
+     * Which extreme element is evicted when the tree is full.
+     */
+    private final Eviction eviction;
+
+    /**
+     * Called with each element that is evicted or rejected.
+     */
+    private final Consumer<? super E> onEvict;
+
+    /**
+     * Creates a new, empty tree that evicts its least element when full.
+     *
+     * @param capacity the greatest number of elements the tree may hold
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public BoundedRedBlackTree(int capacity) throws IllegalArgumentException {
+        this(capacity, Eviction.MIN, null);
+    }
+
+    /**
+     * Creates a new, empty tree with a given capacity and eviction policy.
+     *
+     * @param capacity the greatest number of elements the tree may hold
+     * @param eviction which extreme element to evict when full
+     * @param onEvict called with each element that is evicted, or rejected
+     *                because it would have been evicted immediately, once
+     *                any transaction making the change commits - may be
+     *                null
+     * @throws IllegalArgumentException if the capacity is not positive, or
+     * the eviction policy is null
+     */
+    public BoundedRedBlackTree(int capacity, Eviction eviction,
+                               Consumer<? super E> onEvict)
+            throws IllegalArgumentException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity is not positive");
+        if (eviction == null)
+            throw new IllegalArgumentException("eviction policy is null");
+        this.capacity = capacity;
+        this.eviction = eviction;
+        this.onEvict = onEvict;
+    }
+
+    /**
+     * Gives the greatest number of elements the tree may hold.
+     *
+     * @return the capacity of the tree
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds every element of a sorted run one at a time, as
+     * {@link #add(Comparable)} does, so that the capacity is kept to.
+     *
+     * @param sorted the elements to add, in ascending order
+     * @return the number of elements added
+     */
+    @Override
+    public int addSorted(Iterable<? extends E> sorted) {
+        int added = 0;
+        for (E item : sorted) if (add(item)) ++added;
+        return added;
+    }
+
+    /**
+     * Checks if an item could be kept by the dictionary, by comparing it
+     * with the element that would next be evicted. An item that would be
+     * evicted straight away is passed to the callback, and not added. The
+     * comparison is counted in the log line of the add.
+     *
+     * @param item the item about to be added
+     * @return false if the item should not be added
+     */
+    @Override
+    boolean admit(E item) {
+        if (item == null || count() < capacity) return true;
+        int cmp = eviction == Eviction.MIN
+                ? compare(item, peek(true))
+                : compare(peek(false), item);
+        //an item equal to the extreme element is already in the dictionary,
+        //so it is neither added nor evicted
+        if (cmp < 0 && onEvict != null) defer(onEvict, item);
+        return cmp > 0;
+    }
+
+    /**
+     * Evicts the extreme element if the dictionary has grown past its
+     * capacity, within the add that grew it.
+     */
+    @Override
+    void admitted() {
+        if (count() <= capacity) return;
+        E evicted = poll(eviction == Eviction.MIN);
+        if (onEvict != null) defer(onEvict, evicted);
+    }
+
+}
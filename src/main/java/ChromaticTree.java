@@ -0,0 +1,1100 @@
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe dictionary implemented as a chromatic tree: a red-black
+ * tree whose balance is relaxed, so that rebalancing is separated from
+ * updates and done in small steps that any thread can perform.
+ * The tree is leaf-oriented - the elements are held in the leaves, and
+ * internal nodes only route searches, with smaller keys to the left. Every
+ * node has a weight: 0 for a red node, 1 for a black node, and more for an
+ * overweight node. The total weight of every path from the root to a leaf
+ * is the same, and the tree is a red-black tree when no red node has a red
+ * parent and no node is overweight.
+ * Adding an element replaces the leaf where it belongs with a small subtree
+ * of three nodes, and deleting one replaces the leaf and its parent with a
+ * copy of its sibling. Each locks only the nodes it replaces and their
+ * parent, and may leave a violation: a red node with a red parent, or an
+ * overweight node. Violations are repaired by rebalancing steps, each of
+ * which likewise replaces a few nodes around one violation, removing it or
+ * moving it closer to the root, and is independent of any other step.
+ * By default each writer repairs the violations its update left, and any
+ * that those repairs lead to, before returning. Alternatively writers can
+ * leave hints for them, to be repaired by background threads calling
+ * {@link #rebalance()} - once updates stop, a call to it returns a tree of
+ * red-black height.
+ * Nodes never change their key or weight, only their children, and each
+ * change is a single write of a child pointer. Lookups therefore never
+ * lock, and always follow a path that was present in the tree at some
+ * moment. Operations spanning several elements, such as iteration, are not
+ * atomic. Iterators are fail-fast with respect to any modification of the
+ * dictionary, on a best-effort basis.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class ChromaticTree<E extends Comparable<E>> implements Dictionary<E> {
+
+    /**
+     * The constant log message format, used in {@link #getLogString()}.
+     */
+    private static final String LOG_MSG =
+            "Operation %s completed using %d comparison(s).%n";
+
+    /**
+     * The hint standing for the key of the rightmost leaf, which is greater
+     * than every element.
+     */
+    private static final Object INFINITY = new Object();
+
+    /**
+     * The outcomes of a rebalancing step: there was no violation on the
+     * path to the hint, one was repaired, or the nodes around one changed
+     * before they could be locked.
+     */
+    private static final int CLEAN = 0, FIXED = 1, BUSY = 2;
+
+    /**
+     * The node above the root, whose left child is the root. It is never
+     * replaced, so that every node that may be replaced has a parent.
+     */
+    private final Node<E> entry;
+
+    /**
+     * Whether writers repair the violations their updates leave, rather
+     * than leaving hints for them.
+     */
+    private final boolean helping;
+
+    /**
+     * The keys on whose search paths there may be violations, left for
+     * {@link #rebalance()}.
+     */
+    private final Queue<Object> hints;
+
+    /**
+     * The number of modifications made, for fail-fast iterators.
+     */
+    private final LongAdder modifications;
+
+    /**
+     * The operations logged since {@link #getLogString()} was last called.
+     */
+    private final Queue<String> log;
+
+    /**
+     * Whether operations are logged.
+     */
+    private volatile boolean logging;
+
+    /**
+     * Creates a new, empty chromatic tree, whose writers repair the
+     * violations their updates leave.
+     */
+    public ChromaticTree() {
+        this(true);
+    }
+
+    /**
+     * Creates a new, empty chromatic tree.
+     *
+     * @param helping whether writers repair the violations their updates
+     *                leave - if not, it is left to threads calling
+     *                {@link #rebalance()}
+     */
+    public ChromaticTree(boolean helping) {
+        this.helping = helping;
+        //the tree starts as a single black leaf, greater than every element
+        entry = new Node<E>(null, 1, new Node<E>(null, 1, null, null), null);
+        hints = new ConcurrentLinkedQueue<Object>();
+        modifications = new LongAdder();
+        log = new ConcurrentLinkedQueue<String>();
+        logging = true;
+    }
+
+    /**
+     * Turns the logging of operations on or off.
+     *
+     * @param logging whether to log operations
+     */
+    public void setLogging(boolean logging) {
+        this.logging = logging;
+    }
+
+    /**
+     * Checks whether the root is the rightmost leaf, which is always there.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        boolean ret = entry.left.isLeaf();
+        log("isEmpty()", 0);
+        return ret;
+    }
+
+    /**
+     * Checks whether the leaf where the item belongs holds it, without
+     * locking.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        if (item == null) return false;
+        Search search = new Search(item);
+        boolean ret = search.found(item);
+        log(String.format("contains(%s)", item), search.comparisons);
+        return ret;
+    }
+
+    /**
+     * Checks if there is an element less than the item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        if (item == null) return false;
+        Search search = new Search();
+        boolean ret = search.lower(item) != null;
+        log(String.format("hasPredecessor(%s)", item), search.comparisons);
+        return ret;
+    }
+
+    /**
+     * Checks if there is an element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        if (item == null) return false;
+        Search search = new Search();
+        boolean ret = search.higher(item, false) != null;
+        log(String.format("hasSuccessor(%s)", item), search.comparisons);
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than the item.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        Search search = new Search();
+        E ret = item == null ? null : search.lower(item);
+        log(String.format("predecessor(%s)", item), search.comparisons);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the least element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        Search search = new Search();
+        E ret = item == null ? null : search.higher(item, false);
+        log(String.format("successor(%s)", item), search.comparisons);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the leftmost leaf.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        E ret = new Search().first();
+        log("min()", 0);
+        if (ret == null)
+            throw new NoSuchElementException("dictionary is empty");
+        return ret;
+    }
+
+    /**
+     * Finds the leaf before the rightmost leaf.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        Search search = new Search();
+        E ret = search.lower(null);
+        log("max()", search.comparisons);
+        if (ret == null)
+            throw new NoSuchElementException("dictionary is empty");
+        return ret;
+    }
+
+    /**
+     * Adds the item by replacing the leaf where it belongs with a new
+     * internal node, whose children are the item and a copy of the leaf.
+     * The new node takes one less than the weight of the leaf, and the
+     * leaves are black, so that the weight of each path is unchanged - but
+     * the new node may be red with a red parent.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        if (item == null) return false;
+        Search search = new Search();
+        for (;;) {
+            search.locate(item);
+            if (search.found(item)) {
+                log(String.format("add(%s)", item), search.comparisons);
+                return false;
+            }
+            Node<E> parent = search.parent, leaf = search.leaf;
+            if (!lock(parent, leaf)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            Node<E> branch;
+            try {
+                if (!linked(parent, leaf)) continue;
+                //a red leaf gives red children, rather than a negative weight
+                int weight = parent == entry
+                        ? 1 : Math.max(leaf.weight - 1, 0);
+                int below = parent == entry ? 1 : leaf.weight - weight;
+                Node<E> added = new Node<E>(item, below, null, null);
+                Node<E> copy = new Node<E>(leaf.key, below, null, null);
+                branch = search.compare(item, leaf) < 0
+                        ? new Node<E>(leaf.key, weight, added, copy)
+                        : new Node<E>(item, weight, copy, added);
+                replace(parent, leaf, branch);
+                leaf.removed = true;
+            } finally {
+                unlock(parent, leaf);
+            }
+            modifications.increment();
+            settle(branch);
+            log(String.format("add(%s)", item), search.comparisons);
+            return true;
+        }
+    }
+
+    /**
+     * Deletes the item by replacing its leaf and the leaf's parent with a
+     * copy of the leaf's sibling, which takes the combined weight of the
+     * parent and sibling so that the weight of each path is unchanged - but
+     * the copy may be overweight.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        if (item == null) return false;
+        Search search = new Search();
+        for (;;) {
+            search.locate(item);
+            if (!search.found(item)) {
+                log(String.format("delete(%s)", item), search.comparisons);
+                return false;
+            }
+            //a leaf holding an element is never the root, as the rightmost
+            //leaf is always there too
+            Node<E> grandparent = search.grandparent;
+            Node<E> parent = search.parent, leaf = search.leaf;
+            Node<E> sibling = parent.left == leaf ? parent.right : parent.left;
+            if (!lock(grandparent, parent, leaf, sibling)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            Node<E> copy;
+            try {
+                if (!linked(grandparent, parent) || !linked(parent, leaf)
+                        || !linked(parent, sibling) || sibling == leaf)
+                    continue;
+                int weight = grandparent == entry
+                        ? 1 : parent.weight + sibling.weight;
+                copy = copy(sibling, weight);
+                replace(grandparent, parent, copy);
+                retire(parent, leaf, sibling);
+            } finally {
+                unlock(grandparent, parent, leaf, sibling);
+            }
+            modifications.increment();
+            settle(copy);
+            log(String.format("delete(%s)", item), search.comparisons);
+            return true;
+        }
+    }
+
+    /**
+     * Takes rebalancing steps until no violations are known of. While other
+     * threads are still updating the dictionary this may not finish; once
+     * they have stopped, the tree is a red-black tree when it returns.
+     *
+     * @return the number of violations repaired
+     */
+    public int rebalance() {
+        return rebalance(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes up to the given number of rebalancing steps. Each step takes a
+     * hint, and repairs the violation nearest the root on the search path
+     * for the hint. The hint is kept until the path has no violations.
+     *
+     * @param steps the greatest number of steps to take
+     * @return the number of violations repaired
+     */
+    public int rebalance(int steps) {
+        int fixed = 0;
+        for (int i = 0; i < steps; ++i) {
+            Object hint = hints.poll();
+            if (hint == null) break;
+            int outcome = repair(key(hint), hints);
+            if (outcome == CLEAN) continue;
+            hints.offer(hint);
+            if (outcome == FIXED) ++fixed;
+            else Thread.onSpinWait();
+        }
+        return fixed;
+    }
+
+    /**
+     * Gives the height of the tree, counting the leaves. This takes linear
+     * time, and is only exact while no updates are being made.
+     *
+     * @return the number of nodes on the longest path from the root to a
+     * leaf
+     */
+    public int height() {
+        return height(entry.left);
+    }
+
+    /**
+     * Provides a fail-fast iterator over all the elements, in ascending
+     * order.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new ChromaticIterator(null);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start, in ascending order.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        return new ChromaticIterator(start);
+    }
+
+    /**
+     * Provides the operations logged since this was last called, which are
+     * cleared.
+     *
+     * @return a string listing all operations called on the dictionary
+     */
+    @Override
+    public String getLogString() {
+        StringBuilder sb = new StringBuilder();
+        for (String line; (line = log.poll()) != null; ) sb.append(line);
+        return sb.toString();
+    }
+
+    /**
+     * Provides a vertical string representation of the tree, with the
+     * routing keys of the internal nodes and the weight of every node that
+     * is not black. The rightmost leaf is shown as infinity.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        toString(entry.left, "", sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Checks that the tree is a red-black tree: that the weight of every
+     * path is the same, no red node has a red parent, and no node is
+     * overweight. Only meaningful while no updates are being made.
+     *
+     * @return true if and only if the tree has no violations
+     */
+    boolean balanced() {
+        return weight(entry.left, 1) >= 0;
+    }
+
+    /**
+     * Repairs the violation nearest the root on the search path for a key,
+     * if there is one. A red node with a red parent is not the root, whose
+     * weight is always 1, and its grandparent is not red or the violation
+     * would have been found there first - and likewise an overweight node
+     * has a parent below the entry node.
+     *
+     * @param key the key, or null for the rightmost leaf
+     * @param pending the hints for violations the repair may lead to
+     * @return whether the path had no violation, one was repaired, or the
+     * step should be tried again
+     */
+    private int repair(E key, Queue<Object> pending) {
+        Node<E> greatGrandparent = null, grandparent = null, parent = entry;
+        Node<E> node = entry.left;
+        while (node.weight <= 1 && (node.weight > 0 || parent.weight > 0)) {
+            if (node.isLeaf()) return CLEAN;
+            greatGrandparent = grandparent;
+            grandparent = parent;
+            parent = node;
+            node = route(key, node);
+        }
+        if (node.weight > 1) {
+            return overweight(greatGrandparent, grandparent, parent, node,
+                    pending);
+        }
+        return red(greatGrandparent, grandparent, parent, node, pending);
+    }
+
+    /**
+     * Repairs a red node with a red parent, by pushing the red up from the
+     * parent and its sibling if both are red (BLK), or otherwise by a single
+     * (RB1) or double (RB2) rotation at the grandparent. The grandparent
+     * keeps its weight in the rotations, and BLK takes one from it.
+     *
+     * @param top the parent of the grandparent, which is not replaced
+     * @param u the black grandparent
+     * @param ux the red parent
+     * @param uxx the red node
+     * @param pending the hints for violations the repair may lead to
+     * @return whether the violation was repaired, or the nodes changed
+     * before they could be locked
+     */
+    private int red(Node<E> top, Node<E> u, Node<E> ux, Node<E> uxx,
+                    Queue<Object> pending) {
+        int weight = top == entry ? 1 : u.weight;
+        Node<E> uxy = u.left == ux ? u.right : u.left;
+        if (uxy.weight == 0) {
+            if (!lock(top, u, ux, uxy)) return BUSY;
+            try {
+                if (!linked(top, u) || !linked(u, ux) || !linked(u, uxy)
+                        || ux == uxy || !linked(ux, uxx))
+                    return BUSY;
+                Node<E> a = copy(ux, 1), b = copy(uxy, 1);
+                int less = top == entry ? 1 : u.weight - 1;
+                Node<E> replacement = u.left == ux
+                        ? new Node<E>(u.key, less, a, b)
+                        : new Node<E>(u.key, less, b, a);
+                replace(top, u, replacement);
+                retire(u, ux, uxy);
+                check(replacement, pending);
+                return FIXED;
+            } finally {
+                unlock(top, u, ux, uxy);
+            }
+        }
+        boolean outer = (u.left == ux) == (ux.left == uxx);
+        Node<E> inner = outer ? ux : uxx;
+        if (!lock(top, u, ux, inner)) return BUSY;
+        try {
+            if (!linked(top, u) || !linked(u, ux) || !linked(ux, uxx))
+                return BUSY;
+            boolean left = u.left == ux;
+            if ((left ? u.right : u.left).weight == 0
+                    || (left == (ux.left == uxx)) != outer)
+                return BUSY;
+            Node<E> replacement;
+            if (outer) {
+                replacement = left
+                        ? new Node<E>(ux.key, weight, uxx,
+                                new Node<E>(u.key, 0, ux.right, u.right))
+                        : new Node<E>(ux.key, weight,
+                                new Node<E>(u.key, 0, u.left, ux.left), uxx);
+                retire(u, ux);
+            } else {
+                //the weights below a red node whose sibling is black are
+                //too great for it to be a leaf
+                replacement = left
+                        ? new Node<E>(uxx.key, weight,
+                                new Node<E>(ux.key, 0, ux.left, uxx.left),
+                                new Node<E>(u.key, 0, uxx.right, u.right))
+                        : new Node<E>(uxx.key, weight,
+                                new Node<E>(u.key, 0, u.left, uxx.left),
+                                new Node<E>(ux.key, 0, uxx.right, ux.right));
+                retire(u, ux, uxx);
+            }
+            replace(top, u, replacement);
+            check(replacement.left, pending);
+            check(replacement.right, pending);
+            return FIXED;
+        } finally {
+            unlock(top, u, ux, inner);
+        }
+    }
+
+    /**
+     * Repairs an overweight node. If its sibling is black or overweight, one
+     * is taken from the weight of both and given to their parent (PUSH). If
+     * the sibling is red and so is the parent, that violation is repaired
+     * first; if only the sibling is red, the parent is rotated down so that
+     * the node gets a new sibling, below a red parent.
+     *
+     * @param ggp the parent of the grandparent
+     * @param top the grandparent, which is not replaced
+     * @param p the parent
+     * @param v the overweight node
+     * @param pending the hints for violations the repair may lead to
+     * @return whether a violation was repaired, or the nodes changed before
+     * they could be locked
+     */
+    private int overweight(Node<E> ggp, Node<E> top, Node<E> p, Node<E> v,
+                           Queue<Object> pending) {
+        Node<E> s = p.left == v ? p.right : p.left;
+        if (s.weight == 0 && p.weight == 0)
+            return red(ggp, top, p, s, pending);
+        if (!lock(top, p, v, s)) return BUSY;
+        try {
+            if (!linked(top, p) || !linked(p, v) || !linked(p, s) || v == s)
+                return BUSY;
+            boolean left = p.left == v;
+            Node<E> replacement;
+            if (s.weight == 0) {
+                //the weights below a red sibling are too great for it to be
+                //a leaf
+                int weight = top == entry ? 1 : p.weight;
+                replacement = left
+                        ? new Node<E>(s.key, weight,
+                                new Node<E>(p.key, 0, v, s.left), s.right)
+                        : new Node<E>(s.key, weight, s.left,
+                                new Node<E>(p.key, 0, s.right, v));
+                replace(top, p, replacement);
+                retire(p, s);
+                check(left ? replacement.left : replacement.right, pending);
+            } else {
+                int weight = top == entry ? 1 : p.weight + 1;
+                Node<E> a = copy(v, v.weight - 1), b = copy(s, s.weight - 1);
+                replacement = left
+                        ? new Node<E>(p.key, weight, a, b)
+                        : new Node<E>(p.key, weight, b, a);
+                replace(top, p, replacement);
+                retire(p, v, s);
+                check(replacement, pending);
+                check(b, pending);
+            }
+            return FIXED;
+        } finally {
+            unlock(top, p, v, s);
+        }
+    }
+
+    /**
+     * Deals with any violations a node left by an update may be part of:
+     * repairs them, and any that the repairs lead to, if writers help, and
+     * otherwise leaves hints for them. Each hint is repaired until there is
+     * no violation on its path.
+     *
+     * @param node the new node
+     */
+    private void settle(Node<E> node) {
+        if (node.weight == 1) return;
+        if (!helping) {
+            check(node, hints);
+            return;
+        }
+        Queue<Object> pending = new ArrayDeque<Object>();
+        check(node, pending);
+        for (Object hint; (hint = pending.poll()) != null; ) {
+            int outcome;
+            while ((outcome = repair(key(hint), pending)) != CLEAN)
+                if (outcome == BUSY) Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Records hints for any violations a new node may be part of: the node
+     * itself if it is overweight, or if it is red its own path and that of
+     * its left child, which the path to the node does not pass through.
+     *
+     * @param node the new node
+     * @param pending the hints
+     */
+    private static <E> void check(Node<E> node, Queue<Object> pending) {
+        if (node.weight == 1) return;
+        pending.add(hint(node.key));
+        if (node.weight == 0 && !node.isLeaf() && node.left.weight == 0)
+            pending.add(hint(node.left.key));
+    }
+
+    /**
+     * Gives the hint for a key.
+     *
+     * @param key the key, or null for the rightmost leaf
+     * @return the hint
+     */
+    private static Object hint(Object key) {
+        return key == null ? INFINITY : key;
+    }
+
+    /**
+     * Gives the key of a hint.
+     *
+     * @param hint the hint
+     * @return the key, or null for the rightmost leaf
+     */
+    @SuppressWarnings("unchecked")
+    private E key(Object hint) {
+        return hint == INFINITY ? null : (E) hint;
+    }
+
+    /**
+     * Gives the child of an internal node towards a key, without counting
+     * the comparison.
+     *
+     * @param key the key, or null for the rightmost leaf
+     * @param node the internal node
+     * @return the child whose subtree covers the key
+     */
+    private Node<E> route(E key, Node<E> node) {
+        if (node.key == null) return key == null ? node.right : node.left;
+        if (key == null) return node.right;
+        return key.compareTo(node.key) < 0 ? node.left : node.right;
+    }
+
+    /**
+     * Checks the weights of a subtree.
+     *
+     * @param node the root of the subtree
+     * @param above the weight of its parent
+     * @return the weight of every path from the node to a leaf, or -1 if
+     * the paths differ or there is a violation
+     */
+    private int weight(Node<E> node, int above) {
+        if (node.weight > 1 || node.weight == 0 && above == 0) return -1;
+        if (node.isLeaf()) return node.weight;
+        int left = weight(node.left, node.weight);
+        int right = weight(node.right, node.weight);
+        return left < 0 || left != right ? -1 : left + node.weight;
+    }
+
+    /**
+     * Gives the height of a subtree.
+     *
+     * @param node the root of the subtree
+     * @return the number of nodes on its longest path to a leaf
+     */
+    private int height(Node<E> node) {
+        if (node.isLeaf()) return 1;
+        return 1 + Math.max(height(node.left), height(node.right));
+    }
+
+    /**
+     * Builds the string representation of a subtree.
+     *
+     * @param node the root of the subtree
+     * @param prefix the prefix for each line
+     * @param sb the string builder
+     * @param tail whether the node is the last sibling
+     */
+    private void toString(Node<E> node, String prefix, StringBuilder sb,
+                          boolean tail) {
+        sb.append(prefix)
+                .append(tail ? "└── " : "├── ")
+                .append(node.key == null ? "∞" : node.key)
+                .append(node.weight == 1 ? "\n" : " (" + node.weight + ")\n");
+        if (node.isLeaf()) return;
+        String below = prefix + (tail ? "    " : "│   ");
+        toString(node.left, below, sb, false);
+        toString(node.right, below, sb, true);
+    }
+
+    /**
+     * Logs an operation, if logging is on.
+     *
+     * @param method the operation and its arguments
+     * @param comparisons the number of comparisons it made
+     */
+    private void log(String method, int comparisons) {
+        if (logging) log.add(String.format(LOG_MSG, method, comparisons));
+    }
+
+    /**
+     * Copies a locked node with a new weight.
+     *
+     * @param node the node
+     * @param weight the weight of the copy
+     * @return the copy
+     */
+    private static <E> Node<E> copy(Node<E> node, int weight) {
+        return new Node<E>(node.key, weight, node.left, node.right);
+    }
+
+    /**
+     * Checks that a locked node is still in the tree, as the parent of
+     * another.
+     *
+     * @param parent the parent
+     * @param child the child
+     * @return true if and only if the parent has not been replaced and the
+     * child is one of its children
+     */
+    private static boolean linked(Node<?> parent, Node<?> child) {
+        return !parent.removed
+                && (parent.left == child || parent.right == child);
+    }
+
+    /**
+     * Replaces a child of a locked node.
+     *
+     * @param parent the parent
+     * @param child the child to replace
+     * @param replacement the new child
+     */
+    private static <E> void replace(Node<E> parent, Node<E> child,
+                                    Node<E> replacement) {
+        if (parent.left == child) parent.left = replacement;
+        else parent.right = replacement;
+    }
+
+    /**
+     * Marks locked nodes as no longer in the tree, so that any thread
+     * holding them fails to validate.
+     *
+     * @param nodes the nodes
+     */
+    private static void retire(Node<?>... nodes) {
+        for (Node<?> node : nodes) node.removed = true;
+    }
+
+    /**
+     * Locks nodes if none of them is already locked. Only trying means that
+     * threads locking overlapping nodes in different orders cannot deadlock.
+     *
+     * @param nodes the nodes, which may repeat
+     * @return true if and only if all the nodes were locked
+     */
+    private static boolean lock(Node<?>... nodes) {
+        for (int i = 0; i < nodes.length; ++i) {
+            if (!nodes[i].tryLock()) {
+                while (--i >= 0) nodes[i].unlock();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unlocks nodes locked by {@link #lock(Node[])}.
+     *
+     * @param nodes the nodes
+     */
+    private static void unlock(Node<?>... nodes) {
+        for (Node<?> node : nodes) node.unlock();
+    }
+
+    /**
+     * A search from the root, counting the comparisons it makes. A null key
+     * stands for the key of the rightmost leaf, greater than every element.
+     */
+    private final class Search {
+
+        /**
+         * The last three nodes reached by {@link #locate(Comparable)}.
+         */
+        private Node<E> grandparent, parent, leaf;
+
+        /**
+         * The number of comparisons made so far.
+         */
+        private int comparisons;
+
+        /**
+         * Creates a search which has not yet been made.
+         */
+        private Search() {
+        }
+
+        /**
+         * Creates a search for the leaf where an item belongs.
+         *
+         * @param item the item
+         */
+        private Search(E item) {
+            locate(item);
+        }
+
+        /**
+         * Finds the leaf where an item belongs, and its parent and
+         * grandparent.
+         *
+         * @param item the item
+         */
+        private void locate(E item) {
+            grandparent = null;
+            parent = entry;
+            leaf = entry.left;
+            while (!leaf.isLeaf()) {
+                grandparent = parent;
+                parent = leaf;
+                leaf = compare(item, leaf) < 0 ? leaf.left : leaf.right;
+            }
+        }
+
+        /**
+         * Checks whether the leaf found holds an item.
+         *
+         * @param item the item
+         * @return true if and only if the leaf holds the item
+         */
+        private boolean found(E item) {
+            return leaf.key != null && compare(item, leaf) == 0;
+        }
+
+        /**
+         * Finds the least element.
+         *
+         * @return the least element, or null if there is none
+         */
+        private E first() {
+            Node<E> node = entry.left;
+            while (!node.isLeaf()) node = node.left;
+            return node.key;
+        }
+
+        /**
+         * Finds the least element greater than an item, or equal to it if
+         * asked, by remembering the right subtree of the last node where
+         * the search turned left.
+         *
+         * @param item the item
+         * @param inclusive whether an equal element will do
+         * @return the element, or null if there is none
+         */
+        private E higher(E item, boolean inclusive) {
+            int bound = inclusive ? 0 : -1;
+            Node<E> fallback = null, node = entry.left;
+            while (!node.isLeaf()) {
+                if (compare(item, node) < 0) {
+                    fallback = node.right;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            //the rightmost leaf is only reached by never turning left, and
+            //its null key stands for there being no such element
+            if (compare(item, node) <= bound) return node.key;
+            if (fallback == null) return null;
+            node = fallback;
+            while (!node.isLeaf()) node = node.left;
+            return node.key;
+        }
+
+        /**
+         * Finds the greatest element less than an item, by remembering the
+         * left subtree of the last node where the search turned right.
+         *
+         * @param item the item, or null for the greatest element
+         * @return the element, or null if there is none
+         */
+        private E lower(E item) {
+            Node<E> fallback = null, node = entry.left;
+            while (!node.isLeaf()) {
+                if (compare(item, node) <= 0) {
+                    node = node.left;
+                } else {
+                    fallback = node.left;
+                    node = node.right;
+                }
+            }
+            if (compare(item, node) > 0) return node.key;
+            if (fallback == null) return null;
+            node = fallback;
+            while (!node.isLeaf()) node = node.right;
+            return node.key;
+        }
+
+        /**
+         * Compares an item with the key of a node, counting the comparison
+         * unless either is infinite.
+         *
+         * @param item the item, or null for infinity
+         * @param node the node
+         * @return a negative integer, zero, or a positive integer as the
+         * item is less than, equal to, or greater than the key
+         */
+        private int compare(E item, Node<E> node) {
+            if (node.key == null) return item == null ? 0 : -1;
+            if (item == null) return 1;
+            ++comparisons;
+            return item.compareTo(node.key);
+        }
+
+    }
+
+    /**
+     * A fail-fast iterator, which finds each element as the successor of
+     * the last.
+     */
+    private final class ChromaticIterator implements Iterator<E> {
+
+        /**
+         * The element to be returned next, or null at the end.
+         */
+        private E next;
+
+        /**
+         * The element last returned, or null if it has been removed or none
+         * has been returned.
+         */
+        private E last;
+
+        /**
+         * The number of modifications expected to have been made.
+         */
+        private long expected;
+
+        /**
+         * Creates a new iterator.
+         *
+         * @param start the element to start at, or null to start at the
+         *              least element
+         */
+        private ChromaticIterator(E start) {
+            expected = modifications.sum();
+            Search search = new Search();
+            next = start == null ? search.first() : search.higher(start, true);
+        }
+
+        @Override
+        public boolean hasNext() {
+            checkForComodification();
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            checkForComodification();
+            if (next == null) throw new NoSuchElementException();
+            last = next;
+            next = new Search().higher(last, false);
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) throw new IllegalStateException();
+            checkForComodification();
+            delete(last);
+            last = null;
+            expected = modifications.sum();
+        }
+
+        /**
+         * Checks that no modifications have been made other than through
+         * this iterator.
+         *
+         * @throws ConcurrentModificationException if one has been made
+         */
+        private void checkForComodification()
+                throws ConcurrentModificationException {
+            if (modifications.sum() != expected)
+                throw new ConcurrentModificationException();
+        }
+
+    }
+
+    /**
+     * A node of the tree, which is its own lock, saving a separate lock
+     * object per node. Internal nodes always have two children and leaves
+     * none. Nodes are never serialized, though the lock class is
+     * serializable.
+     *
+     * @param <E> the type of the key
+     */
+    private static final class Node<E> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The element of a leaf or routing key of an internal node, or null
+         * for infinity.
+         */
+        private final E key;
+
+        /**
+         * The weight: 0 if red, 1 if black, and more if overweight.
+         */
+        private final int weight;
+
+        /**
+         * The children, changed only by a thread holding this node.
+         */
+        private volatile Node<E> left, right;
+
+        /**
+         * Whether the node has been replaced - set by a thread holding it.
+         */
+        private volatile boolean removed;
+
+        /**
+         * Creates a new node.
+         *
+         * @param key the key, or null for infinity
+         * @param weight the weight
+         * @param left the left child, or null for a leaf
+         * @param right the right child, or null for a leaf
+         */
+        private Node(E key, int weight, Node<E> left, Node<E> right) {
+            this.key = key;
+            this.weight = weight;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Checks whether this node is a leaf, which it always remains.
+         *
+         * @return true if and only if this node has no children
+         */
+        private boolean isLeaf() {
+            return left == null;
+        }
+
+    }
+
+}
@@ -0,0 +1,467 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe dictionary that applies the operations of many threads to a
+ * single {@link RedBlackTree} using flat combining.
+ * Each thread publishes its {@link #add(Comparable)},
+ * {@link #delete(Comparable)} or {@link #contains(Comparable)} request in a
+ * slot of its own. Whichever thread acquires the combiner lock then applies
+ * every published request in one pass, in ascending order of element so
+ * that consecutive operations touch neighbouring parts of the tree, and
+ * hands each result back through its slot. The other threads just wait for
+ * their slot to be answered, so the tree and its bookkeeping stay in the
+ * cache of one thread at a time rather than moving between threads on
+ * every lock handoff. A request that throws, for example because its
+ * element cannot be compared, hands the exception back through its slot to
+ * be thrown in the requesting thread, and the other requests are applied
+ * as usual. Slots are only weakly held by the dictionary, so the slot of a
+ * thread that has ended is dropped by the next combiner.
+ * The remaining operations are run directly under the combiner lock.
+ * Iterators also take the lock for each call, and are fail-fast.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class CombiningDictionary<E extends Comparable<E>>
+        implements Dictionary<E> {
+
+    /**
+     * The kinds of request that can be published in a slot.
+     */
+    private static final int ADD = 0, DELETE = 1, CONTAINS = 2;
+
+    /**
+     * The number of times a waiting thread checks its slot before yielding.
+     */
+    private static final int SPINS = 64;
+
+    /**
+     * The tree that all operations are applied to.
+     */
+    private final RedBlackTree<E> tree;
+
+    /**
+     * Held by the thread currently combining, or running an operation
+     * directly on the tree.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * The slots of the threads that have used the dictionary, cleared once
+     * a thread and its slot are no longer reachable.
+     */
+    private final Queue<WeakReference<Slot<E>>> slots;
+
+    /**
+     * The slot of the current thread.
+     */
+    private final ThreadLocal<Slot<E>> slot;
+
+    /**
+     * The requests gathered by the current combiner - only used while the
+     * lock is held.
+     */
+    private final List<Slot<E>> batch;
+
+    /**
+     * The gathered requests in ascending order of element - only used while
+     * the lock is held.
+     */
+    private final List<Slot<E>> sorted;
+
+    /**
+     * Orders requests by element, for the combiner.
+     */
+    private final Comparator<Slot<E>> order;
+
+    /**
+     * Creates a new, empty dictionary.
+     */
+    public CombiningDictionary() {
+        tree = new RedBlackTree<E>();
+        lock = new ReentrantLock();
+        slots = new ConcurrentLinkedQueue<WeakReference<Slot<E>>>();
+        slot = ThreadLocal.withInitial(() -> {
+            Slot<E> s = new Slot<E>();
+            slots.add(new WeakReference<Slot<E>>(s));
+            return s;
+        });
+        batch = new ArrayList<Slot<E>>();
+        sorted = new ArrayList<Slot<E>>();
+        order = (a, b) -> a.item.compareTo(b.item);
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        return locked(tree::isEmpty);
+    }
+
+    /**
+     * Checks if the dictionary contains the item, combined with the
+     * requests of other threads.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        return item != null && submit(CONTAINS, item);
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        return locked(() -> tree.hasPredecessor(item));
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        return locked(() -> tree.hasSuccessor(item));
+    }
+
+    /**
+     * Finds the greatest element less than the item.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        return locked(() -> tree.predecessor(item));
+    }
+
+    /**
+     * Finds the least element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        return locked(() -> tree.successor(item));
+    }
+
+    /**
+     * Finds the least element in the dictionary.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        return locked(tree::min);
+    }
+
+    /**
+     * Finds the greatest element in the dictionary.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        return locked(tree::max);
+    }
+
+    /**
+     * Adds the item to the dictionary, combined with the requests of other
+     * threads.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        return item != null && submit(ADD, item);
+    }
+
+    /**
+     * Deletes the item from the dictionary, combined with the requests of
+     * other threads.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        return item != null && submit(DELETE, item);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements in ascending order,
+     * which takes the combiner lock for each call.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new LockedIterator(locked(() -> tree.iterator()));
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start, which takes the combiner lock for each call.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        return new LockedIterator(locked(() -> tree.iterator(start)));
+    }
+
+    /**
+     * Provides the log string of the backing tree.
+     *
+     * @return a string listing all operations on the backing tree
+     */
+    @Override
+    public String getLogString() {
+        return locked(tree::getLogString);
+    }
+
+    /**
+     * Provides a string representation of the backing tree.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        return locked(tree::toString);
+    }
+
+    /**
+     * Gives the number of slots registered, including those of threads that
+     * have ended but whose slots have not yet been dropped. Used by tests.
+     *
+     * @return the number of slots
+     */
+    int slots() {
+        return slots.size();
+    }
+
+    /**
+     * Publishes a request in the current thread's slot and waits for it to
+     * be answered, becoming the combiner if the lock is free.
+     *
+     * @param op the kind of request
+     * @param item the element of the request
+     * @return the result of the request
+     * @throws RuntimeException if applying the request threw
+     * @throws Error if applying the request threw
+     */
+    private boolean submit(int op, E item) {
+        Slot<E> mine = slot.get();
+        mine.op = op;
+        mine.item = item;
+        mine.pending = true;
+        while (true) {
+            if (lock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                for (int i = 0; i < SPINS && mine.pending; ++i)
+                    Thread.onSpinWait();
+                if (mine.pending) Thread.yield();
+            }
+            if (!mine.pending) break;
+        }
+        Throwable failure = mine.failure;
+        if (failure == null) return mine.result;
+        mine.failure = null;
+        if (failure instanceof Error) throw (Error) failure;
+        throw (RuntimeException) failure;
+    }
+
+    /**
+     * Applies every published request to the tree, in ascending order of
+     * element, and answers each slot. A request that throws is answered
+     * with its exception. If the elements cannot all be compared, the
+     * requests are applied in the order they were gathered instead, so that
+     * each failure goes to the request it belongs to. The slots of threads
+     * that have ended are dropped. The lock must be held.
+     */
+    private void combine() {
+        try {
+            for (Iterator<WeakReference<Slot<E>>> it = slots.iterator();
+                 it.hasNext(); ) {
+                Slot<E> s = it.next().get();
+                if (s == null) it.remove();
+                else if (s.pending) batch.add(s);
+            }
+            List<Slot<E>> run = batch;
+            if (batch.size() > 1) {
+                sorted.addAll(batch);
+                try {
+                    sorted.sort(order);
+                    run = sorted;
+                } catch (RuntimeException e) {
+                    //the failing request is answered below
+                }
+            }
+            for (Slot<E> s : run) {
+                try {
+                    switch (s.op) {
+                        case ADD:
+                            s.result = tree.add(s.item);
+                            break;
+                        case DELETE:
+                            s.result = tree.delete(s.item);
+                            break;
+                        default:
+                            s.result = tree.contains(s.item);
+                    }
+                } catch (RuntimeException | Error e) {
+                    s.failure = e;
+                }
+                s.item = null;
+                //publishes the result to the waiting thread
+                s.pending = false;
+            }
+        } finally {
+            batch.clear();
+            sorted.clear();
+        }
+    }
+
+    /**
+     * Runs an operation directly on the tree under the lock.
+     *
+     * @param operation the operation to run
+     * @param <T> the type of the result
+     * @return the result of the operation
+     */
+    private <T> T locked(Supplier<T> operation) {
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A thread's slot for publishing a request to the combiner.
+     *
+     * @param <E> the type of elements in the dictionary
+     */
+    private static final class Slot<E> {
+
+        /**
+         * The kind of request.
+         */
+        private int op;
+
+        /**
+         * The element of the request.
+         */
+        private E item;
+
+        /**
+         * The result of the request, once answered.
+         */
+        private boolean result;
+
+        /**
+         * The exception thrown by the request, once answered, or null if it
+         * completed normally.
+         */
+        private Throwable failure;
+
+        /**
+         * Whether the request is still waiting to be answered. Written last
+         * by both the requesting thread and the combiner, so that the other
+         * fields are visible to whichever thread reads it next.
+         */
+        private volatile boolean pending;
+
+    }
+
+    /**
+     * Wraps an iterator over the backing tree, taking the lock for each
+     * call.
+     */
+    private class LockedIterator implements Iterator<E> {
+
+        /**
+         * The iterator over the backing tree.
+         */
+        private final Iterator<E> iterator;
+
+        /**
+         * Creates a new locked iterator.
+         *
+         * @param iterator the iterator over the backing tree
+         */
+        private LockedIterator(Iterator<E> iterator) {
+            this.iterator = iterator;
+        }
+
+        /**
+         * Checks if the iterator has any more elements, under the lock.
+         *
+         * @return true if and only if the iterator has more elements
+         */
+        @Override
+        public boolean hasNext() {
+            return locked(iterator::hasNext);
+        }
+
+        /**
+         * Provides the next element, under the lock.
+         *
+         * @return the next element in the dictionary
+         */
+        @Override
+        public E next() {
+            return locked(iterator::next);
+        }
+
+        /**
+         * Deletes the element most recently returned, under the lock.
+         */
+        @Override
+        public void remove() {
+            locked(() -> {
+                iterator.remove();
+                return null;
+            });
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+import java.util.function.ToLongFunction;
+
+/**
+ * An augmentation whose aggregate is a 64-bit digest of the elements of a
+ * subtree: the sum of a well-mixed hash of each element. Since addition is
+ * commutative, the digest of a set of elements does not depend on how they
+ * are arranged in the tree, so two trees holding the same elements have
+ * the same digests for every range, whatever their shapes - which is what
+ * lets {@link RedBlackTree#diff(RedBlackTree.Replica,
+ * java.util.function.Consumer, java.util.function.Consumer)} compare ranges
+ * of two replicas without comparing their elements. Created by
+ * {@link Augmentation#digest()}.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements being digested
+ */
+final class ContentDigest<E> implements Augmentation<E, Long> {
+
+    /**
+     * Gives the hash of an element, before it is mixed.
+     */
+    private final ToLongFunction<? super E> hash;
+
+    /**
+     * Creates a new digest augmentation.
+     *
+     * @param hash gives the hash of an element
+     */
+    ContentDigest(ToLongFunction<? super E> hash) {
+        this.hash = hash;
+    }
+
+    @Override
+    public Long identity() {
+        return 0L;
+    }
+
+    @Override
+    public Long lift(E element) {
+        //the finaliser of SplitMix64, so that similar hashes (such as those
+        //of consecutive integers) do not give sums that cancel out
+        long z = hash.applyAsLong(element) + 0x9E3779B97F4A7C15L;
+        z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+        return z ^ z >>> 31;
+    }
+
+    @Override
+    public Long combine(Long left, Long right) {
+        return left + right;
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ * The dictionary implementations that can be chosen between, for example
+ * from configuration, so that the one best suited to a workload can be
+ * picked per deployment.
+ *
+ * @author Samuel Marsh
+ */
+public enum DictionaryEngine {
+
+    /**
+     * A {@link RedBlackTree}, which keeps every element within logarithmic
+     * depth whatever the access pattern.
+     */
+    RED_BLACK {
+        @Override
+        public <E extends Comparable<E>> Dictionary<E> create() {
+            return new RedBlackTree<E>();
+        }
+    },
+
+    /**
+     * A {@link SplayTree}, which moves each element accessed to the root.
+     */
+    SPLAY {
+        @Override
+        public <E extends Comparable<E>> Dictionary<E> create() {
+            return new SplayTree<E>();
+        }
+    },
+
+    /**
+     * A {@link Treap}, which keeps frequently accessed elements near the
+     * root.
+     */
+    TREAP {
+        @Override
+        public <E extends Comparable<E>> Dictionary<E> create() {
+            return new Treap<E>();
+        }
+    },
+
+    /**
+     * An {@link AdaptiveDictionary}, which holds small sets in an array.
+     */
+    ADAPTIVE {
+        @Override
+        public <E extends Comparable<E>> Dictionary<E> create() {
+            return new AdaptiveDictionary<E>();
+        }
+    };
+
+    /**
+     * Creates a new, empty dictionary of this kind.
+     *
+     * @param <E> the type of elements that the dictionary holds
+     * @return a new dictionary
+     */
+    public abstract <E extends Comparable<E>> Dictionary<E> create();
+
+}
@@ -0,0 +1,57 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A flight recorder event describing a single operation on an instrumented
+ * {@link RedBlackTree}. Only one in every
+ * {@link TreeStatistics#getSamplingInterval()} operations is timed as an
+ * event, and of those only the ones that take longer than the threshold
+ * are recorded. The threshold defaults to one millisecond, and can be
+ * changed through the recording settings, for example
+ * {@code RedBlackTree.Operation#threshold=0 ms}.
+ *
+ * @author Samuel Marsh
+ */
+@Name("RedBlackTree.Operation")
+@Label("Dictionary Operation")
+@Category("Red-Black Tree")
+@Description("An operation on a red-black tree dictionary")
+@Threshold("1 ms")
+@StackTrace(false)
+class DictionaryOperationEvent extends jdk.jfr.Event {
+
+    /**
+     * The name of the operation.
+     */
+    @Label("Operation")
+    String operation;
+
+    /**
+     * The number of element comparisons the operation made.
+     */
+    @Label("Comparisons")
+    int comparisons;
+
+    /**
+     * The number of rotations the operation made.
+     */
+    @Label("Rotations")
+    int rotations;
+
+    /**
+     * The number of nodes the operation recoloured.
+     */
+    @Label("Recolourings")
+    int recolourings;
+
+    /**
+     * The number of elements in the tree once the operation completed.
+     */
+    @Label("Size")
+    int size;
+
+}
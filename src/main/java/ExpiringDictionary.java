@@ -0,0 +1,612 @@
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.LongSupplier;
+
+/**
+ * A dictionary whose elements expire at a given time. Expired elements are
+ * treated as absent by every operation as soon as they expire, and are
+ * physically removed in bulk by {@link #expireUpTo(long)}.
+ * The elements are held in a {@link RedBlackTree} ordered by element, where
+ * each subtree is augmented with the earliest and latest expiry time of the
+ * entries it holds. This secondary ordering lets a sweep find every expired
+ * entry without visiting subtrees that hold none, and lets the least or
+ * greatest live element, or the nearest live neighbour of an element, be
+ * found without stepping over expired ones. Expired entries are
+ * unlinked through their handles, so a sweep makes no further comparisons.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class ExpiringDictionary<E extends Comparable<E>>
+        implements Dictionary<E> {
+
+    /**
+     * The tree holding the entries, augmented with the span of expiry times
+     * in each subtree.
+     */
+    private final RedBlackTree<Entry<E>> tree;
+
+    /**
+     * Gives the current time, in the same units as the expiry times.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * The time to live given to elements added by {@link #add(Comparable)}.
+     */
+    private final long ttl;
+
+    /**
+     * Creates a new, empty dictionary whose elements expire a given number
+     * of milliseconds after they are added, by the system clock.
+     *
+     * @param ttl the time to live, in milliseconds
+     */
+    public ExpiringDictionary(long ttl) {
+        this(ttl, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a new, empty dictionary whose elements expire a given time
+     * after they are added, using the given clock.
+     *
+     * @param ttl the time to live, in the units of the clock
+     * @param clock gives the current time
+     * @throws IllegalArgumentException if the clock is null
+     */
+    public ExpiringDictionary(long ttl, LongSupplier clock)
+            throws IllegalArgumentException {
+        if (clock == null)
+            throw new IllegalArgumentException("clock is null");
+        this.tree = new RedBlackTree<Entry<E>>(new SpanAugmentation<E>());
+        this.clock = clock;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Checks if the dictionary holds no live elements. Runs in logarithmic
+     * time.
+     *
+     * @return true if and only if every element has expired
+     */
+    @Override
+    public boolean isEmpty() {
+        return !live("isEmpty()").hasNext();
+    }
+
+    /**
+     * Checks if the dictionary holds a live element equal to the given item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item is in the dictionary and has not
+     * expired
+     */
+    @Override
+    public boolean contains(E item) {
+        return item != null && isLive(find(item), clock.getAsLong());
+    }
+
+    /**
+     * Checks if there is a live element less than the given item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a live predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        return item != null && lower(
+                String.format("hasPredecessor(%s)", item), item) != null;
+    }
+
+    /**
+     * Checks if there is a live element greater than the given item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a live successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        return item != null && higher(
+                String.format("hasSuccessor(%s)", item), item) != null;
+    }
+
+    /**
+     * Finds the greatest live element less than the given item.
+     *
+     * @param item the item to be checked
+     * @return the greatest live element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        Entry<E> ret = item == null ? null
+                : lower(String.format("predecessor(%s)", item), item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        return ret.key;
+    }
+
+    /**
+     * Finds the least live element greater than the given item.
+     *
+     * @param item the item to be checked
+     * @return the least live element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        Entry<E> ret = item == null ? null
+                : higher(String.format("successor(%s)", item), item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        return ret.key;
+    }
+
+    /**
+     * Finds the least live element. Runs in logarithmic time.
+     *
+     * @return the least live element
+     * @throws NoSuchElementException if every element has expired
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        Iterator<Entry<E>> it = live("min()");
+        if (!it.hasNext())
+            throw new NoSuchElementException("dictionary is empty");
+        return it.next().key;
+    }
+
+    /**
+     * Finds the greatest live element. Runs in logarithmic time.
+     *
+     * @return the greatest live element
+     * @throws NoSuchElementException if every element has expired
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        Entry<E> ret = lower("max()", null);
+        if (ret == null)
+            throw new NoSuchElementException("dictionary is empty");
+        return ret.key;
+    }
+
+    /**
+     * Adds an item that expires after the default time to live.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and not already a
+     * live element of the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        return add(item, clock.getAsLong() + ttl);
+    }
+
+    /**
+     * Adds an item that expires at the given time. An expired element equal
+     * to the item is replaced.
+     *
+     * @param item the item to be added
+     * @param expiresAt the time at which the item expires
+     * @return true if and only if the item is not null and not already a
+     * live element of the dictionary
+     */
+    public boolean add(E item, long expiresAt) {
+        if (item == null) return false;
+        Entry<E> entry = new Entry<E>(item, expiresAt);
+        Entry<E> existing = find(item);
+        if (existing == null) {
+            entry.handle = tree.offer(entry);
+            return true;
+        }
+        if (isLive(existing, clock.getAsLong())) return false;
+        //reuse the expired entry's node and handle for the new expiry time -
+        //rekey searches for the item again, then unlinks and reinserts it
+        tree.rekey(existing.handle, entry);
+        entry.handle = existing.handle;
+        return true;
+    }
+
+    /**
+     * Deletes a live element from the dictionary. An expired element equal
+     * to the item is removed too, but is reported as absent.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was a live element and has now
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        Entry<E> existing = item == null ? null : find(item);
+        if (existing == null) return false;
+        boolean ret = isLive(existing, clock.getAsLong());
+        tree.remove(existing.handle);
+        return ret;
+    }
+
+    /**
+     * Removes every element that expires at or before the given time. Only
+     * the subtrees holding such elements are visited, and each is unlinked
+     * without further comparisons, so this runs in O(k lg n) time for k
+     * expired elements.
+     *
+     * @param now the time to expire elements up to
+     * @return the number of elements removed
+     */
+    public int expireUpTo(long now) {
+        Iterator<Entry<E>> it = tree.search(
+                String.format("expireUpTo(%d)", now),
+                span -> span != null && ((Span) span).earliest <= now,
+                entry -> entry.expiresAt <= now,
+                entry -> false
+        );
+        //collect the entries before unlinking any, since unlinking
+        //restructures the tree under the search
+        List<Entry<E>> expired = new ArrayList<Entry<E>>();
+        while (it.hasNext()) expired.add(it.next());
+        for (Entry<E> entry : expired) tree.remove(entry.handle);
+        return expired.size();
+    }
+
+    /**
+     * Removes every element that has expired by the current time.
+     *
+     * @return the number of elements removed
+     */
+    public int expire() {
+        return expireUpTo(clock.getAsLong());
+    }
+
+    /**
+     * Provides a fail-fast iterator over the live elements, in ascending
+     * order.
+     *
+     * @return an iterator over the live elements
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new LiveIterator(tree.iterator());
+    }
+
+    /**
+     * Provides a fail-fast iterator over the live elements greater than or
+     * equal to start, in ascending order.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the live elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        return new LiveIterator(tree.iterator(new Entry<E>(start, 0)));
+    }
+
+    /**
+     * Provides the log string of the backing tree.
+     *
+     * @return a string listing all operations on the backing tree
+     */
+    @Override
+    public String getLogString() {
+        return tree.getLogString();
+    }
+
+    /**
+     * Provides a string representation of the backing tree, including
+     * expired entries that have not yet been removed.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        return tree.toString();
+    }
+
+    /**
+     * Finds the entry for an element, whether live or expired.
+     *
+     * @param item the element to find
+     * @return the entry holding the element, or null if there is none
+     */
+    private Entry<E> find(E item) {
+        Entry<E> ret = tree.ceiling(new Entry<E>(item, 0));
+        return ret != null && ret.key.compareTo(item) == 0 ? ret : null;
+    }
+
+    /**
+     * Finds the greatest live entry less than a given element, skipping
+     * every subtree holding only expired entries, so that this runs in
+     * logarithmic time however many entries have expired.
+     *
+     * @param method the description of the query, for the log string
+     * @param item the element to search below, or null for no bound
+     * @return the greatest live entry less than the element, or null
+     */
+    private Entry<E> lower(String method, E item) {
+        long now = clock.getAsLong();
+        return tree.last(
+                method,
+                span -> span != null && ((Span) span).latest > now,
+                entry -> entry.expiresAt > now,
+                item == null ? null : new Entry<E>(item, 0)
+        );
+    }
+
+    /**
+     * Finds the least live entry greater than a given element, in the same
+     * way as {@link #lower(String, Comparable)}.
+     *
+     * @param method the description of the query, for the log string
+     * @param item the element to search above
+     * @return the least live entry greater than the element, or null
+     */
+    private Entry<E> higher(String method, E item) {
+        long now = clock.getAsLong();
+        return tree.first(
+                method,
+                span -> span != null && ((Span) span).latest > now,
+                entry -> entry.expiresAt > now,
+                new Entry<E>(item, 0)
+        );
+    }
+
+    /**
+     * Gives an iterator over the live entries that skips every subtree
+     * holding only expired entries.
+     *
+     * @param method the description of the query, for the log string
+     * @return an iterator over the live entries
+     */
+    private Iterator<Entry<E>> live(String method) {
+        long now = clock.getAsLong();
+        return tree.search(
+                method,
+                span -> span != null && ((Span) span).latest > now,
+                entry -> entry.expiresAt > now,
+                entry -> false
+        );
+    }
+
+    /**
+     * Checks if an entry has not yet expired.
+     *
+     * @param entry the entry to check, may be null
+     * @param now the current time
+     * @return true if and only if the entry is not null and has not expired
+     */
+    private static boolean isLive(Entry<?> entry, long now) {
+        return entry != null && entry.expiresAt > now;
+    }
+
+    /**
+     * An element of the dictionary along with its expiry time. Entries are
+     * ordered by their elements alone.
+     *
+     * @param <E> the type of the element
+     */
+    private static final class Entry<E extends Comparable<E>>
+            implements Comparable<Entry<E>> {
+
+        /**
+         * The element.
+         */
+        private final E key;
+
+        /**
+         * The time at which the element expires.
+         */
+        private final long expiresAt;
+
+        /**
+         * The handle to this entry in the backing tree.
+         */
+        private RedBlackTree.Handle<Entry<E>> handle;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param key the element
+         * @param expiresAt the time at which the element expires
+         */
+        private Entry(E key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Compares the elements of two entries.
+         *
+         * @param other the entry to compare to
+         * @return the result of comparing the two entries' elements
+         */
+        @Override
+        public int compareTo(Entry<E> other) {
+            return key.compareTo(other.key);
+        }
+
+        /**
+         * Gives the element and its expiry time.
+         *
+         * @return a string representation of the entry
+         */
+        @Override
+        public String toString() {
+            return key + "@" + expiresAt;
+        }
+
+    }
+
+    /**
+     * The earliest and latest expiry times of the entries in a subtree.
+     */
+    private static final class Span {
+
+        /**
+         * The earliest and latest expiry times.
+         */
+        private final long earliest, latest;
+
+        /**
+         * Creates a new span of expiry times.
+         *
+         * @param earliest the earliest expiry time
+         * @param latest the latest expiry time
+         */
+        private Span(long earliest, long latest) {
+            this.earliest = earliest;
+            this.latest = latest;
+        }
+
+    }
+
+    /**
+     * Maintains the {@link Span} of expiry times of each subtree, with null
+     * standing for the span of no entries.
+     *
+     * @param <E> the type of the elements
+     */
+    private static final class SpanAugmentation<E extends Comparable<E>>
+            implements Augmentation<Entry<E>, Span> {
+
+        @Override
+        public Span identity() {
+            return null;
+        }
+
+        @Override
+        public Span lift(Entry<E> entry) {
+            return new Span(entry.expiresAt, entry.expiresAt);
+        }
+
+        @Override
+        public Span combine(Span left, Span right) {
+            if (left == null) return right;
+            if (right == null) return left;
+            return new Span(
+                    Math.min(left.earliest, right.earliest),
+                    Math.max(left.latest, right.latest)
+            );
+        }
+
+    }
+
+    /**
+     * A fail-fast iterator over the live elements, which skips expired
+     * entries of the backing tree's iterator.
+     */
+    private class LiveIterator implements Iterator<E> {
+
+        /**
+         * The iterator over all entries of the backing tree.
+         */
+        private Iterator<Entry<E>> entries;
+
+        /**
+         * The next live entry, or null if there are none left.
+         */
+        private Entry<E> next;
+
+        /**
+         * The entry most recently returned, or null if it has been removed
+         * or {@link #next()} has not been called.
+         */
+        private Entry<E> last;
+
+        /**
+         * Creates a new iterator over the live entries of another iterator.
+         *
+         * @param entries the iterator over all entries
+         */
+        private LiveIterator(Iterator<Entry<E>> entries) {
+            this.entries = entries;
+            advance();
+        }
+
+        /**
+         * Moves {@link #next} on to the next live entry.
+         */
+        private void advance() {
+            long now = clock.getAsLong();
+            next = null;
+            while (entries.hasNext()) {
+                Entry<E> entry = entries.next();
+                if (isLive(entry, now)) {
+                    next = entry;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         *
+         * @return true if and only if the iterator has more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            //checks for modification even once the backing iterator is done
+            entries.hasNext();
+            return next != null;
+        }
+
+        /**
+         * Provides the next live element.
+         *
+         * @return the next live element
+         * @throws NoSuchElementException if there are no more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            last = next;
+            advance();
+            return last.key;
+        }
+
+        /**
+         * Deletes the element most recently returned by {@link #next()}.
+         *
+         * @throws IllegalStateException if {@link #next()} has not been
+         * called, or remove has already been called since
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            entries.hasNext();
+            if (last == null)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() " +
+                                "method has already been called after the " +
+                                "last call to the next() method"
+                );
+            Entry<E> removed = last;
+            tree.remove(removed.handle);
+            last = null;
+            //the removal invalidates the backing iterator, which has already
+            //moved past the removed entry, so restart it just after the next
+            //entry to be returned
+            entries = tree.iterator(next != null ? next : removed);
+            if (next != null) entries.next();
+        }
+
+    }
+
+}
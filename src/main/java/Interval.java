@@ -0,0 +1,118 @@
+/**
+ * A closed interval between two comparable end points, as held by an
+ * {@link IntervalTree}. Intervals are ordered by their start point, and then
+ * by their end point, so that distinct intervals sharing a start point can
+ * be held in the same dictionary.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <T> the type of the end points
+ */
+public final class Interval<T extends Comparable<T>>
+        implements Comparable<Interval<T>> {
+
+    /**
+     * The least point in the interval.
+     */
+    private final T start;
+
+    /**
+     * The greatest point in the interval.
+     */
+    private final T end;
+
+    /**
+     * Creates a new closed interval.
+     *
+     * @param start the least point in the interval
+     * @param end the greatest point in the interval
+     * @throws IllegalArgumentException if either argument is null, or if
+     * the start is greater than the end
+     */
+    public Interval(T start, T end) throws IllegalArgumentException {
+        if (start == null || end == null)
+            throw new IllegalArgumentException("argument is null");
+        if (start.compareTo(end) > 0)
+            throw new IllegalArgumentException("start is greater than end");
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Gives the least point in the interval.
+     *
+     * @return the start point
+     */
+    public T getStart() {
+        return start;
+    }
+
+    /**
+     * Gives the greatest point in the interval.
+     *
+     * @return the end point
+     */
+    public T getEnd() {
+        return end;
+    }
+
+    /**
+     * Checks if this interval shares at least one point with the closed
+     * interval between two points.
+     *
+     * @param lo the least point of the other interval
+     * @param hi the greatest point of the other interval
+     * @return true if and only if the intervals overlap
+     */
+    public boolean overlaps(T lo, T hi) {
+        return start.compareTo(hi) <= 0 && end.compareTo(lo) >= 0;
+    }
+
+    /**
+     * Orders intervals by start point, then by end point.
+     *
+     * @param other the interval to compare this interval to
+     * @return a negative number, zero or a positive number as this interval
+     * is less than, equal to or greater than the other
+     */
+    @Override
+    public int compareTo(Interval<T> other) {
+        int cmp = start.compareTo(other.start);
+        return cmp != 0 ? cmp : end.compareTo(other.end);
+    }
+
+    /**
+     * Checks if another object is an interval with the same end points.
+     *
+     * @param o the object to check
+     * @return true if and only if the object is an equal interval
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Interval)) return false;
+        Interval<?> other = (Interval<?>) o;
+        return start.equals(other.start) && end.equals(other.end);
+    }
+
+    /**
+     * Gives a hash code consistent with {@link #equals(Object)}.
+     *
+     * @return the hash code of this interval
+     */
+    @Override
+    public int hashCode() {
+        return 31 * start.hashCode() + end.hashCode();
+    }
+
+    /**
+     * Gives a string of the form "[start, end]".
+     *
+     * @return a string representation of this interval
+     */
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + "]";
+    }
+
+}
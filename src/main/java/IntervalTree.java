@@ -0,0 +1,82 @@
+import java.util.Iterator;
+
+/**
+ * A red-black tree of intervals, ordered by start point, where each subtree
+ * is augmented with the greatest end point of the intervals it holds. This
+ * allows all of the intervals overlapping a query range to be found without
+ * a linear scan, since any subtree whose greatest end point lies before the
+ * query range can be skipped entirely, and the walk stops at the first
+ * interval starting after it. Each of the k results may still need its own
+ * descent from higher in the tree, so a query takes O(min(n, (k + 1) lg n))
+ * time rather than O(lg n + k) - a single lookup and the first result take
+ * O(lg n), and a query never costs more than a full walk.
+ * The augmentation is maintained by {@link RedBlackTree} itself, through all
+ * rotations made while restoring the red-black tree properties.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <T> the type of the interval end points
+ */
+public class IntervalTree<T extends Comparable<T>>
+        extends RedBlackTree<Interval<T>> {
+
+    /**
+     * Creates a new interval tree with no intervals.
+     */
+    public IntervalTree() {
+        super(Augmentation.<Interval<T>, T>max(Interval::getEnd));
+    }
+
+    /**
+     * Returns an iterator over all the intervals that share at least one
+     * point with the closed interval between two points, in ascending
+     * order, in O(min(n, (k + 1) lg n)) time for k results in all. The
+     * iterator is fail-fast, and does not support removal.
+     *
+     * @param lo the least point of the query interval
+     * @param hi the greatest point of the query interval
+     * @return an iterator over the overlapping intervals
+     * @throws IllegalArgumentException if either argument is null
+     */
+    public Iterator<Interval<T>> overlapping(T lo, T hi)
+            throws IllegalArgumentException {
+        if (lo == null || hi == null)
+            throw new IllegalArgumentException("argument is null");
+        //a subtree can only contain an overlapping interval if some interval
+        //in it ends at or after lo, and once the intervals start after hi
+        //none of the rest can overlap
+        return search(
+                String.format("overlapping(%s, %s)", lo, hi),
+                end -> end != null && lo.compareTo(cast(end)) <= 0,
+                interval -> interval.getEnd().compareTo(lo) >= 0,
+                interval -> interval.getStart().compareTo(hi) > 0
+        );
+    }
+
+    /**
+     * Returns an iterator over all the intervals containing the given
+     * point, in ascending order. The iterator is fail-fast, and does not
+     * support removal.
+     *
+     * @param point the point to check
+     * @return an iterator over the intervals containing the point
+     * @throws IllegalArgumentException if the argument is null
+     */
+    public Iterator<Interval<T>> stab(T point)
+            throws IllegalArgumentException {
+        return overlapping(point, point);
+    }
+
+    /**
+     * Recovers the type of a subtree aggregate, which for this tree is
+     * always the greatest end point in the subtree.
+     *
+     * @param aggregate the subtree aggregate
+     * @return the aggregate as an end point
+     */
+    @SuppressWarnings("unchecked")
+    private T cast(Object aggregate) {
+        return (T) aggregate;
+    }
+
+}
@@ -0,0 +1,91 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the elements of a dictionary in a compact binary form,
+ * so that they can be stored in an operation trace. See
+ * {@link TraceRecorder} and {@link TraceReplay}.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements being encoded
+ */
+public interface KeyCodec<E> {
+
+    /**
+     * Writes an element.
+     *
+     * @param out the output to write to
+     * @param key the element to write, which is never null
+     * @throws IOException if the element could not be written
+     */
+    void write(DataOutput out, E key) throws IOException;
+
+    /**
+     * Reads an element written by {@link #write(DataOutput, Object)}.
+     *
+     * @param in the input to read from
+     * @return the element read
+     * @throws IOException if the element could not be read
+     */
+    E read(DataInput in) throws IOException;
+
+    /**
+     * A codec for integers, which writes small magnitudes in fewer bytes.
+     *
+     * @return a codec for integers
+     */
+    static KeyCodec<Integer> integers() {
+        return new KeyCodec<Integer>() {
+            @Override
+            public void write(DataOutput out, Integer key) throws IOException {
+                TraceRecorder.writeSigned(out, key);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return (int) TraceRecorder.readSigned(in);
+            }
+        };
+    }
+
+    /**
+     * A codec for longs, which writes small magnitudes in fewer bytes.
+     *
+     * @return a codec for longs
+     */
+    static KeyCodec<Long> longs() {
+        return new KeyCodec<Long>() {
+            @Override
+            public void write(DataOutput out, Long key) throws IOException {
+                TraceRecorder.writeSigned(out, key);
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return TraceRecorder.readSigned(in);
+            }
+        };
+    }
+
+    /**
+     * A codec for strings, written as modified UTF-8.
+     *
+     * @return a codec for strings
+     */
+    static KeyCodec<String> strings() {
+        return new KeyCodec<String>() {
+            @Override
+            public void write(DataOutput out, String key) throws IOException {
+                out.writeUTF(key);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * in the style of HdrHistogram. Values below 128 are counted exactly, and
+ * larger values in buckets no wider than 1/64 of the values they hold, so
+ * any percentile is reported to within about 1.6%. All buckets are
+ * allocated up front, so recording a value never allocates.
+ *
+ * @author Samuel Marsh
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of each value that are kept exactly.
+     */
+    private static final int PRECISION = 7;
+
+    /**
+     * Values below this are counted exactly.
+     */
+    private static final int EXACT = 1 << PRECISION;
+
+    /**
+     * The number of buckets per power of two, above the exact values.
+     */
+    private static final int HALF = EXACT >> 1;
+
+    /**
+     * The number of values recorded in each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * The number of values recorded, and their sum.
+     */
+    private long count, total;
+
+    /**
+     * The least and greatest values recorded.
+     */
+    private long min, max;
+
+    /**
+     * Creates a new, empty histogram.
+     */
+    public LatencyHistogram() {
+        counts = new long[EXACT + (Long.SIZE - PRECISION) * HALF];
+        reset();
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value to record
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void record(long value) throws IllegalArgumentException {
+        if (value < 0)
+            throw new IllegalArgumentException("value must not be negative");
+        ++counts[bucket(value)];
+        ++count;
+        total += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Gives the number of values recorded.
+     *
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gives the least value recorded.
+     *
+     * @return the least value, or 0 if none have been recorded
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Gives the greatest value recorded.
+     *
+     * @return the greatest value, or 0 if none have been recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gives the mean of the values recorded.
+     *
+     * @return the mean value, or 0 if none have been recorded
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * Gives the value that the given percentage of recorded values are less
+     * than or equal to, rounded up to the top of its bucket.
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the value at the percentile, or 0 if none have been recorded
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long getValueAtPercentile(double percentile)
+            throws IllegalArgumentException {
+        if (!(percentile >= 0 && percentile <= 100))
+            throw new IllegalArgumentException(
+                    "percentile must be between 0 and 100"
+            );
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Adds the values recorded in another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; ++i) counts[i] += other.counts[i];
+        count += other.count;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = total = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    /**
+     * Provides a summary of the recorded values.
+     *
+     * @return the count, mean, common percentiles and maximum
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d "
+                        + "p99.9=%d p99.99=%d max=%d", count, getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9),
+                getValueAtPercentile(99.99), max);
+    }
+
+    /**
+     * Finds the bucket a value is counted in.
+     *
+     * @param value the value, which is not negative
+     * @return the index of its bucket
+     */
+    private static int bucket(long value) {
+        if (value < EXACT) return (int) value;
+        //keeps the top PRECISION bits of the value, the first always set
+        int shift = Long.SIZE - PRECISION - Long.numberOfLeadingZeros(value);
+        return EXACT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * Finds the greatest value counted in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the greatest value it holds
+     */
+    private static long highest(int bucket) {
+        if (bucket < EXACT) return bucket;
+        int shift = (bucket - EXACT) / HALF + 1;
+        long top = (bucket - EXACT) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+}
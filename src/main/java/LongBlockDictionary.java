@@ -0,0 +1,762 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A dictionary of longs held in sorted blocks of primitive keys, indexed by
+ * a {@link RedBlackTree}. Where a {@link RedBlackTree RedBlackTree&lt;Long&gt;}
+ * follows a pointer and calls {@link Long#compareTo(Long)} on a boxed key at
+ * every level, here the index only leads to the block that may hold a key,
+ * and the rest of the search is within an array of {@value #CAPACITY} longs
+ * in a few cache lines. The block is searched without branching on the
+ * keys - the unused end of each block is filled with
+ * {@link Long#MAX_VALUE}, so every search takes the same steps whatever the
+ * key and however full the block, and the comparisons can be compiled to
+ * conditional moves rather than mispredicted jumps. Where the
+ * {@code jdk.incubator.vector} module is present and the class
+ * {@code VectorBlockSearch} (compiled separately, from
+ * {@code src/main/java-vector}) is on the class path, a block is instead
+ * searched by comparing the key with a vector of keys at a time and
+ * counting the lanes that are less; otherwise the scalar search is used.
+ * The index has one node per block rather than per element, so it is
+ * shallower and smaller too.
+ * Block i covers the keys from its fence up to the fence of block i + 1.
+ * The first block has the least possible fence, and is the only one that
+ * may be empty; a full block is split in two, and a block falling below a
+ * quarter full is merged with a neighbour where the two fit in half a
+ * block. Elements returned are boxed again, and so are equal to, but not
+ * the same objects as, those added.
+ * The log string counts the comparisons made in the index and in the
+ * blocks, where a vector comparison counts as one.
+ *
+ * @author Samuel Marsh
+ */
+public class LongBlockDictionary implements Dictionary<Long> {
+
+    /**
+     * The log message format, matching {@link RedBlackTree}.
+     */
+    private static final String LOG_MSG =
+            "Operation %s completed using %d comparison(s).%n";
+
+    /**
+     * The number of keys a block can hold, a power of two.
+     */
+    static final int CAPACITY = 64;
+
+    /**
+     * The number of comparisons made by the scalar search of a block.
+     */
+    private static final int STEPS =
+            Integer.numberOfTrailingZeros(CAPACITY) + 1;
+
+    /**
+     * The vector search of a block, or null if the Vector API is not
+     * available.
+     */
+    private static final Search VECTOR = vector();
+
+    /**
+     * The blocks, ordered by their fences.
+     */
+    private final RedBlackTree<Block> index;
+
+    /**
+     * The block used to search the index by key. Only its fence is used.
+     */
+    private final Block probe;
+
+    /**
+     * Keeps a log of all operations made on the dictionary.
+     */
+    private final StringBuilder log;
+
+    /**
+     * Whether operations are appended to the log.
+     */
+    private boolean logging;
+
+    /**
+     * The number of comparisons made by the current operation.
+     */
+    private int comparisons;
+
+    /**
+     * The number of elements in the dictionary.
+     */
+    private int size;
+
+    /**
+     * The number of modifications made, for fail-fast iterators.
+     */
+    private int modifications;
+
+    /**
+     * Creates a new, empty dictionary.
+     */
+    public LongBlockDictionary() {
+        index = new RedBlackTree<Block>();
+        index.setLogging(false);
+        index.add(new Block(Long.MIN_VALUE, empty()));
+        probe = new Block(0, null);
+        log = new StringBuilder();
+        logging = true;
+    }
+
+    /**
+     * Gives the number of elements in the dictionary. Runs in constant time.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        reset();
+        log("isEmpty()");
+        return size == 0;
+    }
+
+    /**
+     * Checks if the block covering the item holds it.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(Long item) {
+        reset();
+        boolean ret = false;
+        if (item != null) {
+            long key = item;
+            Block block = block(key);
+            int i = block.search(key);
+            ret = i < block.size && block.keys[i] == key;
+        }
+        log("contains(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(Long item) {
+        reset();
+        boolean ret = item != null && lower(item) != null;
+        log("hasPredecessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(Long item) {
+        reset();
+        boolean ret = item != null && higher(item) != null;
+        log("hasSuccessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than the item, in the block covering
+     * the item or else at the end of the block before.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public Long predecessor(Long item) throws NoSuchElementException {
+        reset();
+        Long ret = item == null ? null : lower(item);
+        log("predecessor(%s)", item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the least element greater than the item, in the block covering
+     * the item or else at the start of the block after.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public Long successor(Long item) throws NoSuchElementException {
+        reset();
+        Long ret = item == null ? null : higher(item);
+        log("successor(%s)", item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the least element in the dictionary.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public Long min() throws NoSuchElementException {
+        reset();
+        log("min()");
+        if (size == 0) throw new NoSuchElementException("dictionary is empty");
+        Block block = index.min();
+        //only the first block may be empty
+        if (block.size == 0) block = index.higher(block);
+        return block.keys[0];
+    }
+
+    /**
+     * Finds the greatest element in the dictionary.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public Long max() throws NoSuchElementException {
+        reset();
+        log("max()");
+        if (size == 0) throw new NoSuchElementException("dictionary is empty");
+        Block block = index.max();
+        return block.keys[block.size - 1];
+    }
+
+    /**
+     * Adds the item to the block covering it, splitting the block in two
+     * first if it is full.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(Long item) {
+        reset();
+        boolean ret = item != null && insert(item);
+        log("add(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Deletes the item from the block covering it, merging the block with a
+     * neighbour if it has become too empty.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(Long item) {
+        reset();
+        boolean ret = item != null && remove(item);
+        log("delete(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements in ascending order.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        reset();
+        Iterator<Long> ret = new BlockIterator(Long.MIN_VALUE);
+        log("iterator()");
+        return ret;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start, in ascending order.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<Long> iterator(Long start)
+            throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        reset();
+        Iterator<Long> ret = new BlockIterator(start);
+        log("iterator(%s)", start);
+        return ret;
+    }
+
+    /**
+     * Sets whether operations are appended to the log string, as
+     * {@link RedBlackTree#setLogging(boolean)} does. Logging is on by
+     * default.
+     *
+     * @param enabled whether to log operations
+     */
+    public void setLogging(boolean enabled) {
+        logging = enabled;
+    }
+
+    /**
+     * Provides a string listing all operations made on the dictionary since
+     * the log string was last retrieved, and clears it for next time.
+     *
+     * @return the log string
+     */
+    @Override
+    public String getLogString() {
+        String logString = log.toString();
+        log.setLength(0);
+        return logString;
+    }
+
+    /**
+     * Provides a string representation of the blocks, one per line, each
+     * with its fence and then its keys.
+     *
+     * @return a string with the structure of the dictionary
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Block block : index) {
+            sb.append(block.fence).append(':');
+            for (int i = 0; i < block.size; ++i)
+                sb.append(' ').append(block.keys[i]);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gives the number of blocks. Runs in constant time.
+     *
+     * @return the number of blocks
+     */
+    int blocks() {
+        return index.size();
+    }
+
+    /**
+     * Inserts a key into the block covering it.
+     *
+     * @param key the key
+     * @return true if and only if the key was not already present
+     */
+    private boolean insert(long key) {
+        Block block = block(key);
+        int i = block.search(key);
+        if (i < block.size && block.keys[i] == key) return false;
+        if (block.size == CAPACITY) {
+            Block right = block.split();
+            index.add(right);
+            if (key >= right.fence) {
+                block = right;
+                i -= CAPACITY / 2;
+            }
+        }
+        System.arraycopy(block.keys, i, block.keys, i + 1, block.size - i);
+        block.keys[i] = key;
+        ++block.size;
+        ++size;
+        ++modifications;
+        return true;
+    }
+
+    /**
+     * Removes a key from the block covering it.
+     *
+     * @param key the key
+     * @return true if and only if the key was present
+     */
+    private boolean remove(long key) {
+        Block block = block(key);
+        int i = block.search(key);
+        if (i == block.size || block.keys[i] != key) return false;
+        System.arraycopy(block.keys, i + 1, block.keys, i, block.size - i - 1);
+        block.keys[--block.size] = Long.MAX_VALUE;
+        --size;
+        ++modifications;
+        if (block.size < CAPACITY / 4) shrink(block);
+        return true;
+    }
+
+    /**
+     * Merges a block that has become too empty with the next block, or else
+     * with the previous one, if the two fit in half a block. An empty block
+     * other than the first is always removed.
+     *
+     * @param block the block
+     */
+    private void shrink(Block block) {
+        Block next = index.higher(block);
+        if (next != null && block.size + next.size <= CAPACITY / 2) {
+            block.absorb(next);
+            index.delete(next);
+            return;
+        }
+        if (block.fence == Long.MIN_VALUE) return;
+        Block previous = index.lower(block);
+        if (block.size == 0 || previous.size + block.size <= CAPACITY / 2) {
+            previous.absorb(block);
+            index.delete(block);
+        }
+    }
+
+    /**
+     * Finds the greatest element less than a key.
+     *
+     * @param key the key
+     * @return the element, or null if there is none
+     */
+    private Long lower(long key) {
+        Block block = block(key);
+        int i = block.search(key);
+        if (i > 0) return block.keys[i - 1];
+        for (block = index.lower(block); block != null;
+             block = index.lower(block)) {
+            if (block.size > 0) return block.keys[block.size - 1];
+        }
+        return null;
+    }
+
+    /**
+     * Finds the least element greater than a key.
+     *
+     * @param key the key
+     * @return the element, or null if there is none
+     */
+    private Long higher(long key) {
+        Block block = block(key);
+        int i = block.search(key);
+        if (i < block.size && block.keys[i] == key) ++i;
+        if (i < block.size) return block.keys[i];
+        //blocks after the first are never empty
+        block = index.higher(block);
+        return block == null ? null : block.keys[0];
+    }
+
+    /**
+     * Finds the block covering a key, that with the greatest fence less
+     * than or equal to it.
+     *
+     * @param key the key
+     * @return the block
+     */
+    private Block block(long key) {
+        probe.fence = key;
+        return index.floor(probe);
+    }
+
+    /**
+     * Finds the position of the first key in a block greater than or equal
+     * to the given key, with the vector search if it is available, or else
+     * by halving the range of the whole array at each step with a select
+     * rather than a branch.
+     *
+     * @param keys the keys of a block, padded with {@link Long#MAX_VALUE}
+     * @param key the key
+     * @return the position of the key, or where it would be inserted
+     */
+    static int search(long[] keys, long key) {
+        if (VECTOR != null) return VECTOR.search(keys, key);
+        int base = 0;
+        for (int half = CAPACITY >>> 1; half > 0; half >>>= 1)
+            base = keys[base + half - 1] < key ? base + half : base;
+        //the padding is never less than a key, so this stops at the number
+        //of keys held
+        return keys[base] < key ? base + 1 : base;
+    }
+
+    /**
+     * Gives the number of comparisons made by {@link #search(long[], long)}.
+     *
+     * @return the comparisons per search, whatever the key
+     */
+    static int steps() {
+        return VECTOR != null ? VECTOR.steps() : STEPS;
+    }
+
+    /**
+     * Loads the vector search, if both it and the module it needs are
+     * present.
+     *
+     * @return the vector search, or null if it cannot be loaded
+     */
+    private static Search vector() {
+        try {
+            return (Search) Class.forName("VectorBlockSearch")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //not compiled, no incubator module, or no vector hardware
+            return null;
+        }
+    }
+
+    /**
+     * Creates the keys of an empty block.
+     *
+     * @return an array of {@link #CAPACITY} copies of {@link Long#MAX_VALUE}
+     */
+    private static long[] empty() {
+        long[] keys = new long[CAPACITY];
+        Arrays.fill(keys, Long.MAX_VALUE);
+        return keys;
+    }
+
+    /**
+     * Resets the count of comparisons, at the start of each operation.
+     */
+    private void reset() {
+        comparisons = 0;
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed.
+     *
+     * @param method the operation
+     */
+    private void log(String method) {
+        if (logging) log.append(String.format(LOG_MSG, method, comparisons));
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed, only
+     * formatting the description if logging is on.
+     *
+     * @param format the format of the operation's description
+     * @param argument the argument of the operation
+     */
+    private void log(String format, Object argument) {
+        if (logging) log(String.format(format, argument));
+    }
+
+    /**
+     * A sorted block of keys, ordered in the index by its fence.
+     */
+    private final class Block implements Comparable<Block> {
+
+        /**
+         * The least key the block may hold - only changed for the probe.
+         */
+        private long fence;
+
+        /**
+         * The keys in ascending order, followed by {@link Long#MAX_VALUE}
+         * in every unused slot.
+         */
+        private final long[] keys;
+
+        /**
+         * The number of keys held.
+         */
+        private int size;
+
+        /**
+         * Creates a new, empty block.
+         *
+         * @param fence the least key the block may hold
+         * @param keys the array to hold the keys, filled by
+         *             {@link #empty()}
+         */
+        private Block(long fence, long[] keys) {
+            this.fence = fence;
+            this.keys = keys;
+        }
+
+        /**
+         * Finds the position of the first key greater than or equal to the
+         * given key, or the number of keys if there is none, taking the
+         * same number of comparisons whatever the key.
+         *
+         * @param key the key
+         * @return the position of the key, or where it would be inserted
+         */
+        private int search(long key) {
+            comparisons += steps();
+            return LongBlockDictionary.search(keys, key);
+        }
+
+        /**
+         * Moves the upper half of this full block into a new block.
+         *
+         * @return the new block, whose fence is its least key
+         */
+        private Block split() {
+            Block right = new Block(keys[CAPACITY / 2], empty());
+            System.arraycopy(keys, CAPACITY / 2, right.keys, 0, CAPACITY / 2);
+            Arrays.fill(keys, CAPACITY / 2, CAPACITY, Long.MAX_VALUE);
+            size = right.size = CAPACITY / 2;
+            return right;
+        }
+
+        /**
+         * Appends the keys of the next block to this one.
+         *
+         * @param next the next block, whose keys all follow these
+         */
+        private void absorb(Block next) {
+            System.arraycopy(next.keys, 0, keys, size, next.size);
+            size += next.size;
+        }
+
+        /**
+         * Compares this block's fence with that of another, counting the
+         * comparison.
+         *
+         * @param block the other block
+         * @return the comparison of the fences
+         */
+        @Override
+        public int compareTo(Block block) {
+            ++comparisons;
+            return Long.compare(fence, block.fence);
+        }
+
+    }
+
+    /**
+     * A search within a block, implemented with the Vector API by
+     * {@code VectorBlockSearch}, which is loaded by name so that this class
+     * neither needs the incubator module to compile nor to run.
+     */
+    interface Search {
+
+        /**
+         * Finds the position of the first key greater than or equal to the
+         * given key.
+         *
+         * @param keys the {@link #CAPACITY} keys of a block, padded with
+         *             {@link Long#MAX_VALUE}
+         * @param key the key
+         * @return the position of the key, or where it would be inserted
+         */
+        int search(long[] keys, long key);
+
+        /**
+         * Gives the number of comparisons made by each search.
+         *
+         * @return the comparisons per search
+         */
+        int steps();
+
+    }
+
+    /**
+     * A fail-fast iterator, walking the keys of each block in turn.
+     */
+    private final class BlockIterator implements Iterator<Long> {
+
+        /**
+         * The block holding the next key, or null at the end.
+         */
+        private Block block;
+
+        /**
+         * The position of the next key in the block.
+         */
+        private int position;
+
+        /**
+         * The key last returned, or null if it has been removed or none has
+         * been returned.
+         */
+        private Long last;
+
+        /**
+         * The number of modifications expected to have been made.
+         */
+        private int expected;
+
+        /**
+         * Creates a new iterator.
+         *
+         * @param start the least key to return
+         */
+        private BlockIterator(long start) {
+            expected = modifications;
+            seek(start);
+        }
+
+        @Override
+        public boolean hasNext() {
+            checkForComodification();
+            return block != null;
+        }
+
+        @Override
+        public Long next() {
+            checkForComodification();
+            if (block == null) throw new NoSuchElementException();
+            last = block.keys[position++];
+            if (position == block.size) {
+                block = index.higher(block);
+                position = 0;
+            }
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) throw new IllegalStateException();
+            checkForComodification();
+            LongBlockDictionary.this.remove(last);
+            //the blocks may have been merged, so find the next key again
+            seek(last);
+            last = null;
+            expected = modifications;
+        }
+
+        /**
+         * Positions the iterator at the least key greater than or equal to
+         * the given key.
+         *
+         * @param key the key
+         */
+        private void seek(long key) {
+            block = block(key);
+            position = block.search(key);
+            if (position == block.size) {
+                block = index.higher(block);
+                position = 0;
+            }
+        }
+
+        /**
+         * Checks that no modifications have been made other than through
+         * this iterator.
+         *
+         * @throws ConcurrentModificationException if one has been made
+         */
+        private void checkForComodification()
+                throws ConcurrentModificationException {
+            if (modifications != expected)
+                throw new ConcurrentModificationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * A single change to the contents of a {@link RedBlackTree}, as published to
+ * the subscribers of its {@link MutationFeed}: one occurrence of an element
+ * was added or deleted. Mutations are numbered in the order they were made,
+ * without gaps, so that a subscriber can tell where it is in the history of
+ * the dictionary.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of element that was added or deleted
+ */
+public final class Mutation<E> {
+
+    /**
+     * The position of the mutation in the history of the dictionary.
+     */
+    private final long sequence;
+
+    /**
+     * Whether the element was added, rather than deleted.
+     */
+    private final boolean addition;
+
+    /**
+     * The element added or deleted.
+     */
+    private final E element;
+
+    /**
+     * Creates a new mutation.
+     *
+     * @param sequence the position of the mutation in the history of the
+     *                 dictionary
+     * @param addition whether the element was added, rather than deleted
+     * @param element the element added or deleted
+     */
+    Mutation(long sequence, boolean addition, E element) {
+        this.sequence = sequence;
+        this.addition = addition;
+        this.element = element;
+    }
+
+    /**
+     * Gives the position of the mutation in the history of the dictionary.
+     * The first mutation published by a feed is numbered 1, and each one
+     * after that is numbered one more than the last.
+     *
+     * @return the sequence number of the mutation
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Checks whether the mutation added an occurrence of the element.
+     *
+     * @return true if the element was added, false if it was deleted
+     */
+    public boolean isAddition() {
+        return addition;
+    }
+
+    /**
+     * Gives the element that was added or deleted.
+     *
+     * @return the element
+     */
+    public E getElement() {
+        return element;
+    }
+
+    /**
+     * Provides a string representation of the mutation, such as
+     * {@code #12 +apple}.
+     *
+     * @return a string representation of the mutation
+     */
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + (addition ? "+" : "-") + element;
+    }
+
+}
@@ -0,0 +1,383 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the changes made to a {@link RedBlackTree} to any number of
+ * {@link Flow.Subscriber}s, so that caches and other derived state can be
+ * kept up to date incrementally instead of by iterating over the whole
+ * dictionary. Obtained from {@link RedBlackTree#mutations()}.
+ * Each subscriber receives batches of {@link Mutation}s in the order they
+ * were made. Every call to {@link Flow.Subscription#request(long)} allows
+ * one more batch; mutations made while a subscriber has no demand, or while
+ * its last batch is still being delivered, are queued and handed over
+ * together in the next batch, of up to {@link Flow#defaultBufferSize()}
+ * mutations. A subscriber falling so far behind that more mutations are
+ * queued for it than its capacity allows is unsubscribed, and sent an
+ * {@link IllegalStateException} - it can then subscribe again and rebuild
+ * its state from the dictionary. Batches are delivered using an executor,
+ * one at a time for each subscriber.
+ * The feed is only ever given mutations by the thread changing the
+ * dictionary. Subscribing on that thread and then reading the dictionary
+ * gives a consistent starting point: the subscriber will receive exactly
+ * the mutations numbered after {@link #getSequence()}.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements held by the dictionary
+ */
+public final class MutationFeed<E>
+        implements Flow.Publisher<List<Mutation<E>>> {
+
+    /**
+     * The number of mutations that may be queued for a subscriber by
+     * default.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * The greatest number of mutations delivered in one batch.
+     */
+    private static final int BATCH = Flow.defaultBufferSize();
+
+    /**
+     * The subscriptions still open, replaced as a whole whenever one is
+     * opened or closed so that publishing need not lock.
+     */
+    private volatile Outlet<?>[] outlets;
+
+    /**
+     * The sequence number of the last mutation published - only written
+     * by the thread changing the dictionary.
+     */
+    private long sequence;
+
+    /**
+     * Creates a new feed, with no subscribers.
+     */
+    MutationFeed() {
+        outlets = new Outlet<?>[0];
+    }
+
+    /**
+     * Subscribes to the mutations made from now on, delivered using the
+     * common fork-join pool and with a capacity of
+     * {@link #DEFAULT_CAPACITY}.
+     *
+     * @param subscriber the subscriber
+     * @throws NullPointerException if the subscriber is null
+     */
+    @Override
+    public void subscribe(
+            Flow.Subscriber<? super List<Mutation<E>>> subscriber)
+            throws NullPointerException {
+        subscribe(subscriber, ForkJoinPool.commonPool(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Subscribes to the mutations made from now on.
+     *
+     * @param subscriber the subscriber
+     * @param executor runs the deliveries of batches to the subscriber
+     * @param capacity the greatest number of mutations that may be queued
+     *                 for the subscriber before it is unsubscribed
+     * @throws NullPointerException if the subscriber or executor is null
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public void subscribe(
+            Flow.Subscriber<? super List<Mutation<E>>> subscriber,
+            Executor executor, int capacity)
+            throws NullPointerException, IllegalArgumentException {
+        if (subscriber == null || executor == null)
+            throw new NullPointerException("argument is null");
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        Outlet<E> outlet = new Outlet<E>(this, subscriber, executor, capacity);
+        synchronized (this) {
+            Outlet<?>[] current = outlets;
+            Outlet<?>[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = outlet;
+            outlets = next;
+        }
+        outlet.signal();
+    }
+
+    /**
+     * Gives the sequence number of the last mutation published, or zero if
+     * none has been. Only meaningful on the thread changing the dictionary.
+     *
+     * @return the sequence number of the last mutation
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Queues a mutation for every subscriber, without yet delivering it.
+     * When there are no subscribers the mutation is only counted.
+     *
+     * @param addition whether the element was added, rather than deleted
+     * @param element the element added or deleted
+     */
+    @SuppressWarnings("unchecked")
+    void publish(boolean addition, E element) {
+        long number = ++sequence;
+        Outlet<?>[] current = outlets;
+        if (current.length == 0) return;
+        Mutation<E> mutation = new Mutation<E>(number, addition, element);
+        for (Outlet<?> outlet : current) ((Outlet<E>) outlet).offer(mutation);
+    }
+
+    /**
+     * Delivers the mutations queued so far to every subscriber with demand.
+     */
+    void flush() {
+        for (Outlet<?> outlet : outlets) outlet.flush();
+    }
+
+    /**
+     * Stops publishing to a closed subscription.
+     *
+     * @param outlet the subscription
+     */
+    private synchronized void remove(Outlet<?> outlet) {
+        Outlet<?>[] current = outlets;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i] == outlet) {
+                Outlet<?>[] next = new Outlet<?>[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                outlets = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The subscription of a single subscriber: the mutations queued for it,
+     * its outstanding demand, and the task that delivers batches to it. The
+     * task is run again whenever it is signalled while running, so that
+     * only one delivery is ever in progress.
+     *
+     * @param <E> the type of elements held by the dictionary
+     */
+    private static final class Outlet<E>
+            implements Flow.Subscription, Runnable {
+
+        /**
+         * The feed the subscription belongs to.
+         */
+        private final MutationFeed<E> feed;
+
+        /**
+         * The subscriber.
+         */
+        private final Flow.Subscriber<? super List<Mutation<E>>> subscriber;
+
+        /**
+         * Runs the delivery task.
+         */
+        private final Executor executor;
+
+        /**
+         * The greatest number of mutations that may be queued.
+         */
+        private final int capacity;
+
+        /**
+         * The mutations not yet delivered - guarded by this subscription.
+         */
+        private final ArrayDeque<Mutation<E>> queue;
+
+        /**
+         * The number of times the delivery task has been signalled since it
+         * last finished.
+         */
+        private final AtomicInteger signals;
+
+        /**
+         * The number of batches requested but not yet delivered - guarded by
+         * this subscription.
+         */
+        private long demand;
+
+        /**
+         * The error to send to the subscriber, if it is to be unsubscribed -
+         * guarded by this subscription.
+         */
+        private Throwable failure;
+
+        /**
+         * Whether the subscription has been closed - guarded by this
+         * subscription.
+         */
+        private boolean cancelled;
+
+        /**
+         * Whether the subscriber has been handed the subscription - only
+         * used by the delivery task.
+         */
+        private boolean started;
+
+        /**
+         * Creates a new subscription.
+         *
+         * @param feed the feed the subscription belongs to
+         * @param subscriber the subscriber
+         * @param executor runs the delivery task
+         * @param capacity the greatest number of mutations that may be
+         *                 queued
+         */
+        private Outlet(MutationFeed<E> feed,
+                       Flow.Subscriber<? super List<Mutation<E>>> subscriber,
+                       Executor executor, int capacity) {
+            this.feed = feed;
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.capacity = capacity;
+            queue = new ArrayDeque<Mutation<E>>();
+            signals = new AtomicInteger();
+        }
+
+        /**
+         * Allows more batches to be delivered.
+         *
+         * @param n the number of batches
+         */
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) return;
+                if (n <= 0) {
+                    fail(new IllegalArgumentException(
+                            "non-positive request: " + n));
+                } else {
+                    demand += n;
+                    //saturate rather than overflow
+                    if (demand < 0) demand = Long.MAX_VALUE;
+                }
+            }
+            signal();
+        }
+
+        /**
+         * Closes the subscription. Mutations already queued are discarded.
+         */
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                queue.clear();
+            }
+            feed.remove(this);
+        }
+
+        /**
+         * Queues a mutation, or unsubscribes the subscriber if that would
+         * exceed the capacity.
+         *
+         * @param mutation the mutation
+         */
+        private synchronized void offer(Mutation<E> mutation) {
+            if (cancelled || failure != null) return;
+            if (queue.size() < capacity) {
+                queue.add(mutation);
+            } else {
+                fail(new IllegalStateException(
+                        "subscriber fell more than " + capacity
+                                + " mutations behind"));
+            }
+        }
+
+        /**
+         * Signals the delivery task if there is anything for it to deliver.
+         */
+        private void flush() {
+            synchronized (this) {
+                if (failure == null && (demand == 0 || queue.isEmpty()))
+                    return;
+            }
+            signal();
+        }
+
+        /**
+         * Unsubscribes the subscriber with an error, delivered by the next
+         * run of the delivery task. Called holding this subscription's lock.
+         *
+         * @param error the error
+         */
+        private void fail(Throwable error) {
+            failure = error;
+            queue.clear();
+            feed.remove(this);
+        }
+
+        /**
+         * Runs the delivery task, unless it is already running - in which
+         * case it runs once more before finishing.
+         */
+        private void signal() {
+            if (signals.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        /**
+         * Delivers batches while there is demand for them, until no more
+         * signals have arrived.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!started) {
+                    started = true;
+                    try {
+                        subscriber.onSubscribe(this);
+                    } catch (Throwable t) {
+                        cancel();
+                        return;
+                    }
+                }
+                for (;;) {
+                    List<Mutation<E>> batch;
+                    Throwable error;
+                    synchronized (this) {
+                        if (cancelled) return;
+                        error = failure;
+                        if (error != null) {
+                            cancelled = true;
+                            batch = null;
+                        } else if (demand == 0 || queue.isEmpty()) {
+                            break;
+                        } else {
+                            int n = Math.min(queue.size(), BATCH);
+                            batch = new ArrayList<Mutation<E>>(n);
+                            for (int i = 0; i < n; ++i) batch.add(queue.poll());
+                            if (demand != Long.MAX_VALUE) --demand;
+                        }
+                    }
+                    if (error != null) {
+                        subscriber.onError(error);
+                        return;
+                    }
+                    try {
+                        subscriber.onNext(Collections.unmodifiableList(batch));
+                    } catch (Throwable t) {
+                        //a subscriber that throws is unsubscribed, as by
+                        //SubmissionPublisher
+                        cancel();
+                        return;
+                    }
+                }
+                missed = signals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+    }
+
+}
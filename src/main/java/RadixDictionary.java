@@ -0,0 +1,437 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A dictionary of strings held in a {@link RadixTree}, suited to long keys
+ * with shared prefixes such as URLs and hierarchical identifiers. Where a
+ * {@link RedBlackTree} compares whole keys from their first character at
+ * every level, a lookup here visits at most one node per byte of the key
+ * whatever the size of the dictionary, and each common prefix is stored
+ * once.
+ * Strings are encoded so that the order of the bytes is the order of
+ * {@link String#compareTo(String)}: each UTF-16 char is written as UTF-8
+ * would write the code point of the same value, so surrogates are encoded
+ * one at a time rather than as a pair. Elements returned are decoded again,
+ * and so are equal to, but not the same objects as, those added.
+ * The log string counts the nodes visited by each operation in place of
+ * comparisons.
+ *
+ * @author Samuel Marsh
+ */
+public class RadixDictionary implements Dictionary<String> {
+
+    /**
+     * The log message format, matching {@link RedBlackTree}.
+     */
+    private static final String LOG_MSG =
+            "Operation %s completed using %d comparison(s).%n";
+
+    /**
+     * The tree holding the encoded strings.
+     */
+    private final RadixTree tree;
+
+    /**
+     * Keeps a log of all operations made on the dictionary.
+     */
+    private final StringBuilder log;
+
+    /**
+     * Whether operations are appended to the log.
+     */
+    private boolean logging;
+
+    /**
+     * Creates a new, empty dictionary.
+     */
+    public RadixDictionary() {
+        tree = new RadixTree();
+        log = new StringBuilder();
+        logging = true;
+    }
+
+    /**
+     * Gives the number of elements in the dictionary. Runs in constant time.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        reset();
+        log("isEmpty()");
+        return tree.isEmpty();
+    }
+
+    /**
+     * Checks if the dictionary contains the item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(String item) {
+        reset();
+        boolean ret = item != null && tree.contains(encode(item));
+        log("contains(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(String item) {
+        reset();
+        boolean ret = item != null && tree.lower(encode(item)) != null;
+        log("hasPredecessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(String item) {
+        reset();
+        boolean ret = item != null && tree.higher(encode(item)) != null;
+        log("hasSuccessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than the item.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public String predecessor(String item) throws NoSuchElementException {
+        reset();
+        byte[] ret = item == null ? null : tree.lower(encode(item));
+        log("predecessor(%s)", item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        return decode(ret);
+    }
+
+    /**
+     * Finds the least element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public String successor(String item) throws NoSuchElementException {
+        reset();
+        byte[] ret = item == null ? null : tree.higher(encode(item));
+        log("successor(%s)", item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        return decode(ret);
+    }
+
+    /**
+     * Finds the least element in the dictionary.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public String min() throws NoSuchElementException {
+        if (tree.isEmpty())
+            throw new NoSuchElementException("dictionary is empty");
+        reset();
+        String ret = decode(tree.min());
+        log("min()");
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element in the dictionary.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public String max() throws NoSuchElementException {
+        if (tree.isEmpty())
+            throw new NoSuchElementException("dictionary is empty");
+        reset();
+        String ret = decode(tree.max());
+        log("max()");
+        return ret;
+    }
+
+    /**
+     * Adds the item to the dictionary.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(String item) {
+        reset();
+        boolean ret = item != null && tree.add(encode(item));
+        log("add(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Deletes the item from the dictionary.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(String item) {
+        reset();
+        boolean ret = item != null && tree.delete(encode(item));
+        log("delete(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements in ascending order.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<String> iterator() {
+        reset();
+        Iterator<String> ret = new Decoder(tree.iterator());
+        log("iterator()");
+        return ret;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start, in ascending order.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<String> iterator(String start)
+            throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        reset();
+        Iterator<String> ret = new Decoder(tree.iterator(encode(start)));
+        log("iterator(%s)", start);
+        return ret;
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements that start with the
+     * given string, in ascending order. Finding the first such element
+     * visits at most one node per byte of the prefix, and the iteration
+     * stops at the first element without it.
+     *
+     * @param prefix the string every element returned starts with
+     * @return an iterator over the elements with that prefix
+     * @throws IllegalArgumentException if the argument is null
+     */
+    public Iterator<String> prefix(String prefix)
+            throws IllegalArgumentException {
+        if (prefix == null)
+            throw new IllegalArgumentException("argument is null");
+        reset();
+        Iterator<String> ret = new Decoder(tree.prefix(encode(prefix)));
+        log("prefix(%s)", prefix);
+        return ret;
+    }
+
+    /**
+     * Sets whether operations are appended to the log string, as
+     * {@link RedBlackTree#setLogging(boolean)} does. Logging is on by
+     * default.
+     *
+     * @param enabled whether to log operations
+     */
+    public void setLogging(boolean enabled) {
+        logging = enabled;
+    }
+
+    /**
+     * Provides a string listing all operations made on the dictionary since
+     * the log string was last retrieved, and clears it for next time.
+     *
+     * @return the log string
+     */
+    @Override
+    public String getLogString() {
+        String logString = log.toString();
+        log.setLength(0);
+        return logString;
+    }
+
+    /**
+     * Provides a vertical string representation of the radix tree, with its
+     * keys in their encoded form.
+     *
+     * @return a string with the structure of the dictionary
+     */
+    @Override
+    public String toString() {
+        return tree.toString();
+    }
+
+    /**
+     * Encodes a string so that the unsigned order of the bytes is the order
+     * of {@link String#compareTo(String)}. Each char takes one byte if it is
+     * ASCII, two if it is below 0x800, and three otherwise - a prefix-free
+     * code that preserves the order of the chars.
+     *
+     * @param string the string to encode
+     * @return the encoded string
+     */
+    static byte[] encode(String string) {
+        int length = string.length(), bytes = length;
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c >= 0x80) bytes += c >= 0x800 ? 2 : 1;
+        }
+        byte[] ret = new byte[bytes];
+        int j = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                ret[j++] = (byte) c;
+            } else if (c < 0x800) {
+                ret[j++] = (byte) (0xC0 | c >> 6);
+                ret[j++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                ret[j++] = (byte) (0xE0 | c >> 12);
+                ret[j++] = (byte) (0x80 | c >> 6 & 0x3F);
+                ret[j++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Decodes a string encoded by {@link #encode(String)}.
+     *
+     * @param bytes the encoded string
+     * @return the string
+     */
+    static String decode(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        int length = 0;
+        for (int i = 0; i < bytes.length; ) {
+            int b = bytes[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[length++] = (char) ((b & 0x1F) << 6
+                        | bytes[i++] & 0x3F);
+            } else {
+                chars[length++] = (char) ((b & 0x0F) << 12
+                        | (bytes[i++] & 0x3F) << 6
+                        | bytes[i++] & 0x3F);
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Resets the count of nodes visited, at the start of each operation.
+     */
+    private void reset() {
+        tree.steps = 0;
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed.
+     *
+     * @param method the operation
+     */
+    private void log(String method) {
+        if (logging) log.append(String.format(LOG_MSG, method, tree.steps));
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed, only
+     * formatting the description if logging is on.
+     *
+     * @param format the format of the operation's description
+     * @param argument the argument of the operation
+     */
+    private void log(String format, Object argument) {
+        if (logging) log(String.format(format, argument));
+    }
+
+    /**
+     * Wraps an iterator over the encoded keys, decoding each one.
+     */
+    private static final class Decoder implements Iterator<String> {
+
+        /**
+         * The iterator over the encoded keys.
+         */
+        private final Iterator<byte[]> iterator;
+
+        /**
+         * Creates a new decoding iterator.
+         *
+         * @param iterator the iterator over the encoded keys
+         */
+        private Decoder(Iterator<byte[]> iterator) {
+            this.iterator = iterator;
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         *
+         * @return true if and only if the iterator has more elements
+         */
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        /**
+         * Provides the next element, decoded.
+         *
+         * @return the next element in the dictionary
+         */
+        @Override
+        public String next() {
+            return decode(iterator.next());
+        }
+
+        /**
+         * Deletes the element most recently returned.
+         */
+        @Override
+        public void remove() {
+            iterator.remove();
+        }
+
+    }
+
+}
@@ -0,0 +1,1313 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An ordered set of byte strings held in an adaptive radix tree, as
+ * described by Leis, Kemper and Neumann. Keys are ordered by comparing
+ * their bytes as unsigned values, with a proper prefix of a key ordered
+ * before it.
+ * Each inner node branches on one byte of the key and only takes as much
+ * space as its number of children needs: up to 4 or 16 children are kept
+ * in sorted arrays, up to 48 through a 256 entry index, and beyond that in
+ * a direct array of 256. Inner nodes with a single child are merged into
+ * it, storing the bytes skipped over as a prefix (path compression), and a
+ * key is stored in a leaf as soon as no other key shares its path (lazy
+ * expansion). A lookup therefore visits at most one node per byte of the
+ * key, however many keys are held. Leaves only hold the bytes of their key
+ * below their position, so the bytes that keys have in common are stored
+ * once, in the nodes above them, and keys returned are put back together
+ * from the path to their leaf.
+ * A key that is a proper prefix of other keys is held as the end leaf of
+ * the inner node where its path stops.
+ * Iterators are fail-fast, and support removal.
+ *
+ * @author Samuel Marsh
+ */
+public class RadixTree implements Iterable<byte[]> {
+
+    /**
+     * The bytes left of a key held as an end leaf.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * The root of the tree, which is never replaced by a leaf or merged into
+     * its child, and so always has an empty prefix.
+     */
+    private Inner root;
+
+    /**
+     * The number of keys in the tree.
+     */
+    private int size;
+
+    /**
+     * The number of modifications made to the tree, to make the iterators
+     * fail-fast.
+     */
+    private int operations;
+
+    /**
+     * The number of nodes visited since this was last reset - read by
+     * {@link RadixDictionary} for its log string.
+     */
+    int steps;
+
+    /**
+     * Creates a new, empty tree.
+     */
+    public RadixTree() {
+        root = new Sorted(4);
+        root.prefix = EMPTY;
+    }
+
+    /**
+     * Gives the number of keys in the tree. Runs in constant time.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the tree is empty.
+     *
+     * @return true if and only if the tree holds no keys
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Checks if the tree contains a key. Visits at most one node per byte of
+     * the key.
+     *
+     * @param key the key to be checked
+     * @return true if and only if the key is not null and is in the tree
+     */
+    public boolean contains(byte[] key) {
+        if (key == null) return false;
+        Node node = root;
+        int depth = 0;
+        while (node instanceof Inner) {
+            ++steps;
+            Inner inner = (Inner) node;
+            int length = inner.prefix.length;
+            if (key.length - depth < length
+                    || Arrays.mismatch(inner.prefix, 0, length,
+                    key, depth, depth + length) >= 0)
+                return false;
+            depth += length;
+            if (depth == key.length) return inner.end != null;
+            node = inner.child(key[depth++] & 0xFF);
+        }
+        if (node == null) return false;
+        ++steps;
+        return ((Leaf) node).matches(key, depth);
+    }
+
+    /**
+     * Adds a key to the tree. The tree keeps its own copy of the bytes.
+     *
+     * @param key the key to be added
+     * @return true if and only if the key is not null and was not already
+     * in the tree
+     */
+    public boolean add(byte[] key) {
+        if (key == null) return false;
+        int before = size;
+        root = insert(root, key, 0);
+        if (size == before) return false;
+        ++operations;
+        return true;
+    }
+
+    /**
+     * Deletes a key from the tree.
+     *
+     * @param key the key to be deleted
+     * @return true if and only if the key was in the tree and has now been
+     * removed
+     */
+    public boolean delete(byte[] key) {
+        if (key == null) return false;
+        int before = size;
+        root = (Inner) remove(root, key, 0);
+        if (size == before) return false;
+        ++operations;
+        return true;
+    }
+
+    /**
+     * Finds the least key in the tree.
+     *
+     * @return a copy of the least key
+     * @throws NoSuchElementException if the tree is empty
+     */
+    public byte[] min() throws NoSuchElementException {
+        if (size == 0) throw new NoSuchElementException("tree is empty");
+        return first(root, EMPTY, 0);
+    }
+
+    /**
+     * Finds the greatest key in the tree.
+     *
+     * @return a copy of the greatest key
+     * @throws NoSuchElementException if the tree is empty
+     */
+    public byte[] max() throws NoSuchElementException {
+        if (size == 0) throw new NoSuchElementException("tree is empty");
+        return last(root, EMPTY, 0);
+    }
+
+    /**
+     * Finds the greatest key less than the given key.
+     *
+     * @param key the key to be checked
+     * @return a copy of the greatest lesser key, or null if there is none or
+     * the argument is null
+     */
+    public byte[] lower(byte[] key) {
+        return key == null ? null : lower(root, key, 0);
+    }
+
+    /**
+     * Finds the least key greater than the given key.
+     *
+     * @param key the key to be checked
+     * @return a copy of the least greater key, or null if there is none or
+     * the argument is null
+     */
+    public byte[] higher(byte[] key) {
+        return key == null ? null : higher(root, key, 0);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the keys in ascending order.
+     *
+     * @return an iterator over every key in the tree
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new RadixIterator(EMPTY, null);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the keys greater than or equal to
+     * the given key, in ascending order.
+     *
+     * @param start the key at which to start iterating
+     * @return an iterator over the keys from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    public Iterator<byte[]> iterator(byte[] start)
+            throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        return new RadixIterator(start, null);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the keys that start with the given
+     * bytes, in ascending order. Finding the first such key visits at most
+     * one node per byte of the prefix.
+     *
+     * @param prefix the bytes every key returned starts with
+     * @return an iterator over the keys with that prefix
+     * @throws IllegalArgumentException if the argument is null
+     */
+    public Iterator<byte[]> prefix(byte[] prefix)
+            throws IllegalArgumentException {
+        if (prefix == null)
+            throw new IllegalArgumentException("argument is null");
+        return new RadixIterator(prefix, prefix.clone());
+    }
+
+    /**
+     * Provides a vertical string representation of the tree, showing the
+     * prefix of each inner node and the remaining bytes of each leaf. Bytes
+     * outside printable ASCII are shown in hexadecimal.
+     *
+     * @return a string with the structure of the tree
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        toString(root, -1, "", sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Inserts a key into a subtree, growing, splitting or replacing nodes as
+     * needed, and increases the size if it was not already there.
+     *
+     * @param node the root of the subtree
+     * @param key the key to insert
+     * @param depth the number of bytes of the key consumed above the node
+     * @return the node to put in place of the subtree root
+     */
+    private Inner insert(Inner node, byte[] key, int depth) {
+        ++steps;
+        byte[] prefix = node.prefix;
+        int common = common(prefix, 0, key, depth);
+        if (common < prefix.length) {
+            //the key leaves the compressed path part way, so a new node
+            //branches there between the key and the old node
+            Inner split = new Sorted(4);
+            split.prefix = Arrays.copyOf(prefix, common);
+            node.prefix = Arrays.copyOfRange(prefix, common + 1,
+                    prefix.length);
+            split.insert(prefix[common] & 0xFF, node);
+            attach(split, key, depth + common);
+            ++size;
+            return split;
+        }
+        depth += prefix.length;
+        if (depth == key.length) {
+            if (node.end == null) {
+                node.end = new Leaf(EMPTY);
+                ++size;
+            }
+            return node;
+        }
+        int b = key[depth] & 0xFF;
+        Node child = node.child(b);
+        if (child == null) {
+            if (node.full()) node = node.grow();
+            attach(node, key, depth);
+            ++size;
+        } else if (child instanceof Leaf) {
+            ++steps;
+            Leaf leaf = (Leaf) child;
+            if (leaf.matches(key, depth + 1)) return node;
+            //both keys share the path to here and possibly further - a new
+            //node takes the shared part as its prefix and holds both
+            byte[] rest = leaf.rest;
+            int shared = common(rest, 0, key, depth + 1);
+            Inner split = new Sorted(4);
+            split.prefix = Arrays.copyOf(rest, shared);
+            attach(split, rest, shared);
+            attach(split, key, depth + 1 + shared);
+            node.replace(b, split);
+            ++size;
+        } else {
+            Inner inner = (Inner) child;
+            Inner replacement = insert(inner, key, depth + 1);
+            if (replacement != inner) node.replace(b, replacement);
+        }
+        return node;
+    }
+
+    /**
+     * Puts a new leaf for the rest of a key into an inner node, as its end
+     * leaf if the key stops at the node or else as the child for its next
+     * byte.
+     *
+     * @param node the inner node, which has room for the leaf
+     * @param key the key, or the bytes left of it
+     * @param depth the number of bytes of the key consumed by the node's
+     *              path and prefix
+     */
+    private static void attach(Inner node, byte[] key, int depth) {
+        if (key.length == depth) node.end = new Leaf(EMPTY);
+        else node.insert(key[depth] & 0xFF, new Leaf(
+                Arrays.copyOfRange(key, depth + 1, key.length)));
+    }
+
+    /**
+     * Removes a key from a subtree, shrinking or merging nodes left with too
+     * few children, and decreases the size if the key was there.
+     *
+     * @param node the root of the subtree
+     * @param key the key to remove
+     * @param depth the number of bytes of the key consumed above the node
+     * @return the node to put in place of the subtree root, which may be a
+     * leaf or null if the subtree is now empty
+     */
+    private Node remove(Inner node, byte[] key, int depth) {
+        ++steps;
+        byte[] prefix = node.prefix;
+        if (common(prefix, 0, key, depth) < prefix.length) return node;
+        depth += prefix.length;
+        if (depth == key.length) {
+            if (node.end == null) return node;
+            node.end = null;
+            --size;
+        } else {
+            int b = key[depth] & 0xFF;
+            Node child = node.child(b);
+            if (child == null) return node;
+            if (child instanceof Leaf) {
+                ++steps;
+                if (!((Leaf) child).matches(key, depth + 1)) return node;
+                node.remove(b);
+                --size;
+            } else {
+                int before = size;
+                Node replacement = remove((Inner) child, key, depth + 1);
+                if (size == before) return node;
+                if (replacement == null) node.remove(b);
+                else if (replacement != child) node.replace(b, replacement);
+            }
+        }
+        return node == root ? node.shrink() : collapse(node);
+    }
+
+    /**
+     * Simplifies an inner node after a key has been removed below it:
+     * replacing it by its end leaf or only child if it has nothing else, or
+     * moving it to a smaller node type. A leaf or inner node moved up takes
+     * the bytes between the two positions onto the front of its own.
+     *
+     * @param node the inner node, which is not the root
+     * @return the node to put in its place, or null if it is now empty
+     */
+    private static Node collapse(Inner node) {
+        if (node.children == 0) {
+            if (node.end != null) node.end.rest = node.prefix;
+            return node.end;
+        }
+        if (node.children > 1 || node.end != null) return node.shrink();
+        int b = node.higher(-1);
+        Node child = node.child(b);
+        if (child instanceof Inner) {
+            Inner inner = (Inner) child;
+            inner.prefix = join(node.prefix, b, inner.prefix);
+        } else {
+            Leaf leaf = (Leaf) child;
+            leaf.rest = join(node.prefix, b, leaf.rest);
+        }
+        return child;
+    }
+
+    /**
+     * Finds the greatest key in a subtree that is less than the given key.
+     *
+     * @param node the root of the subtree
+     * @param key the key to be checked
+     * @param depth the number of bytes of the key consumed above the node,
+     *              which are the bytes of the path to it
+     * @return the greatest lesser key, or null if there is none
+     */
+    private byte[] lower(Inner node, byte[] key, int depth) {
+        ++steps;
+        byte[] prefix = node.prefix;
+        int common = common(prefix, 0, key, depth);
+        if (common < prefix.length) {
+            //the whole subtree is on one side of the key
+            boolean less = depth + common < key.length
+                    && (prefix[common] & 0xFF) < (key[depth + common] & 0xFF);
+            return less ? last(node, key, depth) : null;
+        }
+        int at = depth + prefix.length;
+        if (at == key.length) return null;
+        int b = key[at] & 0xFF;
+        Node child = node.child(b);
+        if (child instanceof Leaf) {
+            ++steps;
+            byte[] rest = ((Leaf) child).rest;
+            if (Arrays.compareUnsigned(rest, 0, rest.length,
+                    key, at + 1, key.length) < 0)
+                return join(key, at + 1, EMPTY, -1, rest);
+        } else if (child != null) {
+            byte[] ret = lower((Inner) child, key, at + 1);
+            if (ret != null) return ret;
+        }
+        int before = node.lower(b);
+        if (before >= 0)
+            return last(node.child(before), join(key, at, EMPTY, before,
+                    EMPTY), at + 1);
+        return node.end == null ? null : Arrays.copyOf(key, at);
+    }
+
+    /**
+     * Finds the least key in a subtree that is greater than the given key.
+     *
+     * @param node the root of the subtree
+     * @param key the key to be checked
+     * @param depth the number of bytes of the key consumed above the node,
+     *              which are the bytes of the path to it
+     * @return the least greater key, or null if there is none
+     */
+    private byte[] higher(Inner node, byte[] key, int depth) {
+        ++steps;
+        byte[] prefix = node.prefix;
+        int common = common(prefix, 0, key, depth);
+        if (common < prefix.length) {
+            //the whole subtree is on one side of the key
+            boolean greater = depth + common == key.length
+                    || (prefix[common] & 0xFF) > (key[depth + common] & 0xFF);
+            return greater ? first(node, key, depth) : null;
+        }
+        int at = depth + prefix.length;
+        int b = -1;
+        if (at < key.length) {
+            b = key[at] & 0xFF;
+            Node child = node.child(b);
+            if (child instanceof Leaf) {
+                ++steps;
+                byte[] rest = ((Leaf) child).rest;
+                if (Arrays.compareUnsigned(rest, 0, rest.length,
+                        key, at + 1, key.length) > 0)
+                    return join(key, at + 1, EMPTY, -1, rest);
+            } else if (child != null) {
+                byte[] ret = higher((Inner) child, key, at + 1);
+                if (ret != null) return ret;
+            }
+        }
+        int after = node.higher(b);
+        if (after == 256) return null;
+        return first(node.child(after), join(key, at, EMPTY, after, EMPTY),
+                at + 1);
+    }
+
+    /**
+     * Finds the least key in a subtree.
+     *
+     * @param node the root of the subtree, which is not empty
+     * @param path the bytes of the path to the subtree, and possibly more
+     * @param depth the number of bytes of the path
+     * @return the least key
+     */
+    private byte[] first(Node node, byte[] path, int depth) {
+        Key key = new Key(path, depth);
+        while (node instanceof Inner) {
+            ++steps;
+            Inner inner = (Inner) node;
+            key.append(inner.prefix, -1);
+            if (inner.end != null) return key.finish(EMPTY);
+            int b = inner.higher(-1);
+            key.append(EMPTY, b);
+            node = inner.child(b);
+        }
+        return key.finish(((Leaf) node).rest);
+    }
+
+    /**
+     * Finds the greatest key in a subtree.
+     *
+     * @param node the root of the subtree, which is not empty
+     * @param path the bytes of the path to the subtree, and possibly more
+     * @param depth the number of bytes of the path
+     * @return the greatest key
+     */
+    private byte[] last(Node node, byte[] path, int depth) {
+        Key key = new Key(path, depth);
+        while (node instanceof Inner) {
+            ++steps;
+            Inner inner = (Inner) node;
+            key.append(inner.prefix, -1);
+            int b = inner.lower(256);
+            if (b < 0) return key.finish(EMPTY);
+            key.append(EMPTY, b);
+            node = inner.child(b);
+        }
+        return key.finish(((Leaf) node).rest);
+    }
+
+    /**
+     * Joins a byte array, a byte and another byte array.
+     *
+     * @param a the first array
+     * @param b the byte, as an unsigned value
+     * @param c the last array
+     * @return the bytes of a, then b, then c
+     */
+    private static byte[] join(byte[] a, int b, byte[] c) {
+        return join(a, a.length, EMPTY, b, c);
+    }
+
+    /**
+     * Joins the start of a byte array, another byte array, possibly a byte,
+     * and a last byte array.
+     *
+     * @param a the first array
+     * @param length the number of bytes to take from the first array
+     * @param b the second array
+     * @param c the byte, as an unsigned value, or -1 for none
+     * @param d the last array
+     * @return the bytes joined together
+     */
+    private static byte[] join(byte[] a, int length, byte[] b, int c,
+                               byte[] d) {
+        int n = length + b.length + (c < 0 ? 0 : 1);
+        byte[] ret = Arrays.copyOf(a, n + d.length);
+        System.arraycopy(b, 0, ret, length, b.length);
+        if (c >= 0) ret[n - 1] = (byte) c;
+        System.arraycopy(d, 0, ret, n, d.length);
+        return ret;
+    }
+
+    /**
+     * Finds the length of the longest common run of two byte arrays from
+     * the given offsets.
+     *
+     * @param a the first array
+     * @param from the offset into the first array
+     * @param b the second array
+     * @param offset the offset into the second array
+     * @return the number of equal bytes before the first difference, or
+     * before either array ends
+     */
+    private static int common(byte[] a, int from, byte[] b, int offset) {
+        int length = Math.min(a.length - from, b.length - offset);
+        if (length <= 0) return 0;
+        int i = Arrays.mismatch(a, from, from + length,
+                b, offset, offset + length);
+        return i < 0 ? length : i;
+    }
+
+    /**
+     * Internal recursive method for filling in the {@link StringBuilder},
+     * as used in {@link #toString()}.
+     *
+     * @param node the root of the subtree
+     * @param b the byte the subtree is reached by, or -1 for the root or an
+     *          end leaf
+     * @param prefix the characters before this node's line
+     * @param sb the string representation so far
+     * @param tail whether this node is the last sibling
+     */
+    private static void toString(Node node, int b, String prefix,
+                                 StringBuilder sb, boolean tail) {
+        sb.append(prefix).append(tail ? "└── " : "├── ");
+        if (b >= 0) escape(new byte[]{(byte) b}, sb.append('['))
+                .append("] ");
+        if (node instanceof Leaf) {
+            escape(((Leaf) node).rest, sb.append('.')).append('\n');
+            return;
+        }
+        Inner inner = (Inner) node;
+        escape(inner.prefix, sb.append('"')).append("\"\n");
+        String next = prefix + (tail ? "    " : "│   ");
+        int last = inner.lower(256);
+        if (inner.end != null) toString(inner.end, -1, next, sb, last < 0);
+        for (int c = inner.higher(-1); c < 256; c = inner.higher(c))
+            toString(inner.child(c), c, next, sb, c == last);
+    }
+
+    /**
+     * Appends bytes to a string, as characters if they are printable ASCII
+     * and in hexadecimal otherwise.
+     *
+     * @param bytes the bytes to append
+     * @param sb the string to append to
+     * @return the string appended to
+     */
+    private static StringBuilder escape(byte[] bytes, StringBuilder sb) {
+        for (byte c : bytes) {
+            if (c >= 0x20 && c < 0x7F) sb.append((char) c);
+            else sb.append(String.format("\\x%02x", c & 0xFF));
+        }
+        return sb;
+    }
+
+    /**
+     * A key being put back together from the path to its leaf.
+     */
+    private static final class Key {
+
+        /**
+         * The bytes so far, with room for more.
+         */
+        private byte[] bytes;
+
+        /**
+         * The number of bytes so far.
+         */
+        private int length;
+
+        /**
+         * Starts a key with the bytes of a path.
+         *
+         * @param path the bytes of the path, and possibly more
+         * @param length the number of bytes of the path
+         */
+        private Key(byte[] path, int length) {
+            bytes = Arrays.copyOf(path, Math.max(16, length * 2));
+            this.length = length;
+        }
+
+        /**
+         * Adds bytes, and possibly one more byte, to the key.
+         *
+         * @param more the bytes to add
+         * @param b a byte to add after them, as an unsigned value, or -1
+         */
+        private void append(byte[] more, int b) {
+            int n = length + more.length + 1;
+            if (n > bytes.length) bytes = Arrays.copyOf(bytes, n * 2);
+            System.arraycopy(more, 0, bytes, length, more.length);
+            length += more.length;
+            if (b >= 0) bytes[length++] = (byte) b;
+        }
+
+        /**
+         * Gives the whole key, ending with the bytes held by its leaf.
+         *
+         * @param rest the bytes held by the leaf
+         * @return the key
+         */
+        private byte[] finish(byte[] rest) {
+            return join(bytes, length, EMPTY, -1, rest);
+        }
+
+    }
+
+    /**
+     * A node of the tree - either a leaf, or an inner node.
+     */
+    private abstract static class Node {
+    }
+
+    /**
+     * A leaf, holding the bytes of its key after those of the path to it.
+     */
+    private static final class Leaf extends Node {
+
+        /**
+         * The bytes of the key after the path to this leaf - empty for an
+         * end leaf. Grows at the front if the leaf moves up the tree.
+         */
+        private byte[] rest;
+
+        /**
+         * Creates a new leaf.
+         *
+         * @param rest the bytes of the key after the path to the leaf
+         */
+        private Leaf(byte[] rest) {
+            this.rest = rest;
+        }
+
+        /**
+         * Checks if the leaf holds a key.
+         *
+         * @param key the key to check
+         * @param depth the length of the path to this leaf
+         * @return true if and only if the bytes of the key after the path
+         * are the bytes held by this leaf
+         */
+        private boolean matches(byte[] key, int depth) {
+            return Arrays.equals(rest, 0, rest.length,
+                    key, depth, key.length);
+        }
+
+    }
+
+
+    /**
+     * An inner node, which branches on one byte of the key after its
+     * prefix. Subclasses differ in how the children are found from the
+     * byte.
+     */
+    private abstract static class Inner extends Node {
+
+        /**
+         * The bytes of the key between the byte leading to this node and the
+         * byte this node branches on, shared by every key below it.
+         */
+        private byte[] prefix;
+
+        /**
+         * The leaf for the key that ends at this node, if any.
+         */
+        private Leaf end;
+
+        /**
+         * The number of children.
+         */
+        int children;
+
+        /**
+         * Finds the child for a byte.
+         *
+         * @param b the byte, as an unsigned value
+         * @return the child, or null if there is none
+         */
+        abstract Node child(int b);
+
+        /**
+         * Checks if another child can be inserted without growing.
+         *
+         * @return true if and only if the node is at capacity
+         */
+        abstract boolean full();
+
+        /**
+         * Adds a child for a byte with no child, to a node that is not full.
+         *
+         * @param b the byte, as an unsigned value
+         * @param child the child
+         */
+        abstract void insert(int b, Node child);
+
+        /**
+         * Replaces the child for a byte.
+         *
+         * @param b the byte, as an unsigned value, which has a child
+         * @param child the new child
+         */
+        abstract void replace(int b, Node child);
+
+        /**
+         * Removes the child for a byte.
+         *
+         * @param b the byte, as an unsigned value, which has a child
+         */
+        abstract void remove(int b);
+
+        /**
+         * Finds the least byte greater than the given one with a child.
+         *
+         * @param b the byte, as an unsigned value, or -1
+         * @return the least greater byte with a child, or 256 if there is
+         * none
+         */
+        abstract int higher(int b);
+
+        /**
+         * Finds the greatest byte less than the given one with a child.
+         *
+         * @param b the byte, as an unsigned value, or 256
+         * @return the greatest lesser byte with a child, or -1 if there is
+         * none
+         */
+        abstract int lower(int b);
+
+        /**
+         * Gives a copy of this node of the next larger type.
+         *
+         * @return a larger node with the same contents
+         */
+        abstract Inner grow();
+
+        /**
+         * Gives a copy of this node of the next smaller type, if it has few
+         * enough children. The thresholds are below those for growing, so
+         * that a node does not flip between types.
+         *
+         * @return a smaller node with the same contents, or this node
+         */
+        abstract Inner shrink();
+
+        /**
+         * Copies the contents of this node into another.
+         *
+         * @param node an empty node with room for every child
+         * @return the node copied into
+         */
+        Inner copyTo(Inner node) {
+            node.prefix = prefix;
+            node.end = end;
+            for (int b = higher(-1); b < 256; b = higher(b))
+                node.insert(b, child(b));
+            return node;
+        }
+
+    }
+
+    /**
+     * An inner node of up to 4 or 16 children, with their bytes in a sorted
+     * array searched in order.
+     */
+    private static final class Sorted extends Inner {
+
+        /**
+         * The bytes with children, in ascending unsigned order.
+         */
+        private final byte[] keys;
+
+        /**
+         * The children, in the same order as their bytes.
+         */
+        private final Node[] nodes;
+
+        /**
+         * Creates a new, empty node.
+         *
+         * @param capacity the number of children it can hold - 4 or 16
+         */
+        private Sorted(int capacity) {
+            keys = new byte[capacity];
+            nodes = new Node[capacity];
+        }
+
+        /**
+         * Finds the position of the least byte at or above the given one.
+         *
+         * @param b the byte, as an unsigned value
+         * @return the index of the first byte not less than b
+         */
+        private int position(int b) {
+            int i = 0;
+            while (i < children && (keys[i] & 0xFF) < b) ++i;
+            return i;
+        }
+
+        @Override
+        Node child(int b) {
+            int i = position(b);
+            return i < children && (keys[i] & 0xFF) == b ? nodes[i] : null;
+        }
+
+        @Override
+        boolean full() {
+            return children == keys.length;
+        }
+
+        @Override
+        void insert(int b, Node child) {
+            int i = position(b);
+            System.arraycopy(keys, i, keys, i + 1, children - i);
+            System.arraycopy(nodes, i, nodes, i + 1, children - i);
+            keys[i] = (byte) b;
+            nodes[i] = child;
+            ++children;
+        }
+
+        @Override
+        void replace(int b, Node child) {
+            nodes[position(b)] = child;
+        }
+
+        @Override
+        void remove(int b) {
+            int i = position(b);
+            System.arraycopy(keys, i + 1, keys, i, children - i - 1);
+            System.arraycopy(nodes, i + 1, nodes, i, children - i - 1);
+            nodes[--children] = null;
+        }
+
+        @Override
+        int higher(int b) {
+            int i = position(b + 1);
+            return i < children ? keys[i] & 0xFF : 256;
+        }
+
+        @Override
+        int lower(int b) {
+            int i = position(b);
+            return i > 0 ? keys[i - 1] & 0xFF : -1;
+        }
+
+        @Override
+        Inner grow() {
+            return copyTo(keys.length == 4 ? new Sorted(16) : new Indexed());
+        }
+
+        @Override
+        Inner shrink() {
+            return keys.length == 16 && children <= 3
+                    ? copyTo(new Sorted(4)) : this;
+        }
+
+    }
+
+    /**
+     * An inner node of up to 48 children, found through an index of every
+     * byte value.
+     */
+    private static final class Indexed extends Inner {
+
+        /**
+         * One more than the slot of the child for each byte, or zero if it
+         * has no child.
+         */
+        private final byte[] index = new byte[256];
+
+        /**
+         * The children, in no particular order.
+         */
+        private final Node[] nodes = new Node[48];
+
+        @Override
+        Node child(int b) {
+            int slot = index[b];
+            return slot == 0 ? null : nodes[slot - 1];
+        }
+
+        @Override
+        boolean full() {
+            return children == nodes.length;
+        }
+
+        @Override
+        void insert(int b, Node child) {
+            int slot = 0;
+            while (nodes[slot] != null) ++slot;
+            nodes[slot] = child;
+            index[b] = (byte) (slot + 1);
+            ++children;
+        }
+
+        @Override
+        void replace(int b, Node child) {
+            nodes[index[b] - 1] = child;
+        }
+
+        @Override
+        void remove(int b) {
+            nodes[index[b] - 1] = null;
+            index[b] = 0;
+            --children;
+        }
+
+        @Override
+        int higher(int b) {
+            for (int c = b + 1; c < 256; ++c) if (index[c] != 0) return c;
+            return 256;
+        }
+
+        @Override
+        int lower(int b) {
+            for (int c = b - 1; c >= 0; --c) if (index[c] != 0) return c;
+            return -1;
+        }
+
+        @Override
+        Inner grow() {
+            return copyTo(new Direct());
+        }
+
+        @Override
+        Inner shrink() {
+            return children <= 12 ? copyTo(new Sorted(16)) : this;
+        }
+
+    }
+
+    /**
+     * An inner node with a child slot for every byte value.
+     */
+    private static final class Direct extends Inner {
+
+        /**
+         * The child for each byte, or null if there is none.
+         */
+        private final Node[] nodes = new Node[256];
+
+        @Override
+        Node child(int b) {
+            return nodes[b];
+        }
+
+        @Override
+        boolean full() {
+            return false;
+        }
+
+        @Override
+        void insert(int b, Node child) {
+            nodes[b] = child;
+            ++children;
+        }
+
+        @Override
+        void replace(int b, Node child) {
+            nodes[b] = child;
+        }
+
+        @Override
+        void remove(int b) {
+            nodes[b] = null;
+            --children;
+        }
+
+        @Override
+        int higher(int b) {
+            for (int c = b + 1; c < 256; ++c) if (nodes[c] != null) return c;
+            return 256;
+        }
+
+        @Override
+        int lower(int b) {
+            for (int c = b - 1; c >= 0; --c) if (nodes[c] != null) return c;
+            return -1;
+        }
+
+        @Override
+        Inner grow() {
+            throw new IllegalStateException("node cannot grow");
+        }
+
+        @Override
+        Inner shrink() {
+            return children <= 37 ? copyTo(new Indexed()) : this;
+        }
+
+    }
+
+
+    /**
+     * An in-order iterator over the keys, holding the path of inner nodes
+     * from the root to the last key returned, with the last byte visited at
+     * each, and the bytes of the path. If any modifications are made to the
+     * tree other than through {@link #remove()}, the iterator is invalidated
+     * and any further calls cause a {@link ConcurrentModificationException}.
+     */
+    private class RadixIterator implements Iterator<byte[]> {
+
+        /**
+         * The position at a node before its end leaf is visited.
+         */
+        private static final int BEFORE_END = -2;
+
+        /**
+         * The inner nodes on the path, the root first.
+         */
+        private Inner[] path;
+
+        /**
+         * The last byte visited at each node on the path, -1 if only the end
+         * leaf has been, or {@link #BEFORE_END}.
+         */
+        private int[] visited;
+
+        /**
+         * The number of bytes of the path above each node on it.
+         */
+        private int[] offsets;
+
+        /**
+         * The number of nodes on the path.
+         */
+        private int depth;
+
+        /**
+         * The bytes of the path, through the prefix of the deepest node and
+         * the byte last visited there.
+         */
+        private byte[] bytes;
+
+        /**
+         * The bytes every key returned must start with, or null if the
+         * iterator runs to the end of the tree.
+         */
+        private final byte[] prefix;
+
+        /**
+         * The key that will be returned next, or null if there are no more.
+         */
+        private byte[] next;
+
+        /**
+         * The key most recently returned, or null if there is none to
+         * remove.
+         */
+        private byte[] last;
+
+        /**
+         * The number of modifications made on the tree when this iterator
+         * was created or last removed a key.
+         */
+        private int ops;
+
+        /**
+         * Creates a new iterator starting at the least key greater than or
+         * equal to the given one.
+         *
+         * @param start the key to start at
+         * @param prefix the bytes every key returned must start with, or
+         *               null
+         */
+        private RadixIterator(byte[] start, byte[] prefix) {
+            this.prefix = prefix;
+            path = new Inner[8];
+            visited = new int[8];
+            offsets = new int[8];
+            bytes = new byte[Math.max(16, start.length + 1)];
+            seek(start);
+        }
+
+        /**
+         * Positions the iterator so that the next key returned is the least
+         * key greater than or equal to the given one. The path followed is
+         * the path of the key itself, so its bytes are the key's.
+         *
+         * @param key the key to be checked
+         */
+        private void seek(byte[] key) {
+            depth = 0;
+            Inner node = root;
+            int offset = 0;
+            while (true) {
+                byte[] part = node.prefix;
+                int common = common(part, 0, key, offset);
+                if (common < part.length) {
+                    //the whole subtree is on one side of the key - visited
+                    //from its start if greater, or else skipped
+                    if (offset + common == key.length
+                            || (part[common] & 0xFF)
+                            > (key[offset + common] & 0xFF))
+                        push(node, offset, BEFORE_END);
+                    break;
+                }
+                if (offset + part.length == key.length) {
+                    push(node, offset, BEFORE_END);
+                    break;
+                }
+                int at = offset + part.length;
+                int b = key[at] & 0xFF;
+                Node child = node.child(b);
+                if (child instanceof Inner) {
+                    push(node, offset, b);
+                    bytes[at] = (byte) b;
+                    node = (Inner) child;
+                    offset = at + 1;
+                    continue;
+                }
+                //the end leaf is a proper prefix of the key, so is skipped,
+                //and so is the child for b unless it is not less than the key
+                boolean skip = child == null;
+                if (!skip) {
+                    byte[] rest = ((Leaf) child).rest;
+                    skip = Arrays.compareUnsigned(rest, 0, rest.length,
+                            key, at + 1, key.length) < 0;
+                }
+                push(node, offset, skip ? b : b - 1);
+                break;
+            }
+            next = advance();
+            ops = operations;
+        }
+
+        /**
+         * Adds a node to the end of the path, writing its prefix into the
+         * bytes of the path.
+         *
+         * @param node the node
+         * @param offset the number of bytes of the path above the node
+         * @param position the last byte visited at the node
+         */
+        private void push(Inner node, int offset, int position) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                visited = Arrays.copyOf(visited, depth * 2);
+                offsets = Arrays.copyOf(offsets, depth * 2);
+            }
+            path[depth] = node;
+            visited[depth] = position;
+            offsets[depth++] = offset;
+            int end = offset + node.prefix.length + 1;
+            if (end > bytes.length) bytes = Arrays.copyOf(bytes, end * 2);
+            System.arraycopy(node.prefix, 0, bytes, offset,
+                    node.prefix.length);
+        }
+
+        /**
+         * Moves along the path to the next leaf in order.
+         *
+         * @return the key of the next leaf, or null if there are no more, or
+         * the next does not start with the prefix
+         */
+        private byte[] advance() {
+            while (depth > 0) {
+                Inner node = path[depth - 1];
+                int position = visited[depth - 1];
+                int at = offsets[depth - 1] + node.prefix.length;
+                if (position == BEFORE_END) {
+                    visited[depth - 1] = -1;
+                    if (node.end != null) return within(at, EMPTY);
+                    continue;
+                }
+                int b = node.higher(position);
+                if (b == 256) {
+                    --depth;
+                    continue;
+                }
+                visited[depth - 1] = b;
+                bytes[at] = (byte) b;
+                Node child = node.child(b);
+                if (child instanceof Leaf)
+                    return within(at + 1, ((Leaf) child).rest);
+                push((Inner) child, at + 1, BEFORE_END);
+            }
+            return null;
+        }
+
+        /**
+         * Puts together the key of a leaf and checks it against the prefix
+         * of the iterator, ending the iteration if it does not match -
+         * every later key is then greater than those with the prefix.
+         *
+         * @param length the number of bytes of the path to the leaf
+         * @param rest the bytes held by the leaf
+         * @return the key, or null if it does not start with the prefix
+         */
+        private byte[] within(int length, byte[] rest) {
+            byte[] key = join(bytes, length, EMPTY, -1, rest);
+            if (prefix == null) return key;
+            if (key.length >= prefix.length && Arrays.equals(
+                    key, 0, prefix.length, prefix, 0, prefix.length))
+                return key;
+            depth = 0;
+            return null;
+        }
+
+        /**
+         * Checks if the iterator has any more keys.
+         *
+         * @return true if and only if the iterator has more keys
+         * @throws ConcurrentModificationException if the tree has been
+         * modified other than through this iterator
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            if (ops != operations)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified");
+            return next != null;
+        }
+
+        /**
+         * Provides the next key in ascending order.
+         *
+         * @return the next key
+         * @throws NoSuchElementException if there are no more keys
+         * @throws ConcurrentModificationException if the tree has been
+         * modified other than through this iterator
+         */
+        @Override
+        public byte[] next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            last = next;
+            next = advance();
+            return last.clone();
+        }
+
+        /**
+         * Deletes the key most recently returned by {@link #next()}, and
+         * finds the position of the next key again in the changed tree.
+         *
+         * @throws IllegalStateException if {@link #next()} has not been
+         * called since the last call to this method
+         * @throws ConcurrentModificationException if the tree has been
+         * modified other than through this iterator
+         */
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            if (ops != operations)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified");
+            if (last == null)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() " +
+                                "method has already been called after the " +
+                                "last call to the next() method"
+                );
+            delete(last);
+            if (next != null) seek(next);
+            else ops = operations;
+            last = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * A red-black tree that allows equal elements to be added more than once.
+ * Rather than holding a node per occurrence, each node holds a count of the
+ * occurrences of its element, so memory use grows with the number of
+ * distinct elements and adding or deleting a repeated element takes a
+ * single descent of the tree.
+ * This differs from the {@link Dictionary} contract in the following ways:
+ * {@link #add(Comparable)} succeeds for any non-null element, even one
+ * already present; {@link #delete(Comparable)} removes a single occurrence;
+ * and iterators return each element as many times as it occurs.
+ * {@link #count(Comparable)} gives the occurrences of an element, and
+ * {@link #size()} the total occurrences of all elements. Any
+ * {@link Augmentation} summarises the distinct elements only.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the multiset holds
+ */
+public class RedBlackMultiset<E extends Comparable<E>>
+        extends RedBlackTree<E> {
+
+    /**
+     * Creates a new, empty multiset.
+     */
+    public RedBlackMultiset() {
+        this(null);
+    }
+
+    /**
+     * Creates a new, empty multiset which maintains an aggregate of the
+     * distinct elements in each subtree using the given augmentation.
+     *
+     * @param augmentation the augmentation to maintain, or null for none
+     */
+    public RedBlackMultiset(Augmentation<? super E, ?> augmentation) {
+        super(augmentation, true);
+    }
+
+}
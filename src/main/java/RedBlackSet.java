@@ -0,0 +1,763 @@
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A {@link NavigableSet} view of a {@link RedBlackTree}, for passing the
+ * tree to code written against the collections framework. Changes made
+ * through the view are made to the tree, and changes made to the tree are
+ * seen by the view. Elements are ordered naturally, and null elements are
+ * not permitted.
+ * Besides the single-element operations, which map directly onto the
+ * tree's, the bulk operations avoid the element-at-a-time loops inherited
+ * from {@link AbstractSet}: {@link #addAll(Collection)} merges a
+ * {@link SortedSet} in natural order into the tree in a single pass using
+ * {@link RedBlackTree#addSorted(Iterable)}, and {@link #removeIf(Predicate)},
+ * {@link #retainAll(Collection)} and {@link #clear()} delete in a single
+ * pass with one rebuild using {@link RedBlackTree#removeIf(Predicate)}.
+ * {@link #size()} takes constant time for a view of the whole tree.
+ * The range views returned by {@link #subSet(Object, boolean, Object,
+ * boolean)}, {@link #headSet(Object, boolean)} and
+ * {@link #tailSet(Object, boolean)} are live, and take constant time to
+ * create; each of their operations costs what it would on the whole tree,
+ * except {@link #size()}, which counts their elements, and the bulk
+ * deletions, which delete one element at a time so as not to visit the
+ * rest of the tree. Iterators are fail-fast.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements held by the set
+ */
+public class RedBlackSet<E extends Comparable<E>> extends AbstractSet<E>
+        implements NavigableSet<E> {
+
+    /**
+     * The tree holding the elements.
+     */
+    private final RedBlackTree<E> tree;
+
+    /**
+     * The least element of the range of the view, or null if the range is
+     * unbounded below.
+     */
+    private final E lo;
+
+    /**
+     * Whether {@link #lo} itself is within the range.
+     */
+    private final boolean loInclusive;
+
+    /**
+     * The greatest element of the range of the view, or null if the range
+     * is unbounded above.
+     */
+    private final E hi;
+
+    /**
+     * Whether {@link #hi} itself is within the range.
+     */
+    private final boolean hiInclusive;
+
+    /**
+     * Whether the view is in descending order. The bounds are always given
+     * in ascending order.
+     */
+    private final boolean descending;
+
+    /**
+     * Creates a new, empty set backed by a new tree.
+     */
+    public RedBlackSet() {
+        this(new RedBlackTree<E>());
+    }
+
+    /**
+     * Creates a view of a tree as a set.
+     *
+     * @param tree the tree
+     * @throws IllegalArgumentException if the tree is a multiset, which
+     * could hold an element more than once
+     */
+    public RedBlackSet(RedBlackTree<E> tree) throws IllegalArgumentException {
+        this(tree, null, false, null, false, false);
+        if (tree instanceof RedBlackMultiset)
+            throw new IllegalArgumentException("tree is a multiset");
+    }
+
+    /**
+     * Creates a view of a range of a tree.
+     *
+     * @param tree the tree
+     * @param lo the least element of the range, or null for none
+     * @param loInclusive whether lo is within the range
+     * @param hi the greatest element of the range, or null for none
+     * @param hiInclusive whether hi is within the range
+     * @param descending whether the view is in descending order
+     */
+    private RedBlackSet(RedBlackTree<E> tree, E lo, boolean loInclusive,
+                        E hi, boolean hiInclusive, boolean descending) {
+        this.tree = tree;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+
+    /**
+     * Gives the number of elements in the view. Runs in constant time for a
+     * view of the whole tree, and in time linear in the number of elements
+     * for a range.
+     *
+     * @return the number of elements
+     */
+    @Override
+    public int size() {
+        if (whole()) return tree.size();
+        int ret = 0;
+        for (Iterator<E> it = iterator(); it.hasNext(); it.next()) ++ret;
+        return ret;
+    }
+
+    /**
+     * Checks if the view is empty.
+     *
+     * @return true if and only if the view holds no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        return whole() ? tree.size() == 0 : lowest() == null;
+    }
+
+    /**
+     * Checks if the view holds an element.
+     *
+     * @param o the element
+     * @return true if and only if the element is within the range and held
+     * by the tree
+     * @throws ClassCastException if the element cannot be compared with the
+     * elements of the set
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) throws ClassCastException {
+        E item = (E) o;
+        return item != null && inRange(item) && tree.contains(item);
+    }
+
+    /**
+     * Adds an element to the tree.
+     *
+     * @param item the element
+     * @return true if and only if the element was not already held
+     * @throws NullPointerException if the element is null
+     * @throws IllegalArgumentException if the element is outside the range
+     * of the view
+     */
+    @Override
+    public boolean add(E item)
+            throws NullPointerException, IllegalArgumentException {
+        if (item == null)
+            throw new NullPointerException("element is null");
+        if (!inRange(item))
+            throw new IllegalArgumentException("element out of range");
+        return tree.add(item);
+    }
+
+    /**
+     * Deletes an element from the tree, if it is within the range.
+     *
+     * @param o the element
+     * @return true if and only if the element was held and was deleted
+     * @throws ClassCastException if the element cannot be compared with the
+     * elements of the set
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object o) throws ClassCastException {
+        E item = (E) o;
+        return item != null && inRange(item) && tree.delete(item);
+    }
+
+    /**
+     * Adds every element of a collection. A {@link SortedSet} in natural
+     * order is merged into the tree in a single pass when it is large
+     * enough for that to pay, as {@link RedBlackTree#addSorted(Iterable)}
+     * describes; other collections are added one element at a time.
+     *
+     * @param c the elements to add
+     * @return true if and only if any element was added
+     * @throws NullPointerException if any element is null
+     * @throws IllegalArgumentException if any element is outside the range
+     * of the view
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> c)
+            throws NullPointerException, IllegalArgumentException {
+        if (!(c instanceof SortedSet)
+                || ((SortedSet<? extends E>) c).comparator() != null)
+            return super.addAll(c);
+        SortedSet<? extends E> sorted = (SortedSet<? extends E>) c;
+        if (sorted.isEmpty()) return false;
+        //the run is in order, so checking its ends checks all of it
+        if (!inRange(sorted.first()) || !inRange(sorted.last()))
+            throw new IllegalArgumentException("element out of range");
+        return tree.addSorted(sorted) > 0;
+    }
+
+    /**
+     * Deletes every element of the view that satisfies a condition. For a
+     * view of the whole tree this takes a single pass and one rebuild.
+     *
+     * @param filter tests whether an element should be deleted
+     * @return true if and only if any element was deleted
+     * @throws NullPointerException if the filter is null
+     */
+    @Override
+    public boolean removeIf(Predicate<? super E> filter)
+            throws NullPointerException {
+        if (!whole()) return super.removeIf(filter);
+        return tree.removeIf(filter) > 0;
+    }
+
+    /**
+     * Deletes every element of the view not held by a collection, as
+     * {@link #removeIf(Predicate)} does.
+     *
+     * @param c the elements to keep
+     * @return true if and only if any element was deleted
+     * @throws NullPointerException if the collection is null
+     */
+    @Override
+    public boolean retainAll(Collection<?> c) throws NullPointerException {
+        if (c == null)
+            throw new NullPointerException("collection is null");
+        return removeIf(item -> !c.contains(item));
+    }
+
+    /**
+     * Deletes every element of the view, as {@link #removeIf(Predicate)}
+     * does.
+     */
+    @Override
+    public void clear() {
+        removeIf(item -> true);
+    }
+
+    /**
+     * Performs an action for each element of the view, in order. For a view
+     * of the whole tree in ascending order, this uses
+     * {@link RedBlackTree#forEach(Consumer)}.
+     *
+     * @param action the action to perform for each element
+     * @throws NullPointerException if the action is null
+     * @throws ConcurrentModificationException if the action modified the
+     * tree
+     */
+    @Override
+    public void forEach(Consumer<? super E> action)
+            throws NullPointerException, ConcurrentModificationException {
+        if (whole() && !descending) tree.forEach(action);
+        else super.forEach(action);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements of the view, in
+     * order.
+     *
+     * @return an iterator over the elements of the view
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new RangeIterator();
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements of the view, in
+     * reverse order.
+     *
+     * @return an iterator over the elements of the view in reverse order
+     */
+    @Override
+    public Iterator<E> descendingIterator() {
+        return descendingSet().iterator();
+    }
+
+    /**
+     * Gives a view of the same elements in reverse order.
+     *
+     * @return a reverse-order view
+     */
+    @Override
+    public NavigableSet<E> descendingSet() {
+        return new RedBlackSet<E>(tree, lo, loInclusive, hi, hiInclusive,
+                !descending);
+    }
+
+    /**
+     * Gives the order of the view: null for ascending, as the elements are
+     * ordered naturally, or the reverse of their natural order for
+     * descending.
+     *
+     * @return the comparator of the view, or null
+     */
+    @Override
+    public Comparator<? super E> comparator() {
+        return descending ? Collections.<E>reverseOrder() : null;
+    }
+
+    /**
+     * Finds the first element of the view.
+     *
+     * @return the first element
+     * @throws NoSuchElementException if the view is empty
+     */
+    @Override
+    public E first() throws NoSuchElementException {
+        return exists(descending ? highest() : lowest());
+    }
+
+    /**
+     * Finds the last element of the view.
+     *
+     * @return the last element
+     * @throws NoSuchElementException if the view is empty
+     */
+    @Override
+    public E last() throws NoSuchElementException {
+        return exists(descending ? lowest() : highest());
+    }
+
+    /**
+     * Finds the element of the view just before an element, in the order
+     * of the view.
+     *
+     * @param item the element
+     * @return the element before it, or null if there is none
+     */
+    @Override
+    public E lower(E item) {
+        return descending ? higherOf(item) : lowerOf(item);
+    }
+
+    /**
+     * Finds the element of the view equal to or just before an element, in
+     * the order of the view.
+     *
+     * @param item the element
+     * @return the element equal to or before it, or null if there is none
+     */
+    @Override
+    public E floor(E item) {
+        return descending ? ceilingOf(item) : floorOf(item);
+    }
+
+    /**
+     * Finds the element of the view equal to or just after an element, in
+     * the order of the view.
+     *
+     * @param item the element
+     * @return the element equal to or after it, or null if there is none
+     */
+    @Override
+    public E ceiling(E item) {
+        return descending ? floorOf(item) : ceilingOf(item);
+    }
+
+    /**
+     * Finds the element of the view just after an element, in the order of
+     * the view.
+     *
+     * @param item the element
+     * @return the element after it, or null if there is none
+     */
+    @Override
+    public E higher(E item) {
+        return descending ? lowerOf(item) : higherOf(item);
+    }
+
+    /**
+     * Deletes the first element of the view.
+     *
+     * @return the element deleted, or null if the view is empty
+     */
+    @Override
+    public E pollFirst() {
+        E ret = descending ? highest() : lowest();
+        if (ret != null) tree.delete(ret);
+        return ret;
+    }
+
+    /**
+     * Deletes the last element of the view.
+     *
+     * @return the element deleted, or null if the view is empty
+     */
+    @Override
+    public E pollLast() {
+        E ret = descending ? lowest() : highest();
+        if (ret != null) tree.delete(ret);
+        return ret;
+    }
+
+    /**
+     * Gives a live view of the elements between two bounds, in the order of
+     * this view.
+     *
+     * @param fromElement the first bound, in the order of the view
+     * @param fromInclusive whether the first bound is in the range
+     * @param toElement the last bound, in the order of the view
+     * @param toInclusive whether the last bound is in the range
+     * @return the view of the range
+     * @throws NullPointerException if either bound is null
+     * @throws IllegalArgumentException if the bounds are out of order, or
+     * outside the range of this view
+     */
+    @Override
+    public NavigableSet<E> subSet(E fromElement, boolean fromInclusive,
+                                  E toElement, boolean toInclusive)
+            throws NullPointerException, IllegalArgumentException {
+        if (fromElement == null || toElement == null)
+            throw new NullPointerException("bound is null");
+        checkBound(fromElement, fromInclusive);
+        checkBound(toElement, toInclusive);
+        if (descending)
+            return range(toElement, toInclusive, fromElement, fromInclusive);
+        return range(fromElement, fromInclusive, toElement, toInclusive);
+    }
+
+    /**
+     * Gives a live view of the elements before a bound, in the order of
+     * this view.
+     *
+     * @param toElement the bound
+     * @param inclusive whether the bound is in the range
+     * @return the view of the range
+     * @throws NullPointerException if the bound is null
+     * @throws IllegalArgumentException if the bound is outside the range of
+     * this view
+     */
+    @Override
+    public NavigableSet<E> headSet(E toElement, boolean inclusive)
+            throws NullPointerException, IllegalArgumentException {
+        if (toElement == null)
+            throw new NullPointerException("bound is null");
+        checkBound(toElement, inclusive);
+        if (descending) return range(toElement, inclusive, hi, hiInclusive);
+        return range(lo, loInclusive, toElement, inclusive);
+    }
+
+    /**
+     * Gives a live view of the elements after a bound, in the order of this
+     * view.
+     *
+     * @param fromElement the bound
+     * @param inclusive whether the bound is in the range
+     * @return the view of the range
+     * @throws NullPointerException if the bound is null
+     * @throws IllegalArgumentException if the bound is outside the range of
+     * this view
+     */
+    @Override
+    public NavigableSet<E> tailSet(E fromElement, boolean inclusive)
+            throws NullPointerException, IllegalArgumentException {
+        if (fromElement == null)
+            throw new NullPointerException("bound is null");
+        checkBound(fromElement, inclusive);
+        if (descending) return range(lo, loInclusive, fromElement, inclusive);
+        return range(fromElement, inclusive, hi, hiInclusive);
+    }
+
+    /**
+     * Gives a live view of the elements from one bound (inclusive) to
+     * another (exclusive), as {@link #subSet(Object, boolean, Object,
+     * boolean)} does.
+     *
+     * @param fromElement the first bound
+     * @param toElement the last bound
+     * @return the view of the range
+     */
+    @Override
+    public SortedSet<E> subSet(E fromElement, E toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    /**
+     * Gives a live view of the elements before a bound (exclusive), as
+     * {@link #headSet(Object, boolean)} does.
+     *
+     * @param toElement the bound
+     * @return the view of the range
+     */
+    @Override
+    public SortedSet<E> headSet(E toElement) {
+        return headSet(toElement, false);
+    }
+
+    /**
+     * Gives a live view of the elements from a bound (inclusive), as
+     * {@link #tailSet(Object, boolean)} does.
+     *
+     * @param fromElement the bound
+     * @return the view of the range
+     */
+    @Override
+    public SortedSet<E> tailSet(E fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    /**
+     * Creates a view of a narrower range of the tree, in the same order as
+     * this view.
+     *
+     * @param from the least element of the range, or null for none
+     * @param fromInclusive whether from is within the range
+     * @param to the greatest element of the range, or null for none
+     * @param toInclusive whether to is within the range
+     * @return the view of the range
+     * @throws IllegalArgumentException if from is greater than to
+     */
+    private NavigableSet<E> range(E from, boolean fromInclusive, E to,
+                                  boolean toInclusive)
+            throws IllegalArgumentException {
+        if (from != null && to != null && from.compareTo(to) > 0)
+            throw new IllegalArgumentException("bounds are out of order");
+        return new RedBlackSet<E>(tree, from, fromInclusive, to, toInclusive,
+                descending);
+    }
+
+    /**
+     * Checks that a bound of a narrower range lies within this view's
+     * range: an exclusive bound may also equal an exclusive bound of this
+     * view.
+     *
+     * @param bound the bound
+     * @param inclusive whether the bound is inclusive
+     * @throws IllegalArgumentException if the bound lies outside the range
+     */
+    private void checkBound(E bound, boolean inclusive)
+            throws IllegalArgumentException {
+        int cmp = lo == null ? 1 : bound.compareTo(lo);
+        if (cmp < 0 || cmp == 0 && !loInclusive && inclusive)
+            throw new IllegalArgumentException("bound out of range");
+        cmp = hi == null ? -1 : bound.compareTo(hi);
+        if (cmp > 0 || cmp == 0 && !hiInclusive && inclusive)
+            throw new IllegalArgumentException("bound out of range");
+    }
+
+    /**
+     * Checks whether the view covers the whole tree.
+     *
+     * @return true if and only if the range is unbounded
+     */
+    private boolean whole() {
+        return lo == null && hi == null;
+    }
+
+    /**
+     * Checks whether an element is below the range.
+     *
+     * @param item the element
+     * @return true if and only if it is less than every element in range
+     */
+    private boolean tooLow(E item) {
+        if (lo == null) return false;
+        int cmp = item.compareTo(lo);
+        return cmp < 0 || cmp == 0 && !loInclusive;
+    }
+
+    /**
+     * Checks whether an element is above the range.
+     *
+     * @param item the element
+     * @return true if and only if it is greater than every element in range
+     */
+    private boolean tooHigh(E item) {
+        if (hi == null) return false;
+        int cmp = item.compareTo(hi);
+        return cmp > 0 || cmp == 0 && !hiInclusive;
+    }
+
+    /**
+     * Checks whether an element is within the range.
+     *
+     * @param item the element
+     * @return true if and only if it is neither too low nor too high
+     */
+    private boolean inRange(E item) {
+        return !tooLow(item) && !tooHigh(item);
+    }
+
+    /**
+     * Keeps an element of the tree only if it is within the range.
+     *
+     * @param item the element, or null
+     * @return the element if it is within the range, otherwise null
+     */
+    private E bounded(E item) {
+        return item != null && inRange(item) ? item : null;
+    }
+
+    /**
+     * Gives an element that must exist.
+     *
+     * @param item the element, or null
+     * @return the element
+     * @throws NoSuchElementException if it is null
+     */
+    private E exists(E item) throws NoSuchElementException {
+        if (item == null)
+            throw new NoSuchElementException("set is empty");
+        return item;
+    }
+
+    /**
+     * Finds the least element in the range.
+     *
+     * @return the least element, or null if the range is empty
+     */
+    private E lowest() {
+        if (lo == null) return bounded(tree.peekMin());
+        return bounded(loInclusive ? tree.ceiling(lo) : tree.higher(lo));
+    }
+
+    /**
+     * Finds the greatest element in the range.
+     *
+     * @return the greatest element, or null if the range is empty
+     */
+    private E highest() {
+        if (hi == null) return bounded(tree.peekMax());
+        return bounded(hiInclusive ? tree.floor(hi) : tree.lower(hi));
+    }
+
+    /**
+     * Finds the least element in the range greater than or equal to an
+     * element.
+     *
+     * @param item the element
+     * @return the ceiling of the element in the range, or null if none
+     */
+    private E ceilingOf(E item) {
+        return tooLow(item) ? lowest() : bounded(tree.ceiling(item));
+    }
+
+    /**
+     * Finds the least element in the range greater than an element.
+     *
+     * @param item the element
+     * @return the element above it in the range, or null if none
+     */
+    private E higherOf(E item) {
+        return tooLow(item) ? lowest() : bounded(tree.higher(item));
+    }
+
+    /**
+     * Finds the greatest element in the range less than or equal to an
+     * element.
+     *
+     * @param item the element
+     * @return the floor of the element in the range, or null if none
+     */
+    private E floorOf(E item) {
+        return tooHigh(item) ? highest() : bounded(tree.floor(item));
+    }
+
+    /**
+     * Finds the greatest element in the range less than an element.
+     *
+     * @param item the element
+     * @return the element below it in the range, or null if none
+     */
+    private E lowerOf(E item) {
+        return tooHigh(item) ? highest() : bounded(tree.lower(item));
+    }
+
+    /**
+     * Iterates over the range in the order of the view, using an iterator
+     * over the tree from the first element of the range. The iterator is
+     * kept one element ahead, to see where the range ends; so removal
+     * deletes the element from the tree directly, and then restarts the
+     * tree's iterator from the element after it.
+     */
+    private final class RangeIterator implements Iterator<E> {
+
+        /**
+         * The iterator over the tree.
+         */
+        private Iterator<E> iterator;
+
+        /**
+         * The element to return next, or null if there are no more.
+         */
+        private E next;
+
+        /**
+         * The element last returned, or null if there is none to remove.
+         */
+        private E last;
+
+        /**
+         * Creates a new iterator from the first element of the range.
+         */
+        private RangeIterator() {
+            E first = descending ? highest() : lowest();
+            if (first != null) start(first);
+        }
+
+        /**
+         * Starts iterating over the tree from an element, which must be
+         * held by it.
+         *
+         * @param from the element
+         */
+        private void start(E from) {
+            iterator = descending ? tree.descendingIterator(from)
+                    : tree.iterator(from);
+            next = iterator.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (next == null)
+                throw new NoSuchElementException("no further elements");
+            last = next;
+            next = iterator.hasNext() ? iterator.next() : null;
+            if (next != null && (descending ? tooLow(next) : tooHigh(next)))
+                next = null;
+            return last;
+        }
+
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            if (last == null)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() "
+                                + "method has already been called after "
+                                + "the last call to the next() method");
+            //fails if the tree was modified by anything else
+            iterator.hasNext();
+            tree.delete(last);
+            last = null;
+            if (next != null) start(next);
+        }
+
+    }
+
+}
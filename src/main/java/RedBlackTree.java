@@ -1,6 +1,14 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleBiFunction;
 
 /**
  * A dictionary implementation using a type of balanced binary search tree
@@ -8,7 +16,8 @@ import java.util.NoSuchElementException;
  * The dictionary is sorted using the natural ordering of the elements. No
  * duplicate values are allowed - if two elements are considered the same by
  * their natural ordering ({@link Comparable#compareTo(Object)} returns 0)
- * then they are considered equal by the dictionary.
+ * then they are considered equal by the dictionary. See
+ * {@link RedBlackMultiset} for a variant that allows repeated elements.
  * The implementation provides guaranteed logarithmic time for adding,
  * deleting and searching.
  * This implementation is primarily adapted from the book 'Introduction to
@@ -27,6 +36,12 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
     private static final String LOG_MSG =
             "Operation %s completed using %d comparison(s).%n";
 
+    /**
+     * The default number of searches interleaved by
+     * {@link #containsInterleaved(Comparable[], boolean[])}.
+     */
+    private static final int DEFAULT_INTERLEAVE = 16;
+
     /**
      * Empty sentinel node used to make code cleaner - more convenient than
      * using null pointers as using this empty node means null checking isn't
@@ -75,15 +90,131 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
      */
     private int operations;
 
+    /**
+     * The augmentation used to maintain an aggregate for every subtree, or
+     * null if the tree is not augmented. See {@link Augmentation}.
+     */
+    private final Augmentation<E, Object> augmentation;
+
+    /**
+     * Whether equal elements may be added more than once. If so, each node
+     * holds a count of the occurrences of its element, rather than there
+     * being a node per occurrence. See {@link RedBlackMultiset}.
+     */
+    private final boolean multiset;
+
+    /**
+     * The total number of occurrences of elements in the dictionary. Unless
+     * the dictionary is a multiset, this is just the number of nodes.
+     */
+    private int size;
+
+    /**
+     * The statistics kept for the tree, or null if it has not been
+     * instrumented. See {@link #instrument()}.
+     */
+    private TreeStatistics statistics;
+
+    /**
+     * Whether operations are appended to the log string. See
+     * {@link #setLogging(boolean)}.
+     */
+    private boolean logging;
+
+    /**
+     * Nodes unlinked from the tree and kept for reuse, linked through their
+     * right child, or null if there are none. See {@link #recycle(int)}.
+     */
+    private Node free;
+
+    /**
+     * The number of nodes kept for reuse, and the most that may be kept.
+     */
+    private int freeCount, freeCapacity;
+
+    /**
+     * A node reused to hold the element being searched for, while nodes are
+     * being recycled, or null otherwise. Its element is cleared as each
+     * operation completes.
+     */
+    private Node probe;
+
+    /**
+     * The fraction of nodes that may be tombstones before the tree is
+     * compacted, or zero if deletions unlink nodes straight away. See
+     * {@link #setLazyDeletion(double)}.
+     */
+    private double compactAt;
+
+    /**
+     * The number of nodes that are tombstones - deleted elements whose
+     * nodes are still linked into the tree, with a count of zero.
+     */
+    private int tombstones;
+
+    /**
+     * The changes made by the running {@link #transaction(Consumer)}, in
+     * order, or null if no transaction is running.
+     */
+    private List<Change> undo;
+
+    /**
+     * Whether a transaction is being rolled back, so that the changes made
+     * to undo it are not themselves recorded.
+     */
+    private boolean undoing;
+
+    /**
+     * The actions put off by {@link #defer(Consumer, Object)} until the
+     * running transaction commits, or null if there are none.
+     */
+    private List<Runnable> deferred;
+
+    /**
+     * Publishes the changes made to the dictionary, or null if nothing has
+     * asked for them.
+     */
+    private MutationFeed<E> feed;
+
     /**
      * Creates a new red-black tree, representing a dictionary, with no
      * elements.
      */
     public RedBlackTree() {
+        this(null);
+    }
+
+    /**
+     * Creates a new red-black tree, representing a dictionary, with no
+     * elements, which maintains an aggregate of each subtree using the given
+     * augmentation. The aggregate of a range of elements can then be found
+     * in logarithmic time using {@link #aggregate(Comparable, Comparable)}.
+     *
+     * @param augmentation the augmentation to maintain, or null for none
+     */
+    @SuppressWarnings("unchecked")
+    public RedBlackTree(Augmentation<? super E, ?> augmentation) {
+        this(augmentation, false);
+    }
+
+    /**
+     * Creates a new red-black tree with no elements, optionally allowing
+     * equal elements to be added more than once. Used by
+     * {@link RedBlackMultiset}.
+     *
+     * @param augmentation the augmentation to maintain, or null for none
+     * @param multiset whether equal elements may be added more than once
+     */
+    @SuppressWarnings("unchecked")
+    RedBlackTree(Augmentation<? super E, ?> augmentation, boolean multiset) {
+        this.augmentation = (Augmentation<E, Object>) augmentation;
+        this.multiset = multiset;
         nil = new Node(null);
+        if (augmentation != null) nil.aggregate = augmentation.identity();
         log = new StringBuilder();
         root = min = max = nil;
-        comparisons = operations = 0;
+        comparisons = operations = size = 0;
+        logging = true;
     }
 
     /**
@@ -107,8 +238,136 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
     public boolean contains(E item) {
         reset();
         boolean ret = item != null
-                && locate(new Node(item)) != nil;
-        log(String.format("contains(%s)", item));
+                && locate(probe(item)).count > 0;
+        log("contains(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks which of a batch of items are contained in the dictionary. The
+     * probes must be in ascending order, which allows each search to resume
+     * from the path of the previous search rather than from the root, so
+     * that probes close together in the ordering share most of their work.
+     *
+     * @param sortedProbes the items to be checked, in ascending order - any
+     *                     null items are not contained
+     * @param out set so that out[i] is true if and only if the dictionary
+     *            contains sortedProbes[i]
+     * @throws IllegalArgumentException if either argument is null, out is
+     * shorter than the probes, or the probes are not in ascending order
+     */
+    public void containsBatch(E[] sortedProbes, boolean[] out)
+            throws IllegalArgumentException {
+        if (out == null || sortedProbes != null
+                && out.length < sortedProbes.length)
+            throw new IllegalArgumentException("output is too short");
+        reset();
+        Node[] found = locate(sortedProbes);
+        for (int i = 0; i < found.length; ++i) out[i] = found[i].count > 0;
+        log("containsBatch(%d)", found.length);
+    }
+
+    /**
+     * Checks which of a batch of items, in any order, are contained in the
+     * dictionary, interleaving several searches at once. See
+     * {@link #containsInterleaved(Comparable[], boolean[], int)}.
+     *
+     * @param probes the items to be checked - any null items are not
+     *               contained
+     * @param out set so that out[i] is true if and only if the dictionary
+     *            contains probes[i]
+     * @throws IllegalArgumentException if either argument is null, or out is
+     * shorter than the probes
+     */
+    public void containsInterleaved(E[] probes, boolean[] out)
+            throws IllegalArgumentException {
+        containsInterleaved(probes, out, DEFAULT_INTERLEAVE);
+    }
+
+    /**
+     * Checks which of a batch of items, in any order, are contained in the
+     * dictionary. Rather than completing each search before starting the
+     * next, a group of independent searches each move down one level in
+     * turn, and a finished search is immediately replaced by the next
+     * probe. On a tree much larger than the processor caches, each step of
+     * a single search waits on a cache miss for the next node, whereas the
+     * steps of the interleaved searches do not depend on each other, so
+     * their cache misses can overlap.
+     *
+     * @param probes the items to be checked - any null items are not
+     *               contained
+     * @param out set so that out[i] is true if and only if the dictionary
+     *            contains probes[i]
+     * @param width the number of searches to interleave, typically between
+     *              8 and 32
+     * @throws IllegalArgumentException if either array is null, out is
+     * shorter than the probes, or the width is not positive
+     */
+    public void containsInterleaved(E[] probes, boolean[] out, int width)
+            throws IllegalArgumentException {
+        if (probes == null || out == null)
+            throw new IllegalArgumentException("argument is null");
+        if (out.length < probes.length)
+            throw new IllegalArgumentException("output is too short");
+        if (width <= 0)
+            throw new IllegalArgumentException("width is not positive");
+        reset();
+        //the probe being searched for by each slot, and the node it has
+        //reached - a slot is idle once its node is nil
+        int[] probe = new int[width];
+        Node[] at = nodeArray(width);
+        int next = 0, active = 0;
+        for (int s = 0; s < width; ++s) {
+            at[s] = nil;
+            while (next < probes.length && at[s] == nil) {
+                out[next] = false;
+                probe[s] = next;
+                if (probes[next++] != null) at[s] = root;
+            }
+            if (at[s] != nil) ++active;
+        }
+        while (active > 0) {
+            for (int s = 0; s < width; ++s) {
+                Node curr = at[s];
+                if (curr == nil) continue;
+                int cmp = compare(probes[probe[s]], curr);
+                if (cmp == 0) {
+                    out[probe[s]] = curr.count > 0;
+                    curr = nil;
+                } else {
+                    curr = cmp < 0 ? curr.left : curr.right;
+                }
+                //refill the slot with the next probe once its search ends
+                while (curr == nil && next < probes.length) {
+                    out[next] = false;
+                    probe[s] = next;
+                    if (probes[next++] != null) curr = root;
+                }
+                if (curr == nil) --active;
+                at[s] = curr;
+            }
+        }
+        log("containsInterleaved(%d)", probes.length);
+    }
+
+    /**
+     * Finds the elements of the dictionary equal to each of a batch of
+     * items. As with {@link #containsBatch(Comparable[], boolean[])}, the
+     * probes must be in ascending order so that the searches can share work.
+     *
+     * @param sortedProbes the items to be found, in ascending order
+     * @return the elements of the dictionary equal to a probe, in ascending
+     * order
+     * @throws IllegalArgumentException if the argument is null, or the
+     * probes are not in ascending order
+     */
+    public List<E> lookupBatch(E[] sortedProbes)
+            throws IllegalArgumentException {
+        reset();
+        Node[] found = locate(sortedProbes);
+        List<E> ret = new ArrayList<E>();
+        for (Node node : found) if (node.count > 0) ret.add(node.key);
+        log("lookupBatch(%d)", found.length);
         return ret;
     }
 
@@ -127,8 +386,8 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
         reset();
         boolean ret = item != null
                 && !isEmpty(true)
-                && compare(new Node(item), min) > 0;
-        log(String.format("hasPredecessor(%s)", item));
+                && compare(probe(item), min) > 0;
+        log("hasPredecessor(%s)", item);
         return ret;
     }
 
@@ -147,8 +406,8 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
         reset();
         boolean ret = item != null
                 && !isEmpty(true)
-                && compare(new Node(item), max) < 0;
-        log(String.format("hasSuccessor(%s)", item));
+                && compare(probe(item), max) < 0;
+        log("hasSuccessor(%s)", item);
         return ret;
     }
 
@@ -163,14 +422,25 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
      */
     @Override
     public E predecessor(E item) throws NoSuchElementException {
-        if (!hasPredecessor(item)) {
+        reset();
+        boolean has = item != null
+                && !isEmpty(true)
+                && compare(probe(item), min) > 0;
+        //the check is logged on a line of its own, as
+        //hasPredecessor(Comparable) would be, but is part of this operation
+        //in the statistics
+        line("hasPredecessor(%s)", item, null, 1);
+        int checked = comparisons;
+        if (!has) {
+            complete("predecessor(%s)", checked);
             throw new NoSuchElementException(
                     "argument does not have a predecessor"
             );
         }
-        reset();
-        Node pre = below(new Node(item));
-        log(String.format("predecessor(%s)", item));
+        comparisons = 0;
+        Node pre = previous(below(probe(item)));
+        line("predecessor(%s)", item, null, 1);
+        complete("predecessor(%s)", checked + comparisons);
         return pre.key;
     }
 
@@ -185,14 +455,23 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
      */
     @Override
     public E successor(E item) throws NoSuchElementException {
-        if (!hasSuccessor(item)) {
+        reset();
+        boolean has = item != null
+                && !isEmpty(true)
+                && compare(probe(item), max) < 0;
+        //logged and counted as in predecessor(Comparable)
+        line("hasSuccessor(%s)", item, null, 1);
+        int checked = comparisons;
+        if (!has) {
+            complete("successor(%s)", checked);
             throw new NoSuchElementException(
                     "argument does not have a successor"
             );
         }
-        reset();
-        Node suc = above(new Node(item));
-        log(String.format("successor(%s)", item));
+        comparisons = 0;
+        Node suc = next(above(probe(item)));
+        line("successor(%s)", item, null, 1);
+        complete("successor(%s)", checked + comparisons);
         return suc.key;
     }
 
@@ -237,10 +516,21 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
     @Override
     public boolean add(E item) {
         reset();
-        Node node = new Node(item);
-        boolean tmp = node.key != null && insert(node);
-        if (tmp) ++operations; //we successfully added an item
-        log(String.format("add(%s)", item));
+        if (!admit(item)) {
+            log("add(%s)", item);
+            return false;
+        }
+        Node node = node(item);
+        Node holder = insert(node);
+        //the node is not needed if it was rejected, or if the element was
+        //counted in an existing node of a multiset
+        if (holder != node) release(node);
+        boolean tmp = holder != nil;
+        if (tmp) {
+            changed(); //we successfully added an item
+            admitted();
+        }
+        log("add(%s)", item);
         return tmp;
     }
 
@@ -260,800 +550,3088 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
             return false;
         }
         if (isEmpty(true)) {
-            log(String.format("delete(%s)", item));
+            log("delete(%s)", item);
             return false;
         }
-        Node z = locate(new Node(item));
-        if (z == nil) {
-            log(String.format("delete(%s)", item));
+        Node z = locate(probe(item));
+        if (z.count == 0) {
+            log("delete(%s)", item);
             return false;
         }
-        delete(z);
-        ++operations; //we successfully deleted an item
-        log(String.format("delete(%s)", item));
+        //we successfully deleted an item - unless it was only marked as a
+        //tombstone, iterators are invalidated
+        if (deleteOnce(z)) changed();
+        log("delete(%s)", item);
         return true;
     }
 
     /**
-     * Returns an in-order iterator over all the elements in the dictionary.
-     * That is, the elements in the iterator will be returned in sorted
-     * order, from least element to greatest element.
+     * Gives the number of times an element occurs in the dictionary. Unless
+     * the dictionary is a {@link RedBlackMultiset}, this is either zero or
+     * one.
      *
-     * @return an iterator whose next element is the least element in the
-     * dictionary, and which will iterate through all the elements in the
-     * dictionary in ascending order
+     * @param item the item to be counted
+     * @return the number of occurrences of the item
      */
-    @Override
-    public Iterator<E> iterator() {
+    public int count(E item) {
         reset();
-        log("iterator()");
-        return new TreeIterator(min);
+        int ret = item == null ? 0 : locate(probe(item)).count;
+        log("count(%s)", item);
+        return ret;
     }
 
     /**
-     * Returns an in-order iterator over the elements in the dictionary,
-     * starting from the least element that is greater than or equal to the
-     * given element.
+     * Gives the number of elements in the dictionary, including repeated
+     * occurrences if the dictionary is a {@link RedBlackMultiset}. Runs in
+     * constant time.
      *
-     * @param start the element at which to start iterating at.
-     * @return an iterator whose next element is the least element greater
-     * than or equal to start in the dictionary, and which will iterate
-     * through all the elements in the Dictionary in ascending order
-     * @throws IllegalArgumentException if the argument is null
+     * @return the number of elements in the dictionary
      */
-    @Override
-    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+    public int size() {
         reset();
-        if (start == null) {
-            throw new IllegalArgumentException("argument is null");
-        }
-        Iterator<E> ret = new TreeIterator(ceiling(new Node(start)));
-        log(String.format("iterator(%s)", start));
-        return ret;
+        log("size()");
+        return size;
     }
 
     /**
-     * Provides a string that describes all operations performed on the
-     * dictionary since its creation, or since the last time that the log
-     * string was retrieved. Each line of the string will give the method name
-     * of the operation and the parameter values, along with the number of
-     * comparisons (calls to {@link Comparable#compareTo(Object)}) made by
-     * the method. The most recent method call will be the last line of the
-     * string, and the oldest method call will be the first line of the
-     * string. Each time this method is called it clears the log string for
-     * next time.
+     * Finds the greatest element less than or equal to the given element.
+     * Unlike {@link #predecessor(Comparable)} this takes a single descent of
+     * the tree, and does not throw if there is no such element.
      *
-     * @return a string listing all operations called on the dictionary, and
-     * how many comparisons were required to complete each operation.
+     * @param item the item to be checked
+     * @return the greatest element less than or equal to item, or null if
+     * there is no such element or the item is null
      */
-    @Override
-    public String getLogString() {
-        String logString = log.toString();
-        log = new StringBuilder();
-        return logString;
+    public E floor(E item) {
+        reset();
+        E ret = item == null ? null : previous(floor(probe(item))).key;
+        log("floor(%s)", item);
+        return ret;
     }
 
     /**
-     * Provides a vertical string representation of the dictionary, in tree
-     * form.
-     * Note that the left child of a node is positioned above the right child.
+     * Finds the least element greater than or equal to the given element.
+     * Unlike {@link #successor(Comparable)} this takes a single descent of
+     * the tree, and does not throw if there is no such element.
      *
-     * @return a string with the structure of the dictionary along with the
-     * associated values in the dictionary.
+     * @param item the item to be checked
+     * @return the least element greater than or equal to item, or null if
+     * there is no such element or the item is null
      */
-    @Override
-    public String toString() {
+    public E ceiling(E item) {
         reset();
-        String ret = isEmpty(true) ? "└── \n" : root.toString();
-        log("toString()");
+        E ret = item == null ? null : next(ceiling(probe(item))).key;
+        log("ceiling(%s)", item);
         return ret;
     }
 
     /**
-     * Internal method to insert a node into the red-black tree, and
-     * re-balance/restore red-black tree properties if necessary.
+     * Finds the greatest element strictly less than the given element.
+     * Unlike {@link #predecessor(Comparable)} this takes a single descent of
+     * the tree, and does not throw if there is no such element.
      *
-     * @param toInsert the node to insert into the dictionary
-     * @return true if the node was successfully inserted - that is, if the
-     * dictionary didn't already contain the node.
+     * @param item the item to be checked
+     * @return the greatest element less than item, or null if there is no
+     * such element or the item is null
      */
-    private boolean insert(Node toInsert) {
-        if (toInsert.key == null) return false;
-        Node curr = root;
-        //if the tree is empty, we simply set up the root node and then
-        //return early, since we don't need to do any further
-        //fixing/comparisons.
-        if (isEmpty(true)) {
-            root = toInsert;
-            toInsert.color = Node.COLOUR_BLACK;
-            toInsert.parent = nil;
-            min = max = root;
-            return true;
-        } else {
-            toInsert.color = Node.COLOUR_RED;
-            //locate the position to insert the new node
-            while (true) {
-                int cmp = compare(toInsert, curr);
-                if (cmp < 0) {
-                    if (curr.left == nil) {
-                        curr.left = toInsert;
-                        toInsert.parent = curr;
-                        break;
-                    } else curr = curr.left;
-                } else if (cmp > 0) {
-                    if (curr.right == nil) {
-                        curr.right = toInsert;
-                        toInsert.parent = curr;
-                        break;
-                    } else curr = curr.right;
-                } else if (cmp == 0) return false;
-            }
-            //after insertion, we re-balance/restore red-black tree properties
-            fixInsert(toInsert);
-        }
-        //the below code uses two more comparisons to check if the new node
-        //is the new max/min of the tree, and updating if necessary.
-        if (min == nil || max == nil) {
-            min = max = toInsert;
-        } else {
-            if (compare(toInsert, min) < 0) min = toInsert;
-            else if (compare(toInsert, max) > 0) max = toInsert;
-        }
-        return true;
+    public E lower(E item) {
+        reset();
+        E ret = item == null ? null : previous(below(probe(item))).key;
+        log("lower(%s)", item);
+        return ret;
     }
 
     /**
-     * Internal method to delete a node from the red-black tree, and restore
-     * red-black tree properties if necessary.
+     * Finds the least element strictly greater than the given element.
+     * Unlike {@link #successor(Comparable)} this takes a single descent of
+     * the tree, and does not throw if there is no such element.
      *
-     * @param toDelete the node to remove from the dictionary
+     * @param item the item to be checked
+     * @return the least element greater than item, or null if there is no
+     * such element or the item is null
      */
-    private void delete(Node toDelete) {
-        //the node that moves into curr's original position in the tree
-        Node move;
-        //the node either removed from the tree or moved within the tree
-        Node curr = toDelete;
-        //the original colour of the node to delete - we need to save this in
-        //order to check the colour at the end of the method - if it is black
-        //then we need to fix possible violations of the red-black tree
-        //properties.
-        int yOrigColour = curr.color;
-
-        //check the cases - dependent on how many children the node has
-        if (toDelete.left == nil) {
-            //if the node to delete doesn't have a left child, just replace it
-            //by the right child
-            move = toDelete.right;
-            transplant(toDelete, toDelete.right);
-        } else if (toDelete.right == nil) {
-            //and vice versa for the left child
-            move = toDelete.left;
-            transplant(toDelete, toDelete.left);
-        } else {
-            //if it has two children, find the successor
-            curr = minimum(toDelete.right);
-            //update the colour before any changes to the tree structure occur
-            yOrigColour = curr.color;
-            move = curr.right;
-            if (curr.parent == toDelete) {
-                move.parent = curr;
-            } else {
-                transplant(curr, curr.right);
-                curr.right = toDelete.right;
-                curr.right.parent = curr;
-            }
-            transplant(toDelete, curr);
-            curr.left = toDelete.left;
-            curr.left.parent = curr;
-            curr.color = toDelete.color;
-        }
-
-        //if the node colour was black then we might have violated the
-        //properties of a red-black tree - so fix up the tree
-        if (yOrigColour == Node.COLOUR_BLACK)
-            fixDelete(move);
-
-        //finally, update the references to the min/max if necessary
-        if (isEmpty(true)) min = max = nil;
-        else if (toDelete == min) min = minimum(root);
-        else if (toDelete == max) max = maximum(root);
+    public E higher(E item) {
+        reset();
+        E ret = item == null ? null : next(above(probe(item))).key;
+        log("higher(%s)", item);
+        return ret;
     }
 
     /**
-     * Internal method for checking if the dictionary is empty. See
-     * documentation of method {@link #isEmpty()}. This method is also called
-     * from other methods, in which case it should <i>not</i> be appended to
-     * the log string. In the case that the client calls the
-     * {@link #isEmpty()} method, it <i>should</i> be appended to the log
-     * string.
+     * Finds the k elements closest to the given element, by a distance
+     * that must not decrease when moving away from the element in either
+     * direction of the ordering. A single descent locates the element's
+     * position, and the search then expands outwards in both directions
+     * by following neighbouring nodes.
      *
-     * @param quiet if this parameter is true, the call will not be appended
-     *              to the log string. If false, it will log the call.
-     * @return true iff the dictionary contains no elements.
+     * @param item the element to search around
+     * @param k the greatest number of elements to return
+     * @param distance gives the distance between the item and an element
+     * @return up to k elements, from closest to furthest - elements at equal
+     * distance are returned lesser element first
+     * @throws IllegalArgumentException if the item or distance is null, or
+     * k is negative
      */
-    private boolean isEmpty(boolean quiet) {
-        if (!quiet) {
-            reset();
-            log("isEmpty()");
-        }
-        return root == nil;
+    public List<E> nearest(E item, int k,
+                           ToDoubleBiFunction<? super E, ? super E> distance)
+            throws IllegalArgumentException {
+        if (k < 0)
+            throw new IllegalArgumentException("k is negative");
+        Iterator<E> it = nearest(item, distance);
+        List<E> ret = new ArrayList<E>(Math.min(k, size));
+        while (ret.size() < k && it.hasNext()) ret.add(it.next());
+        return ret;
     }
 
     /**
-     * Finds the successor of a node. Used in the
-     * {@link TreeIterator#next()} method when iterating over the dictionary.
+     * Returns an iterator over the elements in order of increasing distance
+     * from the given element, as for {@link #nearest(Comparable, int,
+     * ToDoubleBiFunction)}. Each element after the first is found in
+     * amortised constant time. The iterator is fail-fast, and does not
+     * support removal.
      *
-     * @param node the node to find the successor for
-     * @return nil if the node doesn't have a successor, otherwise the
-     * least node greater than the argument
+     * @param item the element to search around
+     * @param distance gives the distance between the item and an element
+     * @return an iterator over the elements from closest to furthest
+     * @throws IllegalArgumentException if either argument is null
      */
-    private Node successor(Node node) {
-        //fairly basic strategy - if the node has a right child, the
-        //successor is the minimum node of that subtree, otherwise move up
-        //the tree until we find a node such that the node is a left child -
-        //then the successor will be the parent of that node
-        if (node == nil || node == max) return nil;
-        if (node.right != nil) return minimum(node.right);
-        Node parent = node.parent;
-        while (parent != nil && node == parent.right) {
-            ++comparisons;
-            node = parent;
-            parent = parent.parent;
-        }
-        return parent;
+    public Iterator<E> nearest(E item,
+                               ToDoubleBiFunction<? super E, ? super E>
+                                       distance)
+            throws IllegalArgumentException {
+        if (item == null || distance == null)
+            throw new IllegalArgumentException("argument is null");
+        reset();
+        Node above = next(ceiling(probe(item)));
+        Node below = above == nil ? max : previous(predecessor(above));
+        Iterator<E> ret = new NearestIterator(item, distance, below, above);
+        log("nearest(%s)", item);
+        return ret;
     }
 
     /**
-     * Finds the successor of a node. Used in the
-     * {@link TreeIterator#next()} method when iterating over the dictionary.
+     * Retrieves, but does not remove, the least element in the dictionary.
+     * Unlike {@link #min()} this does not throw if the dictionary is empty.
+     * Runs in constant time.
      *
-     * @param node the node to find the successor for
-     * @return nil if the node doesn't have a successor, otherwise the
-     * least node greater than the argument
+     * @return the least element in the dictionary, or null if the
+     * dictionary is empty
      */
-    private Node predecessor(Node node) {
-        //fairly basic strategy - if the node has a left child, the
-        //predecessor is the minimum node of that subtree, otherwise move up
-        //the tree until we find a node such that the node is a right child -
-        //then the predecessor will be the parent of that node
-        if (node == nil || node == max) return nil;
-        if (node.left != nil) return maximum(node.left);
-        Node parent = node.parent;
-        while (parent != nil && node == parent.left) {
-            ++comparisons;
-            node = parent;
-            parent = parent.parent;
-        }
-        return parent;
+    public E peekMin() {
+        reset();
+        log("peekMin()");
+        return peek(true);
     }
 
     /**
-     * Finds the node <it>contained</it> in the tree that has the same
-     * value as the given node.
+     * Retrieves, but does not remove, the greatest element in the
+     * dictionary. Unlike {@link #max()} this does not throw if the
+     * dictionary is empty. Runs in constant time.
      *
-     * @param toFind the node reference to find in the tree
-     * @return the valid node, with parent/left child/right child etc. values
-     * filled in, that has the equal element to the argument (or nil if no
-     * such node is found)
+     * @return the greatest element in the dictionary, or null if the
+     * dictionary is empty
      */
-    private Node locate(Node toFind) {
-        //if the tree is empty, no node exists
-        if (isEmpty(true)) return nil;
-        Node curr = root;
-        //move down the tree until we find an element with the same value (as
-        //defined by their comparative values)
-        while (curr != nil) {
-            int cmp = compare(toFind, curr);
-            if (cmp < 0) {
-                if (curr.left != nil) {
-                    curr = curr.left;
-                    continue;
-                }
-            } else if (cmp > 0) {
-                if (curr.right != nil) {
-                    curr = curr.right;
-                    continue;
-                }
-            } else if (cmp == 0) {
-                return curr;
-            }
-            curr = nil;
-        }
-        //didn't find anything, return the nil sentinel
-        return nil;
+    public E peekMax() {
+        reset();
+        log("peekMax()");
+        return peek(false);
     }
 
     /**
-     * Finds the least node strictly greater than a given node. Used in the
-     * {@link #successor(Comparable)} method.
+     * Retrieves and removes the least element in the dictionary. The cached
+     * minimum node is unlinked directly, so no search from the root (and no
+     * call to {@link Comparable#compareTo(Object)}) is needed.
      *
-     * @param node the node to find the 'successor' for
-     * @return the least node greater than the argument, or nil if there
-     * isn't one.
+     * @return the least element in the dictionary, or null if the
+     * dictionary is empty
      */
-    private Node above(Node node) {
-        Node curr = root;
-        while (curr != nil) {
-            int cmp = compare(node, curr);
-            if (cmp < 0) {
-                if (curr.left != nil) {
-                    curr = curr.left;
-                } else {
-                    //the argument is smaller than this node and there's no
-                    //smaller element on the left, so this must be directly
-                    //below the argument
-                    return curr;
-                }
-            } else {
-                //the argument is greater than or equal to the current node, so
-                //we either continue moving to the right down the tree or, if
-                //no right child exists, the node below will just be the
-                //successor of the current node
-                if (curr.right != nil) {
-                    curr = curr.right;
-                } else {
-                    return successor(curr);
-                }
-            }
-        }
-        return nil;
+    public E pollMin() {
+        reset();
+        E ret = poll(true);
+        log("pollMin()");
+        return ret;
     }
 
     /**
-     * Finds the greatest node strictly less than a given node. Used in the
-     * {@link #predecessor(Comparable)} method.
+     * Retrieves and removes the greatest element in the dictionary. The
+     * cached maximum node is unlinked directly, so no search from the root
+     * (and no call to {@link Comparable#compareTo(Object)}) is needed.
      *
-     * @param node the node to find the 'predecessor' for
-     * @return the greatest node less than the argument, or nil if there
-     * isn't one.
+     * @return the greatest element in the dictionary, or null if the
+     * dictionary is empty
      */
-    private Node below(Node node) {
-        Node curr = root;
-        while (curr != nil) {
-            int cmp = compare(node, curr);
-            if (cmp > 0) {
-                if (curr.right != nil) {
-                    curr = curr.right;
-                } else {
-                    //the argument is larger than this node and there's no
-                    //larger element on the right, so this must be directly
-                    //below the argument
-                    return curr;
-                }
-            } else {
-                //the argument is less than or equal to the current node, so
-                //we either continue moving to the left down the tree or, if
-                //no left child exists, the node below will just be the
-                //predecessor of the current node
-                if (curr.left != nil) {
-                    curr = curr.left;
-                } else {
-                    return predecessor(curr);
-                }
-            }
-        }
-        return nil;
+    public E pollMax() {
+        reset();
+        E ret = poll(false);
+        log("pollMax()");
+        return ret;
     }
 
     /**
-     * Finds the least node greater than or equal to the given node. That is,
-     * if the argument's key is in the dictionary it will return that node,
-     * otherwise it will return the smallest node with key greater than the
-     * argument's key.
+     * Adds the specified item to the dictionary, in the same way as
+     * {@link #add(Comparable)}, but returns a handle to the entry holding the
+     * item. The handle can later be passed to {@link #remove(Handle)} or
+     * {@link #rekey(Handle, Comparable)} to operate on the entry without
+     * searching for it.
      *
-     * @param toFind the key to find the ceiling for
-     * @return the least key greater than or equal to the argument, or the
-     * nil sentinel if no such key exists.
+     * @param item the item to be added
+     * @return a handle to the entry holding the item, or null if the item
+     * is null or is already in the dictionary (and the dictionary is not a
+     * multiset)
      */
-    private Node ceiling(Node toFind) {
-        Node curr = root;
-        while (curr != nil) {
-            int cmp = compare(toFind, curr);
-            if (cmp < 0) {
-                if (curr.left != nil) {
-                    curr = curr.left;
-                } else {
-                    //we found an element that is larger than the argument
-                    //and there's no smaller element on the left, so the
-                    //ceiling must be this one
-                    return curr;
-                }
-            } else if (cmp > 0) {
-                if (curr.right != nil) {
-                    curr = curr.right;
-                } else {
-                    //we found an element that's smaller than the argument
-                    //and there's no larger right child, so the ceiling must
-                    //be the successor of this node
-                    return successor(curr);
-                }
-            } else {
-                //we found the element in the dictionary, so just return the
-                //reference to the valid node
-                return curr;
-            }
+    public Handle<E> offer(E item) {
+        reset();
+        Node node = item == null || !admit(item)
+                ? nil : insert(new Node(item));
+        if (node != nil) {
+            changed();
+            //never recycled, so the handle cannot come to refer to another
+            //element
+            node.exposed = true;
+            admitted();
         }
-        return nil;
+        log("offer(%s)", item);
+        return node != nil ? node : null;
     }
 
     /**
-     * After an insert, restores the properties of a red-black tree after any
-     * possible violations. After an insert, we may need to fix the following
-     * red-black tree properties:
-     * -the root must be black
-     * -a red node must have black children
-     * The pseudocode for this method can be found on page 316 of CLRS.
+     * Removes the entry referred to by a handle from the dictionary. Runs in
+     * logarithmic time, without any calls to
+     * {@link Comparable#compareTo(Object)}. If the dictionary is a multiset,
+     * only one occurrence of the entry's element is removed.
      *
-     * @param node the node we have just inserted into the tree (initially red)
+     * @param handle a handle obtained from {@link #offer(Comparable)} on
+     *               this dictionary
+     * @return true if and only if the entry was still in the dictionary and
+     * has now been removed
      */
-    private void fixInsert(Node node) {
-        //continue until the parent is black
-        while (node.parent.color == Node.COLOUR_RED) {
-            ++comparisons;
-            Node uncle;
-            if (node.parent == node.parent.parent.left) {
-                //set the uncle to be the right child
-                uncle = node.parent.parent.right;
-
-                if (uncle.color == Node.COLOUR_RED) {
-                    //case 1 - the node's uncle is red
-                    node.parent.color = Node.COLOUR_BLACK;
-                    uncle.color = Node.COLOUR_BLACK;
-                    node.parent.parent.color = Node.COLOUR_RED;
-                    node = node.parent.parent;
-                } else {
-                    if (node == node.parent.right) {
-                        //case 2 - uncle is black and node is a right child
-                        node = node.parent;
-                        rotateLeft(node);
-                    }
-                    //case 3 - uncle is black and node is a left child
-                    node.parent.color = Node.COLOUR_BLACK;
-                    node.parent.parent.color = Node.COLOUR_RED;
-                    rotateRight(node.parent.parent);
-                }
-            } else {
-                //symmetric to the above clause with right and left exchanged
-                uncle = node.parent.parent.left;
+    public boolean remove(Handle<E> handle) {
+        reset();
+        Node node = owned(handle);
+        E item = handle == null ? null : handle.get();
+        if (node != nil && deleteOnce(node)) changed();
+        log("remove(%s)", item);
+        return node != nil;
+    }
 
-                if (uncle.color == Node.COLOUR_RED) {
-                    node.parent.color = Node.COLOUR_BLACK;
-                    uncle.color = Node.COLOUR_BLACK;
-                    node.parent.parent.color = Node.COLOUR_RED;
-                    node = node.parent.parent;
-                } else {
-                    if (node == node.parent.left) {
-                        node = node.parent;
-                        rotateRight(node);
-                    }
-                    node.parent.color = Node.COLOUR_BLACK;
-                    node.parent.parent.color = Node.COLOUR_RED;
-                    rotateLeft(node.parent.parent);
-                }
+    /**
+     * Changes the element held by the entry referred to by a handle. The
+     * entry is moved to the position of the new element in the ordering, and
+     * the handle remains valid and refers to the new element. Runs in
+     * logarithmic time.
+     *
+     * @param handle a handle obtained from {@link #offer(Comparable)} on
+     *               this dictionary
+     * @param item the new element for the entry to hold
+     * @return true if and only if the entry was re-keyed - that is, if the
+     * handle refers to an entry still in the dictionary, the item is not
+     * null, and no other entry already holds an equal item
+     * @throws IllegalStateException if called within a
+     * {@link #transaction(Consumer)}
+     */
+    public boolean rekey(Handle<E> handle, E item)
+            throws IllegalStateException {
+        if (undo != null)
+            throw new IllegalStateException(
+                    "entries cannot be re-keyed within a transaction");
+        reset();
+        Node node = owned(handle);
+        E old = handle == null ? null : handle.get();
+        boolean ret = node != nil && item != null;
+        if (ret) {
+            Node existing = locate(probe(item));
+            ret = existing.count == 0 || existing == node;
+            //a tombstone holding the new element would otherwise be revived
+            //in place of the entry
+            if (ret && existing != nil && existing.count == 0) {
+                delete(existing);
+                --tombstones;
+                release(existing);
             }
         }
-        root.color = Node.COLOUR_BLACK;
+        if (ret) {
+            if (feed != null) feed.publish(false, old);
+            delete(node);
+            node.key = item;
+            node.left = node.right = nil;
+            insert(node);
+            ++operations;
+        }
+        log("rekey(%s, %s)", old, item);
+        return ret;
     }
 
     /**
-     * Left-rotates the subtree around a given node. Runs in constant time.
-     * Transforms the subtree in the following way:
-     *
-     *       |                     |
-     *       x                     y
-     *     /  \                   / \
-     *    a   y      ===>        x  c
-     *       / \                / \
-     *      b  c               a  b
+     * Gives the feed publishing the changes made to the dictionary from now
+     * on: every element added or deleted, by any means including iterators,
+     * polling and handles. Re-keying an entry is published as the deletion
+     * of its old element followed by the addition of its new one, and
+     * adding an element again to a multiset is published as a further
+     * addition. Compaction changes nothing that is published. Until this is
+     * first called, changes cost nothing to publish.
      *
-     * The rotation preserves the properties of the red-black tree.
-     * The pseudocode for this method can be found on page 313 of CLRS.
-     *
-     * @param node the node to rotate about
+     * @return the feed of mutations
      */
-    private void rotateLeft(Node node) {
-        Node rightChild = node.right;
-        node.right = rightChild.left;
-        if (rightChild.left != nil) rightChild.left.parent = node;
-        rightChild.parent = node.parent;
-        if (node.parent == nil) root = rightChild;
-        else if (node == node.parent.left) node.parent.left = rightChild;
-        else node.parent.right = rightChild;
-        rightChild.left = node;
-        node.parent = rightChild;
+    public MutationFeed<E> mutations() {
+        if (feed == null) feed = new MutationFeed<E>();
+        return feed;
     }
 
     /**
-     * Right-rotates the subtree around a given node. Runs in constant time.
-     * Transforms the subtree in the following way:
+     * Gives the aggregate of all the elements in the dictionary, as defined
+     * by the augmentation that the dictionary was constructed with. Runs in
+     * constant time.
      *
-     *       |                 |
-     *       y                 x
-     *      / \     ===>      / \
-     *     x  c              a  y
-     *    / \                  / \
-     *   a  b                 b  c
+     * @param <A> the type of aggregate produced by the augmentation
+     * @return the aggregate of every element in the dictionary
+     * @throws IllegalStateException if the dictionary is not augmented
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate() throws IllegalStateException {
+        if (augmentation == null)
+            throw new IllegalStateException("dictionary is not augmented");
+        reset();
+        log("aggregate()");
+        return (A) root.aggregate;
+    }
+
+    /**
+     * Gives the aggregate of all the elements in the dictionary between two
+     * bounds (inclusive), as defined by the augmentation that the dictionary
+     * was constructed with. Runs in logarithmic time.
      *
-     * The rotation preserves the properties of the red-black tree.
+     * @param lo the least element of the range
+     * @param hi the greatest element of the range
+     * @param <A> the type of aggregate produced by the augmentation
+     * @return the aggregate of every element greater than or equal to lo
+     * and less than or equal to hi
+     * @throws IllegalArgumentException if either argument is null
+     * @throws IllegalStateException if the dictionary is not augmented
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(E lo, E hi) throws IllegalArgumentException,
+            IllegalStateException {
+        if (lo == null || hi == null)
+            throw new IllegalArgumentException("argument is null");
+        if (augmentation == null)
+            throw new IllegalStateException("dictionary is not augmented");
+        reset();
+        Object ret = aggregate(root, new Node(lo), new Node(hi));
+        log("aggregate(%s, %s)", lo, hi);
+        return (A) ret;
+    }
+
+    /**
+     * Gives the digest of all the elements in the dictionary, if it was
+     * constructed with {@link Augmentation#digest()}. Dictionaries holding
+     * the same elements, hashed the same way, have equal digests whatever
+     * the order the elements were added in; dictionaries holding different
+     * elements have equal digests only by a chance of about one in 2^64.
+     * Runs in constant time.
      *
-     * @param node the node to rotate about
+     * @return the digest of the dictionary
+     * @throws IllegalStateException if the dictionary is not augmented with
+     * a digest
      */
-    private void rotateRight(Node node) {
-        Node leftChild = node.left;
-        node.left = leftChild.right;
-        if (leftChild.right != nil) leftChild.right.parent = node;
-        leftChild.parent = node.parent;
-        if (node.parent == nil) root = leftChild;
-        else if (node == node.parent.right) node.parent.right = leftChild;
-        else node.parent.left = leftChild;
-        leftChild.right = node;
-        node.parent = leftChild;
+    public long digest() throws IllegalStateException {
+        digested();
+        reset();
+        log("digest()");
+        return (Long) root.aggregate;
     }
 
     /**
-     * Convenience method to move subtrees around within the red-black tree.
-     * Replaces one subtree as a child of its parent with another subtree.
-     * Node u's parent becomes node v's parent, and u's parent has v as the
-     * appropriate child.
+     * Finds the differences between this dictionary and another, as
+     * {@link #diff(Replica, Consumer, Consumer)} does.
      *
-     * @param u the node to transplant
-     * @param v the node to transplant u with
+     * @param other the other dictionary, augmented with the same digest
+     * @param onlyHere is given each element only in this dictionary
+     * @param onlyThere is given each element only in the other dictionary
+     * @throws IllegalStateException if the dictionary is not augmented with
+     * a digest
+     * @throws NullPointerException if any argument is null
      */
-    private void transplant(Node u, Node v) {
-        //handle the case when u is the root
-        if (u.parent == nil) root = v;
-        //if u is the left child, update accordingly
-        else if (u == u.parent.left) u.parent.left = v;
-        //otherwise u is the right child
-        else u.parent.right = v;
-        //we can assign to the parent of v even if v is the sentinel
-        v.parent = u.parent;
+    public void diff(RedBlackTree<E> other, Consumer<? super E> onlyHere,
+                     Consumer<? super E> onlyThere)
+            throws IllegalStateException, NullPointerException {
+        diff(other.replica(), onlyHere, onlyThere);
     }
 
     /**
-     * Restores the following properties to the red-black tree after deletion
-     * of a node:
-     * -every node is either red or black
-     * -the root is black
-     * -if a node is red then both of its children are black
-     * The pseudocode for this method can be found on page 326 of CLRS.
+     * Finds the differences between this dictionary and a replica of it,
+     * which may be remote. Both must be augmented with the same
+     * {@link Augmentation#digest()}. The tree is walked from the root, and
+     * the digest of each subtree is compared with the digest the replica
+     * gives for the same range of elements; a subtree whose digest matches
+     * is skipped without being visited, so only the nodes on the paths to
+     * differences are - O(d log n) of them for d differences, each costing
+     * two digest requests to the replica. A range with elements only in the
+     * replica is fetched from it whole. Elements are reported in ascending
+     * order, and multiplicities in multisets are not compared. Reports a
+     * difference wrongly only if two different ranges have equal digests,
+     * by a chance of about one in 2^64 for each range compared.
      *
-     * @param node the node that occupies the deleted node's original position
+     * @param other the replica
+     * @param onlyHere is given each element only in this dictionary
+     * @param onlyThere is given each element only in the replica
+     * @throws IllegalStateException if the dictionary is not augmented with
+     * a digest
+     * @throws NullPointerException if any argument is null
      */
-    private void fixDelete(Node node) {
-        while (node != root && node.color == Node.COLOUR_BLACK) {
-            ++comparisons;
-            if (node == node.parent.left) {
-                Node sibling = node.parent.right;
-                if (sibling.color == Node.COLOUR_RED) {
-                    //case 1 - node's sibling is red
-                    sibling.color = Node.COLOUR_BLACK;
-                    node.parent.color = Node.COLOUR_RED;
-                    rotateLeft(node.parent);
-                    sibling = node.parent.right;
-                }
-                if (sibling.left.color == Node.COLOUR_BLACK
-                        && sibling.right.color == Node.COLOUR_BLACK) {
-                    //case 2 - node's sibling is black and both of the
-                    //sibling's children are black
-                    sibling.color = Node.COLOUR_RED;
-                    node = node.parent;
-                } else {
-                    if (sibling.right.color == Node.COLOUR_BLACK) {
-                        //case 3 - node's sibling is black, the node's left
-                        //child is red, and the node's right child is black
-                        sibling.left.color = Node.COLOUR_BLACK;
-                        sibling.color = Node.COLOUR_RED;
-                        rotateRight(sibling);
-                        sibling = node.parent.right;
-                    }
-                    //case 4 - the node's sibling is black and the sibling's
-                    //right child is red
-                    sibling.color = node.parent.color;
-                    node.parent.color = Node.COLOUR_BLACK;
-                    sibling.right.color = Node.COLOUR_BLACK;
-                    rotateLeft(node.parent);
-                    node = root;
-                }
-            } else {
-                //symmetric to the above clause with left and right exchanged
-                Node sibling = node.parent.left;
-                if (sibling.color == Node.COLOUR_RED) {
-                    sibling.color = Node.COLOUR_BLACK;
-                    node.parent.color = Node.COLOUR_RED;
-                    rotateRight(node.parent);
-                    sibling = node.parent.left;
-                }
-                if (sibling.right.color == Node.COLOUR_BLACK
-                        && sibling.left.color == Node.COLOUR_BLACK) {
-                    sibling.color = Node.COLOUR_RED;
-                    node = node.parent;
-                } else {
-                    if (sibling.left.color == Node.COLOUR_BLACK) {
-                        sibling.right.color = Node.COLOUR_BLACK;
-                        sibling.color = Node.COLOUR_RED;
-                        rotateLeft(sibling);
-                        sibling = node.parent.left;
-                    }
-                    sibling.color = node.parent.color;
-                    node.parent.color = Node.COLOUR_BLACK;
-                    sibling.left.color = Node.COLOUR_BLACK;
-                    rotateRight(node.parent);
-                    node = root;
-                }
+    public void diff(Replica<E> other, Consumer<? super E> onlyHere,
+                     Consumer<? super E> onlyThere)
+            throws IllegalStateException, NullPointerException {
+        digested();
+        if (other == null || onlyHere == null || onlyThere == null)
+            throw new NullPointerException("argument is null");
+        reset();
+        diff(root, null, null, other.digest(null, null), other, onlyHere,
+                onlyThere);
+        log("diff()");
+    }
+
+    /**
+     * Gives a view of the dictionary as a {@link Replica}, so that another
+     * dictionary can be compared with it by
+     * {@link #diff(Replica, Consumer, Consumer)} - for example, by serving
+     * the requests of a remote replica with it.
+     *
+     * @return a replica backed by this dictionary
+     * @throws IllegalStateException if the dictionary is not augmented with
+     * a digest
+     */
+    public Replica<E> replica() throws IllegalStateException {
+        digested();
+        return new LocalReplica();
+    }
+
+    /**
+     * Sets whether operations are appended to the log string. Logging is on
+     * by default. Turning it off saves formatting a description of every
+     * operation and growing the log, which otherwise dominates the time and
+     * allocation of most operations. The log keeps what was written before
+     * it was turned off.
+     *
+     * @param enabled whether to log operations
+     */
+    public void setLogging(boolean enabled) {
+        logging = enabled;
+    }
+
+    /**
+     * Sets whether deletions are lazy. A lazy deletion only marks the node
+     * of the element as a tombstone, leaving the structure of the tree as
+     * it is, so that it needs no rotations or recolourings and does not
+     * invalidate iterators. Tombstones are skipped by every query, and
+     * adding the element again revives its node in place. Once more than
+     * the given fraction of the nodes are tombstones, the tree is compacted
+     * by {@link #compact()}, which takes linear time, so a run of
+     * deletions costs amortised constant time each beyond the search.
+     * Deletions through {@link #remove(Handle)}, and of elements added by
+     * {@link #offer(Comparable)}, are never lazy. A fraction of zero, the
+     * default, turns lazy deletion off and compacts the tree straight away.
+     * A fraction of one never compacts the tree by itself, leaving every
+     * tombstone until {@link #compact()} is called.
+     *
+     * @param fraction the greatest fraction of tombstones to allow, in the
+     *                 range (0, 1), zero for eager deletion, or one to only
+     *                 compact on request
+     * @throws IllegalArgumentException if the fraction is outside [0, 1]
+     */
+    public void setLazyDeletion(double fraction)
+            throws IllegalArgumentException {
+        if (!(fraction >= 0 && fraction <= 1))
+            throw new IllegalArgumentException("fraction is not in [0, 1]");
+        compactAt = fraction;
+        if (fraction == 0) rebuild();
+    }
+
+    /**
+     * Unlinks every tombstone left by lazy deletions, rebuilding the tree
+     * as a balanced tree of the remaining elements in linear time. Does
+     * nothing, and leaves iterators valid, if there are no tombstones.
+     */
+    public void compact() {
+        reset();
+        rebuild();
+        log("compact()");
+    }
+
+    /**
+     * Applies a group of changes all-or-nothing. The body is given a view of
+     * this dictionary to read and change; if it throws, every change it made
+     * is undone and the exception is passed on. Each change is recorded in
+     * an undo log as it is made - the node inserted or unlinked, or the
+     * count changed - and undone in reverse order by unlinking or
+     * reinserting that same node, so a rollback takes time proportional to
+     * the number of changes rather than the size of the dictionary, and
+     * allocates no nodes. Nodes unlinked during a transaction are not
+     * recycled, and compaction of tombstones waits until it ends.
+     * The whole transaction counts as a single modification: iterators
+     * made before it are invalidated once, when it starts, and changes made
+     * within it do not count individually. Its changes are published to
+     * subscribers of {@link #mutations()} together once it commits, and not
+     * at all if it is rolled back. Iterators of the view are
+     * fail-fast against the changes made within the transaction, and
+     * cannot be used once it ends. The body must make its changes through
+     * the view.
+     *
+     * @param body the changes to make
+     * @throws IllegalStateException if a transaction is already running
+     */
+    public void transaction(Consumer<Dictionary<E>> body)
+            throws IllegalStateException {
+        if (undo != null)
+            throw new IllegalStateException(
+                    "transactions cannot be nested");
+        int ops = ++operations;
+        List<Change> changes = new ArrayList<Change>();
+        undo = changes;
+        boolean committed = false;
+        try {
+            body.accept(new Batch(changes));
+            committed = true;
+        } finally {
+            if (!committed) rollback(changes);
+            undo = null;
+            //published only now, and only if they stand
+            if (committed && feed != null && !changes.isEmpty()) {
+                for (Change change : changes)
+                    feed.publish(adds(change.kind), change.node.key);
+                feed.flush();
             }
+            //iterators taken on the tree during the body have seen the
+            //count from the start, so any change invalidates them too
+            operations = changes.isEmpty() ? ops : ops + 1;
+            //deferred from within the transaction, and counted as a further
+            //modification, since it restructures the tree
+            if (tombstones > compactAt * (size + tombstones)) rebuild();
+            reset();
+            log(committed ? "transaction()" : "transaction() rolled back");
+            List<Runnable> actions = deferred;
+            deferred = null;
+            if (committed && actions != null)
+                for (Runnable action : actions) action.run();
         }
-        node.color = Node.COLOUR_BLACK;
     }
 
     /**
-     * Gives the result of {@link Comparable#compareTo(Object)} when
-     * comparing the first node to the second, and also increments the number
-     * of comparisons used. This method is used instead of {@link
-     * Comparable#compareTo(Object)} to keep track of comparisons for the log
-     * string.
+     * Keeps up to the given number of nodes unlinked by deletions for reuse
+     * by later insertions, rather than leaving them to the garbage
+     * collector. Lookups also reuse a single node to hold the element being
+     * searched for. A node is cleared of its element and aggregate when it
+     * is kept, so nothing removed from the dictionary stays reachable.
+     * Nodes handed out as {@link Handle}s are never reused, so a stale
+     * handle can never come to refer to another element. With a capacity of
+     * zero, the default, nothing is recycled and any kept nodes are
+     * released.
      *
-     * @param n1 the first node
-     * @param n2 the node to compare the first node to
-     * @return the result of n1.compareTo(n2)
+     * @param capacity the most nodes to keep for reuse
+     * @throws IllegalArgumentException if the capacity is negative
      */
-    private int compare(Node n1, Node n2) {
-        ++comparisons;
-        return n1.compareTo(n2);
+    public void recycle(int capacity) throws IllegalArgumentException {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity is negative");
+        freeCapacity = capacity;
+        for (; freeCount > capacity; --freeCount) free = free.right;
+        if (capacity == 0) probe = null;
+        else if (probe == null) probe = new Node(null);
     }
 
     /**
-     * Resets the comparison counter. Used at the start of each public method
-     * defined in the {@link Dictionary} interface, so that the number of
-     * node comparisons can be kept track of (for the log string).
+     * Starts keeping live statistics for the tree - operation counts,
+     * comparisons, rotations, recolourings and iterator failures - and
+     * timing operations as flight recorder events. The statistics can be
+     * exposed over JMX using {@link TreeStatistics#register(String)}.
+     * Until this is called, the tree keeps no statistics other than its log
+     * string. Calling it again returns the same statistics.
+     *
+     * @return the statistics kept for the tree
      */
-    private void reset() {
-        comparisons = 0;
+    public TreeStatistics instrument() {
+        if (statistics == null) statistics = new TreeStatistics(this);
+        return statistics;
     }
 
     /**
-     * Adds a new line to the log string describing the method that was just
-     * called and the number of comparisons made.
-     * @param method the method name.
+     * Finds the number of nodes on the longest path from the root to a
+     * leaf. Runs in linear time, and makes no comparisons. Used by
+     * {@link TreeStatistics}.
+     *
+     * @return the height of the tree
      */
-    private void log(String method) {
-        log.append(String.format(LOG_MSG, method, comparisons));
+    int height() {
+        int height = 0;
+        Deque<Node> level = new ArrayDeque<Node>();
+        if (root != nil) level.add(root);
+        //walks the tree level by level, counting the levels
+        while (!level.isEmpty()) {
+            ++height;
+            for (int i = level.size(); i > 0; --i) {
+                Node node = level.poll();
+                if (node.left != nil) level.add(node.left);
+                if (node.right != nil) level.add(node.right);
+            }
+        }
+        return height;
     }
 
     /**
-     * Finds the maximum node in a subtree.
-     * @param node the root node of this subtree
-     * @return the maximum node in the subtree
+     * Finds the number of black nodes on any path from the root to a leaf,
+     * by following the left spine. Runs in logarithmic time. Used by
+     * {@link TreeStatistics}.
+     *
+     * @return the black-height of the tree
      */
-    private Node maximum(Node node) {
-        while (node.right != nil) {
-            ++comparisons;
-            node = node.right;
+    int blackHeight() {
+        int height = 0;
+        for (Node node = root; node != nil; node = node.left)
+            if (node.color == Node.COLOUR_BLACK) ++height;
+        return height;
+    }
+
+    /**
+     * Returns an in-order iterator over all the elements in the dictionary.
+     * That is, the elements in the iterator will be returned in sorted
+     * order, from least element to greatest element.
+     *
+     * @return an iterator whose next element is the least element in the
+     * dictionary, and which will iterate through all the elements in the
+     * dictionary in ascending order
+     */
+    @Override
+    public Iterator<E> iterator() {
+        reset();
+        log("iterator()");
+        return new TreeIterator(min);
+    }
+
+    /**
+     * Returns an in-order iterator over the elements in the dictionary,
+     * starting from the least element that is greater than or equal to the
+     * given element.
+     *
+     * @param start the element at which to start iterating at.
+     * @return an iterator whose next element is the least element greater
+     * than or equal to start in the dictionary, and which will iterate
+     * through all the elements in the Dictionary in ascending order
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        reset();
+        if (start == null) {
+            throw new IllegalArgumentException("argument is null");
+        }
+        Iterator<E> ret = new TreeIterator(next(ceiling(probe(start))));
+        log("iterator(%s)", start);
+        return ret;
+    }
+
+    /**
+     * Returns an iterator over all the elements in the dictionary in
+     * descending order, from greatest element to least element. It is
+     * fail-fast, and supports removal, in the same way as
+     * {@link #iterator()}.
+     *
+     * @return an iterator whose next element is the greatest element in
+     * the dictionary
+     */
+    public Iterator<E> descendingIterator() {
+        reset();
+        log("descendingIterator()");
+        return new TreeIterator(max, true);
+    }
+
+    /**
+     * Returns an iterator over the elements in the dictionary in descending
+     * order, starting from the greatest element that is less than or equal
+     * to the given element.
+     *
+     * @param start the element at which to start iterating
+     * @return an iterator whose next element is the greatest element less
+     * than or equal to start in the dictionary
+     * @throws IllegalArgumentException if the argument is null
+     */
+    public Iterator<E> descendingIterator(E start)
+            throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        reset();
+        Iterator<E> ret = new TreeIterator(previous(floor(probe(start))),
+                true);
+        log("descendingIterator(%s)", start);
+        return ret;
+    }
+
+    /**
+     * Performs an action for every element in the dictionary, in ascending
+     * order. Unlike stepping through an {@link #iterator()}, this walks the
+     * tree with an explicit stack, so a full scan makes no comparisons, no
+     * calls to find successors and no per-element calls to check the
+     * iterator is still valid.
+     *
+     * @param action the action to perform for each element
+     * @throws NullPointerException if the action is null
+     * @throws ConcurrentModificationException if the action modified the
+     * dictionary
+     */
+    @Override
+    public void forEach(Consumer<? super E> action)
+            throws NullPointerException, ConcurrentModificationException {
+        if (action == null)
+            throw new NullPointerException("action is null");
+        reset();
+        int ops = operations;
+        Traversal traversal = new Traversal();
+        traversal.spine(root);
+        traversal.run(action, null, ops);
+        log("forEach()");
+        if (ops != operations)
+            throw modified();
+    }
+
+    /**
+     * Performs an action for every element in the dictionary between lo
+     * and hi inclusive, in ascending order, as {@link #forEach(Consumer)}
+     * does. Finding the first element takes a single descent of the tree,
+     * and then each element in the range costs one comparison with hi.
+     *
+     * @param lo the least element of the range
+     * @param hi the greatest element of the range
+     * @param action the action to perform for each element in the range
+     * @throws IllegalArgumentException if lo or hi is null
+     * @throws NullPointerException if the action is null
+     * @throws ConcurrentModificationException if the action modified the
+     * dictionary
+     */
+    public void forEachInRange(E lo, E hi, Consumer<? super E> action)
+            throws IllegalArgumentException, NullPointerException,
+            ConcurrentModificationException {
+        if (lo == null || hi == null)
+            throw new IllegalArgumentException("argument is null");
+        if (action == null)
+            throw new NullPointerException("action is null");
+        reset();
+        Traversal traversal = new Traversal();
+        //keeps just the nodes at or above lo on the search path, which are
+        //exactly the ones whose left subtrees come before them in order
+        for (Node node = root; node != nil; ) {
+            if (compare(lo, node) > 0) {
+                node = node.right;
+            } else {
+                traversal.push(node);
+                node = node.left;
+            }
+        }
+        int ops = operations;
+        traversal.run(action, hi, ops);
+        log("forEachInRange(%s, %s)", lo, hi);
+        if (ops != operations)
+            throw modified();
+    }
+
+    /**
+     * Deletes every element that satisfies a condition. The condition is
+     * tested on each element in one pass, before anything is changed, and
+     * the tree is then rebuilt once from the elements that are left, as
+     * a tree of minimum height - so this takes linear time however many
+     * elements are deleted, where deleting them one at a time would take
+     * O(k log n) time and a rebalance for each. Tombstones are dropped as
+     * well. Every occurrence of a matching element of a multiset is
+     * deleted. Within a {@link #transaction(Consumer)} the elements are
+     * deleted one at a time instead, so that they can be rolled back.
+     *
+     * @param filter tests whether an element should be deleted
+     * @return the number of occurrences deleted
+     * @throws NullPointerException if the filter is null
+     * @throws ConcurrentModificationException if the filter modified the
+     * dictionary
+     */
+    public int removeIf(Predicate<? super E> filter)
+            throws NullPointerException, ConcurrentModificationException {
+        if (filter == null)
+            throw new NullPointerException("filter is null");
+        reset();
+        int ops = operations;
+        Node[] nodes = nodes();
+        boolean[] doomed = new boolean[nodes.length];
+        int removed = 0;
+        for (int i = 0; i < nodes.length; ++i) {
+            if (nodes[i].count > 0 && filter.test(nodes[i].key)) {
+                doomed[i] = true;
+                removed += nodes[i].count;
+            }
+        }
+        if (ops != operations)
+            throw modified();
+        if (removed > 0 && undo != null) {
+            for (int i = 0; i < nodes.length; ++i) {
+                for (int c = doomed[i] ? nodes[i].count : 0; c > 0; --c)
+                    deleteOnce(nodes[i]);
+            }
+        } else if (removed > 0) {
+            int n = 0;
+            for (int i = 0; i < nodes.length; ++i) {
+                Node node = nodes[i];
+                if (doomed[i]) {
+                    size -= node.count;
+                    if (feed != null)
+                        for (int c = node.count; c > 0; --c)
+                            feed.publish(false, node.key);
+                    unlink(node);
+                } else if (node.count == 0) {
+                    unlink(node);
+                } else {
+                    nodes[n++] = node;
+                }
+            }
+            relink(nodes, n);
+            if (feed != null) feed.flush();
+        }
+        log("removeIf()");
+        return removed;
+    }
+
+    /**
+     * Adds every element of a sorted run, such as the elements of a
+     * {@link java.util.SortedSet} in their natural order. When the run is
+     * large compared to the dictionary, it is merged with the elements
+     * already held in a single pass and the tree is rebuilt once, as a
+     * tree of minimum height, in O(n + m) time; otherwise the elements are
+     * inserted one at a time, in O(m log n). Null elements are skipped,
+     * and elements already held are not added again unless the dictionary
+     * is a multiset. The run is checked to be in order before anything is
+     * changed.
+     *
+     * @param sorted the elements to add, in ascending order
+     * @return the number of elements added
+     * @throws IllegalArgumentException if the elements are not in
+     * ascending order
+     */
+    public int addSorted(Iterable<? extends E> sorted)
+            throws IllegalArgumentException {
+        reset();
+        List<E> items = new ArrayList<E>();
+        for (E item : sorted) {
+            if (item == null) continue;
+            if (!items.isEmpty()) {
+                ++comparisons;
+                if (item.compareTo(items.get(items.size() - 1)) < 0)
+                    throw new IllegalArgumentException(
+                            "elements are not in ascending order");
+            }
+            items.add(item);
+        }
+        int nodes = size + tombstones, added = 0;
+        //inserting costs about log n comparisons per element, merging about
+        //one per element of either
+        if (undo != null || (long) items.size()
+                * (32 - Integer.numberOfLeadingZeros(nodes)) < nodes) {
+            for (E item : items) {
+                Node node = node(item);
+                Node holder = insert(node);
+                if (holder != node) release(node);
+                if (holder != nil) {
+                    changed();
+                    ++added;
+                }
+            }
+        } else {
+            added = merge(items);
+        }
+        log("addSorted()");
+        return added;
+    }
+
+    /**
+     * Returns an in-order iterator over the elements that satisfy a
+     * condition, using the subtree aggregates to skip any subtree that
+     * cannot hold a matching element. Used by subclasses to answer queries
+     * such as interval overlap in time proportional to the number of
+     * matches, rather than the size of the dictionary.
+     *
+     * @param method the description of the query, for the log string
+     * @param subtree tests whether a subtree with the given aggregate could
+     *                contain a matching element
+     * @param element tests whether an element matches
+     * @param past tests whether an element lies beyond the end of the query
+     *             - once an element is past, so are all greater elements
+     * @return an iterator over the matching elements in ascending order
+     * @throws IllegalStateException if the dictionary is not augmented
+     */
+    Iterator<E> search(String method, Predicate<Object> subtree,
+                       Predicate<? super E> element,
+                       Predicate<? super E> past)
+            throws IllegalStateException {
+        if (augmentation == null)
+            throw new IllegalStateException("dictionary is not augmented");
+        reset();
+        Iterator<E> ret = new SearchIterator(subtree, element, past);
+        log(method);
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than a bound that satisfies a
+     * condition, using the subtree aggregates to skip any subtree that
+     * cannot hold a matching element. If the subtree test holds exactly
+     * when a subtree holds a match, this runs in logarithmic time.
+     *
+     * @param method the description of the query, for the log string
+     * @param subtree tests whether a subtree with the given aggregate could
+     *                contain a matching element
+     * @param element tests whether an element matches
+     * @param below the bound, or null for no bound
+     * @return the greatest matching element less than the bound, or null if
+     * there is none
+     * @throws IllegalStateException if the dictionary is not augmented
+     */
+    E last(String method, Predicate<Object> subtree,
+           Predicate<? super E> element, E below)
+            throws IllegalStateException {
+        if (augmentation == null)
+            throw new IllegalStateException("dictionary is not augmented");
+        reset();
+        E ret = last(root, subtree, element, below).key;
+        log(method);
+        return ret;
+    }
+
+    /**
+     * Finds the least element greater than a bound that satisfies a
+     * condition, in the same way as {@link #last(String, Predicate,
+     * Predicate, Comparable)}.
+     *
+     * @param method the description of the query, for the log string
+     * @param subtree tests whether a subtree with the given aggregate could
+     *                contain a matching element
+     * @param element tests whether an element matches
+     * @param above the bound, or null for no bound
+     * @return the least matching element greater than the bound, or null if
+     * there is none
+     * @throws IllegalStateException if the dictionary is not augmented
+     */
+    E first(String method, Predicate<Object> subtree,
+            Predicate<? super E> element, E above)
+            throws IllegalStateException {
+        if (augmentation == null)
+            throw new IllegalStateException("dictionary is not augmented");
+        reset();
+        E ret = first(root, subtree, element, above).key;
+        log(method);
+        return ret;
+    }
+
+    /**
+     * Provides a string that describes all operations performed on the
+     * dictionary since its creation, or since the last time that the log
+     * string was retrieved. Each line of the string will give the method name
+     * of the operation and the parameter values, along with the number of
+     * comparisons (calls to {@link Comparable#compareTo(Object)}) made by
+     * the method. The most recent method call will be the last line of the
+     * string, and the oldest method call will be the first line of the
+     * string. Each time this method is called it clears the log string for
+     * next time.
+     *
+     * @return a string listing all operations called on the dictionary, and
+     * how many comparisons were required to complete each operation.
+     */
+    @Override
+    public String getLogString() {
+        String logString = log.toString();
+        log = new StringBuilder();
+        return logString;
+    }
+
+    /**
+     * Provides a vertical string representation of the dictionary, in tree
+     * form.
+     * Note that the left child of a node is positioned above the right child.
+     *
+     * @return a string with the structure of the dictionary along with the
+     * associated values in the dictionary.
+     */
+    @Override
+    public String toString() {
+        reset();
+        String ret = root == nil ? "└── \n" : root.toString();
+        log("toString()");
+        return ret;
+    }
+
+    /**
+     * Internal method to insert a node into the red-black tree, and
+     * re-balance/restore red-black tree properties if necessary. If the
+     * dictionary is a multiset and already holds an equal element, the
+     * count of the existing node is increased instead.
+     *
+     * @param toInsert the node to insert into the dictionary
+     * @return the node now holding the element, or nil if the node was not
+     * inserted - that is, if the dictionary already contained the element
+     * and is not a multiset.
+     */
+    private Node insert(Node toInsert) {
+        if (toInsert.key == null) return nil;
+        Node curr = root;
+        //if the tree is empty, we simply set up the root node and then
+        //return early, since we don't need to do any further
+        //fixing/comparisons.
+        if (root == nil) {
+            root = toInsert;
+            toInsert.color = Node.COLOUR_BLACK;
+            toInsert.parent = nil;
+            min = max = root;
+            size += toInsert.count;
+            if (augmentation != null) update(toInsert);
+            record(Change.INSERTED, toInsert);
+            return toInsert;
+        } else {
+            toInsert.color = Node.COLOUR_RED;
+            //locate the position to insert the new node
+            while (true) {
+                int cmp = compare(toInsert, curr);
+                if (cmp < 0) {
+                    if (curr.left == nil) {
+                        curr.left = toInsert;
+                        toInsert.parent = curr;
+                        break;
+                    } else curr = curr.left;
+                } else if (cmp > 0) {
+                    if (curr.right == nil) {
+                        curr.right = toInsert;
+                        toInsert.parent = curr;
+                        break;
+                    } else curr = curr.right;
+                } else if (cmp == 0) {
+                    if (curr.count == 0) {
+                        revive(curr);
+                        record(Change.REVIVED, curr);
+                        return curr;
+                    }
+                    if (!multiset) return nil;
+                    ++curr.count;
+                    ++size;
+                    record(Change.INCREMENTED, curr);
+                    return curr;
+                }
+            }
+            //the new node changes the aggregate of each of its ancestors, so
+            //bring them up to date before any rotations take place
+            if (augmentation != null) propagate(toInsert);
+            //after insertion, we re-balance/restore red-black tree properties
+            fixInsert(toInsert);
+        }
+        //the below code uses two more comparisons to check if the new node
+        //is the new max/min of the tree, and updating if necessary.
+        if (min == nil || max == nil) {
+            min = max = toInsert;
+        } else {
+            if (compare(toInsert, min) < 0) min = toInsert;
+            else if (compare(toInsert, max) > 0) max = toInsert;
+        }
+        size += toInsert.count;
+        record(Change.INSERTED, toInsert);
+        return toInsert;
+    }
+
+    /**
+     * Provides a node to insert an element in, reusing a kept node if there
+     * is one. See {@link #recycle(int)}.
+     *
+     * @param item the element for the node to hold
+     * @return a red-black tree node holding the element, with no children
+     */
+    private Node node(E item) {
+        if (free == null) return new Node(item);
+        Node node = free;
+        free = node.right;
+        --freeCount;
+        node.key = item;
+        node.count = item == null ? 0 : 1;
+        node.color = Node.COLOUR_BLACK;
+        node.left = node.right = node.parent = nil;
+        return node;
+    }
+
+    /**
+     * Provides a node holding an element to search for, which must not be
+     * linked into the tree. The shared probe node is used while recycling.
+     *
+     * @param item the element to search for
+     * @return a node holding the element
+     */
+    private Node probe(E item) {
+        if (probe == null) return new Node(item);
+        probe.key = item;
+        return probe;
+    }
+
+    /**
+     * Keeps a node that is no longer in the tree for reuse, if recycling
+     * is enabled, there is room, and the node was never handed out as a
+     * handle.
+     *
+     * @param node the node to keep
+     */
+    private void release(Node node) {
+        if (node.exposed || undo != null || freeCount >= freeCapacity)
+            return;
+        node.key = null;
+        node.aggregate = null;
+        node.left = nil;
+        node.parent = null;
+        node.right = free;
+        free = node;
+        ++freeCount;
+    }
+
+    /**
+     * Internal method to remove a single occurrence of a node's element. If
+     * the dictionary is a multiset and the element occurs more than once,
+     * its count is decreased. Otherwise the node is marked as a tombstone
+     * if deletion is lazy and the node was never handed out as a handle, or
+     * else deleted.
+     *
+     * @param node the node holding the element to remove
+     * @return false if the node was only marked as a tombstone, so that the
+     * structure of the tree is unchanged and iterators remain valid
+     */
+    private boolean deleteOnce(Node node) {
+        if (node.count > 1) {
+            --node.count;
+            --size;
+            record(Change.DECREMENTED, node);
+        } else if (compactAt > 0 && !node.exposed) {
+            bury(node);
+            record(Change.BURIED, node);
+            return false;
+        } else {
+            delete(node);
+            //published before the node is recycled, which clears its key
+            record(Change.UNLINKED, node);
+            release(node);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a modification of the dictionary, invalidating iterators -
+     * unless a transaction is running, which counted once for all of its
+     * changes when it started.
+     */
+    private void changed() {
+        if (undo == null) ++operations;
+    }
+
+    /**
+     * Records a change in the undo log if a transaction is running, or
+     * otherwise publishes it to the subscribers of the feed, if there is
+     * one.
+     *
+     * @param kind the kind of change, one of the constants of
+     *             {@link Change}
+     * @param node the node changed
+     */
+    private void record(int kind, Node node) {
+        if (undoing) return;
+        if (undo != null) {
+            undo.add(new Change(kind, node));
+        } else if (feed != null) {
+            feed.publish(adds(kind), node.key);
+            feed.flush();
+        }
+    }
+
+    /**
+     * Checks whether a kind of change adds an occurrence of an element.
+     *
+     * @param kind the kind of change, one of the constants of
+     *             {@link Change}
+     * @return true if it adds an occurrence, false if it deletes one
+     */
+    private static boolean adds(int kind) {
+        return (kind & 1) == 0;
+    }
+
+    /**
+     * Undoes the changes made by a transaction, latest first, so that each
+     * node is back in the state the change found it in when it is undone.
+     *
+     * @param changes the changes, in the order they were made
+     */
+    private void rollback(List<Change> changes) {
+        undoing = true;
+        try {
+            for (int i = changes.size() - 1; i >= 0; --i) {
+                Node node = changes.get(i).node;
+                switch (changes.get(i).kind) {
+                    case Change.INSERTED:
+                        delete(node);
+                        break;
+                    case Change.UNLINKED:
+                        node.left = node.right = nil;
+                        insert(node);
+                        break;
+                    case Change.INCREMENTED:
+                        --node.count;
+                        --size;
+                        break;
+                    case Change.DECREMENTED:
+                        ++node.count;
+                        ++size;
+                        break;
+                    case Change.REVIVED:
+                        bury(node);
+                        break;
+                    default:
+                        revive(node);
+                }
+            }
+        } finally {
+            undoing = false;
+        }
+    }
+
+    /**
+     * Marks a node as a tombstone, leaving it linked into the tree, and
+     * compacts the tree if there are now too many tombstones. The cached
+     * minimum and maximum move on to the nearest live nodes.
+     *
+     * @param node the node to mark, which holds a single occurrence
+     */
+    private void bury(Node node) {
+        Node newMin = node == min ? next(successor(node)) : min;
+        Node newMax = node == max ? previous(predecessor(node)) : max;
+        node.count = 0;
+        --size;
+        ++tombstones;
+        min = newMin;
+        max = newMax;
+        if (augmentation != null) propagate(node);
+        if (tombstones > compactAt * (size + tombstones)) rebuild();
+    }
+
+    /**
+     * Turns a tombstone back into a live node holding a single occurrence
+     * of its element.
+     *
+     * @param node the tombstone to revive
+     */
+    private void revive(Node node) {
+        node.count = 1;
+        ++size;
+        --tombstones;
+        if (min == nil || compare(node, min) < 0) min = node;
+        if (max == nil || compare(node, max) > 0) max = node;
+        if (augmentation != null) propagate(node);
+    }
+
+    /**
+     * Rebuilds the tree from its live nodes alone, as a tree of minimum
+     * height, in linear time. Tombstones are unlinked and recycled if
+     * possible. Every node on the deepest level is coloured red and the
+     * rest black, which keeps the black-height equal on every path.
+     * Invalidates iterators.
+     */
+    private void rebuild() {
+        if (tombstones == 0 || undo != null) return;
+        Node[] live = nodes();
+        int n = 0;
+        for (Node node : live) {
+            if (node.count > 0) live[n++] = node;
+            else unlink(node);
+        }
+        relink(live, n);
+    }
+
+    /**
+     * Merges a sorted list of elements with the elements of the tree, and
+     * rebuilds the tree from the result. See {@link #addSorted(Iterable)}.
+     *
+     * @param items the elements to add, in ascending order
+     * @return the number of elements added
+     */
+    private int merge(List<E> items) {
+        Node[] nodes = nodes();
+        Node[] merged = Arrays.copyOf(nodes, nodes.length + items.size());
+        int i = 0, n = 0, added = 0;
+        for (E item : items) {
+            //everything before the item goes first
+            while (i < nodes.length && compare(item, nodes[i]) > 0) {
+                if (nodes[i].count > 0) merged[n++] = nodes[i];
+                else unlink(nodes[i]);
+                ++i;
+            }
+            Node node;
+            if (i < nodes.length && compare(item, nodes[i]) == 0) {
+                node = nodes[i];
+            } else if (n > 0 && compare(item, merged[n - 1]) == 0) {
+                //an element added earlier in the run
+                node = merged[n - 1];
+            } else {
+                node = merged[n++] = node(item);
+                node.count = 0;
+            }
+            if (node.count > 0 && !multiset) continue;
+            ++node.count;
+            ++size;
+            ++added;
+            if (feed != null) feed.publish(true, item);
+        }
+        for (; i < nodes.length; ++i) {
+            if (nodes[i].count > 0) merged[n++] = nodes[i];
+            else unlink(nodes[i]);
+        }
+        relink(merged, n);
+        if (feed != null) feed.flush();
+        return added;
+    }
+
+    /**
+     * Lists every node of the tree in order, tombstones included, without
+     * changing anything.
+     *
+     * @return the nodes in ascending order
+     */
+    private Node[] nodes() {
+        Node[] ret = nodeArray(16);
+        int n = 0;
+        Deque<Node> stack = new ArrayDeque<Node>();
+        for (Node node = root; node != nil || !stack.isEmpty(); ) {
+            if (node != nil) {
+                stack.push(node);
+                node = node.left;
+                continue;
+            }
+            node = stack.pop();
+            if (n == ret.length) ret = Arrays.copyOf(ret, n * 2);
+            ret[n++] = node;
+            node = node.right;
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Drops a node that is being left out of a rebuild, recycling it if
+     * possible. A handle to it becomes stale.
+     *
+     * @param node the node
+     */
+    private void unlink(Node node) {
+        node.parent = null;
+        release(node);
+    }
+
+    /**
+     * Replaces the tree with one of minimum height built from a sorted run
+     * of live nodes. See {@link #rebuild()}. Invalidates iterators.
+     *
+     * @param nodes the nodes in ascending order
+     * @param n the number of nodes, from the start of the array
+     */
+    private void relink(Node[] nodes, int n) {
+        //the depth of the deepest level of a tree of minimum height
+        int deepest = 31 - Integer.numberOfLeadingZeros(Math.max(n, 1));
+        root = build(nodes, 0, n - 1, 0, deepest);
+        root.parent = nil;
+        root.color = Node.COLOUR_BLACK;
+        min = n == 0 ? nil : nodes[0];
+        max = n == 0 ? nil : nodes[n - 1];
+        tombstones = 0;
+        ++operations;
+    }
+
+    /**
+     * Builds a subtree of minimum height from a sorted run of nodes, by
+     * making the middle node the root of the subtree. See
+     * {@link #rebuild()}.
+     *
+     * @param nodes the nodes in ascending order
+     * @param lo the index of the first node of the run
+     * @param hi the index of the last node of the run
+     * @param depth the depth of the root of the subtree
+     * @param deepest the depth of the deepest level of the whole tree
+     * @return the root of the subtree, or nil if the run is empty
+     */
+    private Node build(Node[] nodes, int lo, int hi, int depth, int deepest) {
+        if (lo > hi) return nil;
+        int mid = (lo + hi) >>> 1;
+        Node node = nodes[mid];
+        node.left = build(nodes, lo, mid - 1, depth + 1, deepest);
+        node.right = build(nodes, mid + 1, hi, depth + 1, deepest);
+        if (node.left != nil) node.left.parent = node;
+        if (node.right != nil) node.right.parent = node;
+        node.color = depth == deepest ? Node.COLOUR_RED : Node.COLOUR_BLACK;
+        if (augmentation != null) update(node);
+        return node;
+    }
+
+    /**
+     * Finds the first live node at or after a node, skipping tombstones.
+     *
+     * @param node the node to start from, or nil
+     * @return the first node in order from the argument that is not a
+     * tombstone, or nil if there is none
+     */
+    private Node next(Node node) {
+        while (node != nil && node.count == 0) node = successor(node);
+        return node;
+    }
+
+    /**
+     * Finds the last live node at or before a node, skipping tombstones.
+     *
+     * @param node the node to start from, or nil
+     * @return the first node in reverse order from the argument that is not
+     * a tombstone, or nil if there is none
+     */
+    private Node previous(Node node) {
+        while (node != nil && node.count == 0) node = predecessor(node);
+        return node;
+    }
+
+    /**
+     * Internal method to delete a node from the red-black tree, and restore
+     * red-black tree properties if necessary.
+     *
+     * @param toDelete the node to remove from the dictionary
+     */
+    private void delete(Node toDelete) {
+        //the node that moves into curr's original position in the tree
+        Node move;
+        //the node either removed from the tree or moved within the tree
+        Node curr = toDelete;
+        //the original colour of the node to delete - we need to save this in
+        //order to check the colour at the end of the method - if it is black
+        //then we need to fix possible violations of the red-black tree
+        //properties.
+        int yOrigColour = curr.color;
+        //the new min/max (if the node being deleted is the current min/max)
+        //is its in-order neighbour, which we find now by following
+        //pointers rather than searching from the root after the deletion
+        Node newMin = toDelete == min ? next(successor(toDelete)) : min;
+        Node newMax = toDelete == max ? previous(predecessor(toDelete)) : max;
+
+        //check the cases - dependent on how many children the node has
+        if (toDelete.left == nil) {
+            //if the node to delete doesn't have a left child, just replace it
+            //by the right child
+            move = toDelete.right;
+            transplant(toDelete, toDelete.right);
+        } else if (toDelete.right == nil) {
+            //and vice versa for the left child
+            move = toDelete.left;
+            transplant(toDelete, toDelete.left);
+        } else {
+            //if it has two children, find the successor
+            curr = minimum(toDelete.right);
+            //update the colour before any changes to the tree structure occur
+            yOrigColour = curr.color;
+            move = curr.right;
+            if (curr.parent == toDelete) {
+                move.parent = curr;
+            } else {
+                transplant(curr, curr.right);
+                curr.right = toDelete.right;
+                curr.right.parent = curr;
+            }
+            transplant(toDelete, curr);
+            curr.left = toDelete.left;
+            curr.left.parent = curr;
+            curr.color = toDelete.color;
+        }
+
+        //the transplants above changed the contents of every subtree on the
+        //path from the lowest moved position (the parent of the node that
+        //moved, which is set even when that is the sentinel) to the root
+        if (augmentation != null) propagate(move.parent);
+
+        //if the node colour was black then we might have violated the
+        //properties of a red-black tree - so fix up the tree
+        if (yOrigColour == Node.COLOUR_BLACK)
+            fixDelete(move);
+
+        //finally, update the references to the min/max, and mark the node
+        //as unlinked so that any handle to it is recognised as stale
+        min = newMin;
+        max = newMax;
+        size -= toDelete.count;
+        toDelete.parent = null;
+    }
+
+    /**
+     * Internal method for checking if the dictionary is empty. See
+     * documentation of method {@link #isEmpty()}. This method is also called
+     * from other methods, in which case it should <i>not</i> be appended to
+     * the log string. In the case that the client calls the
+     * {@link #isEmpty()} method, it <i>should</i> be appended to the log
+     * string.
+     *
+     * @param quiet if this parameter is true, the call will not be appended
+     *              to the log string. If false, it will log the call.
+     * @return true iff the dictionary contains no elements.
+     */
+    private boolean isEmpty(boolean quiet) {
+        if (!quiet) {
+            reset();
+            log("isEmpty()");
+        }
+        //the cached minimum is nil exactly when there are no live nodes
+        return min == nil;
+    }
+
+    /**
+     * Decides whether an item about to be added by {@link #add(Comparable)}
+     * or {@link #offer(Comparable)} should be inserted. Called within the
+     * operation, so comparisons made through {@link #compare(Comparable,
+     * Comparable)} are counted in its log line. Every item is admitted
+     * unless a subclass limits what the tree holds.
+     *
+     * @param item the item about to be added
+     * @return false if the item should not be added
+     */
+    boolean admit(E item) {
+        return true;
+    }
+
+    /**
+     * Called within {@link #add(Comparable)} and {@link #offer(Comparable)}
+     * once an item has been inserted. Does nothing unless a subclass limits
+     * what the tree holds.
+     */
+    void admitted() {
+    }
+
+    /**
+     * Runs an action straight away, or, if a transaction is running, once
+     * it commits - so that a subclass reporting the effects of a change
+     * does not report a change that is rolled back.
+     *
+     * @param action the action
+     * @param argument the argument to pass to the action
+     * @param <T> the type of the argument
+     */
+    <T> void defer(Consumer<? super T> action, T argument) {
+        if (undo == null) {
+            action.accept(argument);
+            return;
+        }
+        if (deferred == null) deferred = new ArrayList<Runnable>();
+        deferred.add(() -> action.accept(argument));
+    }
+
+    /**
+     * Gives the number of elements without logging the call, for use within
+     * another operation.
+     *
+     * @return the number of elements in the dictionary
+     */
+    int count() {
+        return size;
+    }
+
+    /**
+     * Retrieves the least or greatest element without logging the call, for
+     * use within another operation.
+     *
+     * @param least whether to retrieve the least element, rather than the
+     *              greatest
+     * @return the element, or null if the dictionary is empty
+     */
+    E peek(boolean least) {
+        return least ? min.key : max.key;
+    }
+
+    /**
+     * Retrieves and removes the least or greatest element without logging
+     * the call, for use within another operation. The cached node is
+     * unlinked directly, without any comparisons.
+     *
+     * @param least whether to remove the least element, rather than the
+     *              greatest
+     * @return the element removed, or null if the dictionary is empty
+     */
+    E poll(boolean least) {
+        Node node = least ? min : max;
+        E ret = node.key;
+        if (!isEmpty(true) && deleteOnce(node)) changed();
+        return ret;
+    }
+
+    /**
+     * Resolves a handle given by {@link #offer(Comparable)} to the node it
+     * refers to.
+     *
+     * @param handle the handle to resolve
+     * @return the node referred to by the handle, or nil if the handle is
+     * null, belongs to another dictionary, or refers to an entry that has
+     * since been removed
+     */
+    private Node owned(Handle<E> handle) {
+        if (!(handle instanceof RedBlackTree.Node)) return nil;
+        @SuppressWarnings("unchecked")
+        Node node = (Node) handle;
+        if (node.tree() != this || node == nil || node.parent == null)
+            return nil;
+        return node;
+    }
+
+    /**
+     * Finds the successor of a node. Used in the
+     * {@link TreeIterator#next()} method when iterating over the dictionary.
+     *
+     * @param node the node to find the successor for
+     * @return nil if the node doesn't have a successor, otherwise the
+     * least node greater than the argument
+     */
+    private Node successor(Node node) {
+        //fairly basic strategy - if the node has a right child, the
+        //successor is the minimum node of that subtree, otherwise move up
+        //the tree until we find a node such that the node is a left child -
+        //then the successor will be the parent of that node
+        if (node == nil || node == max) return nil;
+        if (node.right != nil) return minimum(node.right);
+        Node parent = node.parent;
+        while (parent != nil && node == parent.right) {
+            ++comparisons;
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Finds the successor of a node. Used in the
+     * {@link TreeIterator#next()} method when iterating over the dictionary.
+     *
+     * @param node the node to find the successor for
+     * @return nil if the node doesn't have a successor, otherwise the
+     * least node greater than the argument
+     */
+    private Node predecessor(Node node) {
+        //fairly basic strategy - if the node has a left child, the
+        //predecessor is the minimum node of that subtree, otherwise move up
+        //the tree until we find a node such that the node is a right child -
+        //then the predecessor will be the parent of that node
+        if (node == nil || node == min) return nil;
+        if (node.left != nil) return maximum(node.left);
+        Node parent = node.parent;
+        while (parent != nil && node == parent.left) {
+            ++comparisons;
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Finds the node <it>contained</it> in the tree that has the same
+     * value as the given node.
+     *
+     * @param toFind the node reference to find in the tree
+     * @return the valid node, with parent/left child/right child etc. values
+     * filled in, that has the equal element to the argument (or nil if no
+     * such node is found)
+     */
+    private Node locate(Node toFind) {
+        //if the tree is empty, no node exists
+        if (isEmpty(true)) return nil;
+        Node curr = root;
+        //move down the tree until we find an element with the same value (as
+        //defined by their comparative values)
+        while (curr != nil) {
+            int cmp = compare(toFind, curr);
+            if (cmp < 0) {
+                if (curr.left != nil) {
+                    curr = curr.left;
+                    continue;
+                }
+            } else if (cmp > 0) {
+                if (curr.right != nil) {
+                    curr = curr.right;
+                    continue;
+                }
+            } else if (cmp == 0) {
+                return curr;
+            }
+            curr = nil;
+        }
+        //didn't find anything, return the nil sentinel
+        return nil;
+    }
+
+    /**
+     * Creates an array of nodes. Java cannot create an array of a generic
+     * inner class directly, so an array of the raw class is cast instead.
+     *
+     * @param length the length of the array
+     * @return a new array of nulls
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node[] nodeArray(int length) {
+        return (Node[]) new RedBlackTree.Node[length];
+    }
+
+    /**
+     * Finds the nodes holding each of a batch of keys, given in ascending
+     * order. The path from the root to the last node reached is kept, along
+     * with the direction taken at each step, and each search resumes from
+     * the deepest node on that path whose subtree can still contain the
+     * next key. The keys of the nodes at which the path went left decrease
+     * with depth, and bound the subtrees below them from above, so the
+     * resumption point is found by checking just those nodes from the
+     * bottom of the path, stopping at the first whose key is greater.
+     *
+     * @param keys the keys to find, in ascending order
+     * @return an array where each element is the node holding the
+     * corresponding key, or nil if the key is null or not in the dictionary
+     * @throws IllegalArgumentException if the keys are null or are not in
+     * ascending order
+     */
+    private Node[] locate(E[] keys) throws IllegalArgumentException {
+        if (keys == null)
+            throw new IllegalArgumentException("argument is null");
+        Node[] found = nodeArray(keys.length);
+        //a red-black tree has height at most 2lg(n + 1), where tombstones
+        //count as nodes
+        int height = 2 * (32 - Integer.numberOfLeadingZeros(
+                size + tombstones + 1));
+        Node[] path = nodeArray(height + 1);
+        boolean[] wentLeft = new boolean[height + 1];
+        int depth = 0;
+        E prev = null;
+        for (int i = 0; i < keys.length; ++i) {
+            E key = keys[i];
+            found[i] = nil;
+            if (key == null) continue;
+            if (prev != null && compare(key, prev) < 0)
+                throw new IllegalArgumentException("probes are not sorted");
+            prev = key;
+            if (root == nil) continue;
+            //find the deepest node on the path whose subtree can contain the
+            //key - nodes we went left at (or found an earlier key at) with a
+            //key not greater than this one cut off everything below them
+            int restart = -1, cmp = 0;
+            for (int j = depth - 1; j >= 0; --j) {
+                if (!wentLeft[j]) continue;
+                int c = compare(key, path[j]);
+                if (c < 0) break;
+                restart = j;
+                cmp = c;
+            }
+            Node curr;
+            if (restart >= 0) {
+                depth = restart;
+                curr = path[depth];
+            } else if (depth > 0) {
+                curr = path[--depth];
+                cmp = compare(key, curr);
+            } else {
+                curr = root;
+                cmp = compare(key, curr);
+            }
+            //then carry on down the tree as in an ordinary search
+            while (curr != nil) {
+                path[depth] = curr;
+                wentLeft[depth] = cmp <= 0;
+                ++depth;
+                if (cmp == 0) {
+                    found[i] = curr;
+                    break;
+                }
+                curr = cmp < 0 ? curr.left : curr.right;
+                if (curr != nil) cmp = compare(key, curr);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the least node strictly greater than a given node. Used in the
+     * {@link #successor(Comparable)} method.
+     *
+     * @param node the node to find the 'successor' for
+     * @return the least node greater than the argument, or nil if there
+     * isn't one.
+     */
+    private Node above(Node node) {
+        Node curr = root;
+        while (curr != nil) {
+            int cmp = compare(node, curr);
+            if (cmp < 0) {
+                if (curr.left != nil) {
+                    curr = curr.left;
+                } else {
+                    //the argument is smaller than this node and there's no
+                    //smaller element on the left, so this must be directly
+                    //below the argument
+                    return curr;
+                }
+            } else {
+                //the argument is greater than or equal to the current node, so
+                //we either continue moving to the right down the tree or, if
+                //no right child exists, the node below will just be the
+                //successor of the current node
+                if (curr.right != nil) {
+                    curr = curr.right;
+                } else {
+                    return successor(curr);
+                }
+            }
+        }
+        return nil;
+    }
+
+    /**
+     * Finds the greatest node strictly less than a given node. Used in the
+     * {@link #predecessor(Comparable)} method.
+     *
+     * @param node the node to find the 'predecessor' for
+     * @return the greatest node less than the argument, or nil if there
+     * isn't one.
+     */
+    private Node below(Node node) {
+        Node curr = root;
+        while (curr != nil) {
+            int cmp = compare(node, curr);
+            if (cmp > 0) {
+                if (curr.right != nil) {
+                    curr = curr.right;
+                } else {
+                    //the argument is larger than this node and there's no
+                    //larger element on the right, so this must be directly
+                    //below the argument
+                    return curr;
+                }
+            } else {
+                //the argument is less than or equal to the current node, so
+                //we either continue moving to the left down the tree or, if
+                //no left child exists, the node below will just be the
+                //predecessor of the current node
+                if (curr.left != nil) {
+                    curr = curr.left;
+                } else {
+                    return predecessor(curr);
+                }
+            }
+        }
+        return nil;
+    }
+
+    /**
+     * Finds the least node greater than or equal to the given node. That is,
+     * if the argument's key is in the dictionary it will return that node,
+     * otherwise it will return the smallest node with key greater than the
+     * argument's key.
+     *
+     * @param toFind the key to find the ceiling for
+     * @return the least key greater than or equal to the argument, or the
+     * nil sentinel if no such key exists.
+     */
+    private Node ceiling(Node toFind) {
+        Node curr = root;
+        while (curr != nil) {
+            int cmp = compare(toFind, curr);
+            if (cmp < 0) {
+                if (curr.left != nil) {
+                    curr = curr.left;
+                } else {
+                    //we found an element that is larger than the argument
+                    //and there's no smaller element on the left, so the
+                    //ceiling must be this one
+                    return curr;
+                }
+            } else if (cmp > 0) {
+                if (curr.right != nil) {
+                    curr = curr.right;
+                } else {
+                    //we found an element that's smaller than the argument
+                    //and there's no larger right child, so the ceiling must
+                    //be the successor of this node
+                    return successor(curr);
+                }
+            } else {
+                //we found the element in the dictionary, so just return the
+                //reference to the valid node
+                return curr;
+            }
+        }
+        return nil;
+    }
+
+    /**
+     * Finds the greatest node less than or equal to the given node. That is,
+     * if the argument's key is in the dictionary it will return that node,
+     * otherwise it will return the greatest node with key less than the
+     * argument's key.
+     *
+     * @param toFind the key to find the floor for
+     * @return the greatest key less than or equal to the argument, or the
+     * nil sentinel if no such key exists.
+     */
+    private Node floor(Node toFind) {
+        Node curr = root;
+        while (curr != nil) {
+            int cmp = compare(toFind, curr);
+            if (cmp > 0) {
+                if (curr.right != nil) {
+                    curr = curr.right;
+                } else {
+                    //no larger element on the right, so the floor must be
+                    //this one
+                    return curr;
+                }
+            } else if (cmp < 0) {
+                if (curr.left != nil) {
+                    curr = curr.left;
+                } else {
+                    //no smaller left child, so the floor must be the
+                    //predecessor of this node
+                    return predecessor(curr);
+                }
+            } else {
+                return curr;
+            }
+        }
+        return nil;
+    }
+
+    /**
+     * After an insert, restores the properties of a red-black tree after any
+     * possible violations. After an insert, we may need to fix the following
+     * red-black tree properties:
+     * -the root must be black
+     * -a red node must have black children
+     * The pseudocode for this method can be found on page 316 of CLRS.
+     *
+     * @param node the node we have just inserted into the tree (initially red)
+     */
+    private void fixInsert(Node node) {
+        //continue until the parent is black
+        while (node.parent.color == Node.COLOUR_RED) {
+            ++comparisons;
+            Node uncle;
+            if (node.parent == node.parent.parent.left) {
+                //set the uncle to be the right child
+                uncle = node.parent.parent.right;
+
+                if (uncle.color == Node.COLOUR_RED) {
+                    //case 1 - the node's uncle is red
+                    node.parent.color = Node.COLOUR_BLACK;
+                    uncle.color = Node.COLOUR_BLACK;
+                    node.parent.parent.color = Node.COLOUR_RED;
+                    recoloured(3);
+                    node = node.parent.parent;
+                } else {
+                    if (node == node.parent.right) {
+                        //case 2 - uncle is black and node is a right child
+                        node = node.parent;
+                        rotateLeft(node);
+                    }
+                    //case 3 - uncle is black and node is a left child
+                    node.parent.color = Node.COLOUR_BLACK;
+                    node.parent.parent.color = Node.COLOUR_RED;
+                    recoloured(2);
+                    rotateRight(node.parent.parent);
+                }
+            } else {
+                //symmetric to the above clause with right and left exchanged
+                uncle = node.parent.parent.left;
+
+                if (uncle.color == Node.COLOUR_RED) {
+                    node.parent.color = Node.COLOUR_BLACK;
+                    uncle.color = Node.COLOUR_BLACK;
+                    node.parent.parent.color = Node.COLOUR_RED;
+                    recoloured(3);
+                    node = node.parent.parent;
+                } else {
+                    if (node == node.parent.left) {
+                        node = node.parent;
+                        rotateRight(node);
+                    }
+                    node.parent.color = Node.COLOUR_BLACK;
+                    node.parent.parent.color = Node.COLOUR_RED;
+                    recoloured(2);
+                    rotateLeft(node.parent.parent);
+                }
+            }
+        }
+        root.color = Node.COLOUR_BLACK;
+    }
+
+    /**
+     * Left-rotates the subtree around a given node. Runs in constant time.
+     * Transforms the subtree in the following way:
+     *
+     *       |                     |
+     *       x                     y
+     *     /  \                   / \
+     *    a   y      ===>        x  c
+     *       / \                / \
+     *      b  c               a  b
+     *
+     * The rotation preserves the properties of the red-black tree.
+     * The pseudocode for this method can be found on page 313 of CLRS.
+     *
+     * @param node the node to rotate about
+     */
+    private void rotateLeft(Node node) {
+        Node rightChild = node.right;
+        node.right = rightChild.left;
+        if (rightChild.left != nil) rightChild.left.parent = node;
+        rightChild.parent = node.parent;
+        if (node.parent == nil) root = rightChild;
+        else if (node == node.parent.left) node.parent.left = rightChild;
+        else node.parent.right = rightChild;
+        rightChild.left = node;
+        node.parent = rightChild;
+        if (statistics != null) statistics.rotated();
+        //the rotated subtree holds the same elements as before, so only the
+        //two nodes that swapped places need their aggregates fixing
+        if (augmentation != null) {
+            rightChild.aggregate = node.aggregate;
+            update(node);
+        }
+    }
+
+    /**
+     * Right-rotates the subtree around a given node. Runs in constant time.
+     * Transforms the subtree in the following way:
+     *
+     *       |                 |
+     *       y                 x
+     *      / \     ===>      / \
+     *     x  c              a  y
+     *    / \                  / \
+     *   a  b                 b  c
+     *
+     * The rotation preserves the properties of the red-black tree.
+     *
+     * @param node the node to rotate about
+     */
+    private void rotateRight(Node node) {
+        Node leftChild = node.left;
+        node.left = leftChild.right;
+        if (leftChild.right != nil) leftChild.right.parent = node;
+        leftChild.parent = node.parent;
+        if (node.parent == nil) root = leftChild;
+        else if (node == node.parent.right) node.parent.right = leftChild;
+        else node.parent.left = leftChild;
+        leftChild.right = node;
+        node.parent = leftChild;
+        if (statistics != null) statistics.rotated();
+        if (augmentation != null) {
+            leftChild.aggregate = node.aggregate;
+            update(node);
+        }
+    }
+
+    /**
+     * Convenience method to move subtrees around within the red-black tree.
+     * Replaces one subtree as a child of its parent with another subtree.
+     * Node u's parent becomes node v's parent, and u's parent has v as the
+     * appropriate child.
+     *
+     * @param u the node to transplant
+     * @param v the node to transplant u with
+     */
+    private void transplant(Node u, Node v) {
+        //handle the case when u is the root
+        if (u.parent == nil) root = v;
+        //if u is the left child, update accordingly
+        else if (u == u.parent.left) u.parent.left = v;
+        //otherwise u is the right child
+        else u.parent.right = v;
+        //we can assign to the parent of v even if v is the sentinel
+        v.parent = u.parent;
+    }
+
+    /**
+     * Restores the following properties to the red-black tree after deletion
+     * of a node:
+     * -every node is either red or black
+     * -the root is black
+     * -if a node is red then both of its children are black
+     * The pseudocode for this method can be found on page 326 of CLRS.
+     *
+     * @param node the node that occupies the deleted node's original position
+     */
+    private void fixDelete(Node node) {
+        while (node != root && node.color == Node.COLOUR_BLACK) {
+            ++comparisons;
+            if (node == node.parent.left) {
+                Node sibling = node.parent.right;
+                if (sibling.color == Node.COLOUR_RED) {
+                    //case 1 - node's sibling is red
+                    sibling.color = Node.COLOUR_BLACK;
+                    node.parent.color = Node.COLOUR_RED;
+                    recoloured(2);
+                    rotateLeft(node.parent);
+                    sibling = node.parent.right;
+                }
+                if (sibling.left.color == Node.COLOUR_BLACK
+                        && sibling.right.color == Node.COLOUR_BLACK) {
+                    //case 2 - node's sibling is black and both of the
+                    //sibling's children are black
+                    sibling.color = Node.COLOUR_RED;
+                    recoloured(1);
+                    node = node.parent;
+                } else {
+                    if (sibling.right.color == Node.COLOUR_BLACK) {
+                        //case 3 - node's sibling is black, the node's left
+                        //child is red, and the node's right child is black
+                        sibling.left.color = Node.COLOUR_BLACK;
+                        sibling.color = Node.COLOUR_RED;
+                        recoloured(2);
+                        rotateRight(sibling);
+                        sibling = node.parent.right;
+                    }
+                    //case 4 - the node's sibling is black and the sibling's
+                    //right child is red
+                    sibling.color = node.parent.color;
+                    node.parent.color = Node.COLOUR_BLACK;
+                    sibling.right.color = Node.COLOUR_BLACK;
+                    recoloured(3);
+                    rotateLeft(node.parent);
+                    node = root;
+                }
+            } else {
+                //symmetric to the above clause with left and right exchanged
+                Node sibling = node.parent.left;
+                if (sibling.color == Node.COLOUR_RED) {
+                    sibling.color = Node.COLOUR_BLACK;
+                    node.parent.color = Node.COLOUR_RED;
+                    recoloured(2);
+                    rotateRight(node.parent);
+                    sibling = node.parent.left;
+                }
+                if (sibling.right.color == Node.COLOUR_BLACK
+                        && sibling.left.color == Node.COLOUR_BLACK) {
+                    sibling.color = Node.COLOUR_RED;
+                    recoloured(1);
+                    node = node.parent;
+                } else {
+                    if (sibling.left.color == Node.COLOUR_BLACK) {
+                        sibling.right.color = Node.COLOUR_BLACK;
+                        sibling.color = Node.COLOUR_RED;
+                        recoloured(2);
+                        rotateLeft(sibling);
+                        sibling = node.parent.left;
+                    }
+                    sibling.color = node.parent.color;
+                    node.parent.color = Node.COLOUR_BLACK;
+                    sibling.left.color = Node.COLOUR_BLACK;
+                    recoloured(3);
+                    rotateRight(node.parent);
+                    node = root;
+                }
+            }
+        }
+        node.color = Node.COLOUR_BLACK;
+    }
+
+    /**
+     * Recomputes the aggregate of a node from the aggregates of its
+     * children. Runs in constant time.
+     *
+     * @param node the node whose aggregate should be recomputed
+     */
+    private void update(Node node) {
+        node.aggregate = augmentation.combine(
+                augmentation.combine(
+                        node.left.aggregate,
+                        node.count == 0 ? augmentation.identity()
+                                : augmentation.lift(node.key)
+                ),
+                node.right.aggregate
+        );
+    }
+
+    /**
+     * Recomputes the aggregates of a node and all of its ancestors, after
+     * the contents of the node's subtree have changed.
+     *
+     * @param node the lowest node whose subtree has changed
+     */
+    private void propagate(Node node) {
+        while (node != nil) {
+            update(node);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Finds the aggregate of the elements of a subtree that lie within a
+     * range. Once the range splits across a node, each side only has one
+     * bound left, and the subtrees on the far side of that bound are taken
+     * whole, so this runs in logarithmic time.
+     *
+     * @param node the root of the subtree
+     * @param lo the least element of the range, or null if unbounded below
+     * @param hi the greatest element of the range, or null if unbounded
+     *           above
+     * @return the aggregate of the elements in the subtree within the range
+     */
+    private Object aggregate(Node node, Node lo, Node hi) {
+        return aggregate(node, lo, hi, 0);
+    }
+
+    /**
+     * Finds the aggregate of the elements of a subtree that lie within a
+     * range, as {@link #aggregate(Node, Node, Node)} does, with the bounds
+     * either inclusive or exclusive.
+     *
+     * @param node the root of the subtree
+     * @param lo the lower bound of the range, or null if it is unbounded
+     * below
+     * @param hi the upper bound of the range, or null if it is unbounded
+     * above
+     * @param strict 0 if the bounds are inclusive, or 1 if they are
+     *               exclusive
+     * @return the aggregate of the elements within the range
+     */
+    private Object aggregate(Node node, Node lo, Node hi, int strict) {
+        //move down until the node lies within the range - with exclusive
+        //bounds, a node equal to a bound lies outside it
+        while (node != nil) {
+            if (lo != null && compare(node, lo) < strict) node = node.right;
+            else if (hi != null && compare(node, hi) > -strict)
+                node = node.left;
+            else break;
+        }
+        if (node == nil) return augmentation.identity();
+        if (lo == null && hi == null) return node.aggregate;
+        return augmentation.combine(
+                augmentation.combine(
+                        aggregate(node.left, lo, null, strict),
+                        node.count == 0 ? augmentation.identity()
+                                : augmentation.lift(node.key)
+                ),
+                aggregate(node.right, null, hi, strict)
+        );
+    }
+
+    /**
+     * Checks that the dictionary is augmented with a digest.
+     *
+     * @throws IllegalStateException if it is not
+     */
+    private void digested() throws IllegalStateException {
+        if (!(augmentation instanceof ContentDigest))
+            throw new IllegalStateException(
+                    "dictionary is not augmented with a digest");
+    }
+
+    /**
+     * Reports the differences between a subtree and the elements of a
+     * replica strictly between two bounds, given the replica's digest of
+     * them. Recurses only into subtrees whose digests differ from the
+     * replica's.
+     *
+     * @param node the root of the subtree
+     * @param lo the element below the subtree, or null if there is none
+     * @param hi the element above the subtree, or null if there is none
+     * @param remote the replica's digest of the range
+     * @param other the replica
+     * @param onlyHere is given each element only in this dictionary
+     * @param onlyThere is given each element only in the replica
+     */
+    private void diff(Node node, E lo, E hi, long remote, Replica<E> other,
+                      Consumer<? super E> onlyHere,
+                      Consumer<? super E> onlyThere) {
+        if ((Long) node.aggregate == remote) return;
+        if (node == nil) {
+            for (E item : other.elements(lo, hi)) onlyThere.accept(item);
+            return;
+        }
+        long left = other.digest(lo, node.key);
+        long right = other.digest(node.key, hi);
+        //whatever is left over is the replica's digest of this element,
+        //which is zero if it does not hold it
+        long there = remote - left - right;
+        long here = node.count == 0 ? 0 : (Long) augmentation.lift(node.key);
+        diff(node.left, lo, node.key, left, other, onlyHere, onlyThere);
+        if (here != there) {
+            if (here != 0) onlyHere.accept(node.key);
+            else onlyThere.accept(node.key);
+        }
+        diff(node.right, node.key, hi, right, other, onlyHere, onlyThere);
+    }
+
+    /**
+     * Finds the greatest matching node less than a bound in a subtree, as
+     * for {@link #last(String, Predicate, Predicate, Comparable)}. Only
+     * subtrees straddling the bound, and those whose aggregates pass the
+     * test, are entered.
+     *
+     * @param node the root of the subtree
+     * @param subtree tests whether a subtree could contain a match
+     * @param element tests whether an element matches
+     * @param below the bound, or null for no bound
+     * @return the greatest matching node less than the bound, or nil
+     */
+    private Node last(Node node, Predicate<Object> subtree,
+                      Predicate<? super E> element, E below) {
+        if (node == nil || !subtree.test(node.aggregate)) return nil;
+        if (below != null && compare(below, node) <= 0)
+            return last(node.left, subtree, element, below);
+        //the node and its left subtree all lie below the bound
+        Node ret = last(node.right, subtree, element, below);
+        if (ret != nil) return ret;
+        if (node.count > 0 && element.test(node.key)) return node;
+        return last(node.left, subtree, element, null);
+    }
+
+    /**
+     * Finds the least matching node greater than a bound in a subtree, as
+     * for {@link #first(String, Predicate, Predicate, Comparable)}.
+     *
+     * @param node the root of the subtree
+     * @param subtree tests whether a subtree could contain a match
+     * @param element tests whether an element matches
+     * @param above the bound, or null for no bound
+     * @return the least matching node greater than the bound, or nil
+     */
+    private Node first(Node node, Predicate<Object> subtree,
+                       Predicate<? super E> element, E above) {
+        if (node == nil || !subtree.test(node.aggregate)) return nil;
+        if (above != null && compare(above, node) >= 0)
+            return first(node.right, subtree, element, above);
+        //the node and its right subtree all lie above the bound
+        Node ret = first(node.left, subtree, element, above);
+        if (ret != nil) return ret;
+        if (node.count > 0 && element.test(node.key)) return node;
+        return first(node.right, subtree, element, null);
+    }
+
+    /**
+     * Gives the result of {@link Comparable#compareTo(Object)} when
+     * comparing the first node to the second, and also increments the number
+     * of comparisons used. This method is used instead of {@link
+     * Comparable#compareTo(Object)} to keep track of comparisons for the log
+     * string.
+     *
+     * @param n1 the first node
+     * @param n2 the node to compare the first node to
+     * @return the result of n1.compareTo(n2)
+     */
+    private int compare(Node n1, Node n2) {
+        ++comparisons;
+        return n1.compareTo(n2);
+    }
+
+    /**
+     * Gives the result of {@link Comparable#compareTo(Object)} when
+     * comparing a key to the key of a node, counting the comparison as
+     * {@link #compare(Node, Node)} does, without needing a node to be made
+     * for the key.
+     *
+     * @param key the key
+     * @param node the node to compare the key to
+     * @return the result of key.compareTo(node.key)
+     */
+    private int compare(E key, Node node) {
+        ++comparisons;
+        return key.compareTo(node.key);
+    }
+
+    /**
+     * Gives the result of {@link Comparable#compareTo(Object)} when
+     * comparing two keys, counting the comparison.
+     *
+     * @param k1 the first key
+     * @param k2 the key to compare the first key to
+     * @return the result of k1.compareTo(k2)
+     */
+    int compare(E k1, E k2) {
+        ++comparisons;
+        return k1.compareTo(k2);
+    }
+
+    /**
+     * Resets the comparison counter. Used at the start of each public method
+     * defined in the {@link Dictionary} interface, so that the number of
+     * node comparisons can be kept track of (for the log string).
+     */
+    private void reset() {
+        comparisons = 0;
+        if (statistics != null) statistics.begin();
+    }
+
+    /**
+     * Adds a new line to the log string describing the method that was just
+     * called and the number of comparisons made.
+     * @param method the method name.
+     */
+    private void log(String method) {
+        append(method, null, null, 0);
+    }
+
+    /**
+     * Adds a new line to the log string describing the method that was just
+     * called, with its argument, and the number of comparisons made.
+     * @param method the method name, as a format string for the argument.
+     * @param arg the argument of the method.
+     */
+    private void log(String method, Object arg) {
+        append(method, arg, null, 1);
+    }
+
+    /**
+     * Adds a new line to the log string describing the method that was just
+     * called, with its arguments, and the number of comparisons made.
+     * @param method the method name, as a format string for the arguments.
+     * @param first the first argument of the method.
+     * @param second the second argument of the method.
+     */
+    private void log(String method, Object first, Object second) {
+        append(method, first, second, 2);
+    }
+
+    /**
+     * Completes an operation: appends it to the log string if logging is
+     * enabled, records it in the statistics if the tree is instrumented, and
+     * clears the probe node. The description is only formatted if it is
+     * logged, and no arrays are created for the arguments otherwise.
+     * @param method the method name, as a format string for the arguments.
+     * @param first the first argument, if any.
+     * @param second the second argument, if any.
+     * @param args the number of arguments.
+     */
+    private void append(String method, Object first, Object second,
+                        int args) {
+        line(method, first, second, args);
+        complete(method, comparisons);
+    }
+
+    /**
+     * Appends a line to the log string if logging is enabled, giving the
+     * number of comparisons made since the last reset.
+     * @param method the method name, as a format string for the arguments.
+     * @param first the first argument, if any.
+     * @param second the second argument, if any.
+     * @param args the number of arguments.
+     */
+    private void line(String method, Object first, Object second,
+                      int args) {
+        if (logging) {
+            String call = args == 0 ? method : args == 1
+                    ? String.format(method, first)
+                    : String.format(method, first, second);
+            log.append(String.format(LOG_MSG, call, comparisons));
+        }
+    }
+
+    /**
+     * Ends an operation: records it in the statistics if the tree is
+     * instrumented, and clears the probe node.
+     * @param method the method name, as a format string for the arguments.
+     * @param comparisons the number of comparisons the whole operation made.
+     */
+    private void complete(String method, int comparisons) {
+        if (statistics != null) statistics.end(method, comparisons, size);
+        if (probe != null) probe.key = null;
+    }
+
+    /**
+     * Records that nodes were recoloured while rebalancing, if the tree is
+     * instrumented.
+     *
+     * @param nodes the number of nodes recoloured
+     */
+    private void recoloured(int nodes) {
+        if (statistics != null) statistics.recoloured(nodes);
+    }
+
+    /**
+     * Creates the exception thrown by an iterator when the tree has been
+     * modified underneath it, recording it if the tree is instrumented.
+     *
+     * @return the exception to throw
+     */
+    private ConcurrentModificationException modified() {
+        if (statistics != null) statistics.modified();
+        return new ConcurrentModificationException(
+                "backing dictionary has been modified"
+        );
+    }
+
+    /**
+     * Finds the maximum node in a subtree.
+     * @param node the root node of this subtree
+     * @return the maximum node in the subtree
+     */
+    private Node maximum(Node node) {
+        while (node.right != nil) {
+            ++comparisons;
+            node = node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Finds the minimum node in a subtree.
+     * @param node the root node of this subtree
+     * @return the minimum node in the subtree
+     */
+    private Node minimum(Node node) {
+        while (node.left != nil) {
+            ++comparisons;
+            node = node.left;
+        }
+        return node;
+    }
+
+    /**
+     * An internal class representing an internal red-black tree node. Each
+     * node instance is coloured either red or black.
+     */
+    private class Node implements Comparable<Node>, Handle<E> {
+
+        /**
+         * The byte value representing the colour red.
+         */
+        private static final byte COLOUR_RED = 0;
+
+        /**
+         * The byte value representing the colour black.
+         */
+        private static final byte COLOUR_BLACK = 1;
+
+        /**
+         * The 'data' held by the node.
+         */
+        private E key;
+
+        /**
+         * The current colour of the node.
+         */
+        private int color = COLOUR_BLACK;
+
+        /**
+         * References to the left child of the node, the right child of the
+         * node, and the node's parent. The left child is less than this node,
+         * and the right child is greater.
+         */
+        private Node left, right, parent;
+
+        /**
+         * The aggregate of this node's subtree, if the tree is augmented.
+         * The sentinel holds the identity aggregate.
+         */
+        private Object aggregate;
+
+        /**
+         * The number of occurrences of the element held by this node. Always
+         * one unless the dictionary is a multiset, and zero for the sentinel.
+         */
+        private int count;
+
+        /**
+         * Whether the node has been handed out as a {@link Handle}, in which
+         * case it is never recycled.
+         */
+        private boolean exposed;
+
+        /**
+         * Creates a new black node with undefined children and parent.
+         *
+         * @param key the element (key/value) for this node to hold.
+         */
+        private Node(E key) {
+            this.key = key;
+            count = key == null ? 0 : 1;
+            left = nil;
+            right = nil;
+            parent = nil;
+        }
+
+        /**
+         * Returns a string representing the internal state of the subtree,
+         * with this node as root.
+         * @return a string representation of this node's subtree
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            toString("", sb, true);
+            return sb.toString();
+        }
+
+        /**
+         * Internal recursive method for filling in the {@link
+         * StringBuilder}, as used in {@link #toString()}.
+         *
+         * Adapted from: http://stackoverflow.com/a/8948691/2251226
+         *
+         * @param prefix the character directly before this node
+         * @param sb the current string representation of the tree, appended
+         *           to by this method
+         * @param tail whether this node is the last sibling
+         */
+        private void toString(String prefix, StringBuilder sb, boolean tail) {
+            sb.append(prefix)
+                    .append(tail ? "└── " : "├── ")
+                    .append(key)
+                    .append(count == 0 ? " (deleted)\n" : "\n");
+            if (left != nil) {
+                left.toString(
+                        prefix + (tail ? "    " : "│   "),
+                        sb,
+                        right == nil
+                );
+            }
+            if (right != nil) {
+                right.toString(
+                        prefix + (tail ? "    " : "│   "),
+                        sb,
+                        true
+                );
+            }
+        }
+
+        /**
+         * Gives the element held by this node.
+         *
+         * @return the element held by this node
+         */
+        @Override
+        public E get() {
+            return key;
+        }
+
+        /**
+         * Gives the dictionary that created this node, used to check that a
+         * {@link Handle} belongs to a particular dictionary.
+         *
+         * @return the dictionary that this node belongs to
+         */
+        private RedBlackTree<E> tree() {
+            return RedBlackTree.this;
+        }
+
+        /**
+         * Wraps the compareTo call of the key of this node for convenience.
+         *
+         * @param node the node to compare this node with
+         * @return the result of comparing the two node's keys
+         */
+        @Override
+        public int compareTo(Node node) {
+            return key.compareTo(node.key);
+        }
+
+    }
+
+    /**
+     * A reference to a single entry of the dictionary, as returned by
+     * {@link #offer(Comparable)}. A handle allows an entry to be removed or
+     * re-keyed without first searching for it. A handle becomes stale once
+     * its entry has been removed from the dictionary by any means.
+     *
+     * @param <E> the type of element held by the entry
+     */
+    public interface Handle<E> {
+
+        /**
+         * Gives the element currently held by the entry.
+         *
+         * @return the element held by the entry
+         */
+        E get();
+
+    }
+
+    /**
+     * A dictionary that another can be compared with by
+     * {@link RedBlackTree#diff(Replica, Consumer, Consumer)}, usually a
+     * stand-in forwarding each request to a remote copy of a dictionary.
+     * Ranges are given by exclusive bounds, either of which may be null to
+     * leave the range unbounded on that side.
+     *
+     * @param <E> the type of element held by the dictionary
+     */
+    public interface Replica<E> {
+
+        /**
+         * Gives the digest of the elements strictly between two bounds, as
+         * defined by {@link Augmentation#digest()}.
+         *
+         * @param lo the lower bound, or null for none
+         * @param hi the upper bound, or null for none
+         * @return the digest of the elements in the range
+         */
+        long digest(E lo, E hi);
+
+        /**
+         * Lists the elements strictly between two bounds.
+         *
+         * @param lo the lower bound, or null for none
+         * @param hi the upper bound, or null for none
+         * @return the elements in the range, in ascending order
+         */
+        List<E> elements(E lo, E hi);
+
+    }
+
+    /**
+     * A change made within a transaction, as recorded in the undo log. The
+     * kinds of change that add an occurrence of an element are numbered
+     * evenly, and those that delete one oddly.
+     */
+    private final class Change {
+
+        /**
+         * A node was linked into the tree.
+         */
+        static final int INSERTED = 0;
+
+        /**
+         * A node was unlinked from the tree.
+         */
+        static final int UNLINKED = 1;
+
+        /**
+         * The count of a node of a multiset was increased.
+         */
+        static final int INCREMENTED = 2;
+
+        /**
+         * The count of a node of a multiset was decreased.
+         */
+        static final int DECREMENTED = 3;
+
+        /**
+         * A tombstone was revived.
+         */
+        static final int REVIVED = 4;
+
+        /**
+         * A node was marked as a tombstone.
+         */
+        static final int BURIED = 5;
+
+        /**
+         * The kind of change.
+         */
+        private final int kind;
+
+        /**
+         * The node changed.
+         */
+        private final Node node;
+
+        /**
+         * Creates a new record of a change.
+         *
+         * @param kind the kind of change
+         * @param node the node changed
+         */
+        private Change(int kind, Node node) {
+            this.kind = kind;
+            this.node = node;
+        }
+    }
+
+    /**
+     * A view of the dictionary as a replica, answering requests with range
+     * aggregates and a walk of the range.
+     */
+    private final class LocalReplica implements Replica<E> {
+
+        @Override
+        public long digest(E lo, E hi) {
+            return (Long) aggregate(root, lo == null ? null : new Node(lo),
+                    hi == null ? null : new Node(hi), 1);
+        }
+
+        @Override
+        public List<E> elements(E lo, E hi) {
+            List<E> ret = new ArrayList<E>();
+            Node node = lo == null ? min : next(above(new Node(lo)));
+            Node bound = hi == null ? null : new Node(hi);
+            while (node != nil && (bound == null || compare(node, bound) < 0)) {
+                ret.add(node.key);
+                node = next(successor(node));
+            }
+            return ret;
+        }
+
+    }
+
+    /**
+     * The view of the dictionary given to the body of a transaction. Every
+     * operation is passed on to the dictionary, once the view has checked
+     * that its transaction is still running. Its iterators are fail-fast
+     * against the changes recorded in the transaction's undo log, since
+     * those do not count as modifications of the dictionary individually.
+     */
+    private final class Batch implements Dictionary<E> {
+
+        /**
+         * The undo log of the transaction.
+         */
+        private final List<Change> changes;
+
+        /**
+         * Creates a view for a transaction.
+         *
+         * @param changes the undo log of the transaction
+         */
+        private Batch(List<Change> changes) {
+            this.changes = changes;
+        }
+
+        /**
+         * Checks that the transaction is still running.
+         *
+         * @throws IllegalStateException if it has ended
+         */
+        private void check() throws IllegalStateException {
+            if (undo != changes)
+                throw new IllegalStateException("transaction has ended");
+        }
+
+        @Override
+        public boolean isEmpty() {
+            check();
+            return RedBlackTree.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(E item) {
+            check();
+            return RedBlackTree.this.contains(item);
+        }
+
+        @Override
+        public boolean hasPredecessor(E item) {
+            check();
+            return RedBlackTree.this.hasPredecessor(item);
+        }
+
+        @Override
+        public boolean hasSuccessor(E item) {
+            check();
+            return RedBlackTree.this.hasSuccessor(item);
+        }
+
+        @Override
+        public E predecessor(E item) throws NoSuchElementException {
+            check();
+            return RedBlackTree.this.predecessor(item);
+        }
+
+        @Override
+        public E successor(E item) throws NoSuchElementException {
+            check();
+            return RedBlackTree.this.successor(item);
+        }
+
+        @Override
+        public E min() throws NoSuchElementException {
+            check();
+            return RedBlackTree.this.min();
+        }
+
+        @Override
+        public E max() throws NoSuchElementException {
+            check();
+            return RedBlackTree.this.max();
+        }
+
+        @Override
+        public boolean add(E item) {
+            check();
+            return RedBlackTree.this.add(item);
+        }
+
+        @Override
+        public boolean delete(E item) {
+            check();
+            return RedBlackTree.this.delete(item);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            check();
+            return new BatchIterator(RedBlackTree.this.iterator());
         }
-        return node;
-    }
 
-    /**
-     * Finds the minimum node in a subtree.
-     * @param node the root node of this subtree
-     * @return the minimum node in the subtree
-     */
-    private Node minimum(Node node) {
-        while (node.left != nil) {
-            ++comparisons;
-            node = node.left;
+        @Override
+        public Iterator<E> iterator(E start) {
+            check();
+            return new BatchIterator(RedBlackTree.this.iterator(start));
         }
-        return node;
-    }
 
-    /**
-     * An internal class representing an internal red-black tree node. Each
-     * node instance is coloured either red or black.
-     */
-    private class Node implements Comparable<Node> {
+        @Override
+        public String getLogString() {
+            check();
+            return RedBlackTree.this.getLogString();
+        }
 
-        /**
-         * The byte value representing the colour red.
-         */
-        private static final byte COLOUR_RED = 0;
+        @Override
+        public String toString() {
+            check();
+            return RedBlackTree.this.toString();
+        }
 
         /**
-         * The byte value representing the colour black.
+         * Wraps an iterator over the dictionary, failing if the transaction
+         * has made any other change since the iterator was created, or has
+         * ended.
          */
-        private static final byte COLOUR_BLACK = 1;
+        private final class BatchIterator implements Iterator<E> {
+
+            /**
+             * The iterator over the dictionary.
+             */
+            private final Iterator<E> iterator;
+
+            /**
+             * The number of changes in the undo log that this iterator has
+             * seen.
+             */
+            private int seen;
+
+            /**
+             * Creates a new iterator.
+             *
+             * @param iterator the iterator over the dictionary
+             */
+            private BatchIterator(Iterator<E> iterator) {
+                this.iterator = iterator;
+                seen = changes.size();
+            }
+
+            /**
+             * Checks that the transaction is running and has made no other
+             * changes.
+             *
+             * @throws ConcurrentModificationException if it has
+             */
+            private void validate() throws ConcurrentModificationException {
+                if (undo != changes || seen != changes.size())
+                    throw modified();
+            }
+
+            @Override
+            public boolean hasNext() {
+                validate();
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                validate();
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                validate();
+                iterator.remove();
+                seen = changes.size();
+            }
+
+        }
+
+    }
+
+    /**
+     * An in-order walk of the tree using an explicit stack of the nodes
+     * whose left subtrees have been visited but which have not themselves
+     * been visited yet, deepest on top. The stack starts out large enough
+     * for any red-black tree of the current number of nodes, whose height
+     * is at most 2·log2(n + 1), so it only grows if the tree is modified
+     * during the walk - which is then reported by the caller.
+     */
+    private final class Traversal {
 
         /**
-         * The 'data' held by the node.
+         * The pending nodes, deepest at the highest index.
          */
-        private E key;
+        private Node[] stack;
 
         /**
-         * The current colour of the node.
+         * The number of pending nodes.
          */
-        private int color = COLOUR_BLACK;
+        private int top;
 
         /**
-         * References to the left child of the node, the right child of the
-         * node, and the node's parent. The left child is less than this node,
-         * and the right child is greater.
+         * Creates a new, empty walk.
          */
-        private Node left, right, parent;
+        private Traversal() {
+            int nodes = size + tombstones + 1;
+            stack = nodeArray(2 * (32 - Integer.numberOfLeadingZeros(nodes)));
+        }
 
         /**
-         * Creates a new black node with undefined children and parent.
+         * Adds a node to the top of the stack.
          *
-         * @param key the element (key/value) for this node to hold.
+         * @param node the node to add
          */
-        private Node(E key) {
-            this.key = key;
-            left = nil;
-            right = nil;
-            parent = nil;
+        private void push(Node node) {
+            if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = node;
         }
 
         /**
-         * Returns a string representing the internal state of the subtree,
-         * with this node as root.
-         * @return a string representation of this node's subtree
+         * Adds the left spine of a subtree to the stack - the nodes to visit,
+         * in reverse order, before anything else in the subtree.
+         *
+         * @param node the root of the subtree
          */
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            toString("", sb, true);
-            return sb.toString();
+        private void spine(Node node) {
+            for (; node != nil; node = node.left) push(node);
         }
 
         /**
-         * Internal recursive method for filling in the {@link
-         * StringBuilder}, as used in {@link #toString()}.
-         *
-         * Adapted from: http://stackoverflow.com/a/8948691/2251226
-         *
-         * @param prefix the character directly before this node
-         * @param sb the current string representation of the tree, appended
-         *           to by this method
-         * @param tail whether this node is the last sibling
+         * Reverses the order of the nodes on the stack.
          */
-        private void toString(String prefix, StringBuilder sb, boolean tail) {
-            sb.append(prefix)
-                    .append(tail ? "└── " : "├── ")
-                    .append(key)
-                    .append('\n');
-            if (left != nil) {
-                left.toString(
-                        prefix + (tail ? "    " : "│   "),
-                        sb,
-                        right == nil
-                );
-            }
-            if (right != nil) {
-                right.toString(
-                        prefix + (tail ? "    " : "│   "),
-                        sb,
-                        true
-                );
+        private void reverse() {
+            for (int i = 0, j = top - 1; i < j; ++i, --j) {
+                Node tmp = stack[i];
+                stack[i] = stack[j];
+                stack[j] = tmp;
             }
         }
 
         /**
-         * Wraps the compareTo call of the key of this node for convenience.
+         * Visits the pending nodes in order, performing an action for each
+         * occurrence of their elements, until the stack is empty or an
+         * element greater than hi is reached. Tombstones are passed over.
+         * Stops early, as {@link java.util.ArrayList#forEach(Consumer)}
+         * does, if the action modifies the dictionary - otherwise an action
+         * that keeps adding greater elements would never finish. The caller
+         * then reports the modification.
          *
-         * @param node the node to compare this node with
-         * @return the result of comparing the two node's keys
+         * @param action the action to perform for each element
+         * @param hi the greatest element to visit, or null for no bound
+         * @param ops the number of modifications when the walk began
+         * @return the last node visited, or nil if there was none
          */
-        @Override
-        public int compareTo(Node node) {
-            return key.compareTo(node.key);
+        private Node run(Consumer<? super E> action, E hi, int ops) {
+            Node last = nil;
+            while (top > 0 && ops == operations) {
+                Node node = stack[--top];
+                if (hi != null && compare(hi, node) < 0) break;
+                spine(node.right);
+                for (int i = node.count; i > 0; --i) action.accept(node.key);
+                if (node.count > 0) last = node;
+            }
+            return last;
         }
 
     }
 
     /**
      * An in-order iterator over the elements of the dictionary, starting at
-     * a given node. If any modifications are made to the dictionary after
-     * the construction of the dictionary, the iterator is invalidated and
-     * any method calls to any of the iterator's methods will cause a
-     * {@link ConcurrentModificationException}.
+     * a given node and going either up or down. If any modifications are
+     * made to the dictionary after the construction of the dictionary, the
+     * iterator is invalidated and any method calls to any of the iterator's
+     * methods will cause a {@link ConcurrentModificationException}.
      */
     private class TreeIterator implements Iterator<E> {
 
@@ -1068,6 +3646,12 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
          */
         private Node next;
 
+        /**
+         * The number of times the element of {@link #next} is still to be
+         * returned - more than one only if the dictionary is a multiset.
+         */
+        private int repeats;
+
         /**
          * The <it>original</it> number of modifications made on the
          * dictionary when this iterator was created - if this is different
@@ -1076,15 +3660,44 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
          */
         private int ops;
 
+        /**
+         * Whether the iterator returns the elements in descending order.
+         */
+        private final boolean descending;
+
         /**
          * Creates a new iterator starting at the given element.
          * @param start the 'start' element. Will be returned by the
          *              iterator first.
          */
         private TreeIterator(Node start) {
+            this(start, false);
+        }
+
+        /**
+         * Creates a new iterator starting at the given element, going in
+         * the given direction.
+         *
+         * @param start the element to return first
+         * @param descending whether to return the elements in descending
+         *                   order
+         */
+        private TreeIterator(Node start, boolean descending) {
             last = nil;
             next = start;
+            repeats = start.count;
             ops = operations;
+            this.descending = descending;
+        }
+
+        /**
+         * Gives the node after another in the direction of the iterator.
+         *
+         * @param node the node
+         * @return its successor, or its predecessor if descending
+         */
+        private Node step(Node node) {
+            return descending ? predecessor(node) : successor(node);
         }
 
         /**
@@ -1097,9 +3710,13 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
         @Override
         public boolean hasNext() throws ConcurrentModificationException {
             if (ops != operations)
-                throw new ConcurrentModificationException(
-                        "backing dictionary has been modified"
-                );
+                throw modified();
+            //skips any nodes that have become tombstones since
+            if (next.count == 0 && next != nil) {
+                next = descending ? previous(predecessor(next))
+                        : RedBlackTree.this.next(successor(next));
+                repeats = next.count;
+            }
             return next != nil;
         }
 
@@ -1122,14 +3739,57 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
             if (!hasNext())
                 throw new NoSuchElementException("no further elements");
             if (ops != operations)
-                throw new ConcurrentModificationException(
-                        "backing dictionary has been modified"
-                );
+                throw modified();
             last = next;
-            next = successor(next);
+            if (--repeats == 0) {
+                next = step(next);
+                repeats = next.count;
+            }
             return last.key;
         }
 
+        /**
+         * Performs an action for each remaining element, in the order of the
+         * iterator. In ascending order, the nodes still to be returned are
+         * walked with an explicit stack rather than by finding each
+         * successor in turn. Afterwards
+         * {@link #remove()} deletes the last element the action was given.
+         *
+         * @param action the action to perform for each element
+         * @throws NullPointerException if the action is null
+         * @throws ConcurrentModificationException if any modifications have
+         * been made to the backing dictionary since this iterator's
+         * construction, or were made by the action
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super E> action)
+                throws NullPointerException, ConcurrentModificationException {
+            if (action == null)
+                throw new NullPointerException("action is null");
+            if (descending) {
+                while (hasNext()) action.accept(next());
+                return;
+            }
+            if (!hasNext()) return;
+            Traversal traversal = new Traversal();
+            //the ancestors of the next node that come after it in order are
+            //those it lies to the left of - pushed deepest last, so that it
+            //is on top
+            for (Node child = next, node = next.parent; node != nil;
+                 child = node, node = node.parent) {
+                if (node.left == child) traversal.push(node);
+            }
+            traversal.reverse();
+            Node from = next;
+            for (; repeats > 0; --repeats) action.accept(from.key);
+            traversal.spine(from.right);
+            Node tail = traversal.run(action, null, ops);
+            last = tail == nil ? from : tail;
+            next = nil;
+            if (ops != operations)
+                throw modified();
+        }
+
         /**
          * Deletes the last item returned by {@link #next()} from the
          * dictionary. {@link #next()} needs to have been called at least
@@ -1147,16 +3807,18 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
         public void remove() throws IllegalStateException,
                 ConcurrentModificationException {
             if (ops != operations)
-                throw new ConcurrentModificationException(
-                        "backing dictionary has been modified"
-                );
+                throw modified();
             if (last == nil)
                 throw new IllegalStateException(
                         "next() has not yet been called, or the remove() " +
                                 "method has already been called after the " +
                                 "last call to the next() method"
                 );
-            delete(last);
+            //moves past any tombstones first, as compaction may unlink them
+            hasNext();
+            //a lazy deletion may compact the tree, which keeps the live nodes
+            //and so leaves this iterator valid
+            if (!deleteOnce(last)) ops = operations;
             //set last to nil so that if this method is called again without
             //calling next first, an exception will be thrown
             last = nil;
@@ -1164,4 +3826,229 @@ public class RedBlackTree<E extends Comparable<E>> implements Dictionary<E> {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * An in-order iterator over the elements of the dictionary that match a
+     * query, as given by {@link #search(String, Predicate, Predicate,
+     * Predicate)}. Subtrees whose aggregate rules out a match are never
+     * entered. The iterator is fail-fast in the same way as
+     * {@link TreeIterator}, and does not support removal.
+     */
+    private class SearchIterator implements Iterator<E> {
+
+        /**
+         * Tests whether a subtree could contain a match, given its aggregate.
+         */
+        private final Predicate<Object> subtree;
+
+        /**
+         * Tests whether an element is a match.
+         */
+        private final Predicate<? super E> element;
+
+        /**
+         * Tests whether an element lies beyond the end of the query.
+         */
+        private final Predicate<? super E> past;
+
+        /**
+         * The nodes whose left subtrees have been entered but which have not
+         * themselves been visited yet, deepest on top.
+         */
+        private final Deque<Node> stack;
+
+        /**
+         * The next matching node, or nil if there are no more matches.
+         */
+        private Node next;
+
+        /**
+         * The number of modifications made on the dictionary when this
+         * iterator was created.
+         */
+        private final int ops;
+
+        /**
+         * Creates a new iterator and finds the first match.
+         *
+         * @param subtree tests whether a subtree could contain a match
+         * @param element tests whether an element is a match
+         * @param past tests whether an element is beyond the end of the query
+         */
+        private SearchIterator(Predicate<Object> subtree,
+                               Predicate<? super E> element,
+                               Predicate<? super E> past) {
+            this.subtree = subtree;
+            this.element = element;
+            this.past = past;
+            stack = new ArrayDeque<Node>();
+            ops = operations;
+            descend(root);
+            advance();
+        }
+
+        /**
+         * Pushes the left spine of a subtree onto the stack, stopping at the
+         * first subtree that cannot contain a match.
+         *
+         * @param node the root of the subtree
+         */
+        private void descend(Node node) {
+            while (node != nil && subtree.test(node.aggregate)) {
+                stack.push(node);
+                node = node.left;
+            }
+        }
+
+        /**
+         * Moves {@link #next} on to the next matching node in order.
+         */
+        private void advance() {
+            next = nil;
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                if (past.test(node.key)) {
+                    stack.clear();
+                    return;
+                }
+                descend(node.right);
+                if (node.count > 0 && element.test(node.key)) {
+                    next = node;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         * @return true if and only if the iterator has more elements.
+         * @throws ConcurrentModificationException if any modifications have
+         * been made to the backing dictionary since this iterator's
+         * construction
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            if (ops != operations)
+                throw modified();
+            if (next.count == 0 && next != nil) advance();
+            return next != nil;
+        }
+
+        /**
+         * Provides the next matching element in the dictionary.
+         *
+         * @return the next matching element
+         * @throws NoSuchElementException if there are no more matches
+         * @throws ConcurrentModificationException if any modifications have
+         * been made to the backing dictionary since this iterator's
+         * construction
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            E ret = next.key;
+            advance();
+            return ret;
+        }
+
+    }
+
+    /**
+     * An iterator over the elements of the dictionary in order of increasing
+     * distance from a given element, as given by
+     * {@link #nearest(Comparable, ToDoubleBiFunction)}. It holds the nearest
+     * unreturned node on either side of the element, and steps whichever is
+     * closer outwards to its neighbour. The iterator is fail-fast in the same
+     * way as {@link TreeIterator}, and does not support removal.
+     */
+    private class NearestIterator implements Iterator<E> {
+
+        /**
+         * The element that distances are measured from.
+         */
+        private final E item;
+
+        /**
+         * Gives the distance between the item and an element.
+         */
+        private final ToDoubleBiFunction<? super E, ? super E> distance;
+
+        /**
+         * The nearest unreturned nodes less than, and greater than or equal
+         * to, the item - nil once that side is used up.
+         */
+        private Node below, above;
+
+        /**
+         * The number of modifications made on the dictionary when this
+         * iterator was created.
+         */
+        private final int ops;
+
+        /**
+         * Creates a new iterator expanding outwards from two nodes.
+         *
+         * @param item the element that distances are measured from
+         * @param distance gives the distance between the item and an element
+         * @param below the greatest node less than the item
+         * @param above the least node greater than or equal to the item
+         */
+        private NearestIterator(E item,
+                                ToDoubleBiFunction<? super E, ? super E>
+                                        distance,
+                                Node below, Node above) {
+            this.item = item;
+            this.distance = distance;
+            this.below = below;
+            this.above = above;
+            ops = operations;
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         * @return true if and only if the iterator has more elements.
+         * @throws ConcurrentModificationException if any modifications have
+         * been made to the backing dictionary since this iterator's
+         * construction
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            if (ops != operations)
+                throw modified();
+            below = previous(below);
+            above = RedBlackTree.this.next(above);
+            return below != nil || above != nil;
+        }
+
+        /**
+         * Provides the closest element not yet returned.
+         *
+         * @return the next closest element
+         * @throws NoSuchElementException if all elements have been returned
+         * @throws ConcurrentModificationException if any modifications have
+         * been made to the backing dictionary since this iterator's
+         * construction
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            boolean takeBelow = above == nil || below != nil
+                    && distance.applyAsDouble(item, below.key)
+                    <= distance.applyAsDouble(item, above.key);
+            Node ret;
+            if (takeBelow) {
+                ret = below;
+                below = predecessor(below);
+            } else {
+                ret = above;
+                above = successor(above);
+            }
+            return ret.key;
+        }
+
+    }
+
+}
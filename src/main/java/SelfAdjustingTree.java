@@ -0,0 +1,733 @@
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The common part of the binary search trees that change shape as they
+ * are used, such as {@link SplayTree} and {@link Treap}. This class does
+ * the searching, inserting, iteration and logging; subclasses decide how
+ * the tree is restructured after a node is inserted or accessed, and how a
+ * node is unlinked.
+ * Restructuring only ever rotates nodes, which keeps the order of the
+ * elements, so iterators step from node to node through parent pointers
+ * and stay valid while lookups reshape the tree. Like those of
+ * {@link RedBlackTree}, they are fail-fast only against
+ * {@link #add(Comparable)} and {@link #delete(Comparable)}.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+abstract class SelfAdjustingTree<E extends Comparable<E>>
+        implements Dictionary<E> {
+
+    /**
+     * The log message format, matching {@link RedBlackTree}.
+     */
+    private static final String LOG_MSG =
+            "Operation %s completed using %d comparison(s).%n";
+
+    /**
+     * The root of the tree, or null if the tree is empty.
+     */
+    Node<E> root;
+
+    /**
+     * Keeps a log of all operations made on the dictionary.
+     */
+    private final StringBuilder log;
+
+    /**
+     * Whether operations are appended to the log.
+     */
+    private boolean logging;
+
+    /**
+     * The number of elements in the dictionary.
+     */
+    private int size;
+
+    /**
+     * The number of comparisons made by the currently executing method.
+     */
+    private int comparisons;
+
+    /**
+     * The number of modifications made to the dictionary, to make the
+     * iterators fail-fast.
+     */
+    private int operations;
+
+    /**
+     * The last node visited by the most recent search.
+     */
+    private Node<E> visited;
+
+    /**
+     * Creates a new, empty tree.
+     */
+    SelfAdjustingTree() {
+        log = new StringBuilder();
+        logging = true;
+    }
+
+    /**
+     * Restructures the tree after a node has been inserted as a leaf.
+     *
+     * @param node the node inserted
+     */
+    abstract void inserted(Node<E> node);
+
+    /**
+     * Restructures the tree after a search.
+     *
+     * @param node the node found, or the last node visited if the search
+     * missed
+     * @param hit whether the node holds the element searched for
+     */
+    abstract void accessed(Node<E> node, boolean hit);
+
+    /**
+     * Removes a node from the tree, relinking the remaining nodes rather
+     * than moving elements between them.
+     *
+     * @param node the node to remove
+     */
+    abstract void unlink(Node<E> node);
+
+    /**
+     * Gives the number of elements in the dictionary. Runs in constant time.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        reset();
+        log("isEmpty()");
+        return root == null;
+    }
+
+    /**
+     * Checks if the dictionary contains the item, restructuring the tree
+     * around the node searched for.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        reset();
+        boolean ret = false;
+        if (item != null && root != null) {
+            Node<E> node = find(item);
+            ret = node != null;
+            accessed(ret ? node : visited, ret);
+        }
+        log("contains(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary, with the same
+     * descent as {@link #predecessor(Comparable)}, restructuring the tree
+     * around the last node visited as a miss would.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        reset();
+        boolean ret = false;
+        if (item != null && root != null) {
+            ret = below(item) != null;
+            accessed(visited, false);
+        }
+        log("hasPredecessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary, with the same
+     * descent as {@link #successor(Comparable)}, restructuring the tree
+     * around the last node visited as a miss would.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        reset();
+        boolean ret = false;
+        if (item != null && root != null) {
+            ret = above(item) != null;
+            accessed(visited, false);
+        }
+        log("hasSuccessor(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than the item, restructuring the
+     * tree around it.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        if (!hasPredecessor(item))
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        reset();
+        Node<E> best = below(item);
+        accessed(best, true);
+        log("predecessor(%s)", item);
+        return best.key;
+    }
+
+    /**
+     * Finds the least element greater than the item, restructuring the
+     * tree around it.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        if (!hasSuccessor(item))
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        reset();
+        Node<E> best = above(item);
+        accessed(best, true);
+        log("successor(%s)", item);
+        return best.key;
+    }
+
+    /**
+     * Finds the least element in the dictionary, restructuring the tree
+     * around it.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        if (root == null)
+            throw new NoSuchElementException("dictionary is empty");
+        reset();
+        Node<E> node = minimum(root);
+        accessed(node, true);
+        log("min()");
+        return node.key;
+    }
+
+    /**
+     * Finds the greatest element in the dictionary, restructuring the tree
+     * around it.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        if (root == null)
+            throw new NoSuchElementException("dictionary is empty");
+        reset();
+        Node<E> node = maximum(root);
+        accessed(node, true);
+        log("max()");
+        return node.key;
+    }
+
+    /**
+     * Adds the item to the dictionary. Adding an element that is already
+     * present counts as an access of it.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        reset();
+        boolean ret = false;
+        if (item != null) {
+            Node<E> parent = null;
+            int cmp = 0;
+            for (Node<E> node = root; node != null; ) {
+                parent = node;
+                cmp = compare(item, node);
+                if (cmp == 0) break;
+                node = cmp < 0 ? node.left : node.right;
+            }
+            if (parent != null && cmp == 0) {
+                accessed(parent, true);
+            } else {
+                Node<E> node = new Node<E>(item);
+                node.parent = parent;
+                if (parent == null) root = node;
+                else if (cmp < 0) parent.left = node;
+                else parent.right = node;
+                ++size;
+                ++operations;
+                inserted(node);
+                ret = true;
+            }
+        }
+        log("add(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Deletes the item from the dictionary.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        reset();
+        boolean ret = false;
+        if (item != null && root != null) {
+            Node<E> node = find(item);
+            if (node != null) {
+                remove(node);
+                ++operations;
+                ret = true;
+            } else {
+                accessed(visited, false);
+            }
+        }
+        log("delete(%s)", item);
+        return ret;
+    }
+
+    /**
+     * Provides an iterator over the elements in ascending order.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        reset();
+        Iterator<E> ret = new TreeIterator(
+                root == null ? null : minimum(root));
+        log("iterator()");
+        return ret;
+    }
+
+    /**
+     * Provides an iterator over the elements greater than or equal to
+     * start, in ascending order.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        reset();
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        Node<E> best = null;
+        for (Node<E> node = root; node != null; ) {
+            if (compare(start, node) <= 0) {
+                best = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        Iterator<E> ret = new TreeIterator(best);
+        log("iterator(%s)", start);
+        return ret;
+    }
+
+    /**
+     * Sets whether operations are appended to the log string, as
+     * {@link RedBlackTree#setLogging(boolean)} does. Logging is on by
+     * default.
+     *
+     * @param enabled whether to log operations
+     */
+    public void setLogging(boolean enabled) {
+        logging = enabled;
+    }
+
+    /**
+     * Provides a string listing all operations made on the dictionary since
+     * the log string was last retrieved, and clears it for next time.
+     *
+     * @return the log string
+     */
+    @Override
+    public String getLogString() {
+        String logString = log.toString();
+        log.setLength(0);
+        return logString;
+    }
+
+    /**
+     * Provides a vertical string representation of the tree, in the same
+     * form as {@link RedBlackTree#toString()}.
+     *
+     * @return a string with the structure of the dictionary
+     */
+    @Override
+    public String toString() {
+        reset();
+        StringBuilder sb = new StringBuilder();
+        if (root == null) sb.append("└── \n");
+        else toString(root, "", sb, true);
+        log("toString()");
+        return sb.toString();
+    }
+
+    /**
+     * Rotates a node above its parent, keeping the order of the elements.
+     * Runs in constant time.
+     *
+     * @param node the node to rotate up, which must have a parent
+     */
+    final void rotateUp(Node<E> node) {
+        Node<E> parent = node.parent, grandparent = parent.parent;
+        if (node == parent.left) {
+            parent.left = node.right;
+            if (node.right != null) node.right.parent = parent;
+            node.right = parent;
+        } else {
+            parent.right = node.left;
+            if (node.left != null) node.left.parent = parent;
+            node.left = parent;
+        }
+        parent.parent = node;
+        node.parent = grandparent;
+        if (grandparent == null) root = node;
+        else if (grandparent.left == parent) grandparent.left = node;
+        else grandparent.right = node;
+    }
+
+    /**
+     * Replaces a subtree with another as the child of its parent.
+     *
+     * @param u the subtree to replace
+     * @param v the subtree to replace it with, which may be null
+     */
+    final void transplant(Node<E> u, Node<E> v) {
+        if (u.parent == null) root = v;
+        else if (u == u.parent.left) u.parent.left = v;
+        else u.parent.right = v;
+        if (v != null) v.parent = u.parent;
+    }
+
+    /**
+     * Finds the greatest node in a subtree.
+     *
+     * @param node the root of the subtree
+     * @return the greatest node in the subtree
+     */
+    final Node<E> maximum(Node<E> node) {
+        while (node.right != null) node = node.right;
+        return node;
+    }
+
+    /**
+     * Finds the least node in a subtree.
+     *
+     * @param node the root of the subtree
+     * @return the least node in the subtree
+     */
+    final Node<E> minimum(Node<E> node) {
+        while (node.left != null) node = node.left;
+        return node;
+    }
+
+    /**
+     * Searches for the node holding an element, recording the last node
+     * visited in {@link #visited}.
+     *
+     * @param item the element to search for
+     * @return the node holding it, or null if there is none
+     */
+    private Node<E> find(E item) {
+        for (Node<E> node = root; node != null; ) {
+            visited = node;
+            int cmp = compare(item, node);
+            if (cmp == 0) return node;
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the greatest node less than an element, recording the last
+     * node visited.
+     *
+     * @param item the element
+     * @return the node, or null if there is none
+     */
+    private Node<E> below(E item) {
+        Node<E> best = null;
+        for (Node<E> node = root; node != null; ) {
+            visited = node;
+            if (compare(item, node) > 0) {
+                best = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the least node greater than an element, recording the last
+     * node visited.
+     *
+     * @param item the element
+     * @return the node, or null if there is none
+     */
+    private Node<E> above(E item) {
+        Node<E> best = null;
+        for (Node<E> node = root; node != null; ) {
+            visited = node;
+            if (compare(item, node) < 0) {
+                best = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Removes a node and marks it as no longer in the tree.
+     *
+     * @param node the node to remove
+     */
+    private void remove(Node<E> node) {
+        unlink(node);
+        node.left = node.right = node.parent = null;
+        --size;
+    }
+
+    /**
+     * Finds the least node greater than a node, by walking the tree.
+     *
+     * @param node the node
+     * @return its successor, or null if it is the greatest node
+     */
+    private Node<E> successor(Node<E> node) {
+        if (node.right != null) return minimum(node.right);
+        Node<E> parent = node.parent;
+        while (parent != null && node == parent.right) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Compares an element with the element of a node, counting the
+     * comparison.
+     *
+     * @param item the element
+     * @param node the node
+     * @return the result of item.compareTo(node.key)
+     */
+    private int compare(E item, Node<E> node) {
+        ++comparisons;
+        return item.compareTo(node.key);
+    }
+
+    /**
+     * Resets the comparison counter at the start of an operation.
+     */
+    private void reset() {
+        comparisons = 0;
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed.
+     *
+     * @param method the operation
+     */
+    private void log(String method) {
+        if (logging) log.append(String.format(LOG_MSG, method, comparisons));
+    }
+
+    /**
+     * Adds a line to the log describing the operation just completed, only
+     * formatting the description if logging is on.
+     *
+     * @param format the operation, as a format string
+     * @param argument the argument of the operation
+     */
+    private void log(String format, Object argument) {
+        if (logging) log(String.format(format, argument));
+    }
+
+    /**
+     * Appends the structure of a subtree to a string.
+     *
+     * @param node the root of the subtree
+     * @param prefix the indent before this node
+     * @param sb the string being built
+     * @param tail whether this node is the last sibling
+     */
+    private static <E> void toString(Node<E> node, String prefix,
+                                     StringBuilder sb, boolean tail) {
+        sb.append(prefix).append(tail ? "└── " : "├── ")
+                .append(node.key).append('\n');
+        String indent = prefix + (tail ? "    " : "│   ");
+        if (node.left != null)
+            toString(node.left, indent, sb, node.right == null);
+        if (node.right != null) toString(node.right, indent, sb, true);
+    }
+
+    /**
+     * A node of the tree.
+     *
+     * @param <E> the type of the element it holds
+     */
+    static final class Node<E> {
+
+        /**
+         * The element held by this node.
+         */
+        final E key;
+
+        /**
+         * The children and parent of this node, null if absent.
+         */
+        Node<E> left, right, parent;
+
+        /**
+         * The heap priority of this node, used by {@link Treap}.
+         */
+        long priority;
+
+        /**
+         * Creates a node holding an element.
+         *
+         * @param key the element
+         */
+        Node(E key) {
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * An in-order iterator that steps between nodes through parent
+     * pointers, and so is unaffected by rotations.
+     */
+    private class TreeIterator implements Iterator<E> {
+
+        /**
+         * The node most recently returned, or null.
+         */
+        private Node<E> last;
+
+        /**
+         * The node to be returned next, or null if there are no more.
+         */
+        private Node<E> next;
+
+        /**
+         * The number of modifications expected to have been made.
+         */
+        private int ops;
+
+        /**
+         * Creates an iterator starting at a node.
+         *
+         * @param start the first node to return, or null
+         */
+        private TreeIterator(Node<E> start) {
+            next = start;
+            ops = operations;
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         *
+         * @return true if and only if the iterator has more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            if (ops != operations)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified"
+                );
+            return next != null;
+        }
+
+        /**
+         * Provides the next element.
+         *
+         * @return the next element in the dictionary
+         * @throws NoSuchElementException if there are no more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            last = next;
+            next = successor(next);
+            return last.key;
+        }
+
+        /**
+         * Deletes the element most recently returned.
+         *
+         * @throws IllegalStateException if next() has not been called, or
+         * remove() has already been called since
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified other than through the iterator
+         */
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            if (ops != operations)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified"
+                );
+            if (last == null)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() " +
+                                "method has already been called after the " +
+                                "last call to the next() method"
+                );
+            reset();
+            SelfAdjustingTree.this.remove(last);
+            log("delete(%s)", last.key);
+            last = null;
+            ops = ++operations;
+        }
+
+    }
+
+}
@@ -0,0 +1,840 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe dictionary partitioned by key range over several
+ * independent {@link RedBlackTree} shards, each guarded by its own lock, so
+ * that threads working on different ranges of keys do not contend.
+ * Shard i holds the elements from the (i - 1)th boundary (inclusive) up to
+ * the ith boundary (exclusive). The boundaries can be moved by
+ * {@link #rebalance()}, which splits the busiest shard and merges the least
+ * busy pair of neighbouring shards.
+ * The shards and boundaries are held in an immutable layout, which
+ * {@link #rebalance()} replaces rather than changes, so an operation finds
+ * its shard without locking or writing to any shared state, and then locks
+ * only that shard. A shard whose range is changed by a rebalance is retired
+ * and replaced, and an operation that locks a retired shard starts again
+ * with the new layout. Modifications are counted per shard, so writers to
+ * different shards share nothing.
+ * Operations spanning shards, such as {@link #successor(Comparable)} or
+ * iteration, lock one shard at a time, so they see each shard in a
+ * consistent state but are not atomic across shards. Iterators are
+ * fail-fast with respect to any modification of the dictionary.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class ShardedDictionary<E extends Comparable<E>>
+        implements Dictionary<E> {
+
+    /**
+     * The current shards and boundaries, replaced whenever the boundaries
+     * are moved.
+     */
+    private volatile Layout layout;
+
+    /**
+     * Held while the boundaries are moved, and by the operations that need
+     * the layout to stay the same throughout.
+     */
+    private final ReentrantLock rebalancing;
+
+    /**
+     * The log strings of shards retired since the log string was last
+     * retrieved. Guarded by {@link #rebalancing}.
+     */
+    private final StringBuilder retiredLog;
+
+    /**
+     * Creates a new, empty dictionary with a shard for each range between
+     * the given split points.
+     *
+     * @param splitPoints the least element of each shard except the first,
+     *                    in strictly ascending order
+     * @throws IllegalArgumentException if a split point is null, or they
+     * are not in strictly ascending order
+     */
+    @SafeVarargs
+    public ShardedDictionary(E... splitPoints)
+            throws IllegalArgumentException {
+        List<E> bounds = new ArrayList<E>();
+        List<Shard> shards = new ArrayList<Shard>();
+        shards.add(new Shard());
+        for (E point : splitPoints) {
+            if (point == null)
+                throw new IllegalArgumentException("split point is null");
+            if (!bounds.isEmpty()
+                    && bounds.get(bounds.size() - 1).compareTo(point) >= 0)
+                throw new IllegalArgumentException(
+                        "split points are not in ascending order"
+                );
+            bounds.add(point);
+            shards.add(new Shard());
+        }
+        layout = new Layout(shards, bounds);
+        rebalancing = new ReentrantLock();
+        retiredLog = new StringBuilder();
+    }
+
+    /**
+     * Gives the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int shards() {
+        return layout.shards.size();
+    }
+
+    /**
+     * Gives the current boundaries between the shards - the least element
+     * of each shard except the first. Used by tests.
+     *
+     * @return the boundaries, in ascending order
+     */
+    List<E> bounds() {
+        return layout.bounds;
+    }
+
+    /**
+     * Gives the number of elements in the dictionary.
+     *
+     * @return the number of elements in the dictionary
+     */
+    public int size() {
+        for (;;) {
+            Layout l = layout;
+            int ret = 0;
+            for (Shard shard : l.shards) {
+                shard.lock.lock();
+                try {
+                    ret += shard.tree.size();
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+            if (layout == l) return ret;
+        }
+    }
+
+    /**
+     * Checks if every shard is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        for (;;) {
+            Layout l = layout;
+            boolean ret = true;
+            for (Shard shard : l.shards) {
+                shard.lock.lock();
+                try {
+                    ret = shard.tree.isEmpty();
+                } finally {
+                    shard.lock.unlock();
+                }
+                if (!ret) break;
+            }
+            if (layout == l) return ret;
+        }
+    }
+
+    /**
+     * Checks if the shard covering the item contains it.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        if (item == null) return false;
+        for (;;) {
+            Layout l = layout;
+            Shard shard = l.shards.get(l.route(item));
+            shard.lock.lock();
+            try {
+                if (shard.retired) continue;
+                ++shard.load;
+                return shard.tree.contains(item);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks if there is an element less than the item in any shard.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        return item != null && lower(item) != null;
+    }
+
+    /**
+     * Checks if there is an element greater than the item in any shard.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        return item != null && higher(item) != null;
+    }
+
+    /**
+     * Finds the greatest element less than the item, looking first in the
+     * shard covering the item and then in the shards below it.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        E ret = item == null ? null : lower(item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a predecessor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the least element greater than the item, looking first in the
+     * shard covering the item and then in the shards above it.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        E ret = item == null ? null : higher(item);
+        if (ret == null)
+            throw new NoSuchElementException(
+                    "argument does not have a successor"
+            );
+        return ret;
+    }
+
+    /**
+     * Finds the least element of the first non-empty shard.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        E ret;
+        Layout l;
+        do {
+            l = layout;
+            ret = above(l, 0);
+        } while (layout != l);
+        if (ret == null)
+            throw new NoSuchElementException("dictionary is empty");
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element of the last non-empty shard.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        E ret;
+        Layout l;
+        do {
+            l = layout;
+            ret = below(l, l.shards.size() - 1);
+        } while (layout != l);
+        if (ret == null)
+            throw new NoSuchElementException("dictionary is empty");
+        return ret;
+    }
+
+    /**
+     * Adds the item to the shard covering it.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item is not null and was not already
+     * in the dictionary
+     */
+    @Override
+    public boolean add(E item) {
+        if (item == null) return false;
+        for (;;) {
+            Layout l = layout;
+            Shard shard = l.shards.get(l.route(item));
+            shard.lock.lock();
+            try {
+                if (shard.retired) continue;
+                ++shard.load;
+                boolean ret = shard.tree.add(item);
+                if (ret) ++shard.modifications;
+                return ret;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes the item from the shard covering it.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was in the dictionary and has
+     * been removed
+     */
+    @Override
+    public boolean delete(E item) {
+        if (item == null) return false;
+        for (;;) {
+            Layout l = layout;
+            Shard shard = l.shards.get(l.route(item));
+            shard.lock.lock();
+            try {
+                if (shard.retired) continue;
+                ++shard.load;
+                boolean ret = shard.tree.delete(item);
+                if (ret) ++shard.modifications;
+                return ret;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the shard boundaries to even out the load, by splitting the
+     * busiest shard at its median element and merging the least busy pair
+     * of neighbouring shards, so that the number of shards stays the same.
+     * Nothing is changed unless the busiest shard has had more than twice
+     * its share of the operations since the last rebalance. The counts of
+     * operations are reset afterwards.
+     * This holds every shard for its duration, and takes time linear in the
+     * size of the shards that are split and merged.
+     *
+     * @return true if and only if the boundaries were moved
+     */
+    public boolean rebalance() {
+        rebalancing.lock();
+        try {
+            List<Shard> shards = layout.shards;
+            for (Shard shard : shards) shard.lock.lock();
+            try {
+                int n = shards.size();
+                long total = 0;
+                int hot = 0;
+                for (int i = 0; i < n; ++i) {
+                    total += shards.get(i).load;
+                    if (shards.get(i).load > shards.get(hot).load) hot = i;
+                }
+                boolean ret = n > 1 && shards.get(hot).load * n > 2 * total
+                        && shards.get(hot).tree.size() > 1;
+                if (ret) {
+                    List<Shard> next = new ArrayList<Shard>(shards);
+                    List<E> bounds = new ArrayList<E>(layout.bounds);
+                    split(next, bounds, hot);
+                    merge(next, bounds, cold(next, hot));
+                    for (Shard shard : next) shard.load = 0;
+                    //retire the replaced shards before any thread waiting on
+                    //them can see them
+                    for (Shard shard : shards) {
+                        if (next.contains(shard)) continue;
+                        shard.retired = true;
+                        retiredLog.append(shard.tree.getLogString());
+                    }
+                    layout = new Layout(next, bounds);
+                } else {
+                    for (Shard shard : shards) shard.load = 0;
+                }
+                return ret;
+            } finally {
+                for (Shard shard : shards) shard.lock.unlock();
+            }
+        } finally {
+            rebalancing.unlock();
+        }
+    }
+
+    /**
+     * Provides a fail-fast iterator over all the elements, in ascending
+     * order across the shards.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new ShardIterator(null);
+    }
+
+    /**
+     * Provides a fail-fast iterator over the elements greater than or equal
+     * to start, in ascending order across the shards.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        if (start == null)
+            throw new IllegalArgumentException("argument is null");
+        return new ShardIterator(start);
+    }
+
+    /**
+     * Provides the log strings of each shard in turn, each of which is
+     * cleared.
+     *
+     * @return a string listing all operations called on each shard
+     */
+    @Override
+    public String getLogString() {
+        rebalancing.lock();
+        try {
+            StringBuilder sb = new StringBuilder(retiredLog);
+            retiredLog.setLength(0);
+            for (Shard shard : layout.shards) {
+                shard.lock.lock();
+                try {
+                    sb.append(shard.tree.getLogString());
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+            return sb.toString();
+        } finally {
+            rebalancing.unlock();
+        }
+    }
+
+    /**
+     * Provides the string representation of each shard in turn.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        rebalancing.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (Shard shard : layout.shards) {
+                shard.lock.lock();
+                try {
+                    sb.append(shard.tree.toString());
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+            return sb.toString();
+        } finally {
+            rebalancing.unlock();
+        }
+    }
+
+    /**
+     * Counts the modifications made on the shards of a layout.
+     *
+     * @param l the layout
+     * @return the total number of modifications
+     */
+    private long modifications(Layout l) {
+        long ret = 0;
+        for (Shard shard : l.shards) ret += shard.modifications;
+        return ret;
+    }
+
+    /**
+     * Finds the greatest element less than an item across all shards.
+     *
+     * @param item the item to search below
+     * @return the greatest element less than the item, or null
+     */
+    private E lower(E item) {
+        for (;;) {
+            Layout l = layout;
+            int i = l.route(item);
+            Shard shard = l.shards.get(i);
+            E ret;
+            shard.lock.lock();
+            try {
+                if (shard.retired) continue;
+                ++shard.load;
+                ret = shard.tree.lower(item);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (ret == null) ret = below(l, i - 1);
+            if (layout == l) return ret;
+        }
+    }
+
+    /**
+     * Finds the least element greater than an item across all shards.
+     *
+     * @param item the item to search above
+     * @return the least element greater than the item, or null
+     */
+    private E higher(E item) {
+        for (;;) {
+            Layout l = layout;
+            int i = l.route(item);
+            Shard shard = l.shards.get(i);
+            E ret;
+            shard.lock.lock();
+            try {
+                if (shard.retired) continue;
+                ++shard.load;
+                ret = shard.tree.higher(item);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (ret == null) ret = above(l, i + 1);
+            if (layout == l) return ret;
+        }
+    }
+
+    /**
+     * Finds the greatest element in the shards of a layout at or below an
+     * index. The caller must check that the layout is still current.
+     *
+     * @param l the layout
+     * @param i the index of the highest shard to look in
+     * @return the greatest element in those shards, or null if they are all
+     * empty
+     */
+    private E below(Layout l, int i) {
+        for (; i >= 0; --i) {
+            Shard shard = l.shards.get(i);
+            shard.lock.lock();
+            try {
+                E ret = shard.tree.peekMax();
+                if (ret != null) return ret;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the least element in the shards of a layout at or above an
+     * index. The caller must check that the layout is still current.
+     *
+     * @param l the layout
+     * @param i the index of the lowest shard to look in
+     * @return the least element in those shards, or null if they are all
+     * empty
+     */
+    private E above(Layout l, int i) {
+        for (; i < l.shards.size(); ++i) {
+            Shard shard = l.shards.get(i);
+            shard.lock.lock();
+            try {
+                E ret = shard.tree.peekMin();
+                if (ret != null) return ret;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the combined load of a shard and the shard above it.
+     *
+     * @param shards the shards
+     * @param i the index of the lower shard
+     * @return the number of operations on the two shards
+     */
+    private long load(List<Shard> shards, int i) {
+        return shards.get(i).load + shards.get(i + 1).load;
+    }
+
+    /**
+     * Chooses the quietest pair of neighbouring shards to merge after a
+     * split, preferring pairs that include neither half of the split shard
+     * so that neither is merged straight back.
+     *
+     * @param shards the shards, after the split
+     * @param hot the index of the lower half of the split shard
+     * @return the index of the lower shard of the pair
+     */
+    private int cold(List<Shard> shards, int hot) {
+        int ret = -1;
+        for (int i = 0; i + 1 < shards.size(); ++i) {
+            if (i >= hot - 1 && i <= hot + 1) continue;
+            if (ret < 0 || load(shards, i) < load(shards, ret)) ret = i;
+        }
+        if (ret >= 0) return ret;
+        //too few shards to avoid the halves
+        for (int i = 0; i + 1 < shards.size(); ++i) {
+            if (i == hot) continue;
+            if (ret < 0 || load(shards, i) < load(shards, ret)) ret = i;
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces a shard with two new shards, split at its median element,
+     * each built in linear time from the sorted elements and given half of
+     * the shard's load.
+     *
+     * @param shards the shards, which are changed
+     * @param bounds the boundaries, which are changed
+     * @param i the index of the shard to split
+     */
+    private void split(List<Shard> shards, List<E> bounds, int i) {
+        Shard shard = shards.get(i);
+        List<E> items = new ArrayList<E>();
+        for (E item : shard.tree) items.add(item);
+        int half = items.size() / 2;
+        Shard lower = new Shard(), upper = new Shard();
+        lower.tree.addSorted(items.subList(0, half));
+        upper.tree.addSorted(items.subList(half, items.size()));
+        lower.load = shard.load / 2;
+        upper.load = shard.load - lower.load;
+        shards.set(i, lower);
+        shards.add(i + 1, upper);
+        bounds.add(i, items.get(half));
+    }
+
+    /**
+     * Replaces a shard and the shard above it with a single new shard,
+     * built in linear time from their sorted elements.
+     *
+     * @param shards the shards, which are changed
+     * @param bounds the boundaries, which are changed
+     * @param i the index of the lower shard
+     */
+    private void merge(List<Shard> shards, List<E> bounds, int i) {
+        Shard lower = shards.get(i), upper = shards.get(i + 1);
+        List<E> items = new ArrayList<E>();
+        for (E item : lower.tree) items.add(item);
+        for (E item : upper.tree) items.add(item);
+        Shard merged = new Shard();
+        merged.tree.addSorted(items);
+        merged.load = lower.load + upper.load;
+        shards.set(i, merged);
+        shards.remove(i + 1);
+        bounds.remove(i);
+    }
+
+    /**
+     * The shards and the boundaries between them. Never changed once
+     * created.
+     */
+    private final class Layout {
+
+        /**
+         * The shards, in ascending order of the keys they hold.
+         */
+        private final List<Shard> shards;
+
+        /**
+         * The least element of each shard except the first, in ascending
+         * order.
+         */
+        private final List<E> bounds;
+
+        /**
+         * Creates a new layout.
+         *
+         * @param shards the shards
+         * @param bounds the boundaries between them
+         */
+        private Layout(List<Shard> shards, List<E> bounds) {
+            this.shards = Collections.unmodifiableList(shards);
+            this.bounds = Collections.unmodifiableList(bounds);
+        }
+
+        /**
+         * Finds the shard covering an item, by binary search on the
+         * boundaries.
+         *
+         * @param item the item to route
+         * @return the index of the shard covering the item
+         */
+        private int route(E item) {
+            int lo = 0, hi = bounds.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (bounds.get(mid).compareTo(item) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+    }
+
+    /**
+     * A single shard: a tree and the lock guarding it.
+     */
+    private class Shard {
+
+        /**
+         * The elements of the shard.
+         */
+        private final RedBlackTree<E> tree = new RedBlackTree<E>();
+
+        /**
+         * Guards the tree, which is not thread-safe even for reads.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The number of operations routed to this shard since the last
+         * rebalance.
+         */
+        private long load;
+
+        /**
+         * The number of modifications made on the shard, written only while
+         * holding the lock.
+         */
+        private volatile int modifications;
+
+        /**
+         * Whether the shard has been replaced by a rebalance, and so must
+         * no longer be used. Written and read only while holding the lock.
+         */
+        private boolean retired;
+
+    }
+
+    /**
+     * A fail-fast iterator over the elements of each shard in turn. Each
+     * step locks the shard being read.
+     */
+    private class ShardIterator implements Iterator<E> {
+
+        /**
+         * The next element to be returned, or null if there are none left.
+         */
+        private E next;
+
+        /**
+         * The element most recently returned by {@link #next()}, or null if
+         * it has been removed or {@link #next()} has not been called.
+         */
+        private E last;
+
+        /**
+         * The layout when this iterator was created - a rebalance counts as
+         * a modification.
+         */
+        private final Layout l;
+
+        /**
+         * The number of modifications made on the dictionary when this
+         * iterator was created, or last removed an element.
+         */
+        private long ops;
+
+        /**
+         * Creates a new iterator starting at the least element greater than
+         * or equal to start.
+         *
+         * @param start the element to start at, or null to start at the
+         *              least element
+         */
+        private ShardIterator(E start) {
+            l = layout;
+            ops = modifications(l);
+            int i = start == null ? 0 : l.route(start);
+            Shard shard = l.shards.get(i);
+            shard.lock.lock();
+            try {
+                next = start == null ? shard.tree.peekMin()
+                        : shard.tree.ceiling(start);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (next == null) next = above(l, i + 1);
+        }
+
+        /**
+         * Checks that the dictionary has not been modified since this
+         * iterator's construction, by reading each shard's count of
+         * modifications.
+         *
+         * @throws ConcurrentModificationException if it has been modified
+         */
+        private void check() throws ConcurrentModificationException {
+            if (layout != l || modifications(l) != ops)
+                throw new ConcurrentModificationException(
+                        "backing dictionary has been modified"
+                );
+        }
+
+        /**
+         * Checks if the iterator has any more elements.
+         *
+         * @return true if and only if the iterator has more elements
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public boolean hasNext() throws ConcurrentModificationException {
+            check();
+            return next != null;
+        }
+
+        /**
+         * Provides the next element, moving on to the next shard once the
+         * current one is used up.
+         *
+         * @return the next element in the dictionary
+         * @throws NoSuchElementException if all elements have been returned
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public E next() throws NoSuchElementException,
+                ConcurrentModificationException {
+            if (!hasNext())
+                throw new NoSuchElementException("no further elements");
+            last = next;
+            next = higher(last);
+            return last;
+        }
+
+        /**
+         * Deletes the element most recently returned by {@link #next()}.
+         *
+         * @throws IllegalStateException if {@link #next()} has not been
+         * called, or remove has already been called since
+         * @throws ConcurrentModificationException if the dictionary has been
+         * modified since this iterator's construction
+         */
+        @Override
+        public void remove() throws IllegalStateException,
+                ConcurrentModificationException {
+            check();
+            if (last == null)
+                throw new IllegalStateException(
+                        "next() has not yet been called, or the remove() " +
+                                "method has already been called after the " +
+                                "last call to the next() method"
+                );
+            delete(last);
+            ops = modifications(l);
+            last = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * A dictionary implemented as a splay tree. Every node that is searched
+ * for, inserted or deleted near is rotated to the root, so elements that
+ * are used often stay near the top of the tree and are found in few
+ * comparisons. Any sequence of operations takes amortised logarithmic time
+ * per operation, and much less when the accesses are skewed towards a few
+ * elements.
+ * Unlike {@link RedBlackTree}, lookups change the shape of the tree. See
+ * {@link SelfAdjustingTree} for how iterators cope with this.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class SplayTree<E extends Comparable<E>> extends SelfAdjustingTree<E> {
+
+    /**
+     * Creates a new, empty splay tree.
+     */
+    public SplayTree() {
+        super();
+    }
+
+    /**
+     * Splays the inserted node to the root.
+     *
+     * @param node the node inserted
+     */
+    @Override
+    void inserted(Node<E> node) {
+        splay(node);
+    }
+
+    /**
+     * Splays the node found, or the last node visited on a miss, to the
+     * root.
+     *
+     * @param node the node to splay
+     * @param hit whether the search found its element
+     */
+    @Override
+    void accessed(Node<E> node, boolean hit) {
+        splay(node);
+    }
+
+    /**
+     * Splays the node to the root, removes it, and joins its two subtrees
+     * by splaying the greatest node of the left subtree to its root.
+     *
+     * @param node the node to remove
+     */
+    @Override
+    void unlink(Node<E> node) {
+        splay(node);
+        Node<E> left = node.left, right = node.right;
+        if (left == null) {
+            transplant(node, right);
+            return;
+        }
+        transplant(node, left);
+        Node<E> max = maximum(left);
+        splay(max);
+        //the greatest node of the left subtree has no right child once it
+        //is at the root
+        max.right = right;
+        if (right != null) right.parent = max;
+    }
+
+    /**
+     * Rotates a node to the root, bottom up. Each step takes the node up
+     * two levels where it can, rotating the parent first if the node and
+     * its parent are children on the same side, which roughly halves the
+     * depth of every node on the path.
+     *
+     * @param node the node to splay
+     */
+    private void splay(Node<E> node) {
+        while (node.parent != null) {
+            Node<E> parent = node.parent, grandparent = parent.parent;
+            if (grandparent == null) {
+                //zig
+                rotateUp(node);
+            } else if ((node == parent.left) == (parent == grandparent.left)) {
+                //zig-zig
+                rotateUp(parent);
+                rotateUp(node);
+            } else {
+                //zig-zag
+                rotateUp(node);
+                rotateUp(node);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,454 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A dictionary that records every call made to another dictionary as a
+ * compact binary trace, which can later be run against any dictionary by
+ * {@link TraceReplay}.
+ * The trace starts with the bytes {@code RBTT} and a version number,
+ * followed by one record per call. Each record is an operation code, the
+ * time since the previous record in nanoseconds, and then, depending on
+ * the operation, the number of the iterator it applies to and the element
+ * it was given, written by a {@link KeyCodec}. Numbers are written in as
+ * few bytes as their magnitude allows. A null element is marked in the
+ * operation code rather than written.
+ * Iterators are numbered in the order they were created, and each call to
+ * {@link Iterator#next()} and {@link Iterator#remove()} is recorded, so
+ * that scans replay to the same length. Calls from several threads are
+ * recorded in the order they begin.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class TraceRecorder<E extends Comparable<E>>
+        implements Dictionary<E>, Flushable, Closeable {
+
+    /**
+     * The bytes every trace starts with.
+     */
+    static final int MAGIC = 0x52425454;
+
+    /**
+     * The version of the trace format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The operation codes of the calls that can be recorded.
+     */
+    static final byte IS_EMPTY = 0, CONTAINS = 1, HAS_PREDECESSOR = 2,
+            HAS_SUCCESSOR = 3, PREDECESSOR = 4, SUCCESSOR = 5, MIN = 6,
+            MAX = 7, ADD = 8, DELETE = 9, ITERATOR = 10, ITERATOR_FROM = 11,
+            NEXT = 12, REMOVE = 13;
+
+    /**
+     * Set in the operation code of a record whose element was null.
+     */
+    static final byte NULL_KEY = (byte) 0x80;
+
+    /**
+     * The dictionary that calls are passed on to.
+     */
+    private final Dictionary<E> dictionary;
+
+    /**
+     * Writes the elements of the trace.
+     */
+    private final KeyCodec<? super E> codec;
+
+    /**
+     * The trace being written.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The time the previous record was made.
+     */
+    private long last;
+
+    /**
+     * The number of iterators created so far.
+     */
+    private int iterators;
+
+    /**
+     * Creates a new recorder, and writes the start of the trace.
+     *
+     * @param dictionary the dictionary to record calls to
+     * @param codec writes the elements of the trace
+     * @param out the stream to write the trace to
+     * @throws IOException if the start of the trace could not be written
+     */
+    public TraceRecorder(Dictionary<E> dictionary, KeyCodec<? super E> codec,
+                         OutputStream out) throws IOException {
+        this.dictionary = dictionary;
+        this.codec = codec;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        last = System.nanoTime();
+    }
+
+    /**
+     * Checks if the dictionary is empty.
+     *
+     * @return true if and only if the dictionary contains no elements
+     */
+    @Override
+    public boolean isEmpty() {
+        record(IS_EMPTY);
+        return dictionary.isEmpty();
+    }
+
+    /**
+     * Checks if the dictionary contains the item.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the dictionary contains the item
+     */
+    @Override
+    public boolean contains(E item) {
+        record(CONTAINS, item);
+        return dictionary.contains(item);
+    }
+
+    /**
+     * Checks if the item has a predecessor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a predecessor
+     */
+    @Override
+    public boolean hasPredecessor(E item) {
+        record(HAS_PREDECESSOR, item);
+        return dictionary.hasPredecessor(item);
+    }
+
+    /**
+     * Checks if the item has a successor in the dictionary.
+     *
+     * @param item the item to be checked
+     * @return true if and only if the item has a successor
+     */
+    @Override
+    public boolean hasSuccessor(E item) {
+        record(HAS_SUCCESSOR, item);
+        return dictionary.hasSuccessor(item);
+    }
+
+    /**
+     * Finds the greatest element less than the item.
+     *
+     * @param item the item to be checked
+     * @return the greatest element less than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E predecessor(E item) throws NoSuchElementException {
+        record(PREDECESSOR, item);
+        return dictionary.predecessor(item);
+    }
+
+    /**
+     * Finds the least element greater than the item.
+     *
+     * @param item the item to be checked
+     * @return the least element greater than the item
+     * @throws NoSuchElementException if there is no such element
+     */
+    @Override
+    public E successor(E item) throws NoSuchElementException {
+        record(SUCCESSOR, item);
+        return dictionary.successor(item);
+    }
+
+    /**
+     * Finds the least element in the dictionary.
+     *
+     * @return the least element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E min() throws NoSuchElementException {
+        record(MIN);
+        return dictionary.min();
+    }
+
+    /**
+     * Finds the greatest element in the dictionary.
+     *
+     * @return the greatest element in the dictionary
+     * @throws NoSuchElementException if the dictionary is empty
+     */
+    @Override
+    public E max() throws NoSuchElementException {
+        record(MAX);
+        return dictionary.max();
+    }
+
+    /**
+     * Adds the item to the dictionary.
+     *
+     * @param item the item to be added
+     * @return true if and only if the item was added
+     */
+    @Override
+    public boolean add(E item) {
+        record(ADD, item);
+        return dictionary.add(item);
+    }
+
+    /**
+     * Deletes the item from the dictionary.
+     *
+     * @param item the element to be removed
+     * @return true if and only if the item was removed
+     */
+    @Override
+    public boolean delete(E item) {
+        record(DELETE, item);
+        return dictionary.delete(item);
+    }
+
+    /**
+     * Provides an iterator over the elements in ascending order, whose
+     * calls are also recorded.
+     *
+     * @return an iterator over the elements of the dictionary
+     */
+    @Override
+    public Iterator<E> iterator() {
+        int id = record(ITERATOR);
+        return new RecordingIterator(id, dictionary.iterator());
+    }
+
+    /**
+     * Provides an iterator over the elements greater than or equal to
+     * start, whose calls are also recorded.
+     *
+     * @param start the element at which to start iterating at
+     * @return an iterator over the elements from start
+     * @throws IllegalArgumentException if the argument is null
+     */
+    @Override
+    public Iterator<E> iterator(E start) throws IllegalArgumentException {
+        int id = record(ITERATOR_FROM, start);
+        return new RecordingIterator(id, dictionary.iterator(start));
+    }
+
+    /**
+     * Provides the log string of the recorded dictionary. Not recorded.
+     *
+     * @return the log string of the recorded dictionary
+     */
+    @Override
+    public String getLogString() {
+        return dictionary.getLogString();
+    }
+
+    /**
+     * Provides a string representation of the recorded dictionary. Not
+     * recorded.
+     *
+     * @return a string representation of the dictionary
+     */
+    @Override
+    public String toString() {
+        return dictionary.toString();
+    }
+
+    /**
+     * Writes any buffered records to the underlying stream.
+     *
+     * @throws IOException if the records could not be written
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes any buffered records and closes the underlying stream.
+     * Calls made afterwards fail with an {@link UncheckedIOException}.
+     *
+     * @throws IOException if the stream could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Records a call that takes no element.
+     *
+     * @param op the operation code
+     * @return the number given to the iterator, if the call creates one
+     */
+    private int record(byte op) {
+        return record(op, -1, null);
+    }
+
+    /**
+     * Records a call that takes an element.
+     *
+     * @param op the operation code
+     * @param item the element, which may be null
+     * @return the number given to the iterator, if the call creates one
+     */
+    private int record(byte op, E item) {
+        return record(op, -1, item);
+    }
+
+    /**
+     * Writes a record to the trace.
+     *
+     * @param op the operation code
+     * @param iterator the number of the iterator the call applies to, or
+     * negative if none
+     * @param item the element, if the operation takes one
+     * @return the number given to the iterator, if the call creates one
+     * @throws UncheckedIOException if the record could not be written
+     */
+    private synchronized int record(byte op, int iterator, E item) {
+        boolean keyed = op != IS_EMPTY && op != MIN && op != MAX
+                && op != ITERATOR && op != NEXT && op != REMOVE;
+        long now = System.nanoTime();
+        try {
+            out.writeByte(keyed && item == null ? op | NULL_KEY : op);
+            writeUnsigned(out, Math.max(0, now - last));
+            if (iterator >= 0) writeUnsigned(out, iterator);
+            if (keyed && item != null) codec.write(out, item);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        last = now;
+        return op == ITERATOR || op == ITERATOR_FROM ? iterators++ : -1;
+    }
+
+    /**
+     * Writes a non-negative number using seven bits per byte, with the top
+     * bit of each byte set if more bytes follow.
+     *
+     * @param out the output to write to
+     * @param value the number to write
+     * @throws IOException if the number could not be written
+     */
+    static void writeUnsigned(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by {@link #writeUnsigned(DataOutput, long)}.
+     *
+     * @param in the input to read from
+     * @return the number read
+     * @throws IOException if the number could not be read
+     */
+    static long readUnsigned(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    /**
+     * Writes a number so that small magnitudes, positive or negative, take
+     * few bytes.
+     *
+     * @param out the output to write to
+     * @param value the number to write
+     * @throws IOException if the number could not be written
+     */
+    static void writeSigned(DataOutput out, long value) throws IOException {
+        //zig-zag encoding: 0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...
+        writeUnsigned(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a number written by {@link #writeSigned(DataOutput, long)}.
+     *
+     * @param in the input to read from
+     * @return the number read
+     * @throws IOException if the number could not be read
+     */
+    static long readSigned(DataInput in) throws IOException {
+        long value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Wraps an iterator of the recorded dictionary, recording its calls.
+     */
+    private class RecordingIterator implements Iterator<E> {
+
+        /**
+         * The number of the iterator in the trace.
+         */
+        private final int id;
+
+        /**
+         * The iterator of the recorded dictionary.
+         */
+        private final Iterator<E> iterator;
+
+        /**
+         * Creates a new recording iterator.
+         *
+         * @param id the number of the iterator in the trace
+         * @param iterator the iterator of the recorded dictionary
+         */
+        private RecordingIterator(int id, Iterator<E> iterator) {
+            this.id = id;
+            this.iterator = iterator;
+        }
+
+        /**
+         * Checks if the iterator has any more elements. Not recorded, as
+         * each element taken is recorded by {@link #next()}.
+         *
+         * @return true if and only if the iterator has more elements
+         */
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        /**
+         * Provides the next element.
+         *
+         * @return the next element in the dictionary
+         */
+        @Override
+        public E next() {
+            record(NEXT, id, null);
+            return iterator.next();
+        }
+
+        /**
+         * Deletes the element most recently returned.
+         */
+        @Override
+        public void remove() {
+            record(REMOVE, id, null);
+            iterator.remove();
+        }
+
+    }
+
+}
@@ -0,0 +1,429 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Runs a trace written by a {@link TraceRecorder} against a dictionary, so
+ * that different dictionaries can be compared on a recorded workload.
+ * The whole trace is decoded when it is loaded, so that replaying it
+ * measures only the dictionary. Calls are made one after another as fast
+ * as possible, in the order they were recorded, and each is timed
+ * individually. A call that fails, such as {@link Dictionary#min()} on an
+ * empty dictionary, is counted and replay carries on.
+ * The results of every call are folded into a checksum, so two
+ * dictionaries that behave the same on a trace report the same checksum.
+ * <p>
+ * Can be run from the command line as
+ * {@code TraceReplay [--warmup=N] <trace> <int|long|string> [class...]},
+ * which replays the trace against a new instance of each named dictionary
+ * class in turn ({@link RedBlackTree} if none are named), after N unmeasured
+ * warm-up runs (1 by default), and prints a {@link Report} for each.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements in the trace
+ */
+public class TraceReplay<E extends Comparable<E>> {
+
+    /**
+     * The operation code of each call.
+     */
+    private final byte[] ops;
+
+    /**
+     * The number of the iterator each call applies to, or -1.
+     */
+    private final int[] iterators;
+
+    /**
+     * The element given to each call, or null.
+     */
+    private final Object[] keys;
+
+    /**
+     * The total time between the first and last call when recorded.
+     */
+    private final long recorded;
+
+    /**
+     * The number of iterators created by the trace.
+     */
+    private final int iteratorCount;
+
+    /**
+     * Loads a trace.
+     *
+     * @param in the stream to read the trace from
+     * @param codec reads the elements of the trace
+     * @throws IOException if the trace could not be read, or is not a trace
+     */
+    public TraceReplay(InputStream in, KeyCodec<? extends E> codec)
+            throws IOException {
+        DataInputStream data = new DataInputStream(
+                new BufferedInputStream(in));
+        if (data.readInt() != TraceRecorder.MAGIC)
+            throw new IOException("not an operation trace");
+        if (data.readUnsignedByte() != TraceRecorder.VERSION)
+            throw new IOException("unsupported trace version");
+        byte[] ops = new byte[1024];
+        int[] iterators = new int[ops.length];
+        Object[] keys = new Object[ops.length];
+        long recorded = 0;
+        int n = 0, created = 0;
+        while (true) {
+            int code;
+            try {
+                code = data.readUnsignedByte();
+            } catch (EOFException e) {
+                break;
+            }
+            if (n == ops.length) {
+                ops = Arrays.copyOf(ops, n * 2);
+                iterators = Arrays.copyOf(iterators, n * 2);
+                keys = Arrays.copyOf(keys, n * 2);
+            }
+            byte op = (byte) (code & ~TraceRecorder.NULL_KEY);
+            long gap = TraceRecorder.readUnsigned(data);
+            if (n > 0) recorded += gap;
+            iterators[n] = -1;
+            if (op == TraceRecorder.ITERATOR
+                    || op == TraceRecorder.ITERATOR_FROM) ++created;
+            switch (op) {
+                case TraceRecorder.IS_EMPTY:
+                case TraceRecorder.MIN:
+                case TraceRecorder.MAX:
+                case TraceRecorder.ITERATOR:
+                    break;
+                case TraceRecorder.NEXT:
+                case TraceRecorder.REMOVE:
+                    iterators[n] = (int) TraceRecorder.readUnsigned(data);
+                    break;
+                case TraceRecorder.ITERATOR_FROM:
+                case TraceRecorder.CONTAINS:
+                case TraceRecorder.HAS_PREDECESSOR:
+                case TraceRecorder.HAS_SUCCESSOR:
+                case TraceRecorder.PREDECESSOR:
+                case TraceRecorder.SUCCESSOR:
+                case TraceRecorder.ADD:
+                case TraceRecorder.DELETE:
+                    if ((code & TraceRecorder.NULL_KEY) == 0)
+                        keys[n] = codec.read(data);
+                    break;
+                default:
+                    throw new IOException("unknown operation code " + op);
+            }
+            ops[n++] = op;
+        }
+        this.ops = Arrays.copyOf(ops, n);
+        this.iterators = Arrays.copyOf(iterators, n);
+        this.keys = Arrays.copyOf(keys, n);
+        this.recorded = recorded;
+        this.iteratorCount = created;
+    }
+
+    /**
+     * Gives the number of calls in the trace.
+     *
+     * @return the length of the trace
+     */
+    public int length() {
+        return ops.length;
+    }
+
+    /**
+     * Replays the trace against a dictionary, which would usually be empty.
+     *
+     * @param dictionary the dictionary to replay the trace against
+     * @return the measurements taken during the replay
+     */
+    @SuppressWarnings("unchecked")
+    public Report replay(Dictionary<E> dictionary) {
+        List<Iterator<E>> open = new ArrayList<Iterator<E>>(iteratorCount);
+        LatencyHistogram latencies = new LatencyHistogram();
+        int failures = 0;
+        long checksum = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ops.length; ++i) {
+            E key = (E) keys[i];
+            long before = System.nanoTime();
+            int result;
+            try {
+                switch (ops[i]) {
+                    case TraceRecorder.IS_EMPTY:
+                        result = dictionary.isEmpty() ? 1 : 0;
+                        break;
+                    case TraceRecorder.CONTAINS:
+                        result = dictionary.contains(key) ? 1 : 0;
+                        break;
+                    case TraceRecorder.HAS_PREDECESSOR:
+                        result = dictionary.hasPredecessor(key) ? 1 : 0;
+                        break;
+                    case TraceRecorder.HAS_SUCCESSOR:
+                        result = dictionary.hasSuccessor(key) ? 1 : 0;
+                        break;
+                    case TraceRecorder.PREDECESSOR:
+                        result = Objects.hashCode(dictionary.predecessor(key));
+                        break;
+                    case TraceRecorder.SUCCESSOR:
+                        result = Objects.hashCode(dictionary.successor(key));
+                        break;
+                    case TraceRecorder.MIN:
+                        result = Objects.hashCode(dictionary.min());
+                        break;
+                    case TraceRecorder.MAX:
+                        result = Objects.hashCode(dictionary.max());
+                        break;
+                    case TraceRecorder.ADD:
+                        result = dictionary.add(key) ? 1 : 0;
+                        break;
+                    case TraceRecorder.DELETE:
+                        result = dictionary.delete(key) ? 1 : 0;
+                        break;
+                    case TraceRecorder.ITERATOR:
+                        //the index is taken before the call is made, so
+                        //numbering stays in step with the recording even if
+                        //the call fails
+                        open.add(null);
+                        open.set(open.size() - 1, dictionary.iterator());
+                        result = 0;
+                        break;
+                    case TraceRecorder.ITERATOR_FROM:
+                        open.add(null);
+                        open.set(open.size() - 1, dictionary.iterator(key));
+                        result = 0;
+                        break;
+                    case TraceRecorder.NEXT:
+                        result = Objects.hashCode(
+                                open.get(iterators[i]).next());
+                        break;
+                    default:
+                        open.get(iterators[i]).remove();
+                        result = 0;
+                }
+            } catch (RuntimeException e) {
+                ++failures;
+                result = -1;
+            }
+            latencies.record(System.nanoTime() - before);
+            checksum = checksum * 31 + result;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (allocated >= 0) allocated = allocatedBytes() - allocated;
+        return new Report(ops.length, failures, elapsed, recorded, allocated,
+                checksum, latencies);
+    }
+
+    /**
+     * Finds the number of bytes allocated by the current thread so far, if
+     * the virtual machine supports it.
+     *
+     * @return the number of bytes allocated, or -1 if not supported
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Replays a trace file against one or more dictionary classes.
+     *
+     * @param args {@code [--warmup=N] <trace> <int|long|string> [class...]}
+     * @throws Exception if the trace could not be read, or a dictionary
+     * could not be created
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void main(String[] args) throws Exception {
+        int warmup = 1, arg = 0;
+        if (args.length > 0 && args[0].startsWith("--warmup=")) {
+            warmup = Integer.parseInt(args[0].substring("--warmup=".length()));
+            ++arg;
+        }
+        if (args.length - arg < 2) {
+            System.err.println("usage: TraceReplay [--warmup=N] <trace> "
+                    + "<int|long|string> [class...]");
+            System.exit(2);
+        }
+        KeyCodec<?> codec;
+        switch (args[arg + 1]) {
+            case "int":
+                codec = KeyCodec.integers();
+                break;
+            case "long":
+                codec = KeyCodec.longs();
+                break;
+            case "string":
+                codec = KeyCodec.strings();
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "unknown key type " + args[arg + 1]);
+        }
+        TraceReplay replay;
+        try (InputStream in = new FileInputStream(args[arg])) {
+            replay = new TraceReplay(in, codec);
+        }
+        String[] engines = args.length - arg > 2
+                ? Arrays.copyOfRange(args, arg + 2, args.length)
+                : new String[]{RedBlackTree.class.getName()};
+        for (String engine : engines) {
+            Class<?> type = Class.forName(engine);
+            for (int i = 0; i < warmup; ++i)
+                replay.replay((Dictionary) type.getDeclaredConstructor()
+                        .newInstance());
+            Report report = replay.replay((Dictionary) type
+                    .getDeclaredConstructor().newInstance());
+            System.out.println(engine + ": " + report);
+        }
+    }
+
+    /**
+     * The measurements taken while replaying a trace.
+     */
+    public static final class Report {
+
+        /**
+         * The number of calls replayed, and the number that failed.
+         */
+        private final long operations, failures;
+
+        /**
+         * The time taken to replay the trace, and the time it covered when
+         * it was recorded, in nanoseconds.
+         */
+        private final long elapsed, recorded;
+
+        /**
+         * The number of bytes allocated during the replay, or -1 if unknown.
+         */
+        private final long allocated;
+
+        /**
+         * Combines the results of every call.
+         */
+        private final long checksum;
+
+        /**
+         * The latency of each call, in nanoseconds.
+         */
+        private final LatencyHistogram latencies;
+
+        /**
+         * Creates a new report.
+         */
+        private Report(long operations, long failures, long elapsed,
+                       long recorded, long allocated, long checksum,
+                       LatencyHistogram latencies) {
+            this.operations = operations;
+            this.failures = failures;
+            this.elapsed = elapsed;
+            this.recorded = recorded;
+            this.allocated = allocated;
+            this.checksum = checksum;
+            this.latencies = latencies;
+        }
+
+        /**
+         * Gives the number of calls replayed.
+         *
+         * @return the number of calls
+         */
+        public long getOperations() {
+            return operations;
+        }
+
+        /**
+         * Gives the number of calls that threw an exception.
+         *
+         * @return the number of failed calls
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Gives the time taken to replay the trace.
+         *
+         * @return the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsed;
+        }
+
+        /**
+         * Gives the time between the first and last call of the trace when
+         * it was recorded.
+         *
+         * @return the recorded time in nanoseconds
+         */
+        public long getRecordedNanos() {
+            return recorded;
+        }
+
+        /**
+         * Gives the number of calls replayed per second.
+         *
+         * @return the throughput
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? 0 : operations * 1e9 / elapsed;
+        }
+
+        /**
+         * Gives the number of bytes allocated during the replay.
+         *
+         * @return the bytes allocated, or -1 if the virtual machine cannot
+         * report it
+         */
+        public long getAllocatedBytes() {
+            return allocated;
+        }
+
+        /**
+         * Gives a checksum of the results of every call, which is the same
+         * for any two dictionaries that behave the same on the trace.
+         *
+         * @return the checksum
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Gives the latency of each call.
+         *
+         * @return a histogram of latencies in nanoseconds
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * Provides a summary of the report.
+         *
+         * @return a one-line summary
+         */
+        @Override
+        public String toString() {
+            return String.format("%d ops (%d failed) in %.3f ms, %.0f ops/s, "
+                            + "%d bytes allocated, checksum %x, latency ns: %s",
+                    operations, failures, elapsed / 1e6, getThroughput(),
+                    allocated, checksum, latencies);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+import java.util.Random;
+
+/**
+ * A dictionary implemented as a treap - a binary search tree whose nodes
+ * are also kept in heap order of a priority. Here the priority of a node
+ * is the number of times its element has been accessed, so that frequently
+ * used elements rise towards the root and are found in few comparisons.
+ * Ties between equal counts are broken randomly, so a treap whose elements
+ * are accessed uniformly is balanced in expectation, like a randomised
+ * treap.
+ * Counts are never decayed, so an element that was once hot keeps its
+ * place until others overtake it.
+ *
+ * @author Samuel Marsh
+ *
+ * @param <E> the type of elements that the dictionary holds
+ */
+public class Treap<E extends Comparable<E>> extends SelfAdjustingTree<E> {
+
+    /**
+     * The access count is held in the bits of the priority above these
+     * random tie-breaking bits.
+     */
+    private static final int TIE_BITS = 24;
+
+    /**
+     * The amount one access adds to a priority.
+     */
+    private static final long ACCESS = 1L << TIE_BITS;
+
+    /**
+     * Breaks ties between equal access counts.
+     */
+    private final Random random;
+
+    /**
+     * Creates a new, empty treap.
+     */
+    public Treap() {
+        this(new Random());
+    }
+
+    /**
+     * Creates a new, empty treap that breaks ties using the given source of
+     * randomness, so that its shape can be reproduced.
+     *
+     * @param random the source of randomness
+     */
+    public Treap(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Gives the inserted node a count of one and a random tie-breaker, and
+     * rotates it up into heap order.
+     *
+     * @param node the node inserted
+     */
+    @Override
+    void inserted(Node<E> node) {
+        node.priority = ACCESS | random.nextInt(1 << TIE_BITS);
+        siftUp(node);
+    }
+
+    /**
+     * Counts an access to the node found, and rotates it up into heap
+     * order. Misses change nothing.
+     *
+     * @param node the node found
+     * @param hit whether the search found its element
+     */
+    @Override
+    void accessed(Node<E> node, boolean hit) {
+        if (!hit || node.priority > Long.MAX_VALUE - ACCESS) return;
+        node.priority += ACCESS;
+        siftUp(node);
+    }
+
+    /**
+     * Rotates the node down below its higher priority child until it is a
+     * leaf, then cuts it off.
+     *
+     * @param node the node to remove
+     */
+    @Override
+    void unlink(Node<E> node) {
+        while (node.left != null || node.right != null) {
+            Node<E> child;
+            if (node.left == null) child = node.right;
+            else if (node.right == null) child = node.left;
+            else child = node.left.priority > node.right.priority
+                        ? node.left : node.right;
+            rotateUp(child);
+        }
+        transplant(node, null);
+    }
+
+    /**
+     * Rotates a node up while its priority is greater than its parent's.
+     *
+     * @param node the node to sift up
+     */
+    private void siftUp(Node<E> node) {
+        while (node.parent != null && node.priority > node.parent.priority)
+            rotateUp(node);
+    }
+
+}
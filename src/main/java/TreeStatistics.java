@@ -0,0 +1,287 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters and a structural summary for a {@link RedBlackTree},
+ * created by {@link RedBlackTree#instrument()}. The counters are kept by
+ * the tree as it runs, independently of its log string, and can be read
+ * directly or over JMX once {@link #register(String)} has been called.
+ * Every operation can also be timed as a {@link DictionaryOperationEvent}
+ * for Java Flight Recorder - one in every
+ * {@link #getSamplingInterval()} operations is timed, and only when a
+ * recording with the event enabled is running.
+ * A tree that has not been instrumented does no more than a null check for
+ * each of these counters.
+ * The counters are written only by the thread using the tree and are read
+ * without synchronisation, so may lag behind slightly when read from
+ * another thread.
+ * The height and black-height are never found by the reading thread, which
+ * would race with the thread changing the tree. Reading either asks the
+ * thread using the tree to find both at the end of its next operation, and
+ * gives the values found at the last such request - so a poller sees them
+ * one poll late, and each poll costs the thread using the tree a walk of
+ * the whole tree.
+ *
+ * @author Samuel Marsh
+ */
+public class TreeStatistics implements TreeStatisticsMXBean {
+
+    /**
+     * The domain under which statistics are registered with JMX.
+     */
+    private static final String DOMAIN = "RedBlackTree";
+
+    /**
+     * The tree being instrumented.
+     */
+    private final RedBlackTree<?> tree;
+
+    /**
+     * The number of calls to each operation, keyed by operation name.
+     */
+    private final Map<String, LongAdder> operations;
+
+    /**
+     * Running totals over all operations.
+     */
+    private long comparisons, rotations, recolourings, modifications;
+
+    /**
+     * The size of the tree after the most recent operation.
+     */
+    private int size;
+
+    /**
+     * The height and black-height found at the end of the last operation
+     * after they were asked for.
+     */
+    private volatile int height, blackHeight;
+
+    /**
+     * Set when the height or black-height is read, so that the thread using
+     * the tree finds them again at the end of its next operation.
+     */
+    private volatile boolean summaryWanted;
+
+    /**
+     * One in how many operations is timed as an event.
+     */
+    private int interval;
+
+    /**
+     * Counts down the operations until the next one to be timed.
+     */
+    private int countdown;
+
+    /**
+     * The event timing the current operation, or null if it is not being
+     * timed.
+     */
+    private DictionaryOperationEvent event;
+
+    /**
+     * The number of rotations and recolourings made before the timed
+     * operation began.
+     */
+    private long rotationsBefore, recolouringsBefore;
+
+    /**
+     * The name these statistics are registered with JMX under, or null if
+     * they are not registered.
+     */
+    private ObjectName name;
+
+    /**
+     * Creates statistics for a tree. Used by {@link RedBlackTree#instrument()}.
+     *
+     * @param tree the tree being instrumented
+     */
+    TreeStatistics(RedBlackTree<?> tree) {
+        this.tree = tree;
+        operations = new ConcurrentHashMap<String, LongAdder>();
+        interval = countdown = 1;
+    }
+
+    /**
+     * Registers the statistics with the platform MBean server, under the
+     * name {@code RedBlackTree:type=TreeStatistics,name=<name>}. Any
+     * previous registration is replaced.
+     *
+     * @param name the name to register the statistics under
+     * @return the object name the statistics were registered under
+     * @throws JMException if the statistics could not be registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName =
+                new ObjectName(DOMAIN, "type", "TreeStatistics");
+        objectName = ObjectName.getInstance(objectName + ",name="
+                + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.name = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes the statistics from the platform MBean server, if they were
+     * registered.
+     *
+     * @throws JMException if the statistics could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (name == null) return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        name = null;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getHeight() {
+        summaryWanted = true;
+        return height;
+    }
+
+    @Override
+    public int getBlackHeight() {
+        summaryWanted = true;
+        return blackHeight;
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        operations.forEach((op, count) -> counts.put(op, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    @Override
+    public double getComparisonsPerOperation() {
+        long total = 0;
+        for (LongAdder count : operations.values()) total += count.sum();
+        return total == 0 ? 0 : (double) comparisons / total;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations;
+    }
+
+    @Override
+    public long getRecolourings() {
+        return recolourings;
+    }
+
+    @Override
+    public long getConcurrentModifications() {
+        return modifications;
+    }
+
+    @Override
+    public int getSamplingInterval() {
+        return interval;
+    }
+
+    @Override
+    public void setSamplingInterval(int interval)
+            throws IllegalArgumentException {
+        if (interval < 1)
+            throw new IllegalArgumentException(
+                    "sampling interval must be positive"
+            );
+        this.interval = countdown = interval;
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+        comparisons = rotations = recolourings = modifications = 0;
+    }
+
+    /**
+     * Called by the tree as an operation begins, to start timing it if it
+     * is to be sampled.
+     */
+    void begin() {
+        if (--countdown > 0) return;
+        countdown = interval;
+        DictionaryOperationEvent e = new DictionaryOperationEvent();
+        if (!e.isEnabled()) return;
+        rotationsBefore = rotations;
+        recolouringsBefore = recolourings;
+        e.begin();
+        event = e;
+    }
+
+    /**
+     * Called by the tree as an operation completes.
+     *
+     * @param method a description of the operation, starting with its name
+     * @param comparisons the number of comparisons the operation made
+     * @param size the size of the tree once the operation completed
+     */
+    void end(String method, int comparisons, int size) {
+        int paren = method.indexOf('(');
+        String op = paren < 0 ? method : method.substring(0, paren);
+        operations.computeIfAbsent(op, k -> new LongAdder()).increment();
+        this.comparisons += comparisons;
+        this.size = size;
+        if (summaryWanted) {
+            summaryWanted = false;
+            height = tree.height();
+            blackHeight = tree.blackHeight();
+        }
+        DictionaryOperationEvent e = event;
+        if (e == null) return;
+        event = null;
+        e.end();
+        if (e.shouldCommit()) {
+            e.operation = op;
+            e.comparisons = comparisons;
+            e.rotations = (int) (rotations - rotationsBefore);
+            e.recolourings = (int) (recolourings - recolouringsBefore);
+            e.size = size;
+            e.commit();
+        }
+    }
+
+    /**
+     * Called by the tree after each rotation.
+     */
+    void rotated() {
+        ++rotations;
+    }
+
+    /**
+     * Called by the tree after recolouring nodes.
+     *
+     * @param nodes the number of nodes recoloured
+     */
+    void recoloured(int nodes) {
+        recolourings += nodes;
+    }
+
+    /**
+     * Called by the tree's iterators as they fail with a
+     * {@link java.util.ConcurrentModificationException}.
+     */
+    void modified() {
+        ++modifications;
+    }
+
+}
@@ -0,0 +1,105 @@
+import java.util.Map;
+
+/**
+ * The management interface of {@link TreeStatistics}, through which the
+ * live counters and structural summary of an instrumented
+ * {@link RedBlackTree} are exposed over JMX.
+ *
+ * @author Samuel Marsh
+ */
+public interface TreeStatisticsMXBean {
+
+    /**
+     * Gives the number of elements in the tree.
+     *
+     * @return the size of the tree
+     */
+    int getSize();
+
+    /**
+     * Gives the number of nodes on the longest path from the root to a
+     * leaf, as found by the thread using the tree at the end of its first
+     * operation after the previous read of the height or black-height.
+     * Finding it takes that thread a walk of the whole tree.
+     *
+     * @return the height of the tree when last found, or 0 if it has not
+     * been found yet
+     */
+    int getHeight();
+
+    /**
+     * Gives the number of black nodes on any path from the root to a leaf,
+     * found at the same time as the height.
+     *
+     * @return the black-height of the tree when last found, or 0 if it has
+     * not been found yet
+     */
+    int getBlackHeight();
+
+    /**
+     * Gives the number of calls made to each operation, keyed by the name
+     * of the operation.
+     *
+     * @return the operation mix
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * Gives the total number of element comparisons made by all operations.
+     *
+     * @return the number of comparisons
+     */
+    long getComparisons();
+
+    /**
+     * Gives the number of comparisons made per operation, on average.
+     *
+     * @return the mean number of comparisons per operation
+     */
+    double getComparisonsPerOperation();
+
+    /**
+     * Gives the number of rotations made while rebalancing.
+     *
+     * @return the number of rotations
+     */
+    long getRotations();
+
+    /**
+     * Gives the number of nodes recoloured while rebalancing.
+     *
+     * @return the number of recolourings
+     */
+    long getRecolourings();
+
+    /**
+     * Gives the number of times an iterator has failed because the tree was
+     * modified underneath it.
+     *
+     * @return the number of concurrent modification exceptions thrown
+     */
+    long getConcurrentModifications();
+
+    /**
+     * Gives the interval at which operations are sampled as flight
+     * recorder events.
+     *
+     * @return one in how many operations is recorded as an event
+     */
+    int getSamplingInterval();
+
+    /**
+     * Sets the interval at which operations are sampled as flight recorder
+     * events.
+     *
+     * @param interval one in how many operations to record as an event
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    void setSamplingInterval(int interval) throws IllegalArgumentException;
+
+    /**
+     * Sets all counters back to zero.
+     */
+    void reset();
+
+}
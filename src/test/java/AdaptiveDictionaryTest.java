@@ -0,0 +1,95 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the array and tree forms of {@link AdaptiveDictionary}. The
+ * {@link Dictionary} operations themselves are covered by
+ * {@link DictionaryTest}.
+ *
+ * @author Sam Marsh
+ */
+public class AdaptiveDictionaryTest {
+
+    private AdaptiveDictionary<Integer> dictionary;
+
+    @Before
+    public void initialise() {
+        dictionary = new AdaptiveDictionary<Integer>(8, 4);
+    }
+
+    @Test
+    public void promotesAboveThresholdAndDemotesBelowLower() {
+        for (int i = 0; i < 8; ++i) dictionary.add(i);
+        assertThat(dictionary.isTree(), is(false));
+        dictionary.add(8);
+        assertThat(dictionary.isTree(), is(true));
+        //shrinking back to the promotion threshold keeps the tree
+        dictionary.delete(8);
+        dictionary.delete(7);
+        assertThat(dictionary.isTree(), is(true));
+        for (int i = 6; i >= 4; --i) dictionary.delete(i);
+        assertThat(dictionary.isTree(), is(true));
+        dictionary.delete(3);
+        assertThat(dictionary.isTree(), is(false));
+        assertThat(dictionary.size(), is(3));
+        assertThat(dictionary.toString(), is("[0, 1, 2]"));
+        assertThat(dictionary.successor(1), is(2));
+        assertThat(dictionary.predecessor(1), is(0));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsWhenPromoted() {
+        for (int i = 0; i < 8; ++i) dictionary.add(i);
+        Iterator<Integer> it = dictionary.iterator();
+        it.next();
+        dictionary.add(8);
+        it.next();
+    }
+
+    @Test
+    public void iteratorRemovesInBothForms() {
+        for (int i = 0; i < 20; ++i) dictionary.add(i);
+        Iterator<Integer> it = dictionary.iterator();
+        while (it.hasNext()) if (it.next() % 2 == 1) it.remove();
+        assertThat(dictionary.size(), is(10));
+        assertThat(dictionary.isTree(), is(true));
+        for (int i = 0; i < 14; i += 2) dictionary.delete(i);
+        assertThat(dictionary.isTree(), is(false));
+        it = dictionary.iterator(15);
+        assertThat(it.next(), is(16));
+        it.remove();
+        assertThat(it.next(), is(18));
+        assertThat(it.hasNext(), is(false));
+        assertThat(dictionary.toString(), is("[14, 18]"));
+    }
+
+    @Test
+    public void logCoversBothForms() {
+        for (int i = 0; i < 9; ++i) dictionary.add(i);
+        dictionary.contains(3);
+        for (int i = 8; i >= 3; --i) dictionary.delete(i);
+        dictionary.contains(1);
+        String[] lines = dictionary.getLogString().split("\\R");
+        //nine adds, the last of which promotes, a lookup in the tree, six
+        //deletes, the last of which demotes, and a lookup in the array
+        assertThat(lines.length, is(17));
+        assertThat(lines[0],
+                is("Operation add(0) completed using 0 comparison(s)."));
+        assertThat(lines[9].startsWith("Operation contains(3)"), is(true));
+        assertThat(lines[16],
+                is("Operation contains(1) completed using 1 comparison(s)."));
+        assertThat(dictionary.getLogString(), is(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidThresholds() {
+        new AdaptiveDictionary<Integer>(4, 4);
+    }
+
+}
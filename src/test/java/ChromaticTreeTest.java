@@ -0,0 +1,140 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sam Marsh
+ */
+public class ChromaticTreeTest {
+
+    private ChromaticTree<Integer> tree;
+
+    @Test
+    public void rebalancingAfterAscendingInsertsGivesRedBlackHeight() {
+        tree = new ChromaticTree<Integer>(false);
+        for (int i = 0; i < 1000; ++i) tree.add(i);
+        assertThat(tree.balanced(), is(false));
+        assertTrue(tree.rebalance() > 0);
+        assertThat(tree.balanced(), is(true));
+        assertTrue(tree.height() <= bound(1000));
+        assertThat(tree.rebalance(), is(0));
+    }
+
+    @Test
+    public void rebalancingAfterDeletesGivesRedBlackHeight() {
+        tree = new ChromaticTree<Integer>(false);
+        for (int i = 0; i < 1000; ++i) tree.add(i);
+        tree.rebalance();
+        for (int i = 0; i < 1000; ++i) if (i % 10 != 0) tree.delete(i);
+        assertThat(tree.balanced(), is(false));
+        tree.rebalance();
+        assertThat(tree.balanced(), is(true));
+        assertTrue(tree.height() <= bound(100));
+        int expected = 0;
+        for (int i : tree) {
+            assertThat(i, is(expected));
+            expected += 10;
+        }
+        assertThat(expected, is(1000));
+    }
+
+    @Test
+    public void writersRepairTheViolationsTheyLeave() {
+        tree = new ChromaticTree<Integer>();
+        for (int i = 0; i < 1000; ++i) tree.add(i);
+        for (int i = 0; i < 1000; i += 3) tree.delete(i);
+        assertThat(tree.balanced(), is(true));
+        assertTrue(tree.height() <= bound(1000));
+        assertThat(tree.rebalance(), is(0));
+    }
+
+    @Test
+    public void concurrentWritersAndReaders() throws Exception {
+        tree = new ChromaticTree<Integer>();
+        tree.setLogging(false);
+        //the even elements are never deleted, so readers always find them
+        for (int i = 0; i < 400; i += 2) tree.add(i);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean missed = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (running.get())
+                for (int i = 0; i < 400; i += 2)
+                    if (!tree.contains(i)) missed.set(true);
+        });
+        reader.start();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; ++t) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int n = 0; n < 20000; ++n) {
+                    int item = 2 * random.nextInt(200) + 1;
+                    if (random.nextBoolean()) tree.add(item);
+                    else tree.delete(item);
+                }
+                for (int i = 1; i < 400; i += 2) tree.delete(i);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+        running.set(false);
+        reader.join();
+        assertThat(missed.get(), is(false));
+        assertThat(tree.balanced(), is(true));
+        List<Integer> all = new ArrayList<Integer>();
+        for (int i : tree) all.add(i);
+        assertThat(all.size(), is(200));
+        for (int i = 0; i < 200; ++i) assertThat(all.get(i), is(2 * i));
+    }
+
+    @Test
+    public void backgroundThreadRebalancesForWritersThatDoNot()
+            throws Exception {
+        tree = new ChromaticTree<Integer>(false);
+        tree.setLogging(false);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread rebalancer = new Thread(() -> {
+            while (running.get()) if (tree.rebalance() == 0) Thread.yield();
+        });
+        rebalancer.start();
+        Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; ++t) {
+            int base = t * 5000;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 5000; ++i) tree.add(base + i);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+        running.set(false);
+        rebalancer.join();
+        tree.rebalance();
+        assertThat(tree.balanced(), is(true));
+        assertTrue(tree.height() <= bound(10000));
+        assertThat(tree.min(), is(0));
+        assertThat(tree.max(), is(9999));
+    }
+
+    /**
+     * The greatest height of a red-black tree with n elements, counting the
+     * leaves and the rightmost leaf.
+     */
+    private static int bound(int n) {
+        return 2 * (32 - Integer.numberOfLeadingZeros(n + 1)) + 1;
+    }
+
+    @After
+    public void printLog() throws IOException {
+        if (tree != null) System.out.println(tree.getLogString());
+    }
+
+}
@@ -0,0 +1,99 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Sam Marsh
+ */
+public class CombiningDictionaryTest {
+
+    private CombiningDictionary<Integer> dictionary;
+
+    @Before
+    public void initialise() {
+        dictionary = new CombiningDictionary<Integer>();
+    }
+
+    @Test
+    public void concurrentWritersAllApplied() throws Exception {
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < 4000; i += threads.length)
+                    assertThat(dictionary.add(i), is(true));
+                for (int i = offset; i < 4000; i += 2 * threads.length)
+                    assertThat(dictionary.delete(i), is(true));
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        for (int i = 0; i < 4000; ++i)
+            assertThat(dictionary.contains(i),
+                    is(i % (2 * threads.length) >= threads.length));
+    }
+
+    @Test
+    public void failedRequestDoesNotDisturbLaterOnes() {
+        CombiningDictionary<Key> keys = new CombiningDictionary<Key>();
+        assertThat(keys.add(new Key(1)), is(true));
+        try {
+            keys.add(new Key(-1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            //thrown by compareTo, in this thread
+        }
+        assertThat(keys.add(new Key(5)), is(true));
+        assertThat(keys.contains(new Key(5)), is(true));
+        assertThat(keys.add(new Key(5)), is(false));
+    }
+
+    @Test
+    public void slotsOfEndedThreadsAreDropped() throws Exception {
+        for (int t = 0; t < 100; ++t) {
+            int item = t;
+            Thread thread = new Thread(() -> dictionary.add(item));
+            thread.start();
+            thread.join();
+        }
+        for (int n = 0; n < 10 && dictionary.slots() > 50; ++n) {
+            System.gc();
+            dictionary.contains(0);
+        }
+        assertThat(dictionary.slots() <= 50, is(true));
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(dictionary.getLogString());
+    }
+
+    private static final class Key implements Comparable<Key> {
+
+        private final int value;
+
+        private Key(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (value < 0 || other.value < 0)
+                throw new IllegalArgumentException("negative key");
+            return Integer.compare(value, other.value);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(value);
+        }
+
+    }
+
+}
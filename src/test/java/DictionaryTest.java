@@ -1,24 +1,59 @@
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.function.Supplier;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 /**
+ * Tests the {@link Dictionary} contract against each implementation.
+ *
  * @author Sam Marsh
  */
+@RunWith(Parameterized.class)
 public class DictionaryTest {
 
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> implementations() {
+        return Arrays.asList(new Object[][]{
+                {"RedBlackTree", (Supplier<Dictionary<Integer>>)
+                        RedBlackTree::new},
+                {"ShardedDictionary", (Supplier<Dictionary<Integer>>)
+                        () -> new ShardedDictionary<Integer>(-10, 25, 60)},
+                {"CombiningDictionary", (Supplier<Dictionary<Integer>>)
+                        CombiningDictionary::new},
+                {"AdaptiveDictionary", (Supplier<Dictionary<Integer>>)
+                        () -> new AdaptiveDictionary<Integer>(4, 2)},
+                {"SplayTree", (Supplier<Dictionary<Integer>>)
+                        SplayTree::new},
+                {"Treap", (Supplier<Dictionary<Integer>>) Treap::new},
+                {"ChromaticTree", (Supplier<Dictionary<Integer>>)
+                        ChromaticTree::new},
+        });
+    }
+
+    private final Supplier<Dictionary<Integer>> factory;
+
     private Dictionary<Integer> dictionary;
 
+    public DictionaryTest(String name,
+                          Supplier<Dictionary<Integer>> factory) {
+        this.factory = factory;
+    }
+
     @Before
     public void initialise() {
-        dictionary = new RedBlackTree<Integer>();
+        dictionary = factory.get();
     }
 
     @Test
@@ -136,6 +171,12 @@ public class DictionaryTest {
         assertThat(dictionary.predecessor(500), is(99));
     }
 
+    @Test
+    public void correctPredecessorOfMaxItem() {
+        for (int i = 0; i < 100; ++i) dictionary.add(i);
+        assertThat(dictionary.predecessor(99), is(98));
+    }
+
     @Test
     public void correctSuccessorWhenInDictionary() {
         for (int i = 0; i < 100; ++i) dictionary.add(i);
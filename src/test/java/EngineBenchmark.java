@@ -0,0 +1,126 @@
+import java.util.Random;
+
+/**
+ * A rough benchmark of the lookup throughput of each
+ * {@link DictionaryEngine} under uniform and Zipf-distributed workloads,
+ * reporting both time and element comparisons per lookup. Each engine's
+ * log is turned off, so that the times measure the lookups rather than
+ * formatting log lines. Not run as part of the tests. Run
+ * with
+ * {@code java EngineBenchmark [elements] [lookups] [zipf exponent]}.
+ *
+ * @author Sam Marsh
+ */
+public class EngineBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        Random random = new Random(42);
+
+        //the elements in a random order, so that popular elements are
+        //spread across the key space
+        Key[] keys = new Key[n];
+        for (int i = 0; i < n; ++i) keys[i] = new Key(i);
+        for (int i = n - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            Key tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+
+        //inserted in a different random order, so that the popular
+        //elements are not also the ones inserted first
+        Key[] order = keys.clone();
+        for (int i = n - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            Key tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        Key[] uniform = new Key[lookups];
+        for (int i = 0; i < lookups; ++i) uniform[i] = keys[random.nextInt(n)];
+
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; ++i)
+            cdf[i] = total += 1 / Math.pow(i + 1, exponent);
+        Key[] zipf = new Key[lookups];
+        for (int i = 0; i < lookups; ++i) {
+            double u = random.nextDouble() * total;
+            int lo = 0, hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) lo = mid + 1;
+                else hi = mid;
+            }
+            zipf[i] = keys[lo];
+        }
+
+        System.out.printf("%d elements, %d lookups, zipf exponent %.2f%n",
+                n, lookups, exponent);
+        for (DictionaryEngine engine : DictionaryEngine.values()) {
+            for (int round = 0; round < 3; ++round) {
+                boolean last = round == 2;
+                double[] u = run(engine, order, uniform);
+                double[] z = run(engine, order, zipf);
+                if (last)
+                    System.out.printf("%-10s uniform %7.1f ns/op %5.1f cmp/op"
+                                    + "   zipf %7.1f ns/op %5.1f cmp/op%n",
+                            engine, u[0], u[1], z[0], z[1]);
+            }
+        }
+    }
+
+    private static double[] run(DictionaryEngine engine, Key[] keys,
+                              Key[] probes) {
+        Dictionary<Key> dictionary = engine.create();
+        quiet(dictionary);
+        for (Key key : keys) dictionary.add(key);
+        int found = 0;
+        Key.comparisons = 0;
+        long start = System.nanoTime();
+        for (Key probe : probes) if (dictionary.contains(probe)) ++found;
+        long elapsed = System.nanoTime() - start;
+        if (!dictionary.getLogString().isEmpty()) throw new AssertionError();
+        if (found != probes.length) throw new AssertionError();
+        return new double[]{(double) elapsed / probes.length,
+                (double) Key.comparisons / probes.length};
+    }
+
+    private static void quiet(Dictionary<Key> dictionary) {
+        if (dictionary instanceof RedBlackTree)
+            ((RedBlackTree<Key>) dictionary).setLogging(false);
+        else if (dictionary instanceof SelfAdjustingTree)
+            ((SelfAdjustingTree<Key>) dictionary).setLogging(false);
+        else if (dictionary instanceof AdaptiveDictionary)
+            ((AdaptiveDictionary<Key>) dictionary).setLogging(false);
+        else throw new AssertionError("no way to turn off logging");
+    }
+
+    private static final class Key implements Comparable<Key> {
+
+        private static long comparisons;
+
+        private final int value;
+
+        private Key(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            ++comparisons;
+            return Integer.compare(value, other.value);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(value);
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Sam Marsh
+ */
+public class ExpiringDictionaryTest {
+
+    private long now;
+
+    private ExpiringDictionary<Integer> dictionary;
+
+    @Before
+    public void initialise() {
+        now = 0;
+        dictionary = new ExpiringDictionary<Integer>(10, () -> now);
+    }
+
+    @Test
+    public void itemIsAbsentOnceExpired() {
+        dictionary.add(1);
+        now = 9;
+        assertThat(dictionary.contains(1), is(true));
+        now = 10;
+        assertThat(dictionary.contains(1), is(false));
+        assertThat(dictionary.isEmpty(), is(true));
+    }
+
+    @Test
+    public void expiredItemCanBeAddedAgain() {
+        dictionary.add(1);
+        assertThat(dictionary.add(1), is(false));
+        now = 10;
+        assertThat(dictionary.add(1), is(true));
+        now = 19;
+        assertThat(dictionary.contains(1), is(true));
+    }
+
+    @Test
+    public void queriesSkipExpiredItems() {
+        for (int i = 0; i < 100; ++i) dictionary.add(i, i % 2 == 0 ? 5 : 50);
+        now = 5;
+        assertThat(dictionary.min(), is(1));
+        assertThat(dictionary.max(), is(99));
+        assertThat(dictionary.predecessor(50), is(49));
+        assertThat(dictionary.successor(50), is(51));
+        assertThat(dictionary.delete(50), is(false));
+        int expected = 1;
+        for (int i : dictionary) {
+            assertThat(i, is(expected));
+            expected += 2;
+        }
+    }
+
+    @Test
+    public void neighboursSkipRunsOfExpiredItemsWithoutSteppingThem() {
+        for (int i = 0; i < 1000; ++i) dictionary.add(i, i == 500 ? 50 : 5);
+        now = 5;
+        dictionary.getLogString();
+        assertThat(dictionary.max(), is(500));
+        assertThat(dictionary.predecessor(999), is(500));
+        assertThat(dictionary.successor(0), is(500));
+        assertThat(dictionary.hasPredecessor(500), is(false));
+        assertThat(dictionary.hasSuccessor(500), is(false));
+        //each query descends the tree once, rather than once per expired
+        //element passed over
+        String[] lines = dictionary.getLogString().split("\\R");
+        assertThat(lines.length, is(5));
+        for (String line : lines) {
+            int comparisons = Integer.parseInt(
+                    line.replaceAll(".* using (\\d+) .*", "$1"));
+            assertThat(line, comparisons <= 40, is(true));
+        }
+    }
+
+    @Test
+    public void expireUpToRemovesExpiredItems() {
+        for (int i = 0; i < 100; ++i) dictionary.add(i, i);
+        assertThat(dictionary.expireUpTo(49), is(50));
+        assertThat(dictionary.expireUpTo(49), is(0));
+        assertThat(dictionary.min(), is(50));
+        assertThat(dictionary.expireUpTo(1000), is(50));
+        assertThat(dictionary.isEmpty(), is(true));
+    }
+
+    @Test
+    public void iteratorCanDeleteLiveItems() {
+        for (int i = 0; i < 100; ++i) dictionary.add(i, i % 3 == 0 ? 0 : 10);
+        Iterator<Integer> iterator = dictionary.iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        assertThat(dictionary.isEmpty(), is(true));
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(dictionary.getLogString());
+    }
+
+}
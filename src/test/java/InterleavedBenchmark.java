@@ -0,0 +1,64 @@
+import java.util.Random;
+
+/**
+ * A rough comparison of looped {@link RedBlackTree#contains(Comparable)}
+ * calls with {@link RedBlackTree#containsInterleaved(Comparable[],
+ * boolean[], int)} at several widths, on a tree much larger than the
+ * processor caches, with random (unsorted) probes, half of them hits.
+ * Reports the time per probe. Logging is turned off. Not run as part of
+ * the tests. Run with
+ * {@code java -Xmx2g InterleavedBenchmark [elements] [probes]}.
+ *
+ * @author Sam Marsh
+ */
+public class InterleavedBenchmark {
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        Random random = new Random(42);
+        RedBlackTree<Integer> tree = new RedBlackTree<Integer>();
+        tree.setLogging(false);
+        //the even numbers, inserted in a random order so that neighbouring
+        //nodes are not also neighbours in memory
+        int[] order = new int[n];
+        for (int i = 0; i < n; ++i) order[i] = 2 * i;
+        for (int i = n - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        for (int key : order) tree.add(key);
+        order = null;
+
+        Integer[] probes = new Integer[lookups];
+        for (int i = 0; i < lookups; ++i) probes[i] = random.nextInt(2 * n);
+        boolean[] out = new boolean[lookups];
+
+        System.out.printf("%d elements, %d probes%n", n, lookups);
+        int[] widths = {1, 8, 16, 32};
+        for (int round = 0; round < 3; ++round) {
+            boolean last = round == 2;
+            int found = 0;
+            long start = System.nanoTime();
+            for (Integer probe : probes) if (tree.contains(probe)) ++found;
+            long elapsed = System.nanoTime() - start;
+            if (last)
+                System.out.printf("%-16s %8.1f ns/probe%n", "contains()",
+                        elapsed / (double) lookups);
+            for (int width : widths) {
+                start = System.nanoTime();
+                tree.containsInterleaved(probes, out, width);
+                elapsed = System.nanoTime() - start;
+                int hits = 0;
+                for (boolean hit : out) if (hit) ++hits;
+                if (hits != found) throw new AssertionError(hits);
+                if (last)
+                    System.out.printf("%-16s %8.1f ns/probe%n",
+                            "width " + width, elapsed / (double) lookups);
+            }
+        }
+    }
+
+}
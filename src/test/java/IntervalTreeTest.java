@@ -0,0 +1,90 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Sam Marsh
+ */
+public class IntervalTreeTest {
+
+    private IntervalTree<Integer> tree;
+
+    @Before
+    public void initialise() {
+        tree = new IntervalTree<Integer>();
+    }
+
+    private static Interval<Integer> interval(int start, int end) {
+        return new Interval<Integer>(start, end);
+    }
+
+    private static List<Interval<Integer>> list(
+            Iterator<Interval<Integer>> iterator) {
+        List<Interval<Integer>> ret = new ArrayList<Interval<Integer>>();
+        while (iterator.hasNext()) ret.add(iterator.next());
+        return ret;
+    }
+
+    @Test
+    public void noOverlapsWhenEmpty() {
+        assertThat(tree.overlapping(0, 10).hasNext(), is(false));
+    }
+
+    @Test
+    public void findsOverlappingIntervalsInOrder() {
+        tree.add(interval(0, 3));
+        tree.add(interval(5, 8));
+        tree.add(interval(6, 10));
+        tree.add(interval(8, 9));
+        tree.add(interval(15, 23));
+        tree.add(interval(16, 21));
+        tree.add(interval(17, 19));
+        tree.add(interval(19, 20));
+        tree.add(interval(25, 30));
+        tree.add(interval(26, 26));
+        assertThat(list(tree.overlapping(9, 16)), is(Arrays.asList(
+                interval(6, 10), interval(8, 9),
+                interval(15, 23), interval(16, 21)
+        )));
+    }
+
+    @Test
+    public void stabFindsIntervalsContainingPoint() {
+        tree.add(interval(0, 10));
+        tree.add(interval(0, 5));
+        tree.add(interval(5, 5));
+        tree.add(interval(6, 7));
+        assertThat(list(tree.stab(5)), is(Arrays.asList(
+                interval(0, 5), interval(0, 10), interval(5, 5)
+        )));
+    }
+
+    @Test
+    public void overlapsCorrectAfterDeletions() {
+        for (int i = 0; i < 100; ++i) tree.add(interval(i, i + 5));
+        for (int i = 0; i < 100; i += 2) tree.delete(interval(i, i + 5));
+        assertThat(list(tree.stab(50)), is(Arrays.asList(
+                interval(45, 50), interval(47, 52), interval(49, 54)
+        )));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intervalRejectsStartAfterEnd() {
+        interval(5, 4);
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(tree.getLogString());
+    }
+
+}
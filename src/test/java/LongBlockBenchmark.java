@@ -0,0 +1,88 @@
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A rough comparison of {@link LongBlockDictionary} and
+ * {@link RedBlackTree RedBlackTree&lt;Long&gt;} on random keys at growing
+ * sizes. Reports the time per lookup for {@code contains} (half of them
+ * hits) and for {@code successor}, and the heap retained by each
+ * dictionary. Logging is turned off for both. Not run as part of the
+ * tests. Run with {@code java LongBlockBenchmark [lookups]}, adding
+ * {@code --add-modules jdk.incubator.vector} and the compiled
+ * {@code VectorBlockSearch} to time the vector search of the blocks.
+ *
+ * @author Sam Marsh
+ */
+public class LongBlockBenchmark {
+
+    public static void main(String[] args) {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.printf("%9s %-10s %12s %13s %11s%n", "keys",
+                "dictionary", "contains ns", "successor ns", "bytes/key");
+        for (int n = 10000; n <= 1000000; n *= 10) {
+            Random random = new Random(42);
+            long[] keys = new long[n];
+            for (int i = 0; i < n; ++i) keys[i] = random.nextLong();
+            Long[] probes = new Long[lookups];
+            for (int i = 0; i < lookups; ++i) {
+                long key = keys[random.nextInt(n)];
+                probes[i] = random.nextBoolean() ? key : key + 1;
+            }
+            for (int round = 0; round < 3; ++round) {
+                boolean last = round == 2;
+                run(keys, probes, false, last);
+                run(keys, probes, true, last);
+            }
+        }
+    }
+
+    private static void run(long[] keys, Long[] probes, boolean blocks,
+                            boolean print) {
+        long before = used();
+        Dictionary<Long> dictionary;
+        if (blocks) {
+            LongBlockDictionary d = new LongBlockDictionary();
+            d.setLogging(false);
+            for (long key : keys) d.add(key);
+            dictionary = d;
+        } else {
+            RedBlackTree<Long> d = new RedBlackTree<Long>();
+            d.setLogging(false);
+            for (long key : keys) d.add(key);
+            dictionary = d;
+        }
+        long bytes = used() - before;
+
+        int found = 0;
+        long start = System.nanoTime();
+        for (Long probe : probes) if (dictionary.contains(probe)) ++found;
+        long contains = System.nanoTime() - start;
+
+        long sum = 0;
+        start = System.nanoTime();
+        for (Long probe : probes) {
+            try {
+                sum += dictionary.successor(probe);
+            } catch (NoSuchElementException e) {
+                //only for probes at or above the greatest key
+            }
+        }
+        long successor = System.nanoTime() - start;
+        //keeps the results live
+        if (found < 0 || sum == 42) System.out.println();
+
+        if (print)
+            System.out.printf("%9d %-10s %12.1f %13.1f %11.1f%n",
+                    keys.length, blocks ? "blocks" : "red-black",
+                    contains / (double) probes.length,
+                    successor / (double) probes.length,
+                    bytes / (double) keys.length);
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,168 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sam Marsh
+ */
+public class LongBlockDictionaryTest {
+
+    private LongBlockDictionary dictionary;
+
+    @Before
+    public void initialise() {
+        dictionary = new LongBlockDictionary();
+    }
+
+    @Test
+    public void splitsFullBlocksAndKeepsOrder() {
+        for (long i = 999; i >= 0; --i)
+            assertThat(dictionary.add(i * 3), is(true));
+        assertThat(dictionary.add(300L), is(false));
+        assertThat(dictionary.size(), is(1000));
+        assertTrue(dictionary.blocks() > 1000 / LongBlockDictionary.CAPACITY);
+        long expected = 0;
+        for (long i : dictionary) {
+            assertThat(i, is(expected));
+            expected += 3;
+        }
+        assertThat(expected, is(3000L));
+        assertThat(dictionary.contains(300L), is(true));
+        assertThat(dictionary.contains(301L), is(false));
+    }
+
+    @Test
+    public void findsNeighboursAcrossBlocks() {
+        for (long i = 0; i < 1000; ++i) dictionary.add(i * 10);
+        for (long i = 0; i < 9990; i += 7) {
+            assertThat(dictionary.successor(i), is((i / 10 + 1) * 10));
+            if (i > 0)
+                assertThat(dictionary.predecessor(i), is((i - 1) / 10 * 10));
+        }
+        assertThat(dictionary.hasPredecessor(0L), is(false));
+        assertThat(dictionary.hasSuccessor(9990L), is(false));
+        assertThat(dictionary.min(), is(0L));
+        assertThat(dictionary.max(), is(9990L));
+    }
+
+    @Test
+    public void mergesEmptiedBlocks() {
+        for (long i = 0; i < 1000; ++i) dictionary.add(i);
+        int blocks = dictionary.blocks();
+        for (long i = 0; i < 1000; ++i) if (i % 50 != 0) dictionary.delete(i);
+        assertTrue(dictionary.blocks() < blocks / 4);
+        List<Long> all = new ArrayList<Long>();
+        for (long i : dictionary) all.add(i);
+        assertThat(all.size(), is(20));
+        for (int i = 0; i < 20; ++i) assertThat(all.get(i), is(i * 50L));
+        for (long i = 0; i < 1000; i += 50) dictionary.delete(i);
+        assertThat(dictionary.isEmpty(), is(true));
+        assertThat(dictionary.blocks(), is(1));
+    }
+
+    @Test
+    public void holdsTheExtremes() {
+        dictionary.add(Long.MAX_VALUE);
+        dictionary.add(Long.MIN_VALUE);
+        dictionary.add(0L);
+        assertThat(dictionary.contains(Long.MAX_VALUE), is(true));
+        assertThat(dictionary.contains(Long.MIN_VALUE), is(true));
+        assertThat(dictionary.min(), is(Long.MIN_VALUE));
+        assertThat(dictionary.max(), is(Long.MAX_VALUE));
+        assertThat(dictionary.successor(0L), is(Long.MAX_VALUE));
+        assertThat(dictionary.hasSuccessor(Long.MAX_VALUE), is(false));
+        assertThat(dictionary.predecessor(0L), is(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void matchesTreeSet() {
+        Random random = new Random(3);
+        TreeSet<Long> expected = new TreeSet<Long>();
+        dictionary.setLogging(false);
+        for (int n = 0; n < 50000; ++n) {
+            long item = random.nextInt(5000);
+            if (random.nextInt(3) > 0)
+                assertThat(dictionary.add(item), is(expected.add(item)));
+            else
+                assertThat(dictionary.delete(item), is(expected.remove(item)));
+        }
+        List<Long> all = new ArrayList<Long>();
+        for (long i : dictionary) all.add(i);
+        assertThat(all, is(new ArrayList<Long>(expected)));
+        assertThat(dictionary.size(), is(expected.size()));
+    }
+
+    @Test
+    public void blockSearchFindsInsertionPoint() {
+        Random random = new Random(7);
+        long[] keys = new long[LongBlockDictionary.CAPACITY];
+        for (int n = 0; n <= keys.length; ++n) {
+            long prev = Long.MIN_VALUE;
+            for (int i = 0; i < keys.length; ++i)
+                keys[i] = i < n ? prev += 1 + random.nextInt(10)
+                        : Long.MAX_VALUE;
+            for (int j = 0; j < 100; ++j) {
+                long key = Long.MIN_VALUE + random.nextInt(700);
+                int expected = 0;
+                while (expected < n && keys[expected] < key) ++expected;
+                assertThat(LongBlockDictionary.search(keys, key),
+                        is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void iteratorRemovesAcrossMerges() {
+        for (long i = 0; i < 1000; ++i) dictionary.add(i);
+        Iterator<Long> iterator = dictionary.iterator(100L);
+        while (iterator.hasNext())
+            if (iterator.next() % 10 != 0) iterator.remove();
+        assertThat(dictionary.size(), is(100 + 90));
+        assertThat(dictionary.successor(99L), is(100L));
+        assertThat(dictionary.successor(100L), is(110L));
+        assertThat(dictionary.max(), is(990L));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsAfterOutsideChange() {
+        for (long i = 0; i < 100; ++i) dictionary.add(i);
+        Iterator<Long> iterator = dictionary.iterator();
+        dictionary.delete(5L);
+        iterator.next();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void minOfEmptyDictionaryThrows() {
+        dictionary.add(1L);
+        dictionary.delete(1L);
+        dictionary.min();
+    }
+
+    @Test
+    public void blocksStayAtLeastHalfFullUnderInserts() {
+        Random random = new Random(7);
+        dictionary.setLogging(false);
+        for (int i = 0; i < 100000; ++i) dictionary.add(random.nextLong());
+        assertTrue(dictionary.blocks()
+                <= 2 * dictionary.size() / LongBlockDictionary.CAPACITY + 1);
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(dictionary.getLogString());
+    }
+
+}
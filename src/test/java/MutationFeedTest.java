@@ -0,0 +1,213 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link MutationFeed}, mostly delivering on the thread making
+ * changes so that what has been delivered can be checked straight away.
+ *
+ * @author Sam Marsh
+ */
+public class MutationFeedTest {
+
+    private RedBlackTree<Integer> tree;
+
+    private Recorder recorder;
+
+    @Before
+    public void initialise() {
+        tree = new RedBlackTree<Integer>();
+        tree.setLogging(false);
+        recorder = new Recorder();
+    }
+
+    @Test
+    public void publishesEveryKindOfChangeInOrder() {
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        recorder.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 5; ++i) tree.add(i);
+        tree.add(3);
+        tree.delete(1);
+        tree.pollMin();
+        Iterator<Integer> it = tree.iterator();
+        it.next();
+        it.remove();
+        RedBlackTree.Handle<Integer> handle = tree.offer(10);
+        tree.rekey(handle, 7);
+        assertThat(recorder.all().toString(), is("[#1 +0, #2 +1, #3 +2, "
+                + "#4 +3, #5 +4, #6 -1, #7 -0, #8 -2, #9 +10, #10 -10, "
+                + "#11 +7]"));
+        assertThat(tree.mutations().getSequence(), is(11L));
+    }
+
+    @Test
+    public void publishesDeletedElementsOfRecycledNodes() {
+        tree.recycle(16);
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        recorder.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 5; ++i) tree.add(i);
+        tree.delete(1);
+        tree.pollMin();
+        tree.pollMax();
+        Iterator<Integer> it = tree.iterator();
+        it.next();
+        it.remove();
+        assertThat(recorder.all().toString(), is("[#1 +0, #2 +1, #3 +2, "
+                + "#4 +3, #5 +4, #6 -1, #7 -0, #8 -4, #9 -2]"));
+    }
+
+    @Test
+    public void queuesChangesUntilRequested() {
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        for (int i = 0; i < 5; ++i) tree.add(i);
+        assertThat(recorder.batches.isEmpty(), is(true));
+        recorder.subscription.request(1);
+        tree.add(5);
+        assertThat(recorder.batches.size(), is(1));
+        assertThat(recorder.batches.get(0).size(), is(5));
+        recorder.subscription.request(1);
+        assertThat(recorder.batches.get(1).toString(), is("[#6 +5]"));
+    }
+
+    @Test
+    public void publishesTransactionsOnlyOnCommit() {
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        recorder.subscription.request(Long.MAX_VALUE);
+        try {
+            tree.transaction(d -> {
+                d.add(1);
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException ignored) {
+        }
+        tree.transaction(d -> {
+            d.add(2);
+            d.add(3);
+            d.delete(2);
+        });
+        assertThat(recorder.batches.size(), is(1));
+        assertThat(recorder.all().toString(), is("[#1 +2, #2 +3, #3 -2]"));
+    }
+
+    @Test
+    public void unsubscribesSubscribersThatFallBehind() {
+        tree.mutations().subscribe(recorder, Runnable::run, 3);
+        for (int i = 0; i < 4; ++i) tree.add(i);
+        recorder.subscription.request(1);
+        assertThat(recorder.error, instanceOf(IllegalStateException.class));
+        tree.add(10);
+        assertThat(recorder.batches.isEmpty(), is(true));
+    }
+
+    @Test
+    public void stopsDeliveringOnceCancelled() {
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        recorder.subscription.request(Long.MAX_VALUE);
+        tree.add(1);
+        recorder.subscription.cancel();
+        tree.add(2);
+        assertThat(recorder.all().size(), is(1));
+        assertThat(recorder.error, is(nullValue()));
+    }
+
+    @Test
+    public void rejectsNonPositiveRequests() {
+        tree.mutations().subscribe(recorder, Runnable::run, 16);
+        recorder.subscription.request(0);
+        assertThat(recorder.error,
+                instanceOf(IllegalArgumentException.class));
+    }
+
+    @Test
+    public void mirrorKeepsUpAcrossThreads() throws InterruptedException {
+        TreeSet<Integer> mirror = new TreeSet<Integer>();
+        CountDownLatch done = new CountDownLatch(1);
+        Random random = new Random(1);
+        long[] last = new long[1];
+        tree.mutations().subscribe(new Recorder() {
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(List<Mutation<Integer>> batch) {
+                for (Mutation<Integer> mutation : batch) {
+                    assertThat(mutation.getSequence(), is(last[0] + 1));
+                    last[0] = mutation.getSequence();
+                    Integer item = mutation.getElement();
+                    if (mutation.isAddition()) mirror.add(item);
+                    else mirror.remove(item);
+                    if (mutation.getSequence() == 5000) done.countDown();
+                }
+                subscription.request(1);
+            }
+        });
+        long changes = 0;
+        while (changes < 5000) {
+            int item = random.nextInt(500);
+            if (random.nextBoolean() ? tree.add(item) : tree.delete(item))
+                ++changes;
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        List<Integer> all = new ArrayList<Integer>();
+        tree.forEach(all::add);
+        assertThat(new ArrayList<Integer>(mirror), is(all));
+    }
+
+    /**
+     * Keeps every batch delivered to it.
+     */
+    private static class Recorder
+            implements Flow.Subscriber<List<Mutation<Integer>>> {
+
+        private final List<List<Mutation<Integer>>> batches =
+                new ArrayList<List<Mutation<Integer>>>();
+
+        Flow.Subscription subscription;
+
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<Mutation<Integer>> batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        private List<Mutation<Integer>> all() {
+            List<Mutation<Integer>> all = new ArrayList<Mutation<Integer>>();
+            for (List<Mutation<Integer>> batch : batches) all.addAll(batch);
+            return all;
+        }
+
+    }
+
+}
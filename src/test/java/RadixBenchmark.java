@@ -0,0 +1,94 @@
+import java.util.Random;
+
+/**
+ * A rough comparison of {@link RadixDictionary} and
+ * {@link RedBlackTree RedBlackTree&lt;String&gt;} on URL-like keys with long
+ * shared prefixes, at growing sizes. Reports the time and the nodes visited
+ * (or comparisons made) per lookup, and the heap retained by each
+ * dictionary - including the strings held by the red-black tree, since the
+ * radix tree keeps its own encoded copy of each key instead. Logging is
+ * turned off for both. Not run as part of the tests. Run with
+ * {@code java RadixBenchmark [lookups]}.
+ *
+ * @author Sam Marsh
+ */
+public class RadixBenchmark {
+
+    public static void main(String[] args) {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.printf("%9s %-14s %9s %9s %11s%n",
+                "keys", "dictionary", "ns/op", "steps/op", "bytes/key");
+        for (int n = 10000; n <= 1000000; n *= 10) {
+            Random random = new Random(42);
+            String[] probes = new String[lookups];
+            for (int i = 0; i < lookups; ++i)
+                probes[i] = url(random.nextInt(n));
+            for (int round = 0; round < 3; ++round) {
+                boolean last = round == 2;
+                run(n, probes, false, last);
+                run(n, probes, true, last);
+            }
+        }
+    }
+
+    private static void run(int n, String[] probes, boolean radix,
+                            boolean print) {
+        long before = used();
+        Dictionary<String> dictionary;
+        if (radix) {
+            RadixDictionary d = new RadixDictionary();
+            d.setLogging(false);
+            for (int i = 0; i < n; ++i) d.add(url(i));
+            dictionary = d;
+        } else {
+            RedBlackTree<String> d = new RedBlackTree<String>();
+            d.setLogging(false);
+            for (int i = 0; i < n; ++i) d.add(url(i));
+            dictionary = d;
+        }
+        long bytes = used() - before;
+
+        //one logged lookup per probe would dominate the time, so the steps
+        //are sampled from a few logged lookups afterwards
+        int found = 0;
+        long start = System.nanoTime();
+        for (String probe : probes) if (dictionary.contains(probe)) ++found;
+        long elapsed = System.nanoTime() - start;
+        if (found != probes.length) throw new AssertionError(found);
+
+        long steps = 0;
+        int sampled = Math.min(1000, probes.length);
+        if (radix) ((RadixDictionary) dictionary).setLogging(true);
+        else ((RedBlackTree<String>) dictionary).setLogging(true);
+        dictionary.getLogString();
+        for (int i = 0; i < sampled; ++i) {
+            dictionary.contains(probes[i]);
+            String line = dictionary.getLogString();
+            steps += Long.parseLong(line.replaceAll(
+                    "(?s).* using (\\d+) comparison.*", "$1"));
+        }
+
+        if (print)
+            System.out.printf("%9d %-14s %9.1f %9.1f %11.1f%n", n,
+                    radix ? "radix" : "red-black",
+                    elapsed / (double) probes.length,
+                    steps / (double) sampled, bytes / (double) n);
+    }
+
+    /**
+     * A URL-like key, with the id spread over a host shard, a path segment
+     * and a query, so that keys share long prefixes.
+     */
+    private static String url(int id) {
+        return "https://service-" + (id % 8) + ".internal.example.com/api/v2/"
+                + "tenants/" + (id / 1000) + "/resources/" + id
+                + "?view=full";
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,152 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link RadixDictionary} and the {@link RadixTree} behind it.
+ *
+ * @author Sam Marsh
+ */
+public class RadixDictionaryTest {
+
+    private static final String[] URLS = {
+            "http://example.com/",
+            "http://example.com/a",
+            "http://example.com/a/b",
+            "http://example.com/about",
+            "http://example.org/",
+            "https://example.com/",
+            "https://example.com/login",
+    };
+
+    private RadixDictionary dictionary;
+
+    @Before
+    public void initialise() {
+        dictionary = new RadixDictionary();
+    }
+
+    @Test
+    public void keepsSharedPrefixKeysInOrder() {
+        for (int i = URLS.length - 1; i >= 0; --i)
+            assertThat(dictionary.add(URLS[i]), is(true));
+        assertThat(dictionary.add(URLS[2]), is(false));
+        assertThat(dictionary.size(), is(URLS.length));
+        List<String> all = new ArrayList<String>();
+        for (String url : dictionary) all.add(url);
+        assertThat(all, is(Arrays.asList(URLS)));
+        assertThat(dictionary.min(), is(URLS[0]));
+        assertThat(dictionary.max(), is(URLS[URLS.length - 1]));
+    }
+
+    @Test
+    public void findsNeighboursOfAbsentKeys() {
+        for (String url : URLS) dictionary.add(url);
+        assertThat(dictionary.contains("http://example.com/a/"), is(false));
+        assertThat(dictionary.successor("http://example.com/a/"),
+                is("http://example.com/a/b"));
+        assertThat(dictionary.predecessor("http://example.com/a/"),
+                is("http://example.com/a"));
+        assertThat(dictionary.successor("http://example.com/a"),
+                is("http://example.com/a/b"));
+        assertThat(dictionary.predecessor("http://example.net"),
+                is("http://example.com/about"));
+        assertThat(dictionary.hasPredecessor(URLS[0]), is(false));
+        assertThat(dictionary.hasSuccessor(URLS[URLS.length - 1]), is(false));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void successorOfGreatestThrows() {
+        for (String url : URLS) dictionary.add(url);
+        dictionary.successor(URLS[URLS.length - 1]);
+    }
+
+    @Test
+    public void prefixScanReturnsOnlyMatchingKeys() {
+        for (String url : URLS) dictionary.add(url);
+        List<String> matches = new ArrayList<String>();
+        dictionary.prefix("http://example.com/a").forEachRemaining(
+                matches::add);
+        assertThat(matches, is(Arrays.asList(URLS).subList(1, 4)));
+        assertThat(dictionary.prefix("ftp").hasNext(), is(false));
+    }
+
+    @Test
+    public void deletingMergesNodesBackTogether() {
+        for (String url : URLS) dictionary.add(url);
+        for (String url : URLS) assertThat(dictionary.delete(url), is(true));
+        assertThat(dictionary.isEmpty(), is(true));
+        assertThat(dictionary.toString(), is("└── \"\"\n"));
+    }
+
+    @Test
+    public void ordersLikeStringCompareTo() {
+        String[] keys = {"", "a", "\u0000", "é", "ࠀ", "￿",
+                "😀", "", "a\u0000", "ab"};
+        TreeSet<String> expected = new TreeSet<String>(Arrays.asList(keys));
+        for (String key : keys) dictionary.add(key);
+        List<String> all = new ArrayList<String>();
+        for (String key : dictionary) all.add(key);
+        assertThat(all, is(new ArrayList<String>(expected)));
+    }
+
+    @Test
+    public void growsAndShrinksWideNodes() {
+        RadixTree tree = new RadixTree();
+        for (int i = 0; i < 256; ++i) tree.add(new byte[]{7, (byte) i});
+        assertThat(tree.contains(new byte[]{7, (byte) 200}), is(true));
+        for (int i = 0; i < 256; i += 2) tree.delete(new byte[]{7, (byte) i});
+        assertThat(tree.size(), is(128));
+        Iterator<byte[]> it = tree.iterator(new byte[]{7, (byte) 100});
+        assertThat(it.next()[1] & 0xFF, is(101));
+        for (int i = 1; i < 256; i += 2) tree.delete(new byte[]{7, (byte) i});
+        assertThat(tree.isEmpty(), is(true));
+    }
+
+    @Test
+    public void iteratorRemovesAndContinues() {
+        for (String url : URLS) dictionary.add(url);
+        Iterator<String> it = dictionary.iterator("http://example.com/a");
+        while (it.hasNext()) {
+            if (it.next().startsWith("http://")) it.remove();
+        }
+        assertThat(dictionary.size(), is(3));
+        assertThat(dictionary.max(), is(URLS[URLS.length - 1]));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsAfterModification() {
+        for (String url : URLS) dictionary.add(url);
+        Iterator<String> it = dictionary.iterator();
+        dictionary.delete(URLS[3]);
+        it.next();
+    }
+
+    @Test
+    public void logCountsNodesVisited() {
+        for (String url : URLS) dictionary.add(url);
+        dictionary.getLogString();
+        dictionary.contains("zzz");
+        assertThat(dictionary.getLogString(),
+                is(String.format("Operation contains(zzz) completed using "
+                        + "1 comparison(s).%n")));
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(dictionary.getLogString());
+    }
+
+}
@@ -0,0 +1,119 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link RedBlackSet}, checked against {@link TreeSet} where the
+ * behaviour is defined by {@link NavigableSet}.
+ *
+ * @author Sam Marsh
+ */
+public class RedBlackSetTest {
+
+    private RedBlackTree<Integer> tree;
+
+    private RedBlackSet<Integer> set;
+
+    @Before
+    public void initialise() {
+        tree = new RedBlackTree<Integer>();
+        tree.setLogging(false);
+        set = new RedBlackSet<Integer>(tree);
+    }
+
+    @Test
+    public void changesAreSharedWithTheTree() {
+        set.add(3);
+        tree.add(1);
+        assertThat(set.contains(1), is(true));
+        assertThat(tree.contains(3), is(true));
+        assertThat(set.size(), is(2));
+        assertThat(set.first(), is(1));
+        assertThat(set.equals(new TreeSet<Integer>(Arrays.asList(1, 3))),
+                is(true));
+    }
+
+    @Test
+    public void rangeViewsAreLive() {
+        for (int i = 0; i < 20; ++i) set.add(i);
+        NavigableSet<Integer> view = set.subSet(5, true, 10, false);
+        assertThat(view.size(), is(5));
+        tree.delete(7);
+        tree.add(100);
+        assertThat(new ArrayList<Integer>(view),
+                is(Arrays.asList(5, 6, 8, 9)));
+        assertThat(view.pollLast(), is(9));
+        assertThat(set.contains(9), is(false));
+        assertThat(view.higher(9), is(nullValue()));
+        assertThat(view.ceiling(0), is(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rangeViewsRejectElementsOutOfRange() {
+        set.headSet(10).add(10);
+    }
+
+    @Test
+    public void descendingViewsReverseTheOrder() {
+        for (int i = 0; i < 10; ++i) set.add(i);
+        NavigableSet<Integer> down = set.descendingSet().headSet(4, true);
+        assertThat(new ArrayList<Integer>(down),
+                is(Arrays.asList(9, 8, 7, 6, 5, 4)));
+        assertThat(down.lower(6), is(7));
+        assertThat(down.first(), is(9));
+        Iterator<Integer> it = down.iterator();
+        it.next();
+        it.remove();
+        assertThat(it.next(), is(8));
+        assertThat(set.last(), is(8));
+    }
+
+    @Test
+    public void addAllMergesSortedSets() {
+        for (int i = 0; i < 10; i += 2) set.add(i);
+        TreeSet<Integer> other = new TreeSet<Integer>();
+        for (int i = 0; i < 100; i += 3) other.add(i);
+        assertThat(set.addAll(other), is(true));
+        TreeSet<Integer> expected = new TreeSet<Integer>(other);
+        expected.addAll(Arrays.asList(0, 2, 4, 6, 8));
+        assertThat(new ArrayList<Integer>(set),
+                is(new ArrayList<Integer>(expected)));
+        assertThat(set.addAll(other), is(false));
+    }
+
+    @Test
+    public void retainAllKeepsOnlyGivenElements() {
+        for (int i = 0; i < 50; ++i) set.add(i);
+        assertThat(set.retainAll(Arrays.asList(3, 30, 300)), is(true));
+        assertThat(new ArrayList<Integer>(set), is(Arrays.asList(3, 30)));
+        set.clear();
+        assertThat(set.isEmpty(), is(true));
+        assertThat(tree.isEmpty(), is(true));
+    }
+
+    @Test
+    public void removeIfOnRangeLeavesTheRest() {
+        for (int i = 0; i < 20; ++i) set.add(i);
+        set.tailSet(10, false).removeIf(i -> i % 2 == 0);
+        List<Integer> all = new ArrayList<Integer>(set);
+        assertThat(all.size(), is(16));
+        assertThat(all.contains(10), is(true));
+        assertThat(all.contains(12), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMultisets() {
+        new RedBlackSet<Integer>(new RedBlackMultiset<Integer>());
+    }
+
+}
@@ -0,0 +1,814 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the operations provided by {@link RedBlackTree} beyond the
+ * {@link Dictionary} interface.
+ *
+ * @author Sam Marsh
+ */
+public class RedBlackTreeTest {
+
+    private RedBlackTree<Integer> tree;
+
+    @Before
+    public void initialise() {
+        tree = new RedBlackTree<Integer>();
+    }
+
+    @Test
+    public void peekAndPollReturnNullWhenEmpty() {
+        assertThat(tree.peekMin(), is(nullValue()));
+        assertThat(tree.peekMax(), is(nullValue()));
+        assertThat(tree.pollMin(), is(nullValue()));
+        assertThat(tree.pollMax(), is(nullValue()));
+    }
+
+    @Test
+    public void pollMinRemovesItemsInAscendingOrder() {
+        for (int i = 99; i >= 0; --i) tree.add(i);
+        for (int i = 0; i < 100; ++i) {
+            assertThat(tree.peekMin(), is(i));
+            assertThat(tree.pollMin(), is(i));
+            assertThat(tree.contains(i), is(false));
+        }
+        assertThat(tree.isEmpty(), is(true));
+    }
+
+    @Test
+    public void pollMaxRemovesItemsInDescendingOrder() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        for (int i = 99; i >= 0; --i) {
+            assertThat(tree.peekMax(), is(i));
+            assertThat(tree.pollMax(), is(i));
+        }
+        assertThat(tree.isEmpty(), is(true));
+    }
+
+    @Test
+    public void offerReturnsNullForDuplicate() {
+        tree.offer(1);
+        assertThat(tree.offer(1), is(nullValue()));
+    }
+
+    @Test
+    public void handleCanRemoveEntry() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        RedBlackTree.Handle<Integer> handle = tree.offer(150);
+        assertThat(tree.remove(handle), is(true));
+        assertThat(tree.contains(150), is(false));
+        assertThat(tree.max(), is(99));
+    }
+
+    @Test
+    public void staleHandleIsRejected() {
+        RedBlackTree.Handle<Integer> handle = tree.offer(1);
+        tree.delete(1);
+        assertThat(tree.remove(handle), is(false));
+        assertThat(tree.rekey(handle, 2), is(false));
+        assertThat(tree.isEmpty(), is(true));
+    }
+
+    @Test
+    public void handleFromOtherTreeIsRejected() {
+        RedBlackTree<Integer> other = new RedBlackTree<Integer>();
+        tree.add(1);
+        assertThat(tree.remove(other.offer(1)), is(false));
+        assertThat(tree.contains(1), is(true));
+    }
+
+    @Test
+    public void rekeyMovesEntry() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        RedBlackTree.Handle<Integer> handle = tree.offer(500);
+        assertThat(tree.rekey(handle, -1), is(true));
+        assertThat(handle.get(), is(-1));
+        assertThat(tree.min(), is(-1));
+        assertThat(tree.max(), is(99));
+        assertThat(tree.contains(500), is(false));
+        assertThat(tree.remove(handle), is(true));
+        assertThat(tree.min(), is(0));
+    }
+
+    @Test
+    public void rekeyFailsWhenItemAlreadyPresent() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        RedBlackTree.Handle<Integer> handle = tree.offer(500);
+        assertThat(tree.rekey(handle, 50), is(false));
+        assertThat(tree.contains(500), is(true));
+    }
+
+    @Test
+    public void aggregateCountsElementsInRange() {
+        tree = new RedBlackTree<Integer>(Augmentation.<Integer>count());
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        for (int i = 0; i < 100; i += 2) tree.delete(i);
+        assertThat(tree.<Integer>aggregate(), is(50));
+        assertThat(tree.<Integer>aggregate(10, 19), is(5));
+        assertThat(tree.<Integer>aggregate(-50, 500), is(50));
+        assertThat(tree.<Integer>aggregate(40, 30), is(0));
+    }
+
+    @Test
+    public void aggregateSumsWeightsInRange() {
+        tree = new RedBlackTree<Integer>(
+                Augmentation.<Integer>sum(Integer::longValue)
+        );
+        for (int i = 100; i > 0; --i) tree.add(i);
+        assertThat(tree.<Long>aggregate(1, 100), is(5050L));
+        tree.pollMax();
+        tree.pollMin();
+        assertThat(tree.<Long>aggregate(), is(4949L));
+        assertThat(tree.<Long>aggregate(50, 52), is(153L));
+    }
+
+    @Test
+    public void aggregateFindsMaximumAttributeInRange() {
+        tree = new RedBlackTree<Integer>(
+                Augmentation.<Integer, Integer>max(i -> -i)
+        );
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        assertThat(tree.<Integer>aggregate(20, 80), is(-20));
+        assertThat(tree.<Integer>aggregate(200, 300), is(nullValue()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aggregateFailsWhenNotAugmented() {
+        tree.aggregate(0, 1);
+    }
+
+    @Test
+    public void sizeCountsElements() {
+        for (int i = 0; i < 100; ++i) tree.add(i % 50);
+        tree.delete(10);
+        tree.pollMin();
+        assertThat(tree.size(), is(48));
+        assertThat(tree.count(20), is(1));
+        assertThat(tree.count(10), is(0));
+    }
+
+    @Test
+    public void multisetCountsRepeatedElements() {
+        tree = new RedBlackMultiset<Integer>();
+        for (int i = 0; i < 100; ++i) assertThat(tree.add(i % 10), is(true));
+        assertThat(tree.size(), is(100));
+        assertThat(tree.count(3), is(10));
+        assertThat(tree.delete(3), is(true));
+        assertThat(tree.count(3), is(9));
+        assertThat(tree.size(), is(99));
+        assertThat(tree.pollMin(), is(0));
+        assertThat(tree.count(0), is(9));
+    }
+
+    @Test
+    public void multisetIteratesOverEachOccurrence() {
+        tree = new RedBlackMultiset<Integer>();
+        for (int i = 0; i < 3; ++i)
+            for (int j = 0; j <= i; ++j) tree.add(i);
+        StringBuilder sb = new StringBuilder();
+        for (int i : tree) sb.append(i);
+        assertThat(sb.toString(), is("011222"));
+    }
+
+    @Test
+    public void multisetIteratorRemovesSingleOccurrences() {
+        tree = new RedBlackMultiset<Integer>();
+        for (int i = 0; i < 10; ++i) {
+            tree.add(i);
+            tree.add(i);
+        }
+        Iterator<Integer> iterator = tree.iterator(5);
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        assertThat(tree.size(), is(10));
+        assertThat(tree.count(4), is(2));
+        assertThat(tree.contains(5), is(false));
+        assertThat(tree.max(), is(4));
+    }
+
+    @Test
+    public void boundedTreeKeepsGreatestElements() {
+        List<Integer> evicted = new ArrayList<Integer>();
+        tree = new BoundedRedBlackTree<Integer>(
+                10, BoundedRedBlackTree.Eviction.MIN, evicted::add
+        );
+        for (int i = 0; i < 100; ++i) tree.add((i * 37) % 100);
+        assertThat(tree.size(), is(10));
+        assertThat(tree.min(), is(90));
+        assertThat(tree.max(), is(99));
+        assertThat(evicted.size(), is(90));
+    }
+
+    @Test
+    public void boundedTreeRejectsElementThatWouldBeEvicted() {
+        List<Integer> evicted = new ArrayList<Integer>();
+        tree = new BoundedRedBlackTree<Integer>(
+                3, BoundedRedBlackTree.Eviction.MAX, evicted::add
+        );
+        for (int i = 0; i < 3; ++i) tree.add(i);
+        assertThat(tree.add(5), is(false));
+        assertThat(tree.add(2), is(false));
+        assertThat(evicted, is(Arrays.asList(5)));
+        assertThat(tree.add(-1), is(true));
+        assertThat(evicted, is(Arrays.asList(5, 2)));
+        assertThat(tree.max(), is(1));
+    }
+
+    @Test
+    public void boundedTreeEvictsOnlyOnCommit() {
+        List<Integer> evicted = new ArrayList<Integer>();
+        tree = new BoundedRedBlackTree<Integer>(
+                3, BoundedRedBlackTree.Eviction.MIN, evicted::add
+        );
+        for (int i = 1; i <= 3; ++i) tree.add(i);
+        try {
+            tree.transaction(d -> {
+                d.add(10);
+                d.add(0);
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException ignored) {
+        }
+        assertThat(evicted.isEmpty(), is(true));
+        List<Integer> kept = new ArrayList<Integer>();
+        tree.forEach(kept::add);
+        assertThat(kept, is(Arrays.asList(1, 2, 3)));
+        tree.transaction(d -> {
+            d.add(10);
+            assertThat(evicted.isEmpty(), is(true));
+            d.add(0);
+        });
+        assertThat(evicted, is(Arrays.asList(1, 0)));
+        assertThat(tree.min(), is(2));
+    }
+
+    @Test
+    public void boundedTreeLogsEachAddOnce() {
+        tree = new BoundedRedBlackTree<Integer>(2);
+        tree.add(1);
+        tree.add(2);
+        tree.getLogString();
+        tree.add(0);
+        assertThat(tree.getLogString(), is(String.format(
+                "Operation add(0) completed using 1 comparison(s).%n")));
+        tree.add(3);
+        String[] lines = tree.getLogString().split("\\R");
+        assertThat(lines.length, is(1));
+        assertThat(lines[0].startsWith("Operation add(3) "), is(true));
+        assertThat(tree.min(), is(2));
+    }
+
+    @Test
+    public void navigationMethodsReturnNullWhenNoSuchElement() {
+        for (int i = 0; i < 100; i += 2) tree.add(i);
+        assertThat(tree.floor(-1), is(nullValue()));
+        assertThat(tree.lower(0), is(nullValue()));
+        assertThat(tree.ceiling(99), is(nullValue()));
+        assertThat(tree.higher(98), is(nullValue()));
+    }
+
+    @Test
+    public void navigationMethodsFindNeighbours() {
+        for (int i = 0; i < 100; i += 2) tree.add(i);
+        assertThat(tree.floor(50), is(50));
+        assertThat(tree.floor(51), is(50));
+        assertThat(tree.ceiling(50), is(50));
+        assertThat(tree.ceiling(51), is(52));
+        assertThat(tree.lower(50), is(48));
+        assertThat(tree.higher(50), is(52));
+        assertThat(tree.lower(98), is(96));
+    }
+
+    @Test
+    public void nearestExpandsOutwardsFromItem() {
+        for (int i = 0; i < 100; i += 10) tree.add(i);
+        assertThat(tree.nearest(42, 4, (a, b) -> Math.abs(a - b)),
+                is(Arrays.asList(40, 50, 30, 60)));
+        assertThat(tree.nearest(-5, 2, (a, b) -> Math.abs(a - b)),
+                is(Arrays.asList(0, 10)));
+        assertThat(tree.nearest(500, 20, (a, b) -> Math.abs(a - b)).size(),
+                is(10));
+        assertThat(tree.nearest(5, Integer.MAX_VALUE,
+                (a, b) -> Math.abs(a - b)).size(), is(10));
+    }
+
+    @Test
+    public void containsBatchChecksEachProbe() {
+        for (int i = 0; i < 100; i += 3) tree.add(i);
+        Integer[] probes = new Integer[120];
+        for (int i = 0; i < probes.length; ++i) probes[i] = i - 10;
+        boolean[] out = new boolean[probes.length];
+        tree.containsBatch(probes, out);
+        for (int i = 0; i < probes.length; ++i)
+            assertThat(out[i], is(probes[i] >= 0 && probes[i] < 100
+                    && probes[i] % 3 == 0));
+    }
+
+    @Test
+    public void containsInterleavedChecksEachProbe() {
+        for (int i = 0; i < 100; i += 3) tree.add(i);
+        Integer[] probes = new Integer[120];
+        for (int i = 0; i < probes.length; ++i)
+            probes[i] = i % 7 == 0 ? null : (i * 31) % 130 - 10;
+        boolean[] out = new boolean[probes.length];
+        tree.containsInterleaved(probes, out, 5);
+        for (int i = 0; i < probes.length; ++i)
+            assertThat(out[i], is(probes[i] != null
+                    && tree.contains(probes[i])));
+    }
+
+    @Test
+    public void lookupBatchReturnsMatches() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        assertThat(tree.lookupBatch(new Integer[]{-1, 5, 5, 50, 99, 100}),
+                is(Arrays.asList(5, 5, 50, 99)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lookupBatchFailsWhenProbesNotSorted() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        tree.lookupBatch(new Integer[]{5, 4});
+    }
+
+    @Test
+    public void instrumentCountsOperations() {
+        TreeStatistics statistics = tree.instrument();
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        tree.contains(50);
+        tree.delete(50);
+        assertThat(statistics.getSize(), is(99));
+        assertThat(statistics.getOperationCounts().get("add"), is(100L));
+        assertThat(statistics.getOperationCounts().get("delete"), is(1L));
+        assertThat(statistics.getRotations() > 0, is(true));
+        assertThat(statistics.getRecolourings() > 0, is(true));
+        assertThat(statistics.getComparisons() > 0, is(true));
+        //the structural summary is found by the thread using the tree, at
+        //the end of the operation after it is asked for
+        assertThat(statistics.getHeight(), is(0));
+        tree.contains(1);
+        assertThat(statistics.getBlackHeight() > 0, is(true));
+        assertThat(statistics.getHeight() <= 2 * statistics.getBlackHeight(),
+                is(true));
+    }
+
+    @Test
+    public void instrumentCountsEachPublicOperationOnce() {
+        TreeStatistics statistics = tree.instrument();
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        tree.predecessor(5);
+        tree.successor(5);
+        try {
+            tree.predecessor(0);
+        } catch (NoSuchElementException e) {
+            //expected
+        }
+        Map<String, Long> counts = statistics.getOperationCounts();
+        assertThat(counts.get("predecessor"), is(2L));
+        assertThat(counts.get("successor"), is(1L));
+        assertThat(counts.containsKey("hasPredecessor"), is(false));
+        assertThat(counts.containsKey("hasSuccessor"), is(false));
+    }
+
+    @Test
+    public void instrumentCountsConcurrentModifications() {
+        TreeStatistics statistics = tree.instrument();
+        tree.add(1);
+        Iterator<Integer> it = tree.iterator();
+        tree.add(2);
+        try {
+            it.next();
+        } catch (ConcurrentModificationException e) {
+            //expected
+        }
+        assertThat(statistics.getConcurrentModifications(), is(1L));
+    }
+
+    @Test
+    public void recyclingKeepsContentsCorrect() {
+        tree.recycle(8);
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 50; ++i) tree.add(i);
+            for (int i = 0; i < 50; i += 2) tree.delete(i);
+            for (int i = 1; i < 50; i += 2) assertThat(tree.contains(i), is(true));
+            for (int i = 1; i < 50; i += 2) tree.delete(i);
+            assertThat(tree.isEmpty(), is(true));
+        }
+        tree.recycle(0);
+        tree.add(3);
+        assertThat(tree.min(), is(3));
+    }
+
+    @Test
+    public void recyclingNeverReusesHandles() {
+        tree.recycle(8);
+        RedBlackTree.Handle<Integer> handle = tree.offer(5);
+        assertThat(tree.remove(handle), is(true));
+        for (int i = 0; i < 20; ++i) tree.add(i);
+        for (int i = 0; i < 20; ++i) tree.delete(i);
+        for (int i = 100; i < 120; ++i) tree.add(i);
+        assertThat(handle.get(), is(5));
+        assertThat(tree.remove(handle), is(false));
+        assertThat(tree.size(), is(20));
+    }
+
+    @Test
+    public void loggingCanBeTurnedOff() {
+        tree.getLogString();
+        tree.setLogging(false);
+        tree.add(2);
+        tree.contains(2);
+        assertThat(tree.getLogString(), is(""));
+        tree.setLogging(true);
+        tree.contains(2);
+        assertThat(tree.getLogString(),
+                is(String.format("Operation contains(2) completed using "
+                        + "1 comparison(s).%n")));
+    }
+
+    @Test
+    public void lazyDeletionKeepsIteratorsValid() {
+        tree.setLazyDeletion(1);
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        Iterator<Integer> it = tree.iterator();
+        assertThat(it.next(), is(0));
+        tree.delete(1);
+        tree.delete(9);
+        List<Integer> rest = new ArrayList<Integer>();
+        while (it.hasNext()) rest.add(it.next());
+        assertThat(rest, is(Arrays.asList(2, 3, 4, 5, 6, 7, 8)));
+    }
+
+    @Test
+    public void lazyDeletionSkipsTombstones() {
+        tree.setLazyDeletion(1);
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        for (int i = 0; i < 10; i += 3) tree.delete(i);
+        assertThat(tree.size(), is(6));
+        assertThat(tree.contains(3), is(false));
+        assertThat(tree.delete(3), is(false));
+        assertThat(tree.min(), is(1));
+        assertThat(tree.max(), is(8));
+        assertThat(tree.successor(2), is(4));
+        assertThat(tree.predecessor(4), is(2));
+        assertThat(tree.ceiling(6), is(7));
+        assertThat(tree.floor(6), is(5));
+        assertThat(tree.higher(5), is(7));
+        assertThat(tree.lower(7), is(5));
+        assertThat(tree.add(3), is(true));
+        assertThat(tree.contains(3), is(true));
+        assertThat(tree.add(0), is(true));
+        assertThat(tree.min(), is(0));
+        List<Integer> all = new ArrayList<Integer>();
+        for (Integer i : tree) all.add(i);
+        assertThat(all, is(Arrays.asList(0, 1, 2, 3, 4, 5, 7, 8)));
+    }
+
+    @Test
+    public void lazyDeletionCompactsPastFraction() {
+        tree.setLazyDeletion(0.25);
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        for (int i = 0; i < 90; ++i) tree.delete(i);
+        assertThat(tree.size(), is(10));
+        assertThat(tree.height() <= 5, is(true));
+        for (int i = 90; i < 100; ++i) assertThat(tree.contains(i), is(true));
+        for (int i = 0; i < 10; ++i) tree.pollMin();
+        assertThat(tree.isEmpty(), is(true));
+        tree.compact();
+        assertThat(tree.toString(), is("└── \n"));
+    }
+
+    @Test
+    public void batchLookupsSeeThroughTombstones() {
+        //the tree keeps the height of 2^16 nodes with only one element live
+        tree.setLogging(false);
+        tree.setLazyDeletion(1);
+        for (int i = 0; i < 1 << 16; ++i) tree.add(i);
+        for (int i = 1; i < 1 << 16; ++i) tree.delete(i);
+        Integer[] probes = {-1, 0, 1, 30000, 65535};
+        boolean[] out = new boolean[probes.length];
+        tree.containsBatch(probes, out);
+        assertThat(out[0], is(false));
+        assertThat(out[1], is(true));
+        for (int i = 2; i < out.length; ++i) assertThat(out[i], is(false));
+    }
+
+    @Test
+    public void lazyDeletionExcludesTombstonesFromAggregates() {
+        RedBlackTree<Integer> counted =
+                new RedBlackTree<Integer>(Augmentation.count());
+        counted.setLazyDeletion(1);
+        for (int i = 0; i < 20; ++i) counted.add(i);
+        for (int i = 0; i < 20; i += 2) counted.delete(i);
+        assertThat(counted.<Integer>aggregate(), is(10));
+        assertThat(counted.<Integer>aggregate(0, 9), is(5));
+        counted.setLazyDeletion(0);
+        assertThat(counted.toString().contains("deleted"), is(false));
+        assertThat(counted.<Integer>aggregate(), is(10));
+    }
+
+    @Test
+    public void forEachVisitsEveryOccurrenceInOrder() {
+        tree = new RedBlackMultiset<Integer>();
+        for (int i = 0; i < 3; ++i)
+            for (int j = 0; j <= i; ++j) tree.add(i);
+        StringBuilder sb = new StringBuilder();
+        tree.forEach(sb::append);
+        assertThat(sb.toString(), is("011222"));
+    }
+
+    @Test
+    public void forEachInRangeVisitsOnlyTheRange() {
+        for (int i = 0; i < 100; i += 2) tree.add(i);
+        List<Integer> visited = new ArrayList<Integer>();
+        tree.forEachInRange(13, 21, visited::add);
+        assertThat(visited, is(Arrays.asList(14, 16, 18, 20)));
+        visited.clear();
+        tree.forEachInRange(30, 20, visited::add);
+        assertThat(visited.isEmpty(), is(true));
+    }
+
+    @Test
+    public void forEachRemainingContinuesFromIterator() {
+        for (int i = 0; i < 50; ++i) tree.add(i);
+        Iterator<Integer> it = tree.iterator(20);
+        assertThat(it.next(), is(20));
+        List<Integer> rest = new ArrayList<Integer>();
+        it.forEachRemaining(rest::add);
+        assertThat(rest.size(), is(29));
+        assertThat(rest.get(0), is(21));
+        assertThat(rest.get(28), is(49));
+        assertThat(it.hasNext(), is(false));
+        it.remove();
+        assertThat(tree.max(), is(48));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void forEachFailsIfActionModifies() {
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        tree.forEach(i -> tree.add(i + 100));
+    }
+
+    @Test
+    public void transactionCommitsAllChanges() {
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        tree.transaction(d -> {
+            d.delete(3);
+            d.add(42);
+            assertThat(d.contains(42), is(true));
+        });
+        assertThat(tree.size(), is(10));
+        assertThat(tree.contains(3), is(false));
+        assertThat(tree.max(), is(42));
+    }
+
+    @Test
+    public void transactionRollsBackOnException() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        try {
+            tree.transaction(d -> {
+                for (int i = 0; i < 100; i += 3) d.delete(i);
+                for (int i = 100; i < 150; ++i) d.add(i);
+                Iterator<Integer> it = d.iterator(50);
+                it.next();
+                it.remove();
+                throw new IllegalArgumentException("abort");
+            });
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("abort"));
+        }
+        List<Integer> all = new ArrayList<Integer>();
+        tree.forEach(all::add);
+        for (int i = 0; i < 100; ++i) assertThat(all.get(i), is(i));
+        assertThat(tree.size(), is(100));
+        assertThat(tree.min(), is(0));
+        assertThat(tree.max(), is(99));
+    }
+
+    @Test
+    public void transactionRollsBackCountsAndTombstones() {
+        tree = new RedBlackMultiset<Integer>();
+        tree.setLazyDeletion(0.5);
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        tree.add(5);
+        tree.delete(7);
+        try {
+            tree.transaction(d -> {
+                d.add(5);
+                d.delete(2);
+                d.add(7);
+                throw new RuntimeException();
+            });
+        } catch (RuntimeException ignored) {
+        }
+        StringBuilder sb = new StringBuilder();
+        tree.forEach(sb::append);
+        assertThat(sb.toString(), is("0123455689"));
+        assertThat(tree.size(), is(10));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void transactionCountsAsOneModification() {
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        Iterator<Integer> it = tree.iterator();
+        tree.transaction(d -> { });
+        try {
+            it.next();
+            throw new AssertionError("iterator still valid");
+        } catch (ConcurrentModificationException expected) {
+        }
+        it = tree.iterator();
+        tree.transaction(d -> {
+            for (int i = 10; i < 20; ++i) d.add(i);
+        });
+        it.next();
+    }
+
+    @Test
+    public void transactionCommitInvalidatesIteratorsTakenInBody() {
+        assertIteratorTakenInBodyFails(true);
+    }
+
+    @Test
+    public void transactionRollbackInvalidatesIteratorsTakenInBody() {
+        assertIteratorTakenInBodyFails(false);
+    }
+
+    private void assertIteratorTakenInBodyFails(boolean commit) {
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        List<Iterator<Integer>> its = new ArrayList<Iterator<Integer>>();
+        try {
+            tree.transaction(d -> {
+                its.add(tree.iterator());
+                its.get(0).next();
+                for (int i = 1; i < 10; ++i) d.delete(i);
+                for (int i = 100; i < 105; ++i) d.add(i);
+                if (!commit) throw new IllegalStateException();
+            });
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            its.get(0).next();
+            throw new AssertionError("iterator still valid");
+        } catch (ConcurrentModificationException expected) {
+        }
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void transactionCompactionInvalidatesIterators() {
+        tree.setLazyDeletion(0.25);
+        for (int i = 0; i < 10; ++i) tree.add(i);
+        List<Iterator<Integer>> its = new ArrayList<Iterator<Integer>>();
+        tree.transaction(d -> {
+            its.add(tree.iterator());
+            for (int i = 0; i < 5; ++i) d.delete(i);
+        });
+        its.get(0).next();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void transactionViewUnusableAfterwards() {
+        List<Dictionary<Integer>> view = new ArrayList<Dictionary<Integer>>();
+        tree.transaction(view::add);
+        view.get(0).add(1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void transactionsCannotBeNested() {
+        tree.transaction(d -> tree.transaction(e -> { }));
+    }
+
+    @Test
+    public void digestDependsOnlyOnContents() {
+        RedBlackTree<Integer> a = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        RedBlackTree<Integer> b = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        for (int i = 0; i < 500; ++i) a.add(i);
+        for (int i = 499; i >= 0; --i) b.add(i);
+        assertThat(a.digest(), is(b.digest()));
+        b.delete(250);
+        assertThat(a.digest() == b.digest(), is(false));
+        b.add(250);
+        assertThat(a.digest(), is(b.digest()));
+    }
+
+    @Test
+    public void diffVisitsOnlyPathsToDifferences() {
+        RedBlackTree<Integer> a = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        RedBlackTree<Integer> b = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        for (int i = 0; i < 1000; ++i) a.add(i);
+        for (int i = 999; i >= 0; --i) b.add(i);
+        a.delete(17);
+        b.delete(500);
+        b.add(2000);
+        RedBlackTree.Replica<Integer> replica = b.replica();
+        int[] requests = new int[1];
+        RedBlackTree.Replica<Integer> counted =
+                new RedBlackTree.Replica<Integer>() {
+            @Override
+            public long digest(Integer lo, Integer hi) {
+                ++requests[0];
+                return replica.digest(lo, hi);
+            }
+
+            @Override
+            public List<Integer> elements(Integer lo, Integer hi) {
+                ++requests[0];
+                return replica.elements(lo, hi);
+            }
+        };
+        List<Integer> here = new ArrayList<Integer>();
+        List<Integer> there = new ArrayList<Integer>();
+        a.diff(counted, here::add, there::add);
+        assertThat(here, is(Arrays.asList(500)));
+        assertThat(there, is(Arrays.asList(17, 2000)));
+        assertThat(requests[0] < 150, is(true));
+    }
+
+    @Test
+    public void diffWithEmptyReportsEverything() {
+        RedBlackTree<Integer> a = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        RedBlackTree<Integer> b = new RedBlackTree<Integer>(
+                Augmentation.digest());
+        for (int i = 0; i < 20; ++i) a.add(i);
+        List<Integer> here = new ArrayList<Integer>();
+        List<Integer> there = new ArrayList<Integer>();
+        a.diff(b, here::add, there::add);
+        assertThat(here.size(), is(20));
+        b.diff(a, here::add, there::add);
+        assertThat(there, is(here));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void diffRequiresDigest() {
+        tree.diff(tree, i -> { }, i -> { });
+    }
+
+    @Test
+    public void removeIfRebuildsOnce() {
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        tree.getLogString();
+        assertThat(tree.removeIf(i -> i % 10 != 0), is(90));
+        assertThat(tree.getLogString(), is(String.format(
+                "Operation removeIf() completed using 0 comparison(s).%n")));
+        List<Integer> all = new ArrayList<Integer>();
+        tree.forEach(all::add);
+        assertThat(all, is(Arrays.asList(0, 10, 20, 30, 40, 50, 60, 70, 80,
+                90)));
+        assertThat(tree.min(), is(0));
+        assertThat(tree.max(), is(90));
+    }
+
+    @Test
+    public void addSortedMergesIntoTree() {
+        for (int i = 0; i < 10; ++i) tree.add(i * 10);
+        List<Integer> run = new ArrayList<Integer>();
+        for (int i = 5; i < 95; ++i) run.add(i);
+        assertThat(tree.addSorted(run), is(81));
+        assertThat(tree.size(), is(91));
+        assertThat(tree.min(), is(0));
+        assertThat(tree.max(), is(94));
+        assertThat(tree.successor(49), is(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addSortedRejectsUnsortedRuns() {
+        tree.addSorted(Arrays.asList(1, 3, 2));
+    }
+
+    @Test
+    public void descendingIteratorStartsAtFloor() {
+        for (int i = 0; i < 10; i += 2) tree.add(i);
+        Iterator<Integer> it = tree.descendingIterator(5);
+        List<Integer> visited = new ArrayList<Integer>();
+        it.forEachRemaining(visited::add);
+        assertThat(visited, is(Arrays.asList(4, 2, 0)));
+        it.remove();
+        assertThat(tree.min(), is(2));
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(tree.getLogString());
+    }
+
+}
@@ -0,0 +1,85 @@
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for the restructuring done by {@link SplayTree} and {@link Treap},
+ * and for {@link DictionaryEngine}. The {@link Dictionary} operations
+ * themselves are covered by {@link DictionaryTest}.
+ *
+ * @author Sam Marsh
+ */
+public class SelfAdjustingTreeTest {
+
+    private static String root(Dictionary<Integer> dictionary) {
+        String tree = dictionary.toString();
+        return tree.substring(4, tree.indexOf('\n'));
+    }
+
+    @Test
+    public void splayMovesAccessedElementToRoot() {
+        SplayTree<Integer> tree = new SplayTree<Integer>();
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        tree.contains(37);
+        assertThat(root(tree), is("37"));
+        tree.contains(1000);
+        assertThat(root(tree), is("99"));
+        tree.predecessor(50);
+        assertThat(root(tree), is("49"));
+    }
+
+    @Test
+    public void splayNeighbourChecksSplayWhereTheyStop() {
+        //ascending inserts leave the splay tree as a single left spine, so
+        //a check that walked it without splaying would cost linear time
+        //every time
+        SplayTree<Integer> tree = new SplayTree<Integer>();
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        assertThat(tree.hasSuccessor(0), is(true));
+        assertThat(root(tree), is("0"));
+        assertThat(tree.hasPredecessor(99), is(true));
+        assertThat(root(tree), is("98"));
+        assertThat(tree.hasPredecessor(-1), is(false));
+        assertThat(root(tree), is("0"));
+    }
+
+    @Test
+    public void treapMovesFrequentElementToRoot() {
+        Treap<Integer> tree = new Treap<Integer>(new Random(1));
+        for (int i = 0; i < 100; ++i) tree.add(i);
+        for (int i = 0; i < 3; ++i) tree.contains(64);
+        assertThat(root(tree), is("64"));
+    }
+
+    @Test
+    public void iteratorSurvivesLookupsThatReshapeTree() {
+        SplayTree<Integer> tree = new SplayTree<Integer>();
+        for (int i = 0; i < 50; ++i) tree.add(i);
+        Iterator<Integer> it = tree.iterator();
+        for (int i = 0; i < 50; ++i) {
+            tree.contains((i * 17) % 50);
+            assertThat(it.next(), is(i));
+            if (i % 3 == 0) it.remove();
+        }
+        assertThat(it.hasNext(), is(false));
+        assertThat(tree.size(), is(33));
+    }
+
+    @Test
+    public void engineCreatesEachKind() {
+        assertThat(DictionaryEngine.RED_BLACK.<Integer>create(),
+                instanceOf(RedBlackTree.class));
+        assertThat(DictionaryEngine.SPLAY.<Integer>create(),
+                instanceOf(SplayTree.class));
+        assertThat(DictionaryEngine.TREAP.<Integer>create(),
+                instanceOf(Treap.class));
+        assertThat(DictionaryEngine.valueOf("ADAPTIVE").<Integer>create(),
+                instanceOf(AdaptiveDictionary.class));
+    }
+
+}
@@ -0,0 +1,110 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Sam Marsh
+ */
+public class ShardedDictionaryTest {
+
+    private ShardedDictionary<Integer> dictionary;
+
+    @Before
+    public void initialise() {
+        dictionary = new ShardedDictionary<Integer>(100, 200, 300);
+    }
+
+    @Test
+    public void neighboursFoundAcrossEmptyShards() {
+        dictionary.add(50);
+        dictionary.add(350);
+        assertThat(dictionary.successor(50), is(350));
+        assertThat(dictionary.predecessor(350), is(50));
+        assertThat(dictionary.min(), is(50));
+        assertThat(dictionary.max(), is(350));
+    }
+
+    @Test
+    public void rebalanceSplitsBusiestShard() {
+        for (int i = 0; i < 400; ++i) dictionary.add(i);
+        for (int n = 0; n < 10; ++n)
+            for (int i = 0; i < 100; ++i) dictionary.contains(i);
+        assertThat(dictionary.rebalance(), is(true));
+        assertThat(dictionary.shards(), is(4));
+        assertThat(dictionary.size(), is(400));
+        int expected = 0;
+        for (int i : dictionary) assertThat(i, is(expected++));
+        assertThat(expected, is(400));
+        assertThat(dictionary.rebalance(), is(false));
+    }
+
+    @Test
+    public void concurrentWritersToDifferentShards() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            int base = t * 100;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; ++i) dictionary.add(base + i);
+                for (int i = 0; i < 100; i += 2) dictionary.delete(base + i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertThat(dictionary.size(), is(200));
+        for (int i = 0; i < 400; ++i)
+            assertThat(dictionary.contains(i), is(i % 2 == 1));
+    }
+
+    @Test
+    public void rebalanceDoesNotMergeHalfOfTheSplitShardStraightBack() {
+        for (int i = 0; i < 400; ++i) dictionary.add(i);
+        for (int n = 0; n < 10; ++n)
+            for (int i = 100; i < 200; ++i) dictionary.contains(i);
+        assertThat(dictionary.rebalance(), is(true));
+        assertThat(dictionary.bounds(), is(Arrays.asList(100, 150, 200)));
+    }
+
+    @Test
+    public void writersRetryAcrossConcurrentRebalances() throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread rebalancer = new Thread(() -> {
+            while (running.get()) dictionary.rebalance();
+        });
+        rebalancer.start();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            int base = t * 100;
+            threads[t] = new Thread(() -> {
+                for (int n = 0; n < 20; ++n) {
+                    for (int i = 0; i < 100; ++i) dictionary.add(base + i);
+                    for (int i = 0; i < 100; i += 2)
+                        dictionary.delete(base + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        running.set(false);
+        rebalancer.join();
+        assertThat(dictionary.size(), is(200));
+        int expected = 1;
+        for (int i : dictionary) {
+            assertThat(i, is(expected));
+            expected += 2;
+        }
+        assertThat(expected, is(401));
+    }
+
+    @After
+    public void printLog() throws IOException {
+        System.out.println(dictionary.getLogString());
+    }
+
+}
@@ -0,0 +1,99 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link TraceRecorder}, {@link TraceReplay} and
+ * {@link LatencyHistogram}.
+ *
+ * @author Sam Marsh
+ */
+public class TraceReplayTest {
+
+    private TraceReplay<Integer> record(Dictionary<Integer> dictionary)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder<Integer> recorder = new TraceRecorder<Integer>(
+                dictionary, KeyCodec.integers(), bytes);
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; ++i) {
+            int key = random.nextInt(200) - 100;
+            switch (random.nextInt(4)) {
+                case 0:
+                    recorder.delete(key);
+                    break;
+                case 1:
+                    recorder.contains(key);
+                    break;
+                default:
+                    recorder.add(key);
+            }
+        }
+        recorder.add(null);
+        try {
+            recorder.successor(1000);
+        } catch (NoSuchElementException e) {
+            //recorded as a failure
+        }
+        Iterator<Integer> it = recorder.iterator(0);
+        for (int i = 0; i < 10 && it.hasNext(); ++i) {
+            if (it.next() % 2 == 0) it.remove();
+        }
+        recorder.close();
+        return new TraceReplay<Integer>(
+                new ByteArrayInputStream(bytes.toByteArray()),
+                KeyCodec.integers());
+    }
+
+    @Test
+    public void replayReproducesRecordedDictionary() throws IOException {
+        RedBlackTree<Integer> original = new RedBlackTree<Integer>();
+        TraceReplay<Integer> replay = record(original);
+        RedBlackTree<Integer> copy = new RedBlackTree<Integer>();
+        TraceReplay.Report report = replay.replay(copy);
+        assertThat(report.getOperations(), is((long) replay.length()));
+        assertThat(report.getFailures(), is(1L));
+        assertThat(report.getLatencies().getCount(),
+                is((long) replay.length()));
+        Iterator<Integer> expected = original.iterator();
+        for (Integer item : (Iterable<Integer>) copy::iterator)
+            assertThat(item, is(expected.next()));
+        assertThat(expected.hasNext(), is(false));
+    }
+
+    @Test
+    public void equivalentDictionariesHaveEqualChecksums() throws IOException {
+        TraceReplay<Integer> replay = record(new RedBlackTree<Integer>());
+        assertThat(replay.replay(new CombiningDictionary<Integer>())
+                        .getChecksum(),
+                is(replay.replay(new RedBlackTree<Integer>()).getChecksum()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherStreams() throws IOException {
+        new TraceReplay<Integer>(new ByteArrayInputStream(new byte[8]),
+                KeyCodec.integers());
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; ++i) histogram.record(i);
+        assertThat(histogram.getValueAtPercentile(0), is(1L));
+        assertThat(histogram.getValueAtPercentile(100), is(100000L));
+        assertThat(histogram.getMax(), is(100000L));
+        long median = histogram.getValueAtPercentile(50);
+        assertThat(median >= 50000 && median <= 50000 * 65 / 64, is(true));
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getValueAtPercentile(100), is(Long.MAX_VALUE));
+    }
+
+}